@@ -1,4 +1,4 @@
-/* Copyright 2014-2017 Norconex Inc.
+/* Copyright 2014-2019 Norconex Inc.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -14,6 +14,7 @@
  */
 package com.norconex.collector.core.crawler;
 
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
 import java.lang.management.ManagementFactory;
@@ -21,6 +22,8 @@ import java.lang.reflect.InvocationTargetException;
 import java.math.BigDecimal;
 import java.math.RoundingMode;
 import java.text.NumberFormat;
+import java.util.ArrayDeque;
+import java.util.Deque;
 import java.util.Iterator;
 import java.util.Locale;
 import java.util.concurrent.CountDownLatch;
@@ -38,6 +41,7 @@ import javax.management.ObjectName;
 import org.apache.commons.beanutils.BeanUtilsBean;
 import org.apache.commons.beanutils.PropertyUtils;
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.ArrayUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.time.StopWatch;
@@ -51,7 +55,10 @@ import com.norconex.collector.core.crawler.event.CrawlerEventManager;
 import com.norconex.collector.core.data.BaseCrawlData;
 import com.norconex.collector.core.data.CrawlState;
 import com.norconex.collector.core.data.ICrawlData;
+import com.norconex.collector.core.data.store.CrawlDataStoreUtil;
 import com.norconex.collector.core.data.store.ICrawlDataStore;
+import com.norconex.collector.core.data.store.IFlushableCrawlDataStore;
+import com.norconex.collector.core.data.store.ReferenceBloomFilter;
 import com.norconex.collector.core.doc.CollectorMetadata;
 import com.norconex.collector.core.jmx.Monitoring;
 import com.norconex.collector.core.pipeline.importer.ImporterPipelineContext;
@@ -98,8 +105,6 @@ public abstract class AbstractCrawler
     private static final long STATUS_LOGGING_INTERVAL = 
             TimeUnit.SECONDS.toMillis(5);
     
-    private final CopyIfNullBeanUtilsBean nullAwareBeanUtils = 
-            new CopyIfNullBeanUtilsBean();
     private final ICrawlerConfig config;
     private CrawlerEventManager crawlerEventManager;
     private Importer importer;
@@ -111,6 +116,14 @@ public abstract class AbstractCrawler
     // things a bit bit not having to obtain that value from the database at 
     // every progress change.,
     private int processedCount;
+    // Queued references obtained in batch, not yet processed, per thread.
+    private final ThreadLocal<Deque<ICrawlData>> queuedBuffer = 
+            new ThreadLocal<Deque<ICrawlData>>() {
+        @Override
+        protected Deque<ICrawlData> initialValue() {
+            return new ArrayDeque<>();
+        }
+    };
     private long lastStatusLoggingTime;
     
     /**
@@ -231,7 +244,13 @@ public abstract class AbstractCrawler
             LOG.info(getId() + ": Crawler executed in "
                     + DurationUtil.formatLong(
                             Locale.ENGLISH, stopWatch.getTime()) + ".");
+            ReferenceBloomFilter referenceFilter = 
+                    CrawlDataStoreUtil.getReferenceFilter(crawlDataStore);
+            if (referenceFilter != null) {
+                LOG.info(getId() + ": Reference filter: " + referenceFilter);
+            }
             try {
+                flushCrawlDataStore(crawlDataStore);
                 cleanupExecution(statusUpdater, suite, crawlDataStore);
             } finally {
                 crawlDataStore.close();
@@ -243,6 +262,19 @@ public abstract class AbstractCrawler
         return config.getCrawlDataStoreFactory().createCrawlDataStore(
                 config, resume);
     }
+
+    /**
+     * Writes changes the crawl data store may be holding, if it is an
+     * {@link IFlushableCrawlDataStore}. Invoked before documents are
+     * committed and before the crawl data store is closed.
+     * @param crawlDataStore crawl data store
+     * @since 1.9.2
+     */
+    protected void flushCrawlDataStore(ICrawlDataStore crawlDataStore) {
+        if (crawlDataStore instanceof IFlushableCrawlDataStore) {
+            ((IFlushableCrawlDataStore) crawlDataStore).flush();
+        }
+    }
     
     protected abstract void prepareExecution(
             JobStatusUpdater statusUpdater, JobSuite suite, 
@@ -266,6 +298,9 @@ public abstract class AbstractCrawler
             handleOrphans(crawlDataStore, statusUpdater, suite);
         }
         
+        // crawl data store must be up to date with what gets committed
+        flushCrawlDataStore(crawlDataStore);
+
         ICommitter committer = getCrawlerConfig().getCommitter();
         if (committer != null) {
             LOG.info(getId() + ": Crawler " 
@@ -329,10 +364,14 @@ public abstract class AbstractCrawler
         long count = 0;
         Iterator<ICrawlData> it = crawlDataStore.getCacheIterator();
         if (it != null) {
-            while (it.hasNext()) {
-                ICrawlData crawlData = it.next();
-                executeQueuePipeline(crawlData, crawlDataStore);
-                count++;
+            try {
+                while (it.hasNext()) {
+                    ICrawlData crawlData = it.next();
+                    executeQueuePipeline(crawlData, crawlDataStore);
+                    count++;
+                }
+            } finally {
+                closeCacheIterator(it);
             }
             ImporterPipelineContext contextPrototype = 
                     new ImporterPipelineContext(this, crawlDataStore);
@@ -343,6 +382,13 @@ public abstract class AbstractCrawler
                 + " cached/orphan references...");
     }
     
+    // Cache iterators holding database resources can be closed
+    private void closeCacheIterator(Iterator<ICrawlData> it) {
+        if (it instanceof Closeable) {
+            IOUtils.closeQuietly((Closeable) it);
+        }
+    }
+
     protected abstract void executeQueuePipeline(
             ICrawlData crawlData, ICrawlDataStore crawlDataStore);
     
@@ -352,9 +398,13 @@ public abstract class AbstractCrawler
         long count = 0;
         Iterator<ICrawlData> it = crawlDataStore.getCacheIterator();
         if (it != null && it.hasNext()) {
-            while (it.hasNext()) {
-                crawlDataStore.queue(it.next());
-                count++;
+            try {
+                while (it.hasNext()) {
+                    crawlDataStore.queue(it.next());
+                    count++;
+                }
+            } finally {
+                closeCacheIterator(it);
             }
             ImporterPipelineContext contextPrototype = 
                     new ImporterPipelineContext(this, crawlDataStore);
@@ -403,7 +453,8 @@ public abstract class AbstractCrawler
         }
         ICrawlDataStore crawlStore = context.getCrawlDataStore();
         
-        BaseCrawlData queuedCrawlData = (BaseCrawlData) crawlStore.nextQueued();
+        BaseCrawlData queuedCrawlData = 
+                (BaseCrawlData) nextQueuedCrawlData(crawlStore);
         context.setCrawlData(queuedCrawlData);
         
         if (LOG.isTraceEnabled()) {
@@ -440,6 +491,26 @@ public abstract class AbstractCrawler
         return true;
     }
     
+    // Obtains queued references in batch when configured to do so, 
+    // buffering them for the current thread.
+    private ICrawlData nextQueuedCrawlData(ICrawlDataStore crawlStore) {
+        int batchSize = 1;
+        if (getCrawlerConfig() instanceof AbstractCrawlerConfig) {
+            batchSize = ((AbstractCrawlerConfig) 
+                    getCrawlerConfig()).getNextQueuedBatchSize();
+        }
+        // When limiting the number of documents, we do not want 
+        // references to remain "active" once that limit is reached.
+        if (batchSize <= 1 || getCrawlerConfig().getMaxDocuments() > -1) {
+            return crawlStore.nextQueued();
+        }
+        Deque<ICrawlData> buffer = queuedBuffer.get();
+        if (buffer.isEmpty()) {
+            buffer.addAll(CrawlDataStoreUtil.nextQueued(crawlStore, batchSize));
+        }
+        return buffer.poll();
+    }
+
     private void registerMonitoringMbean(ICrawlDataStore crawlDataStore) {
         try {
             MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
@@ -648,7 +719,7 @@ public abstract class AbstractCrawler
             if (!crawlData.getState().isNewOrModified() && cached != null) {
                 //TODO maybe new CrawlData instances should be initialized with 
                 // some of cache data available instead?
-                nullAwareBeanUtils.copyProperties(crawlData, cached);
+                crawlData.copyNullProperties(cached);
             }
             
             //--- Deal with bad states (if not already deleted) ----------------
@@ -833,11 +904,19 @@ public abstract class AbstractCrawler
             } catch (Exception e) {
                 LOG.error(getId() + ": Problem in thread execution.", e);
             } finally {
+                queuedBuffer.remove();
                 latch.countDown();
             }
         }
     }
     
+    /**
+     * Bean utilities copying only properties that are <code>null</code>
+     * on the destination.
+     * @deprecated Since 1.9.2, use 
+     *             {@link BaseCrawlData#copyNullProperties(ICrawlData)}
+     */
+    @Deprecated
     public class CopyIfNullBeanUtilsBean extends BeanUtilsBean{
         @Override
         public void copyProperty(Object dest, String name, Object value)
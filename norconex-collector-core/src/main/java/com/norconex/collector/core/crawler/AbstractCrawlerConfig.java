@@ -1,4 +1,4 @@
-/* Copyright 2014-2017 Norconex Inc.
+/* Copyright 2014-2019 Norconex Inc.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -66,6 +66,7 @@ public abstract class AbstractCrawlerConfig implements ICrawlerConfig {
     private int numThreads = 2;
     private File workDir = new File("./work");
     private int maxDocuments = -1;
+    private int nextQueuedBatchSize = 1;
     private OrphansStrategy orphansStrategy = OrphansStrategy.PROCESS;
     private Class<? extends Exception>[] stopOnExceptions;
     
@@ -136,6 +137,31 @@ public abstract class AbstractCrawlerConfig implements ICrawlerConfig {
         this.maxDocuments = maxDocuments;
     }
 
+    /**
+     * Gets the maximum number of queued references each crawler thread
+     * obtains from the crawl data store at once. Those references are kept
+     * in a small per-thread buffer and processed one by one, reducing 
+     * the number of crawl data store round trips. A value of 1 or less
+     * disables this buffering.
+     * @return maximum number of queued references obtained at once
+     * @since 1.9.2
+     */
+    public int getNextQueuedBatchSize() {
+        return nextQueuedBatchSize;
+    }
+    /**
+     * Sets the maximum number of queued references each crawler thread
+     * obtains from the crawl data store at once. Default is 1 
+     * (no buffering). Buffering is ignored when a maximum number
+     * of documents is set.
+     * @param nextQueuedBatchSize maximum number of queued references 
+     *        obtained at once
+     * @since 1.9.2
+     */
+    public void setNextQueuedBatchSize(int nextQueuedBatchSize) {
+        this.nextQueuedBatchSize = nextQueuedBatchSize;
+    }
+
     @Override
     public OrphansStrategy getOrphansStrategy() {
         return orphansStrategy;
@@ -267,6 +293,8 @@ public abstract class AbstractCrawlerConfig implements ICrawlerConfig {
             writer.writeElementString("workDir", 
                     Objects.toString(getWorkDir(), null)); 
             writer.writeElementInteger("maxDocuments", getMaxDocuments());
+            writer.writeElementInteger(
+                    "nextQueuedBatchSize", getNextQueuedBatchSize());
 
             Class<? extends Exception>[] stopOnExcepts = getStopOnExceptions();
             if (ArrayUtils.isNotEmpty(stopOnExcepts)) {
@@ -336,6 +364,8 @@ public abstract class AbstractCrawlerConfig implements ICrawlerConfig {
         }
         setWorkDir(dir);
         setMaxDocuments(xml.getInt("maxDocuments", getMaxDocuments()));
+        setNextQueuedBatchSize(xml.getInt(
+                "nextQueuedBatchSize", getNextQueuedBatchSize()));
 
         //--- Stop on Exceptions -----------------------------------------------
         Class<? extends Exception>[] stopExceptions =
@@ -537,6 +567,7 @@ public abstract class AbstractCrawlerConfig implements ICrawlerConfig {
                 .append(numThreads, castOther.numThreads)
                 .append(workDir, castOther.workDir)
                 .append(maxDocuments, castOther.maxDocuments)
+                .append(nextQueuedBatchSize, castOther.nextQueuedBatchSize)
                 .append(stopOnExceptions, castOther.stopOnExceptions)
                 .append(orphansStrategy, castOther.orphansStrategy)
                 .append(crawlDataStoreFactory, castOther.crawlDataStoreFactory)
@@ -559,6 +590,7 @@ public abstract class AbstractCrawlerConfig implements ICrawlerConfig {
                 .append(numThreads)
                 .append(workDir)
                 .append(maxDocuments)
+                .append(nextQueuedBatchSize)
                 .append(stopOnExceptions)
                 .append(orphansStrategy)
                 .append(crawlDataStoreFactory)
@@ -580,6 +612,7 @@ public abstract class AbstractCrawlerConfig implements ICrawlerConfig {
                 .append("numThreads", numThreads)
                 .append("workDir", workDir)
                 .append("maxDocuments", maxDocuments)
+                .append("nextQueuedBatchSize", nextQueuedBatchSize)
                 .append("stopOnExceptions", stopOnExceptions)
                 .append("orphansStrategy", orphansStrategy)
                 .append("crawlDataStoreFactory", crawlDataStoreFactory)
@@ -1,4 +1,4 @@
-/* Copyright 2014-2017 Norconex Inc.
+/* Copyright 2014-2019 Norconex Inc.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -17,7 +17,8 @@ package com.norconex.collector.core.data;
 import java.lang.reflect.InvocationTargetException;
 import java.util.Date;
 
-import org.apache.commons.beanutils.BeanUtils;
+import org.apache.commons.beanutils.BeanUtilsBean;
+import org.apache.commons.beanutils.PropertyUtils;
 import org.apache.commons.lang3.builder.EqualsBuilder;
 import org.apache.commons.lang3.builder.HashCodeBuilder;
 import org.apache.commons.lang3.builder.ToStringBuilder;
@@ -28,13 +29,36 @@ import com.norconex.commons.lang.file.ContentType;
 
 
 /**
+ * <p>
  * A based implementation of {@link ICrawlData} with a default state of NEW.
+ * </p>
+ * <p>
+ * As of 1.9.2, {@link #clone()} no longer relies on reflection and
+ * {@link #copyNullProperties(ICrawlData)} can be used to merge values 
+ * from another instance. Subclasses adding fields should override
+ * {@link #copyNullProperties(ICrawlData)}, else reflection is used.
+ * </p>
  * @author Pascal Essiembre
  */
 public class BaseCrawlData implements ICrawlData {
 
     private static final long serialVersionUID = 8711781555253202315L;
 
+    // Whether a class overrides copyNullProperties(ICrawlData)
+    private static final ClassValue<Boolean> COPY_OVERRIDDEN = 
+            new ClassValue<Boolean>() {
+        @Override
+        protected Boolean computeValue(Class<?> type) {
+            try {
+                return type.getMethod("copyNullProperties", 
+                        ICrawlData.class).getDeclaringClass() 
+                                != BaseCrawlData.class;
+            } catch (NoSuchMethodException e) {
+                return false;
+            }
+        }
+    };
+
     private String reference;
     private String parentRootReference;
     private boolean isRootParentReference;
@@ -148,14 +172,81 @@ public class BaseCrawlData implements ICrawlData {
         this.crawlDate = crawlDate;
     }
 
+    /**
+     * Creates a shallow copy of this instance, including subclass fields.
+     * The crawl date is copied as well.
+     * @return a copy of this instance
+     */
     @Override
     public ICrawlData clone() {
         try {
-            return (ICrawlData) BeanUtils.cloneBean(this);
-        } catch (IllegalAccessException | InstantiationException
-                | InvocationTargetException | NoSuchMethodException e) {
+            BaseCrawlData copy = (BaseCrawlData) super.clone();
+            if (crawlDate != null) {
+                copy.crawlDate = new Date(crawlDate.getTime());
+            }
+            return copy;
+        } catch (CloneNotSupportedException e) {
+            throw new CollectorException(
+                    "Cannot clone crawl data: " + this, e);
+        }
+    }
+
+    /**
+     * Copies to this instance all values from the given source for which 
+     * this instance value is <code>null</code>. 
+     * Subclasses holding more fields should override this method,
+     * invoking this method (<code>super.copyNullProperties(source)</code>)
+     * or {@link #copyNullBaseProperties(ICrawlData)}, and then copying 
+     * their own fields. Only the {@link BaseCrawlData} fields are then 
+     * copied here. When not overridden by a subclass, properties are 
+     * copied using reflection.
+     * @param source crawl data to copy values from
+     * @since 1.9.2
+     */
+    public void copyNullProperties(ICrawlData source) {
+        if (source == null) {
+            return;
+        }
+        if (getClass() == BaseCrawlData.class 
+                || COPY_OVERRIDDEN.get(getClass())) {
+            copyNullBaseProperties(source);
+            return;
+        }
+        try {
+            NullPropertiesCopier.INSTANCE.copyProperties(this, source);
+        } catch (IllegalAccessException | InvocationTargetException e) {
             throw new CollectorException(
-                    "Cannot clone HttpDocReference: " + this, e);
+                    "Cannot copy properties to crawl data: " + this, e);
+        }
+    }
+
+    /**
+     * Copies to this instance the {@link ICrawlData} values from the 
+     * given source for which this instance value is <code>null</code>.
+     * @param source crawl data to copy values from
+     * @since 1.9.2
+     */
+    protected void copyNullBaseProperties(ICrawlData source) {
+        if (reference == null) {
+            reference = source.getReference();
+        }
+        if (parentRootReference == null) {
+            parentRootReference = source.getParentRootReference();
+        }
+        if (state == null) {
+            state = source.getState();
+        }
+        if (metaChecksum == null) {
+            metaChecksum = source.getMetaChecksum();
+        }
+        if (contentChecksum == null) {
+            contentChecksum = source.getContentChecksum();
+        }
+        if (contentType == null) {
+            contentType = source.getContentType();
+        }
+        if (crawlDate == null) {
+            crawlDate = source.getCrawlDate();
         }
     }
 
@@ -201,4 +292,23 @@ public class BaseCrawlData implements ICrawlData {
                 .append(crawlDate)
                 .toHashCode();
     }
+
+    // Used for subclasses not overriding copyNullProperties(ICrawlData).
+    private static class NullPropertiesCopier extends BeanUtilsBean {
+        private static final NullPropertiesCopier INSTANCE = 
+                new NullPropertiesCopier();
+        @Override
+        public void copyProperty(Object dest, String name, Object value)
+                throws IllegalAccessException, InvocationTargetException {
+            try {
+                if (PropertyUtils.getProperty(dest, name) != null) {
+                    return;
+                }
+            } catch (NoSuchMethodException e) {
+                throw new InvocationTargetException(e, 
+                        "Could not get property '" + name + "' for " + dest);
+            }
+            super.copyProperty(dest, name, value);
+        }
+    }
 }
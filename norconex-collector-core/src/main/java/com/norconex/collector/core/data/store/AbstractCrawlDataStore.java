@@ -1,4 +1,4 @@
-/* Copyright 2014-2017 Norconex Inc.
+/* Copyright 2014-2019 Norconex Inc.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -14,11 +14,167 @@
  */
 package com.norconex.collector.core.data.store;
 
+import java.util.List;
+
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+import com.norconex.collector.core.data.ICrawlData;
+
 /**
- * <p>Abstract crawl data store. Does not implement any method.</p>
+ * <p>Abstract crawl data store. Provides default implementations 
+ * of methods added to {@link ICrawlDataStore} over time, and of the
+ * optional {@link IStagedCrawlDataStore} and 
+ * {@link IBatchCrawlDataStore} methods, relying on 
+ * the original methods.  Implementors are encouraged to override them
+ * with more efficient versions.</p>
  * @author Pascal Essiembre
  */
-public abstract class AbstractCrawlDataStore implements ICrawlDataStore {
+public abstract class AbstractCrawlDataStore 
+        implements IStagedCrawlDataStore, IBatchCrawlDataStore {
     //TODO used to implement isVanished(...).  Shall we delete or keep
     //as an adapter to avoid API change issues with ICrawlStore?
+
+    private static final Logger LOG = 
+            LogManager.getLogger(AbstractCrawlDataStore.class);
+
+    private ReferenceBloomFilter referenceFilter;
+
+    /**
+     * Invokes {@link #nextQueued()} up to <code>max</code> times.
+     * @param max maximum number of references to return
+     * @return next references
+     * @since 1.9.2
+     */
+    @Override
+    public List<ICrawlData> nextQueued(int max) {
+        return CrawlDataStoreUtil.nextQueuedOneByOne(this, max);
+    }
+
+    /**
+     * Queues the crawl data if {@link #getStage(String)} returns
+     * {@link ReferenceStage#NONE}. This default implementation is not 
+     * atomic: a reference looked up by several threads at once can be
+     * queued more than once. Implementors are encouraged to override it 
+     * with an atomic version.
+     * @param crawlData crawl data to queue
+     * @return the stage the reference was in before this call
+     * @since 1.9.2
+     */
+    @Override
+    public ReferenceStage queueIfAbsent(ICrawlData crawlData) {
+        ReferenceStage stage = getStage(crawlData.getReference());
+        if (stage == ReferenceStage.NONE) {
+            queue(crawlData);
+        }
+        return stage;
+    }
+
+    /**
+     * Invokes {@link #isActive(String)}, {@link #isQueued(String)}, and 
+     * {@link #isProcessed(String)} until one returns <code>true</code>,
+     * unless the reference filter reports the reference as new.
+     * @param reference the reference
+     * @return reference stage
+     * @since 1.9.2
+     */
+    @Override
+    public ReferenceStage getStage(String reference) {
+        if (!isPossiblyKnown(reference)) {
+            return ReferenceStage.NONE;
+        }
+        ReferenceStage stage = ReferenceStage.NONE;
+        if (isActive(reference)) {
+            stage = ReferenceStage.ACTIVE;
+        } else if (isQueued(reference)) {
+            stage = ReferenceStage.QUEUED;
+        } else if (isProcessed(reference)) {
+            stage = ReferenceStage.PROCESSED;
+        }
+        return referenceFilterChecked(stage);
+    }
+
+    /**
+     * @since 1.9.2
+     */
+    @Override
+    public ReferenceBloomFilter getReferenceFilter() {
+        return referenceFilter;
+    }
+    /**
+     * Sets the filter of known references this store shall maintain. 
+     * The filter is first loaded with all references currently known
+     * to this store. Has no effect if this store does not support 
+     * reference filters.
+     * @param referenceFilter reference filter (<code>null</code> to disable)
+     * @since 1.9.2
+     */
+    public void setReferenceFilter(ReferenceBloomFilter referenceFilter) {
+        if (referenceFilter != null && !loadReferenceFilter(referenceFilter)) {
+            LOG.warn(getClass().getSimpleName() 
+                    + " does not support reference filters. Ignoring it.");
+            return;
+        }
+        this.referenceFilter = referenceFilter;
+    }
+
+    /**
+     * Adds all references currently known to this store (queued, active, 
+     * or processed) to the given filter.  Implementors supporting reference
+     * filters shall override this method and invoke 
+     * {@link #addToReferenceFilter(String)} whenever a reference is queued
+     * or processed. This default implementation does nothing and returns
+     * <code>false</code>.
+     * @param referenceFilter the filter to load
+     * @return <code>true</code> if reference filters are supported
+     * @since 1.9.2
+     */
+    protected boolean loadReferenceFilter(
+            ReferenceBloomFilter referenceFilter) {
+        return false;
+    }
+
+    /**
+     * Adds a reference to the reference filter, if one is set. Must be
+     * invoked before the reference becomes visible to other threads.
+     * @param reference the reference to add
+     * @since 1.9.2
+     */
+    protected void addToReferenceFilter(String reference) {
+        ReferenceBloomFilter filter = referenceFilter;
+        if (filter != null) {
+            filter.add(reference);
+        }
+    }
+
+    /**
+     * Gets whether a reference is possibly known to this store according
+     * to the reference filter. Always <code>true</code> when there
+     * is no reference filter. When <code>true</code>, the stage 
+     * obtained by looking up the reference should be passed to 
+     * {@link #referenceFilterChecked(ReferenceStage)}.
+     * @param reference the reference
+     * @return <code>false</code> if the reference is definitely new
+     * @since 1.9.2
+     */
+    protected boolean isPossiblyKnown(String reference) {
+        ReferenceBloomFilter filter = referenceFilter;
+        return filter == null || filter.mightContain(reference);
+    }
+
+    /**
+     * Records a reference filter false positive when a reference
+     * reported as possibly known by {@link #isPossiblyKnown(String)}
+     * turned out to be new.
+     * @param stage stage found after looking up a possibly known reference
+     * @return the same stage
+     * @since 1.9.2
+     */
+    protected ReferenceStage referenceFilterChecked(ReferenceStage stage) {
+        ReferenceBloomFilter filter = referenceFilter;
+        if (filter != null && stage == ReferenceStage.NONE) {
+            filter.falsePositive();
+        }
+        return stage;
+    }
 }
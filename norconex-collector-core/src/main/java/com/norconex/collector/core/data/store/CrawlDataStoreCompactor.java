@@ -0,0 +1,196 @@
+/* Copyright 2019 Norconex Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.norconex.collector.core.data.store;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.lang3.builder.ToStringBuilder;
+import org.apache.commons.lang3.builder.ToStringStyle;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+/**
+ * <p>
+ * Compacts an {@link ICompactableCrawlDataStore} in a background thread,
+ * one step at a time. The delay between steps limits how much 
+ * of the disk bandwidth compaction can use. Compaction can be paused
+ * and resumed (e.g., while the crawler is busiest).
+ * </p>
+ * <p>
+ * The number of bytes reclaimed so far and the store fill rate can be
+ * obtained at any time for monitoring.
+ * </p>
+ * @author Pascal Essiembre
+ * @since 1.9.2
+ */
+public class CrawlDataStoreCompactor {
+
+    private static final Logger LOG = 
+            LogManager.getLogger(CrawlDataStoreCompactor.class);
+
+    private final ICompactableCrawlDataStore store;
+    private final long interval;
+    private final AtomicLong bytesReclaimed = new AtomicLong();
+    private final AtomicLong stepCount = new AtomicLong();
+    private ScheduledExecutorService scheduler;
+    private final Object stepLock = new Object();
+    private volatile boolean paused;
+    // guarded by stepLock
+    private boolean stepInProgress;
+
+    /**
+     * Creates a compactor for the given store.
+     * @param store the store to compact
+     * @param interval milliseconds between compaction steps
+     */
+    public CrawlDataStoreCompactor(
+            ICompactableCrawlDataStore store, long interval) {
+        super();
+        this.store = store;
+        this.interval = interval;
+    }
+
+    /**
+     * Gets the milliseconds between compaction steps.
+     * @return interval
+     */
+    public long getInterval() {
+        return interval;
+    }
+
+    /**
+     * Starts compacting in the background. Does nothing if already started.
+     */
+    public synchronized void start() {
+        if (scheduler != null) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "CrawlDataStoreCompactor");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (stepLock) {
+                    if (paused) {
+                        return;
+                    }
+                    stepInProgress = true;
+                }
+                try {
+                    bytesReclaimed.addAndGet(store.compact());
+                    stepCount.incrementAndGet();
+                } catch (RuntimeException e) {
+                    LOG.error("Could not compact crawl data store.", e);
+                } finally {
+                    synchronized (stepLock) {
+                        stepInProgress = false;
+                        stepLock.notifyAll();
+                    }
+                }
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops compacting, waiting for a compaction step in progress 
+     * to complete.
+     */
+    public synchronized void stop() {
+        if (scheduler == null) {
+            return;
+        }
+        scheduler.shutdown();
+        try {
+            scheduler.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        scheduler = null;
+    }
+
+    /**
+     * Pauses compaction until {@link #resume()} is invoked, waiting
+     * for a compaction step in progress to complete.
+     */
+    public void pause() {
+        synchronized (stepLock) {
+            paused = true;
+            while (stepInProgress) {
+                try {
+                    stepLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+    /**
+     * Resumes a paused compaction.
+     */
+    public void resume() {
+        paused = false;
+    }
+    /**
+     * Gets whether compaction is paused.
+     * @return <code>true</code> if paused
+     */
+    public boolean isPaused() {
+        return paused;
+    }
+
+    /**
+     * Gets the estimated number of bytes reclaimed since started.
+     * @return bytes reclaimed
+     */
+    public long getBytesReclaimed() {
+        return bytesReclaimed.get();
+    }
+    /**
+     * Gets the number of compaction steps performed since started.
+     * @return step count
+     */
+    public long getStepCount() {
+        return stepCount.get();
+    }
+    /**
+     * Gets the percentage of the store space holding live data.
+     * @return fill rate (0-100), or -1 if unknown
+     */
+    public int getFillRate() {
+        return store.getFillRate();
+    }
+
+    @Override
+    public String toString() {
+        return new ToStringBuilder(this, ToStringStyle.SHORT_PREFIX_STYLE)
+                .append("interval", interval)
+                .append("paused", paused)
+                .append("stepCount", getStepCount())
+                .append("bytesReclaimed", getBytesReclaimed())
+                .toString();
+    }
+}
@@ -0,0 +1,125 @@
+/* Copyright 2019 Norconex Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.norconex.collector.core.data.store;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.norconex.collector.core.data.ICrawlData;
+
+/**
+ * Utility methods invoking optional crawl data store operations, 
+ * falling back to the original {@link ICrawlDataStore} methods when 
+ * a store does not support them.
+ * @author Pascal Essiembre
+ * @since 1.9.2
+ */
+public final class CrawlDataStoreUtil {
+
+    private CrawlDataStoreUtil() {
+        super();
+    }
+
+    /**
+     * Gets the current stage of a reference. Stores not implementing 
+     * {@link IStagedCrawlDataStore} are asked whether the reference is 
+     * active, queued, or processed, in that order.
+     * @param store crawl data store
+     * @param reference the reference
+     * @return reference stage (never <code>null</code>)
+     */
+    public static ReferenceStage getStage(
+            ICrawlDataStore store, String reference) {
+        if (store instanceof IStagedCrawlDataStore) {
+            return ((IStagedCrawlDataStore) store).getStage(reference);
+        }
+        if (store.isActive(reference)) {
+            return ReferenceStage.ACTIVE;
+        } else if (store.isQueued(reference)) {
+            return ReferenceStage.QUEUED;
+        } else if (store.isProcessed(reference)) {
+            return ReferenceStage.PROCESSED;
+        }
+        return ReferenceStage.NONE;
+    }
+
+    /**
+     * Queues a copy of the crawl data unless its reference is already 
+     * queued, active, or processed. Only atomic for stores implementing
+     * {@link IStagedCrawlDataStore}. Other stores are looked up with 
+     * {@link #getStage(ICrawlDataStore, String)} before queuing.
+     * @param store crawl data store
+     * @param crawlData crawl data to queue
+     * @return the stage the reference was in before this call, 
+     *         {@link ReferenceStage#NONE} if it was queued by this call
+     */
+    public static ReferenceStage queueIfAbsent(
+            ICrawlDataStore store, ICrawlData crawlData) {
+        if (store instanceof IStagedCrawlDataStore) {
+            return ((IStagedCrawlDataStore) store).queueIfAbsent(crawlData);
+        }
+        ReferenceStage stage = getStage(store, crawlData.getReference());
+        if (stage == ReferenceStage.NONE) {
+            store.queue(crawlData.clone());
+        }
+        return stage;
+    }
+
+    /**
+     * Returns up to <code>max</code> queued references, marking them 
+     * as active. Stores not implementing {@link IBatchCrawlDataStore} 
+     * have {@link ICrawlDataStore#nextQueued()} invoked up to 
+     * <code>max</code> times.
+     * @param store crawl data store
+     * @param max maximum number of references to return
+     * @return next references (never <code>null</code>)
+     */
+    public static List<ICrawlData> nextQueued(
+            ICrawlDataStore store, int max) {
+        if (store instanceof IBatchCrawlDataStore) {
+            return ((IBatchCrawlDataStore) store).nextQueued(max);
+        }
+        return nextQueuedOneByOne(store, max);
+    }
+
+    // Also used by batch stores without a more efficient way
+    static List<ICrawlData> nextQueuedOneByOne(
+            ICrawlDataStore store, int max) {
+        List<ICrawlData> list = new ArrayList<>(Math.max(0, max));
+        for (int i = 0; i < max; i++) {
+            ICrawlData data = store.nextQueued();
+            if (data == null) {
+                break;
+            }
+            list.add(data);
+        }
+        return list;
+    }
+
+    /**
+     * Gets the filter of known references maintained by a store.
+     * @param store crawl data store
+     * @return reference filter or <code>null</code> if the store does not
+     *         implement {@link IStagedCrawlDataStore} or does not 
+     *         maintain one
+     */
+    public static ReferenceBloomFilter getReferenceFilter(
+            ICrawlDataStore store) {
+        if (store instanceof IStagedCrawlDataStore) {
+            return ((IStagedCrawlDataStore) store).getReferenceFilter();
+        }
+        return null;
+    }
+}
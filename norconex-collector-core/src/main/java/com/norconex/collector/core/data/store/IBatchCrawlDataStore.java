@@ -0,0 +1,40 @@
+/* Copyright 2019 Norconex Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.norconex.collector.core.data.store;
+
+import java.util.List;
+
+import com.norconex.collector.core.data.ICrawlData;
+
+/**
+ * A crawl data store able to return many queued references at once.
+ * Other stores have {@link ICrawlDataStore#nextQueued()} invoked
+ * once per reference (see {@link CrawlDataStoreUtil}).
+ * @author Pascal Essiembre
+ * @since 1.9.2
+ */
+public interface IBatchCrawlDataStore extends ICrawlDataStore {
+
+    /**
+     * Returns up to <code>max</code> references to be processed from the
+     * queue and marks them all as being "active", in a single operation
+     * when supported by the implementation. The returned references are 
+     * effectively removed from the queue.
+     * @param max maximum number of references to return
+     * @return next references (never <code>null</code>, empty if the queue
+     *         is empty)
+     */
+    List<ICrawlData> nextQueued(int max);
+}
@@ -0,0 +1,39 @@
+/* Copyright 2019 Norconex Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.norconex.collector.core.data.store;
+
+/**
+ * A crawl data store whose storage can be compacted while in use,
+ * reclaiming space left by references moving from one stage to another.
+ * @author Pascal Essiembre
+ * @since 1.9.2
+ * @see CrawlDataStoreCompactor
+ */
+public interface ICompactableCrawlDataStore extends ICrawlDataStore {
+
+    /**
+     * Performs one compaction step. Each step is limited in how much
+     * data it rewrites so it can run alongside crawling without 
+     * slowing it down much.
+     * @return estimated number of bytes reclaimed (zero or more)
+     */
+    long compact();
+
+    /**
+     * Gets the percentage of the storage space holding live data.
+     * @return fill rate (0-100), or -1 if unknown
+     */
+    int getFillRate();
+}
@@ -0,0 +1,30 @@
+/* Copyright 2019 Norconex Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.norconex.collector.core.data.store;
+
+/**
+ * A crawl data store that may hold changes not yet written to its 
+ * underlying storage. Crawlers flush it before committing documents
+ * and before closing it.
+ * @author Pascal Essiembre
+ * @since 1.9.2
+ */
+public interface IFlushableCrawlDataStore extends ICrawlDataStore {
+
+    /**
+     * Writes all changes made so far, returning once they are written.
+     */
+    void flush();
+}
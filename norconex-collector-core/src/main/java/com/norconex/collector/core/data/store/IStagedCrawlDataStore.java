@@ -0,0 +1,58 @@
+/* Copyright 2019 Norconex Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.norconex.collector.core.data.store;
+
+import com.norconex.collector.core.data.ICrawlData;
+
+/**
+ * A crawl data store able to tell the stage a reference is in, and to
+ * queue a reference only when it is not already known, each as a single
+ * operation, optionally helped by a filter of known references. 
+ * Stores not implementing it are queried one stage at a time
+ * (see {@link CrawlDataStoreUtil}).
+ * @author Pascal Essiembre
+ * @since 1.9.2
+ */
+public interface IStagedCrawlDataStore extends ICrawlDataStore {
+
+    /**
+     * Queues a reference unless it is already queued, active, or processed,
+     * as a single atomic operation. Implementors must queue a copy of the
+     * given crawl data, not the instance itself.
+     * @param crawlData crawl data to queue
+     * @return the stage the reference was in before this call, 
+     *         {@link ReferenceStage#NONE} if it was queued by this call
+     */
+    ReferenceStage queueIfAbsent(ICrawlData crawlData);
+
+    /**
+     * Gets the current stage of a reference, in a single look-up when
+     * supported by the implementation. Cached references that were not
+     * queued, active, or processed in the current execution are
+     * reported as {@link ReferenceStage#NONE}.
+     * @param reference the reference
+     * @return reference stage (never <code>null</code>)
+     */
+    ReferenceStage getStage(String reference);
+
+    /**
+     * Gets the filter this store maintains with all references it knows
+     * (queued, active, or processed), used to quickly find out
+     * whether a reference is new without looking it up.
+     * @return reference filter or <code>null</code> if this store does not
+     *         maintain one
+     */
+    ReferenceBloomFilter getReferenceFilter();
+}
@@ -0,0 +1,286 @@
+/* Copyright 2019 Norconex Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.norconex.collector.core.data.store;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.apache.commons.lang3.builder.ToStringBuilder;
+import org.apache.commons.lang3.builder.ToStringStyle;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+/**
+ * <p>
+ * Thread-safe Bloom filter of references known to a crawl data store
+ * (queued, active, or processed).  When it reports a reference as 
+ * not being present, the reference is guaranteed to be new and crawl data 
+ * store look-ups can be skipped.  When it reports a reference as possibly
+ * present, the crawl data store has to be checked.
+ * </p>
+ * <p>
+ * The filter is sized for an expected number of references. Adding more
+ * references than expected does not affect correctness, but increases
+ * the false positive rate (i.e., crawl data store look-ups for 
+ * references that turn out to be new). The filter does not grow: a 
+ * warning is logged once more references than expected were added.
+ * </p>
+ * <p>
+ * Counters are kept to measure the filter efficiency: number of look-ups,
+ * number of references reported as new ("negatives"), and number
+ * of false positives reported with {@link #falsePositive()}.
+ * </p>
+ * @author Pascal Essiembre
+ * @since 1.9.2
+ */
+public class ReferenceBloomFilter {
+
+    private static final Logger LOG = 
+            LogManager.getLogger(ReferenceBloomFilter.class);
+
+    public static final int DEFAULT_EXPECTED_COUNT = 1000000;
+    public static final double DEFAULT_FALSE_POSITIVE_RATE = 0.01;
+
+    private static final int BITS_PER_WORD = 64;
+    private static final int WORD_SHIFT = 6;
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final long expectedCount;
+    private final double falsePositiveRate;
+    private final long bitCount;
+    private final int hashCount;
+    private final AtomicLongArray bits;
+
+    private final AtomicLong addedCount = new AtomicLong();
+    private final AtomicLong lookupCount = new AtomicLong();
+    private final AtomicLong negativeCount = new AtomicLong();
+    private final AtomicLong falsePositiveCount = new AtomicLong();
+
+    /**
+     * Creates a filter for the expected number of references, with
+     * a false positive rate of 1%.
+     * @param expectedCount expected number of references
+     */
+    public ReferenceBloomFilter(long expectedCount) {
+        this(expectedCount, DEFAULT_FALSE_POSITIVE_RATE);
+    }
+    /**
+     * Creates a filter for the expected number of references and 
+     * false positive rate.
+     * @param expectedCount expected number of references
+     * @param falsePositiveRate false positive rate (between 0 and 1, 
+     *        exclusively)
+     */
+    public ReferenceBloomFilter(long expectedCount, double falsePositiveRate) {
+        if (expectedCount < 1) {
+            throw new IllegalArgumentException(
+                    "Expected count must be greater than zero.");
+        }
+        if (falsePositiveRate <= 0 || falsePositiveRate >= 1) {
+            throw new IllegalArgumentException(
+                    "False positive rate must be between 0 and 1.");
+        }
+        this.expectedCount = expectedCount;
+        this.falsePositiveRate = falsePositiveRate;
+
+        double ln2 = Math.log(2);
+        long m = (long) Math.ceil(
+                -expectedCount * Math.log(falsePositiveRate) / (ln2 * ln2));
+        long words = Math.min((m + BITS_PER_WORD - 1) >>> WORD_SHIFT, 
+                Integer.MAX_VALUE);
+        this.bitCount = words * BITS_PER_WORD;
+        this.hashCount = Math.max(1, (int) Math.round(
+                (double) bitCount / expectedCount * ln2));
+        this.bits = new AtomicLongArray((int) words);
+    }
+
+    /**
+     * Adds a reference to this filter.
+     * @param reference the reference to add
+     */
+    public void add(String reference) {
+        if (reference == null) {
+            return;
+        }
+        long h1 = hash1(reference);
+        long h2 = hash2(reference);
+        boolean changed = false;
+        for (int i = 0; i < hashCount; i++) {
+            changed |= setBit(index(h1, h2, i));
+        }
+        if (changed && addedCount.incrementAndGet() == expectedCount + 1) {
+            LOG.warn("More references than the " + expectedCount 
+                    + " expected were added to the reference filter. "
+                    + "Its false positive rate will increase. Consider "
+                    + "raising the expected number of references.");
+        }
+    }
+
+    /**
+     * Gets whether a reference was possibly added to this filter.
+     * A <code>false</code> value means the reference was definitely 
+     * never added.
+     * @param reference the reference to look for
+     * @return <code>true</code> if the reference was possibly added
+     */
+    public boolean mightContain(String reference) {
+        lookupCount.incrementAndGet();
+        if (reference != null) {
+            long h1 = hash1(reference);
+            long h2 = hash2(reference);
+            for (int i = 0; i < hashCount; i++) {
+                if (!isBitSet(index(h1, h2, i))) {
+                    negativeCount.incrementAndGet();
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Records that a reference reported as possibly present by 
+     * {@link #mightContain(String)} turned out not to be.
+     */
+    public void falsePositive() {
+        falsePositiveCount.incrementAndGet();
+    }
+
+    public long getExpectedCount() {
+        return expectedCount;
+    }
+    public double getFalsePositiveRate() {
+        return falsePositiveRate;
+    }
+    public long getBitCount() {
+        return bitCount;
+    }
+    public int getHashCount() {
+        return hashCount;
+    }
+    /**
+     * Gets the approximate number of distinct references added.
+     * @return approximate number of references
+     */
+    public long getAddedCount() {
+        return addedCount.get();
+    }
+    /**
+     * Gets whether more references than expected were added, making
+     * false positives more likely than the configured rate.
+     * @return <code>true</code> if the expected count was exceeded
+     */
+    public boolean isExpectedCountExceeded() {
+        return addedCount.get() > expectedCount;
+    }
+    /**
+     * Gets the number of look-ups performed.
+     * @return look-up count
+     */
+    public long getLookupCount() {
+        return lookupCount.get();
+    }
+    /**
+     * Gets the number of look-ups that reported a reference as new, 
+     * sparing crawl data store look-ups.
+     * @return negative count
+     */
+    public long getNegativeCount() {
+        return negativeCount.get();
+    }
+    /**
+     * Gets the number of look-ups that reported a reference as possibly
+     * present.
+     * @return positive count
+     */
+    public long getPositiveCount() {
+        return lookupCount.get() - negativeCount.get();
+    }
+    /**
+     * Gets the number of recorded false positives.
+     * @return false positive count
+     */
+    public long getFalsePositiveCount() {
+        return falsePositiveCount.get();
+    }
+    /**
+     * Gets the false positive rate observed so far, that is, the
+     * ratio of recorded false positives over new references looked up.
+     * @return observed false positive rate
+     */
+    public double getObservedFalsePositiveRate() {
+        long fp = falsePositiveCount.get();
+        long newRefs = fp + negativeCount.get();
+        if (newRefs == 0) {
+            return 0;
+        }
+        return (double) fp / newRefs;
+    }
+
+    private long index(long h1, long h2, int i) {
+        long combined = h1 + i * h2;
+        return (combined & Long.MAX_VALUE) % bitCount;
+    }
+    private boolean setBit(long index) {
+        int word = (int) (index >>> WORD_SHIFT);
+        long mask = 1L << index;
+        long old;
+        do {
+            old = bits.get(word);
+            if ((old & mask) != 0) {
+                return false;
+            }
+        } while (!bits.compareAndSet(word, old, old | mask));
+        return true;
+    }
+    private boolean isBitSet(long index) {
+        return (bits.get((int) (index >>> WORD_SHIFT)) & (1L << index)) != 0;
+    }
+
+    // String hash code, spread with a 64-bit finalizer.
+    private static long hash1(String s) {
+        long h = s.hashCode();
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+    // 64-bit FNV-1a over characters, forced odd for double hashing.
+    private static long hash2(String s) {
+        long h = FNV_OFFSET;
+        for (int i = 0; i < s.length(); i++) {
+            h ^= s.charAt(i);
+            h *= FNV_PRIME;
+        }
+        return h | 1L;
+    }
+
+    @Override
+    public String toString() {
+        return new ToStringBuilder(this, ToStringStyle.SHORT_PREFIX_STYLE)
+                .append("expectedCount", expectedCount)
+                .append("falsePositiveRate", falsePositiveRate)
+                .append("bitCount", bitCount)
+                .append("hashCount", hashCount)
+                .append("addedCount", getAddedCount())
+                .append("lookupCount", getLookupCount())
+                .append("negativeCount", getNegativeCount())
+                .append("falsePositiveCount", getFalsePositiveCount())
+                .toString();
+    }
+}
@@ -0,0 +1,33 @@
+/* Copyright 2019 Norconex Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.norconex.collector.core.data.store;
+
+/**
+ * Processing stage of a reference in a crawl data store.
+ * @author Pascal Essiembre
+ * @since 1.9.2
+ * @see IStagedCrawlDataStore#getStage(String)
+ * @see IStagedCrawlDataStore#queueIfAbsent(com.norconex.collector.core.data.ICrawlData)
+ */
+public enum ReferenceStage {
+    /** Reference unknown to the crawl data store. */
+    NONE,
+    /** Reference waiting in queue to be processed. */
+    QUEUED,
+    /** Reference currently being processed. */
+    ACTIVE,
+    /** Reference already processed. */
+    PROCESSED
+}
@@ -0,0 +1,545 @@
+/* Copyright 2019 Norconex Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.norconex.collector.core.data.store.impl.async;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+import com.norconex.collector.core.data.ICrawlData;
+import com.norconex.collector.core.data.store.CrawlDataStoreException;
+import com.norconex.collector.core.data.store.CrawlDataStoreUtil;
+import com.norconex.collector.core.data.store.IBatchCrawlDataStore;
+import com.norconex.collector.core.data.store.ICrawlDataStore;
+import com.norconex.collector.core.data.store.IFlushableCrawlDataStore;
+import com.norconex.collector.core.data.store.IStagedCrawlDataStore;
+import com.norconex.collector.core.data.store.ReferenceBloomFilter;
+import com.norconex.collector.core.data.store.ReferenceStage;
+
+/**
+ * <p>
+ * {@link ICrawlDataStore} queuing and processing references in 
+ * the background, so crawler threads do not wait for them to be written.
+ * Changes are added to a bounded queue, from which a single writer 
+ * thread takes them in batches and applies them one at a time to the
+ * decorated store, in order.
+ * When the queue is full, crawler threads wait for room.
+ * Crawler threads never wait on one another otherwise.
+ * </p>
+ * <p>
+ * Changes not yet applied are taken into account when looking up 
+ * a reference they are for (e.g., a reference just processed is 
+ * reported as such). Queue size and processed count add pending 
+ * changes to the decorated store counts without waiting for them, and
+ * are approximate while a change is being applied. They are also 
+ * approximate until applied for a reference submitted again for the 
+ * same stage, unless it is still pending or was just applied.
+ * Methods returning queued references, the active count (checked by 
+ * idle crawlers) and the cache iterator first wait for pending changes
+ * to be applied when they could affect the result. 
+ * {@link #flush()} waits for all changes made before it was invoked to be
+ * applied. Changes not applied when the JVM ends abruptly are lost.
+ * </p>
+ * @author Pascal Essiembre
+ * @since 1.9.2
+ * @see AsyncCrawlDataStoreFactory
+ */
+public class AsyncCrawlDataStore 
+        implements IFlushableCrawlDataStore, IStagedCrawlDataStore, 
+                IBatchCrawlDataStore {
+
+    private static final Logger LOG = 
+            LogManager.getLogger(AsyncCrawlDataStore.class);
+    private static final int MAX_COUNT_ATTEMPTS = 100;
+
+    private final ICrawlDataStore delegate;
+    private final int batchSize;
+    private final BlockingQueue<Change> changes;
+    // latest change not yet applied for each reference
+    private final ConcurrentMap<String, Change> pending = 
+            new ConcurrentHashMap<>();
+    private final AtomicLong submittedCount = new AtomicLong();
+    private final AtomicLong appliedCount = new AtomicLong();
+    // pending changes not yet reflected in decorated store counts
+    private final AtomicInteger pendingQueuedCount = new AtomicInteger();
+    private final AtomicInteger pendingProcessedCount = new AtomicInteger();
+    // stages of the references in the last batch of applied changes
+    private volatile Map<String, ReferenceStage> lastApplied = 
+            new ConcurrentHashMap<>();
+    // odd while the writer applies a change
+    private final AtomicLong writeSequence = new AtomicLong();
+    private final AtomicReference<RuntimeException> failure = 
+            new AtomicReference<>();
+    private final Thread writer;
+
+    private volatile boolean closed;
+
+    /**
+     * Creates an asynchronous crawl data store.
+     * @param delegate the decorated crawl data store
+     * @param queueSize maximum number of changes waiting to be applied
+     * @param batchSize maximum number of changes the writer thread takes
+     *        from the queue at once
+     */
+    public AsyncCrawlDataStore(
+            ICrawlDataStore delegate, int queueSize, int batchSize) {
+        super();
+        this.delegate = delegate;
+        this.changes = new ArrayBlockingQueue<>(Math.max(1, queueSize));
+        this.batchSize = Math.max(1, batchSize);
+        this.writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeChanges();
+            }
+        }, "AsyncCrawlDataStore-writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /**
+     * Gets the decorated crawl data store.
+     * @return crawl data store
+     */
+    public ICrawlDataStore getDelegate() {
+        return delegate;
+    }
+
+    /**
+     * Gets the number of changes waiting to be applied.
+     * @return pending change count
+     */
+    public int getPendingCount() {
+        return (int) (submittedCount.get() - appliedCount.get());
+    }
+
+    @Override
+    public void queue(ICrawlData crawlData) {
+        Change change = new Change(crawlData.clone(), ReferenceStage.QUEUED);
+        putPending(change);
+        submit(change);
+    }
+
+    /**
+     * Queues the reference unless it has a pending change or is known 
+     * to the decorated store. A tentative change is first added for it, 
+     * so concurrent calls for the same reference do not queue it again
+     * (reporting it as {@link ReferenceStage#QUEUED}) while it is 
+     * looked up. Other look-ups ignore tentative changes. Pending 
+     * changes are applied to the decorated store before being removed 
+     * from pending ones.
+     */
+    @Override
+    public ReferenceStage queueIfAbsent(ICrawlData crawlData) {
+        Change change = new Change(crawlData.clone(), ReferenceStage.QUEUED);
+        change.tentative = true;
+        String reference = change.reference();
+        Change existing = pending.putIfAbsent(reference, change);
+        if (existing != null) {
+            return existing.stage;
+        }
+        ReferenceStage stage;
+        try {
+            stage = CrawlDataStoreUtil.getStage(delegate, reference);
+        } catch (RuntimeException e) {
+            pending.remove(reference, change);
+            throw e;
+        }
+        if (stage != ReferenceStage.NONE) {
+            pending.remove(reference, change);
+            return stage;
+        }
+        change.counted = true;
+        submit(change);
+        return stage;
+    }
+
+    @Override
+    public void processed(ICrawlData crawlData) {
+        Change change = 
+                new Change(crawlData.clone(), ReferenceStage.PROCESSED);
+        putPending(change);
+        submit(change);
+    }
+
+    @Override
+    public ReferenceStage getStage(String reference) {
+        Change change = getPendingChange(reference);
+        if (change != null) {
+            return change.stage;
+        }
+        return CrawlDataStoreUtil.getStage(delegate, reference);
+    }
+
+    @Override
+    public boolean isQueued(String reference) {
+        Change change = getPendingChange(reference);
+        if (change != null) {
+            return change.stage == ReferenceStage.QUEUED;
+        }
+        return delegate.isQueued(reference);
+    }
+
+    @Override
+    public boolean isActive(String reference) {
+        if (getPendingChange(reference) != null) {
+            return false;
+        }
+        return delegate.isActive(reference);
+    }
+
+    @Override
+    public boolean isProcessed(String reference) {
+        Change change = getPendingChange(reference);
+        if (change != null) {
+            return change.stage == ReferenceStage.PROCESSED;
+        }
+        return delegate.isProcessed(reference);
+    }
+
+    @Override
+    public ICrawlData getCached(String cacheReference) {
+        Change change = getPendingChange(cacheReference);
+        if (change != null && change.stage == ReferenceStage.PROCESSED) {
+            // removed from cache once processed
+            return null;
+        }
+        return delegate.getCached(cacheReference);
+    }
+
+    @Override
+    public ICrawlData nextQueued() {
+        ICrawlData data = delegate.nextQueued();
+        if (data == null && getPendingCount() > 0) {
+            flush();
+            data = delegate.nextQueued();
+        }
+        return data;
+    }
+
+    @Override
+    public List<ICrawlData> nextQueued(int max) {
+        List<ICrawlData> datas = CrawlDataStoreUtil.nextQueued(delegate, max);
+        if (datas.size() < max && getPendingCount() > 0) {
+            flush();
+            datas = new ArrayList<>(datas);
+            datas.addAll(CrawlDataStoreUtil.nextQueued(
+                    delegate, max - datas.size()));
+        }
+        return datas;
+    }
+
+    @Override
+    public boolean isQueueEmpty() {
+        if (pendingQueuedCount.get() > 0) {
+            return false;
+        }
+        return delegate.isQueueEmpty();
+    }
+
+    @Override
+    public int getQueueSize() {
+        return getCount(ReferenceStage.QUEUED);
+    }
+
+    /**
+     * Waits for pending changes to be applied first. Crawlers only 
+     * check the active count when no references were queued, to find 
+     * out whether they are done.
+     */
+    @Override
+    public int getActiveCount() {
+        flushIfPending();
+        return delegate.getActiveCount();
+    }
+
+    @Override
+    public boolean isCacheEmpty() {
+        return delegate.isCacheEmpty();
+    }
+
+    @Override
+    public int getProcessedCount() {
+        return getCount(ReferenceStage.PROCESSED);
+    }
+
+    @Override
+    public Iterator<ICrawlData> getCacheIterator() {
+        flushIfPending();
+        return delegate.getCacheIterator();
+    }
+
+    @Override
+    public ReferenceBloomFilter getReferenceFilter() {
+        return CrawlDataStoreUtil.getReferenceFilter(delegate);
+    }
+
+    /**
+     * Waits for all changes made so far to be applied to the decorated 
+     * store, then flushes it if it is itself flushable.
+     * @throws CrawlDataStoreException if a change could not be applied
+     */
+    @Override
+    public void flush() {
+        if (closed) {
+            throw new CrawlDataStoreException(
+                    "Crawl data store is closed.");
+        }
+        // changes are applied in order, so all changes queued before 
+        // this marker are applied when the writer reaches it
+        Change marker = new Change();
+        try {
+            changes.put(marker);
+            marker.flushed.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CrawlDataStoreException(
+                    "Interrupted while flushing crawl data store.", e);
+        }
+        RuntimeException e = failure.getAndSet(null);
+        if (e != null) {
+            throw new CrawlDataStoreException(
+                    "Could not apply crawl data store changes.", e);
+        }
+        if (delegate instanceof IFlushableCrawlDataStore) {
+            ((IFlushableCrawlDataStore) delegate).flush();
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            flush();
+        } finally {
+            closed = true;
+            stopWriter();
+            delegate.close();
+        }
+    }
+
+    // The writer stops when it reaches the stop marker, applying
+    // changes submitted while closing before it does.
+    private void stopWriter() {
+        try {
+            if (writer.isAlive()) {
+                changes.put(new Change(true));
+            }
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private Change getPendingChange(String reference) {
+        Change change = pending.get(reference);
+        if (change == null || change.tentative) {
+            return null;
+        }
+        return change;
+    }
+
+    // Counted changes are the ones expected to add a reference to the 
+    // queued or processed ones of the decorated store once applied. 
+    // Guessed without looking up the decorated store: a change for the
+    // same stage as a pending or just applied one is not counted.
+    private void putPending(Change change) {
+        String reference = change.reference();
+        Change previous = pending.put(reference, change);
+        ReferenceStage previousStage;
+        if (previous != null && !previous.tentative) {
+            previousStage = previous.stage;
+        } else {
+            previousStage = lastApplied.get(reference);
+        }
+        change.counted = previousStage != change.stage;
+    }
+
+    // Decorated store count plus pending changes, without waiting for
+    // the writer. Both are consistent when no change was applied while 
+    // reading them. Otherwise retries a few times before returning an
+    // approximate count (e.g., while the writer is blocked on a change).
+    private int getCount(ReferenceStage stage) {
+        int count = 0;
+        for (int i = 0; i < MAX_COUNT_ATTEMPTS; i++) {
+            long sequence = writeSequence.get();
+            if (stage == ReferenceStage.QUEUED) {
+                count = delegate.getQueueSize() + pendingQueuedCount.get();
+            } else {
+                count = delegate.getProcessedCount() 
+                        + pendingProcessedCount.get();
+            }
+            if (sequence % 2 == 0 && sequence == writeSequence.get()) {
+                break;
+            }
+            Thread.yield();
+        }
+        return count;
+    }
+
+    private void flushIfPending() {
+        if (getPendingCount() > 0) {
+            flush();
+        }
+    }
+
+    // Invoked after the change was made pending. Waits for room in 
+    // the queue without holding any lock.
+    private void submit(Change change) {
+        if (closed) {
+            pending.remove(change.reference(), change);
+            throw new CrawlDataStoreException(
+                    "Crawl data store is closed.");
+        }
+        // filter must know about a reference as soon as it is submitted
+        ReferenceBloomFilter filter = 
+                CrawlDataStoreUtil.getReferenceFilter(delegate);
+        if (filter != null) {
+            filter.add(change.reference());
+        }
+        change.tentative = false;
+        submittedCount.incrementAndGet();
+        updatePendingCount(change, 1);
+        try {
+            changes.put(change);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            pending.remove(change.reference(), change);
+            submittedCount.decrementAndGet();
+            updatePendingCount(change, -1);
+            throw new CrawlDataStoreException(
+                    "Interrupted while queuing crawl data store change.", e);
+        }
+    }
+
+    private void writeChanges() {
+        List<Change> batch = new ArrayList<>(batchSize);
+        boolean stopped = false;
+        while (!stopped) {
+            try {
+                batch.add(changes.take());
+            } catch (InterruptedException e) {
+                continue;
+            }
+            changes.drainTo(batch, batchSize - 1);
+            stopped = applyChanges(batch);
+            batch.clear();
+        }
+        // submitted after the stop marker, before the store was closed
+        changes.drainTo(batch);
+        applyChanges(batch);
+    }
+    // Returns whether the stop marker was reached
+    private boolean applyChanges(List<Change> batch) {
+        boolean stopped = false;
+        Map<String, ReferenceStage> applied = null;
+        for (Change change : batch) {
+            if (change.stop) {
+                stopped = true;
+            } else if (change.flushed != null) {
+                change.flushed.countDown();
+            } else {
+                if (applied == null) {
+                    applied = new ConcurrentHashMap<>();
+                    lastApplied = applied;
+                }
+                writeSequence.incrementAndGet();
+                applyChange(change, applied);
+                appliedCount.incrementAndGet();
+                writeSequence.incrementAndGet();
+            }
+        }
+        return stopped;
+    }
+    // Recorded as applied before no longer being pending, so a change
+    // submitted again for the same reference is never counted twice.
+    private void applyChange(
+            Change change, Map<String, ReferenceStage> applied) {
+        try {
+            if (change.stage == ReferenceStage.QUEUED) {
+                delegate.queue(change.data);
+            } else {
+                delegate.processed(change.data);
+            }
+            applied.put(change.reference(), change.stage);
+        } catch (RuntimeException e) {
+            LOG.error("Could not apply crawl data store change for: "
+                    + change.reference(), e);
+            failure.compareAndSet(null, e);
+        } finally {
+            pending.remove(change.reference(), change);
+            updatePendingCount(change, -1);
+        }
+    }
+    private void updatePendingCount(Change change, int delta) {
+        if (!change.counted) {
+            return;
+        }
+        if (change.stage == ReferenceStage.QUEUED) {
+            pendingQueuedCount.addAndGet(delta);
+        } else {
+            pendingProcessedCount.addAndGet(delta);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "[" + delegate + "]";
+    }
+
+    // A crawl data change, or a flush or stop marker
+    private static final class Change {
+        private final ICrawlData data;
+        private final ReferenceStage stage;
+        private final CountDownLatch flushed;
+        private final boolean stop;
+        // not yet known to be queued
+        private volatile boolean tentative;
+        // adding to the decorated store counts once applied
+        private boolean counted;
+        private Change(ICrawlData data, ReferenceStage stage) {
+            this.data = data;
+            this.stage = stage;
+            this.flushed = null;
+            this.stop = false;
+        }
+        private Change() {
+            this.data = null;
+            this.stage = null;
+            this.flushed = new CountDownLatch(1);
+            this.stop = false;
+        }
+        private Change(boolean stop) {
+            this.data = null;
+            this.stage = null;
+            this.flushed = null;
+            this.stop = stop;
+        }
+        private String reference() {
+            return data.getReference();
+        }
+    }
+}
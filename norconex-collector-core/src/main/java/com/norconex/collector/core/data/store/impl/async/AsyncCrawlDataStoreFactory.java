@@ -0,0 +1,241 @@
+/* Copyright 2019 Norconex Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.norconex.collector.core.data.store.impl.async;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringWriter;
+import java.io.Writer;
+
+import javax.xml.stream.XMLStreamException;
+
+import org.apache.commons.configuration.XMLConfiguration;
+import org.apache.commons.lang3.builder.EqualsBuilder;
+import org.apache.commons.lang3.builder.HashCodeBuilder;
+import org.apache.commons.lang3.builder.ToStringBuilder;
+import org.apache.commons.lang3.builder.ToStringStyle;
+
+import com.norconex.collector.core.crawler.ICrawlerConfig;
+import com.norconex.collector.core.data.store.ICrawlDataStore;
+import com.norconex.collector.core.data.store.ICrawlDataStoreFactory;
+import com.norconex.collector.core.data.store.impl.mvstore.MVStoreCrawlDataStoreFactory;
+import com.norconex.commons.lang.config.IXMLConfigurable;
+import com.norconex.commons.lang.config.XMLConfigurationUtil;
+import com.norconex.commons.lang.xml.EnhancedXMLStreamWriter;
+
+/**
+ * <p>
+ * Wraps the crawl data stores created by another factory in an
+ * {@link AsyncCrawlDataStore}, so crawler threads do not wait for 
+ * references to be queued or marked as processed. A single writer thread
+ * applies these changes in the background, in order.
+ * </p>
+ * <p>
+ * <code>queueSize</code> is the maximum number of changes waiting to
+ * be applied before crawler threads have to wait. 
+ * <code>batchSize</code> is the maximum number of changes the writer 
+ * thread takes from the queue at once. Changes are then applied to
+ * the wrapped store one at a time.
+ * Pending changes are applied before documents are committed and when
+ * the crawler stops. Those not yet applied when the JVM ends abruptly
+ * are lost, their references being processed again when resuming.
+ * </p>
+ * <p>
+ * The wrapped factory defaults to {@link MVStoreCrawlDataStoreFactory}.
+ * </p>
+ * 
+ * <h3>XML configuration usage:</h3>
+ * <pre>
+ *  &lt;crawlDataStoreFactory 
+ *          class="com.norconex.collector.core.data.store.impl.async.AsyncCrawlDataStoreFactory"&gt;
+ *      &lt;queueSize&gt;(Max. changes waiting to be applied. Default is 10000)&lt;/queueSize&gt;
+ *      &lt;batchSize&gt;(Max. changes taken from the queue at once. Default is 100)&lt;/batchSize&gt;
+ *      &lt;crawlDataStoreFactory class="(wrapped factory class)"&gt;
+ *          (wrapped factory configuration)
+ *      &lt;/crawlDataStoreFactory&gt;
+ *  &lt;/crawlDataStoreFactory&gt;
+ * </pre>
+ * 
+ * <h4>Usage example:</h4>
+ * <p>
+ * The following applies changes to an MVStore crawl data store in
+ * the background, committing them in groups.
+ * </p> 
+ * <pre>
+ *  &lt;crawlDataStoreFactory 
+ *          class="com.norconex.collector.core.data.store.impl.async.AsyncCrawlDataStoreFactory"&gt;
+ *      &lt;queueSize&gt;5000&lt;/queueSize&gt;
+ *      &lt;crawlDataStoreFactory 
+ *              class="com.norconex.collector.core.data.store.impl.mvstore.MVStoreCrawlDataStoreFactory"&gt;
+ *          &lt;commitMode&gt;GROUP&lt;/commitMode&gt;
+ *      &lt;/crawlDataStoreFactory&gt;
+ *  &lt;/crawlDataStoreFactory&gt;
+ * </pre>
+ * @author Pascal Essiembre
+ * @since 1.9.2
+ */
+public class AsyncCrawlDataStoreFactory 
+        implements ICrawlDataStoreFactory, IXMLConfigurable {
+
+    public static final int DEFAULT_QUEUE_SIZE = 10000;
+    public static final int DEFAULT_BATCH_SIZE = 100;
+
+    private ICrawlDataStoreFactory crawlDataStoreFactory = 
+            new MVStoreCrawlDataStoreFactory();
+    private int queueSize = DEFAULT_QUEUE_SIZE;
+    private int batchSize = DEFAULT_BATCH_SIZE;
+
+    public AsyncCrawlDataStoreFactory() {
+        super();
+    }
+    /**
+     * Creates a factory wrapping the given one.
+     * @param crawlDataStoreFactory wrapped factory
+     */
+    public AsyncCrawlDataStoreFactory(
+            ICrawlDataStoreFactory crawlDataStoreFactory) {
+        super();
+        this.crawlDataStoreFactory = crawlDataStoreFactory;
+    }
+
+    @Override
+    public ICrawlDataStore createCrawlDataStore(
+            ICrawlerConfig config, boolean resume) {
+        return new AsyncCrawlDataStore(
+                crawlDataStoreFactory.createCrawlDataStore(config, resume),
+                queueSize, batchSize);
+    }
+
+    /**
+     * Gets the wrapped crawl data store factory.
+     * @return crawl data store factory
+     */
+    public ICrawlDataStoreFactory getCrawlDataStoreFactory() {
+        return crawlDataStoreFactory;
+    }
+    /**
+     * Sets the wrapped crawl data store factory.
+     * @param crawlDataStoreFactory crawl data store factory
+     */
+    public void setCrawlDataStoreFactory(
+            ICrawlDataStoreFactory crawlDataStoreFactory) {
+        this.crawlDataStoreFactory = crawlDataStoreFactory;
+    }
+
+    /**
+     * Gets the maximum number of changes waiting to be applied.
+     * @return queue size
+     */
+    public int getQueueSize() {
+        return queueSize;
+    }
+    /**
+     * Sets the maximum number of changes waiting to be applied.
+     * @param queueSize queue size
+     */
+    public void setQueueSize(int queueSize) {
+        this.queueSize = queueSize;
+    }
+
+    /**
+     * Gets the maximum number of changes taken from the queue at once.
+     * @return batch size
+     */
+    public int getBatchSize() {
+        return batchSize;
+    }
+    /**
+     * Sets the maximum number of changes taken from the queue at once.
+     * @param batchSize batch size
+     */
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    @Override
+    public void loadFromXML(Reader in) throws IOException {
+        XMLConfiguration xml = XMLConfigurationUtil.newXMLConfiguration(in);
+        setQueueSize(xml.getInt("queueSize", getQueueSize()));
+        setBatchSize(xml.getInt("batchSize", getBatchSize()));
+        setCrawlDataStoreFactory(XMLConfigurationUtil.newInstance(xml,
+                "crawlDataStoreFactory", getCrawlDataStoreFactory()));
+    }
+
+    @Override
+    public void saveToXML(Writer out) throws IOException {
+        try {
+            EnhancedXMLStreamWriter writer = new EnhancedXMLStreamWriter(out);
+            writer.writeStartElement("crawlDataStoreFactory");
+            writer.writeAttribute("class", getClass().getCanonicalName());
+            writer.writeElementInteger("queueSize", getQueueSize());
+            writer.writeElementInteger("batchSize", getBatchSize());
+            writer.flush();
+            writeFactory(out);
+            writer.writeEndElement();
+            writer.flush();
+            writer.close();
+        } catch (XMLStreamException e) {
+            throw new IOException("Cannot save as XML.", e);
+        }
+    }
+    private void writeFactory(Writer out) throws IOException {
+        if (crawlDataStoreFactory == null) {
+            return;
+        }
+        if (crawlDataStoreFactory instanceof IXMLConfigurable) {
+            StringWriter w = new StringWriter();
+            ((IXMLConfigurable) crawlDataStoreFactory).saveToXML(w);
+            out.write(w.toString());
+        } else {
+            out.write("<crawlDataStoreFactory class=\"" 
+                    + crawlDataStoreFactory.getClass().getCanonicalName() 
+                    + "\" />");
+        }
+        out.flush();
+    }
+
+    @Override
+    public boolean equals(final Object other) {
+        if (!(other instanceof AsyncCrawlDataStoreFactory)) {
+            return false;
+        }
+        AsyncCrawlDataStoreFactory castOther = 
+                (AsyncCrawlDataStoreFactory) other;
+        return new EqualsBuilder()
+                .append(crawlDataStoreFactory, 
+                        castOther.crawlDataStoreFactory)
+                .append(queueSize, castOther.queueSize)
+                .append(batchSize, castOther.batchSize)
+                .isEquals();
+    }
+
+    @Override
+    public int hashCode() {
+        return new HashCodeBuilder()
+                .append(crawlDataStoreFactory)
+                .append(queueSize)
+                .append(batchSize)
+                .toHashCode();
+    }
+
+    @Override
+    public String toString() {
+        return new ToStringBuilder(this, ToStringStyle.SHORT_PREFIX_STYLE)
+                .append("crawlDataStoreFactory", crawlDataStoreFactory)
+                .append("queueSize", queueSize)
+                .append("batchSize", batchSize)
+                .toString();
+    }
+}
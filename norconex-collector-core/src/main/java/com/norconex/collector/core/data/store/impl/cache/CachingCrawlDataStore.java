@@ -0,0 +1,279 @@
+/* Copyright 2019 Norconex Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.norconex.collector.core.data.store.impl.cache;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+import com.norconex.collector.core.data.ICrawlData;
+import com.norconex.collector.core.data.store.CrawlDataStoreUtil;
+import com.norconex.collector.core.data.store.IBatchCrawlDataStore;
+import com.norconex.collector.core.data.store.ICrawlDataStore;
+import com.norconex.collector.core.data.store.IFlushableCrawlDataStore;
+import com.norconex.collector.core.data.store.IStagedCrawlDataStore;
+import com.norconex.collector.core.data.store.ReferenceBloomFilter;
+import com.norconex.collector.core.data.store.ReferenceStage;
+import com.norconex.collector.core.data.store.impl.cache.LRUCache.Entry;
+
+/**
+ * <p>
+ * {@link ICrawlDataStore} keeping in memory the most recently used
+ * results of lookups that are otherwise queries to the decorated store:
+ * </p>
+ * <ul>
+ *   <li>Cached crawl data from the previous crawl 
+ *       ({@link #getCached(String)}), including references having none.
+ *       Cached crawl data only changes when a reference is processed,
+ *       which is done through this store.</li>
+ *   <li>References found to be processed ({@link #getStage(String)}, 
+ *       {@link #isProcessed(String)}, 
+ *       {@link #queueIfAbsent(ICrawlData)}). A processed reference 
+ *       remains processed for the rest of the crawl.</li>
+ * </ul>
+ * <p>
+ * Other methods are passed on to the decorated store as is. 
+ * When the decorated store is shared by several collectors, set a 
+ * time-to-live to limit how long changes made by others can go unseen.
+ * </p>
+ * @author Pascal Essiembre
+ * @since 1.9.2
+ * @see CachingCrawlDataStoreFactory
+ */
+public class CachingCrawlDataStore 
+        implements IFlushableCrawlDataStore, IStagedCrawlDataStore, 
+                IBatchCrawlDataStore {
+
+    private static final Logger LOG = 
+            LogManager.getLogger(CachingCrawlDataStore.class);
+
+    private static final int VERSION_STRIPES = 1024;
+
+    private final ICrawlDataStore delegate;
+    private final LRUCache<String, ICrawlData> cachedData;
+    private final LRUCache<String, Boolean> processed;
+    // incremented when references hashing to a stripe are processed
+    private final AtomicLongArray versions = 
+            new AtomicLongArray(VERSION_STRIPES);
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+
+    /**
+     * Creates a caching crawl data store.
+     * @param delegate the decorated crawl data store
+     * @param maxSize maximum number of entries kept for each type of 
+     *        lookup
+     * @param timeToLive milliseconds after which a cache entry expires 
+     *        (zero or less for never)
+     */
+    public CachingCrawlDataStore(
+            ICrawlDataStore delegate, int maxSize, long timeToLive) {
+        super();
+        this.delegate = delegate;
+        this.cachedData = new LRUCache<>(maxSize, timeToLive);
+        this.processed = new LRUCache<>(maxSize, timeToLive);
+    }
+
+    /**
+     * Gets the decorated crawl data store.
+     * @return crawl data store
+     */
+    public ICrawlDataStore getDelegate() {
+        return delegate;
+    }
+
+    /**
+     * Gets the number of lookups answered from memory.
+     * @return hit count
+     */
+    public long getHitCount() {
+        return hitCount.get();
+    }
+    /**
+     * Gets the number of lookups passed on to the decorated store.
+     * @return miss count
+     */
+    public long getMissCount() {
+        return missCount.get();
+    }
+    /**
+     * Gets the ratio of lookups answered from memory.
+     * @return hit ratio, between 0 and 1
+     */
+    public double getHitRatio() {
+        long hits = hitCount.get();
+        long total = hits + missCount.get();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    @Override
+    public ICrawlData getCached(String cacheReference) {
+        Entry<ICrawlData> entry = cachedData.get(cacheReference);
+        ICrawlData data;
+        if (entry != null) {
+            hitCount.incrementAndGet();
+            data = entry.getValue();
+        } else {
+            missCount.incrementAndGet();
+            int stripe = stripe(cacheReference);
+            long version = versions.get(stripe);
+            data = delegate.getCached(cacheReference);
+            cachedData.put(cacheReference, data);
+            if (versions.get(stripe) != version) {
+                // may have been processed since it was looked up
+                cachedData.remove(cacheReference);
+            }
+        }
+        // callers may modify it
+        return data == null ? null : data.clone();
+    }
+
+    @Override
+    public ReferenceStage getStage(String reference) {
+        if (isKnownProcessed(reference)) {
+            return ReferenceStage.PROCESSED;
+        }
+        return stageChecked(reference, 
+                CrawlDataStoreUtil.getStage(delegate, reference));
+    }
+
+    @Override
+    public boolean isProcessed(String reference) {
+        if (isKnownProcessed(reference)) {
+            return true;
+        }
+        boolean isProcessed = delegate.isProcessed(reference);
+        if (isProcessed) {
+            processed.put(reference, Boolean.TRUE);
+        }
+        return isProcessed;
+    }
+
+    @Override
+    public ReferenceStage queueIfAbsent(ICrawlData crawlData) {
+        String reference = crawlData.getReference();
+        if (isKnownProcessed(reference)) {
+            return ReferenceStage.PROCESSED;
+        }
+        return stageChecked(reference, 
+                CrawlDataStoreUtil.queueIfAbsent(delegate, crawlData));
+    }
+
+    @Override
+    public void processed(ICrawlData crawlData) {
+        delegate.processed(crawlData);
+        String reference = crawlData.getReference();
+        versions.incrementAndGet(stripe(reference));
+        processed.put(reference, Boolean.TRUE);
+        // processed references are no longer cached
+        cachedData.put(reference, null);
+    }
+
+    private static int stripe(String reference) {
+        return (reference.hashCode() & Integer.MAX_VALUE) % VERSION_STRIPES;
+    }
+    private boolean isKnownProcessed(String reference) {
+        if (processed.get(reference) != null) {
+            hitCount.incrementAndGet();
+            return true;
+        }
+        missCount.incrementAndGet();
+        return false;
+    }
+    private ReferenceStage stageChecked(
+            String reference, ReferenceStage stage) {
+        if (stage == ReferenceStage.PROCESSED) {
+            processed.put(reference, Boolean.TRUE);
+        }
+        return stage;
+    }
+
+    @Override
+    public void queue(ICrawlData crawlData) {
+        delegate.queue(crawlData);
+    }
+    @Override
+    public boolean isQueueEmpty() {
+        return delegate.isQueueEmpty();
+    }
+    @Override
+    public int getQueueSize() {
+        return delegate.getQueueSize();
+    }
+    @Override
+    public boolean isQueued(String reference) {
+        return delegate.isQueued(reference);
+    }
+    @Override
+    public ICrawlData nextQueued() {
+        return delegate.nextQueued();
+    }
+    @Override
+    public List<ICrawlData> nextQueued(int max) {
+        return CrawlDataStoreUtil.nextQueued(delegate, max);
+    }
+    @Override
+    public boolean isActive(String reference) {
+        return delegate.isActive(reference);
+    }
+    @Override
+    public int getActiveCount() {
+        return delegate.getActiveCount();
+    }
+    @Override
+    public boolean isCacheEmpty() {
+        return delegate.isCacheEmpty();
+    }
+    @Override
+    public int getProcessedCount() {
+        return delegate.getProcessedCount();
+    }
+    @Override
+    public Iterator<ICrawlData> getCacheIterator() {
+        return delegate.getCacheIterator();
+    }
+    @Override
+    public ReferenceBloomFilter getReferenceFilter() {
+        return CrawlDataStoreUtil.getReferenceFilter(delegate);
+    }
+
+    /**
+     * Flushes the decorated store if it is flushable.
+     */
+    @Override
+    public void flush() {
+        if (delegate instanceof IFlushableCrawlDataStore) {
+            ((IFlushableCrawlDataStore) delegate).flush();
+        }
+    }
+
+    @Override
+    public void close() {
+        LOG.info(String.format("Crawl data store memory cache hit ratio: "
+                + "%.1f%% (%d hits, %d misses).", getHitRatio() * 100,
+                hitCount.get(), missCount.get()));
+        delegate.close();
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "[" + delegate + "]";
+    }
+}
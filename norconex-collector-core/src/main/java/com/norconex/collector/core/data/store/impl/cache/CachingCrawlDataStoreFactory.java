@@ -0,0 +1,244 @@
+/* Copyright 2019 Norconex Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.norconex.collector.core.data.store.impl.cache;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringWriter;
+import java.io.Writer;
+
+import javax.xml.stream.XMLStreamException;
+
+import org.apache.commons.configuration.XMLConfiguration;
+import org.apache.commons.lang3.builder.EqualsBuilder;
+import org.apache.commons.lang3.builder.HashCodeBuilder;
+import org.apache.commons.lang3.builder.ToStringBuilder;
+import org.apache.commons.lang3.builder.ToStringStyle;
+
+import com.norconex.collector.core.crawler.ICrawlerConfig;
+import com.norconex.collector.core.data.store.ICrawlDataStore;
+import com.norconex.collector.core.data.store.ICrawlDataStoreFactory;
+import com.norconex.collector.core.data.store.impl.mvstore.MVStoreCrawlDataStoreFactory;
+import com.norconex.commons.lang.config.IXMLConfigurable;
+import com.norconex.commons.lang.config.XMLConfigurationUtil;
+import com.norconex.commons.lang.xml.EnhancedXMLStreamWriter;
+
+/**
+ * <p>
+ * Wraps the crawl data stores created by another factory in a 
+ * {@link CachingCrawlDataStore}, keeping in memory the most recent
+ * cache and processed reference lookups. Useful with stores where 
+ * each lookup is a database query (e.g., JDBC, MongoDB). 
+ * The ratio of lookups answered from memory is logged when the
+ * crawl data store is closed.
+ * </p>
+ * <p>
+ * <code>maxSize</code> is the maximum number of entries kept in memory
+ * for each type of lookup. <code>timeToLive</code> is how long in 
+ * milliseconds an entry is kept before being looked up again
+ * (default never expires). Set a time-to-live when the wrapped store is
+ * shared by several collectors. 
+ * </p>
+ * <p>
+ * The wrapped factory defaults to {@link MVStoreCrawlDataStoreFactory}.
+ * </p>
+ * 
+ * <h3>XML configuration usage:</h3>
+ * <pre>
+ *  &lt;crawlDataStoreFactory 
+ *          class="com.norconex.collector.core.data.store.impl.cache.CachingCrawlDataStoreFactory"&gt;
+ *      &lt;maxSize&gt;(Max. entries per lookup type. Default is 100000)&lt;/maxSize&gt;
+ *      &lt;timeToLive&gt;(Milliseconds before entries expire. Default never)&lt;/timeToLive&gt;
+ *      &lt;crawlDataStoreFactory class="(wrapped factory class)"&gt;
+ *          (wrapped factory configuration)
+ *      &lt;/crawlDataStoreFactory&gt;
+ *  &lt;/crawlDataStoreFactory&gt;
+ * </pre>
+ * 
+ * <h4>Usage example:</h4>
+ * <p>
+ * The following keeps up to 50000 lookups of each type in memory
+ * for up to 5 minutes, in front of a database shared by several 
+ * collectors.
+ * </p> 
+ * <pre>
+ *  &lt;crawlDataStoreFactory 
+ *          class="com.norconex.collector.core.data.store.impl.cache.CachingCrawlDataStoreFactory"&gt;
+ *      &lt;maxSize&gt;50000&lt;/maxSize&gt;
+ *      &lt;timeToLive&gt;300000&lt;/timeToLive&gt;
+ *      &lt;crawlDataStoreFactory 
+ *              class="com.norconex.collector.core.data.store.impl.jdbc.BasicJDBCCrawlDataStoreFactory"&gt;
+ *          &lt;url&gt;jdbc:h2:tcp://crawlhost:9092/crawlstore&lt;/url&gt;
+ *          &lt;shared&gt;true&lt;/shared&gt;
+ *      &lt;/crawlDataStoreFactory&gt;
+ *  &lt;/crawlDataStoreFactory&gt;
+ * </pre>
+ * @author Pascal Essiembre
+ * @since 1.9.2
+ */
+public class CachingCrawlDataStoreFactory 
+        implements ICrawlDataStoreFactory, IXMLConfigurable {
+
+    public static final int DEFAULT_MAX_SIZE = 100000;
+
+    private ICrawlDataStoreFactory crawlDataStoreFactory = 
+            new MVStoreCrawlDataStoreFactory();
+    private int maxSize = DEFAULT_MAX_SIZE;
+    private long timeToLive;
+
+    public CachingCrawlDataStoreFactory() {
+        super();
+    }
+    /**
+     * Creates a factory wrapping the given one.
+     * @param crawlDataStoreFactory wrapped factory
+     */
+    public CachingCrawlDataStoreFactory(
+            ICrawlDataStoreFactory crawlDataStoreFactory) {
+        super();
+        this.crawlDataStoreFactory = crawlDataStoreFactory;
+    }
+
+    @Override
+    public ICrawlDataStore createCrawlDataStore(
+            ICrawlerConfig config, boolean resume) {
+        return new CachingCrawlDataStore(
+                crawlDataStoreFactory.createCrawlDataStore(config, resume),
+                maxSize, timeToLive);
+    }
+
+    /**
+     * Gets the wrapped crawl data store factory.
+     * @return crawl data store factory
+     */
+    public ICrawlDataStoreFactory getCrawlDataStoreFactory() {
+        return crawlDataStoreFactory;
+    }
+    /**
+     * Sets the wrapped crawl data store factory.
+     * @param crawlDataStoreFactory crawl data store factory
+     */
+    public void setCrawlDataStoreFactory(
+            ICrawlDataStoreFactory crawlDataStoreFactory) {
+        this.crawlDataStoreFactory = crawlDataStoreFactory;
+    }
+
+    /**
+     * Gets the maximum number of entries kept for each type of lookup.
+     * @return maximum size
+     */
+    public int getMaxSize() {
+        return maxSize;
+    }
+    /**
+     * Sets the maximum number of entries kept for each type of lookup.
+     * @param maxSize maximum size
+     */
+    public void setMaxSize(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Gets how long in milliseconds entries are kept before being looked 
+     * up again. Zero or less never expires them.
+     * @return time to live
+     */
+    public long getTimeToLive() {
+        return timeToLive;
+    }
+    /**
+     * Sets how long in milliseconds entries are kept before being looked 
+     * up again. Zero or less never expires them.
+     * @param timeToLive time to live
+     */
+    public void setTimeToLive(long timeToLive) {
+        this.timeToLive = timeToLive;
+    }
+
+    @Override
+    public void loadFromXML(Reader in) throws IOException {
+        XMLConfiguration xml = XMLConfigurationUtil.newXMLConfiguration(in);
+        setMaxSize(xml.getInt("maxSize", getMaxSize()));
+        setTimeToLive(xml.getLong("timeToLive", getTimeToLive()));
+        setCrawlDataStoreFactory(XMLConfigurationUtil.newInstance(xml,
+                "crawlDataStoreFactory", getCrawlDataStoreFactory()));
+    }
+
+    @Override
+    public void saveToXML(Writer out) throws IOException {
+        try {
+            EnhancedXMLStreamWriter writer = new EnhancedXMLStreamWriter(out);
+            writer.writeStartElement("crawlDataStoreFactory");
+            writer.writeAttribute("class", getClass().getCanonicalName());
+            writer.writeElementInteger("maxSize", getMaxSize());
+            writer.writeElementLong("timeToLive", getTimeToLive());
+            writer.flush();
+            writeFactory(out);
+            writer.writeEndElement();
+            writer.flush();
+            writer.close();
+        } catch (XMLStreamException e) {
+            throw new IOException("Cannot save as XML.", e);
+        }
+    }
+    private void writeFactory(Writer out) throws IOException {
+        if (crawlDataStoreFactory == null) {
+            return;
+        }
+        if (crawlDataStoreFactory instanceof IXMLConfigurable) {
+            StringWriter w = new StringWriter();
+            ((IXMLConfigurable) crawlDataStoreFactory).saveToXML(w);
+            out.write(w.toString());
+        } else {
+            out.write("<crawlDataStoreFactory class=\"" 
+                    + crawlDataStoreFactory.getClass().getCanonicalName() 
+                    + "\" />");
+        }
+        out.flush();
+    }
+
+    @Override
+    public boolean equals(final Object other) {
+        if (!(other instanceof CachingCrawlDataStoreFactory)) {
+            return false;
+        }
+        CachingCrawlDataStoreFactory castOther = 
+                (CachingCrawlDataStoreFactory) other;
+        return new EqualsBuilder()
+                .append(crawlDataStoreFactory, 
+                        castOther.crawlDataStoreFactory)
+                .append(maxSize, castOther.maxSize)
+                .append(timeToLive, castOther.timeToLive)
+                .isEquals();
+    }
+
+    @Override
+    public int hashCode() {
+        return new HashCodeBuilder()
+                .append(crawlDataStoreFactory)
+                .append(maxSize)
+                .append(timeToLive)
+                .toHashCode();
+    }
+
+    @Override
+    public String toString() {
+        return new ToStringBuilder(this, ToStringStyle.SHORT_PREFIX_STYLE)
+                .append("crawlDataStoreFactory", crawlDataStoreFactory)
+                .append("maxSize", maxSize)
+                .append("timeToLive", timeToLive)
+                .toString();
+    }
+}
@@ -0,0 +1,133 @@
+/* Copyright 2019 Norconex Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.norconex.collector.core.data.store.impl.cache;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded least-recently-used cache with optional expiry. Entries are
+ * spread across independently locked segments so concurrent threads 
+ * rarely wait on each other. <code>null</code> values are supported
+ * (to cache the absence of a value), {@link #get(Object)} returning
+ * an entry holding the value when cached.
+ * @param <K> key type
+ * @param <V> value type
+ * @author Pascal Essiembre
+ * @since 1.9.2
+ */
+class LRUCache<K, V> {
+
+    private static final int SEGMENT_COUNT = 16;
+
+    private final Segment<K, V>[] segments;
+    private final long timeToLiveNanos;
+
+    /**
+     * Creates a cache.
+     * @param maxSize maximum number of entries
+     * @param timeToLive milliseconds after which an entry expires 
+     *        (zero or less for never)
+     */
+    @SuppressWarnings("unchecked")
+    LRUCache(int maxSize, long timeToLive) {
+        int segmentCount = Math.max(1, Math.min(SEGMENT_COUNT, maxSize));
+        int segmentSize = Math.max(1, maxSize / segmentCount);
+        this.segments = (Segment<K, V>[]) new Segment<?, ?>[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            segments[i] = new Segment<>(segmentSize);
+        }
+        this.timeToLiveNanos = timeToLive > 0 ? timeToLive * 1000000L : 0;
+    }
+
+    /**
+     * Gets the cached entry for the given key.
+     * @param key key
+     * @return entry or <code>null</code> if not cached or expired
+     */
+    Entry<V> get(K key) {
+        Segment<K, V> segment = segmentFor(key);
+        synchronized (segment) {
+            Entry<V> entry = segment.get(key);
+            if (entry != null && timeToLiveNanos > 0 
+                    && System.nanoTime() - entry.created > timeToLiveNanos) {
+                segment.remove(key);
+                return null;
+            }
+            return entry;
+        }
+    }
+
+    void put(K key, V value) {
+        Segment<K, V> segment = segmentFor(key);
+        synchronized (segment) {
+            segment.put(key, new Entry<>(value));
+        }
+    }
+
+    void remove(K key) {
+        Segment<K, V> segment = segmentFor(key);
+        synchronized (segment) {
+            segment.remove(key);
+        }
+    }
+
+    int size() {
+        int size = 0;
+        for (Segment<K, V> segment : segments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+
+    private Segment<K, V> segmentFor(K key) {
+        int hash = key.hashCode();
+        hash ^= hash >>> 16;
+        return segments[(hash & Integer.MAX_VALUE) % segments.length];
+    }
+
+    /**
+     * A cached value (possibly <code>null</code>).
+     * @param <V> value type
+     */
+    static final class Entry<V> {
+        private final V value;
+        private final long created = System.nanoTime();
+        private Entry(V value) {
+            this.value = value;
+        }
+        V getValue() {
+            return value;
+        }
+    }
+
+    // LinkedHashMap has its own Entry class, hence the qualified names
+    private static class Segment<K, V> 
+            extends LinkedHashMap<K, LRUCache.Entry<V>> {
+        private static final long serialVersionUID = 1L;
+        private final int maxSize;
+        Segment(int maxSize) {
+            super(16, 0.75f, true);
+            this.maxSize = maxSize;
+        }
+        @Override
+        protected boolean removeEldestEntry(
+                Map.Entry<K, LRUCache.Entry<V>> eldest) {
+            return size() > maxSize;
+        }
+    }
+}
@@ -1,4 +1,4 @@
-/* Copyright 2016-2017 Norconex Inc.
+/* Copyright 2016-2019 Norconex Inc.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -20,6 +20,9 @@ import java.io.Writer;
 
 import javax.xml.stream.XMLStreamException;
 
+import org.apache.commons.configuration.XMLConfiguration;
+import org.apache.commons.dbcp2.BasicDataSource;
+import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.builder.EqualsBuilder;
 import org.apache.commons.lang3.builder.HashCodeBuilder;
 import org.apache.commons.lang3.builder.ToStringBuilder;
@@ -28,7 +31,11 @@ import org.apache.commons.lang3.builder.ToStringStyle;
 import com.norconex.collector.core.crawler.ICrawlerConfig;
 import com.norconex.collector.core.data.store.ICrawlDataStore;
 import com.norconex.collector.core.data.store.ICrawlDataStoreFactory;
+import com.norconex.collector.core.data.store.ReferenceBloomFilter;
 import com.norconex.commons.lang.config.IXMLConfigurable;
+import com.norconex.commons.lang.config.XMLConfigurationUtil;
+import com.norconex.commons.lang.encrypt.EncryptionKey;
+import com.norconex.commons.lang.encrypt.EncryptionUtil;
 import com.norconex.commons.lang.file.FileUtil;
 import com.norconex.commons.lang.xml.EnhancedXMLStreamWriter;
 
@@ -36,19 +43,110 @@ import com.norconex.commons.lang.xml.EnhancedXMLStreamWriter;
  * <p>
  * JDBC implementation of {@link ICrawlDataStore} using H2 database.
  * </p>
+ * <h3>Reference filter</h3>
+ * <p>
+ * As of 1.9.2, a Bloom filter of known references is kept in memory
+ * so new references can be queued without looking them up first
+ * (see {@link ReferenceBloomFilter}). It is sized for the expected
+ * number of references with <code>referenceFilterSize</code>. Set it to
+ * zero to disable it. It is not used when <code>shared</code> is 
+ * <code>true</code>, since references known to other collectors would 
+ * be missing from it.
+ * </p>
+ * <h3>Database server</h3>
+ * <p>
+ * As of 1.9.2, an embedded H2 database is created under the crawler 
+ * working directory only when no <code>url</code> is specified. 
+ * Otherwise, the JDBC URL is used to connect to a database (e.g., an H2 
+ * server). The JDBC driver must then be on the classpath.
+ * Databases other than H2 must support transactions and report 
+ * standard SQL states (e.g., "23505" for duplicate keys).
+ * Connections are pooled, up to <code>maxConnections</code> (default is
+ * the number of crawler threads plus two).
+ * </p>
+ * <p>
+ * Several collectors can crawl the same site together by pointing to 
+ * the same database and setting <code>shared</code> to <code>true</code>.
+ * References are then queued and claimed from the same tables.
+ * A collector joining a crawl already in progress leaves the tables
+ * as they are on startup. Collectors can be started at the same time,
+ * as they prepare tables one at a time (the database must support
+ * <code>SELECT ... FOR UPDATE</code>). Use a distinct 
+ * <code>tablePrefix</code>
+ * for each crawler sharing the same database.
+ * When using a custom serializer (overriding 
+ * {@link #createJDBCSerializer()}), it is responsible for prefixing 
+ * table names it does not receive as arguments.
+ * </p>
+ * <p>
+ * The <code>password</code> can be encrypted using {@link EncryptionUtil} 
+ * (or command-line encrypt.[bat|sh]), in which case 
+ * <code>passwordKey</code> and <code>passwordKeySource</code> must be
+ * specified to locate the encryption key. The supported sources are:
+ * <code>key</code>, <code>file</code>, <code>environment</code> and 
+ * <code>property</code>.
+ * </p>
+ * <h3>Cache iteration</h3>
+ * <p>
+ * As of 1.9.2, cached records from a previous crawl (e.g., to find
+ * orphans) are streamed from the database as they are read, using a
+ * forward-only result set. For databases or drivers unable to do so 
+ * without holding all records in memory, set a <code>cachePageSize</code>
+ * to read them one page at a time instead.
+ * </p>
+ * <h3>Dictionary encoding</h3>
+ * <p>
+ * As of 1.9.2, setting <code>dictionaryEncoded</code> to 
+ * <code>true</code> stores states and content types once in a 
+ * dictionary table (see {@link JDBCDictionary}), records only holding 
+ * their codes. This reduces the size of stores
+ * holding many records. It cannot be enabled or disabled on existing
+ * tables: use a new database or table prefix when changing it.
+ * Existing tables not matching the setting are reported on startup.
+ * </p>
+ * <h3>Compaction</h3>
+ * <p>
+ * As of 1.9.2, embedded H2 databases can be compacted in the background
+ * every <code>compactInterval</code> milliseconds, a little at a time, 
+ * and/or fully compacted when closed by setting 
+ * <code>compactOnClose</code> to <code>true</code> (ignored when 
+ * <code>shared</code>). Both are disabled by default and ignored with
+ * H2 servers, other collectors possibly using the same database.
+ * </p>
+ * 
  * <h3>XML configuration usage:</h3>
  * <pre>
  *  &lt;crawlDataStoreFactory 
- *          class="com.norconex.collector.core.data.store.impl.jdbc.BasicJDBCCrawlDataStoreFactory"/&gt;
+ *          class="com.norconex.collector.core.data.store.impl.jdbc.BasicJDBCCrawlDataStoreFactory"&gt;
+ *      &lt;url&gt;(Optional JDBC URL. Default is an embedded H2 database)&lt;/url&gt;
+ *      &lt;driverClassName&gt;(Optional JDBC driver class name)&lt;/driverClassName&gt;
+ *      &lt;username&gt;(Optional user name)&lt;/username&gt;
+ *      &lt;password&gt;(Optional user password)&lt;/password&gt;
+ *      &lt;!-- Use the following if password is encrypted. --&gt;
+ *      &lt;passwordKey&gt;(the encryption key or a reference to it)&lt;/passwordKey&gt;
+ *      &lt;passwordKeySource&gt;[key|file|environment|property]&lt;/passwordKeySource&gt;
+ *      &lt;maxConnections&gt;(Maximum number of pooled connections)&lt;/maxConnections&gt;
+ *      &lt;tablePrefix&gt;(Optional prefix added to table names)&lt;/tablePrefix&gt;
+ *      &lt;shared&gt;[false|true]&lt;/shared&gt;
+ *      &lt;referenceFilterSize&gt;(Expected number of references. Default is 1000000)&lt;/referenceFilterSize&gt;
+ *      &lt;cachePageSize&gt;(Number of cached records read per query. Default streams them all)&lt;/cachePageSize&gt;
+ *      &lt;dictionaryEncoded&gt;[false|true]&lt;/dictionaryEncoded&gt;
+ *      &lt;compactInterval&gt;(Milliseconds between background compaction steps. Default is 0, disabled)&lt;/compactInterval&gt;
+ *      &lt;compactOnClose&gt;[false|true]&lt;/compactOnClose&gt;
+ *  &lt;/crawlDataStoreFactory&gt;
  * </pre>
  * 
  * <h4>Usage example:</h4>
  * <p>
- * The following changes the default to use an H2 database.
+ * The following has several collectors share an H2 server database.
  * </p> 
  * <pre>
  *  &lt;crawlDataStoreFactory 
- *          class="com.norconex.collector.core.data.store.impl.jdbc.BasicJDBCCrawlDataStoreFactory"/&gt;
+ *          class="com.norconex.collector.core.data.store.impl.jdbc.BasicJDBCCrawlDataStoreFactory"&gt;
+ *      &lt;url&gt;jdbc:h2:tcp://crawlhost:9092/crawlstore&lt;/url&gt;
+ *      &lt;tablePrefix&gt;mycrawler_&lt;/tablePrefix&gt;
+ *      &lt;shared&gt;true&lt;/shared&gt;
+ *  &lt;/crawlDataStoreFactory&gt;
  * </pre>
  * @author Pascal Essiembre
  * @since 1.5.0
@@ -56,26 +154,366 @@ import com.norconex.commons.lang.xml.EnhancedXMLStreamWriter;
 public class BasicJDBCCrawlDataStoreFactory 
         implements ICrawlDataStoreFactory, IXMLConfigurable {
 
+    private String url;
+    private String driverClassName;
+    private String username;
+    private String password;
+    private EncryptionKey passwordKey;
+    private int maxConnections = -1;
+    private String tablePrefix;
+    private boolean shared;
+    private int referenceFilterSize = 
+            ReferenceBloomFilter.DEFAULT_EXPECTED_COUNT;
+    private int cachePageSize;
+    private boolean dictionaryEncoded;
+    private long compactInterval;
+    private boolean compactOnClose;
+
     public BasicJDBCCrawlDataStoreFactory() {
         super();
     }
 
     protected IJDBCSerializer createJDBCSerializer() {
-        return new BasicJDBCSerializer();
+        return new BasicJDBCSerializer(getTablePrefix());
+    }
+    /**
+     * Creates the JDBC serializer for the given data source. 
+     * When dictionary encoding is enabled, creates a 
+     * {@link BasicJDBCSerializer} using a {@link JDBCDictionary}.
+     * Otherwise, invokes {@link #createJDBCSerializer()}.
+     * @param datasource the data source
+     * @return JDBC serializer
+     * @since 1.9.2
+     */
+    protected IJDBCSerializer createJDBCSerializer(
+            BasicDataSource datasource) {
+        if (dictionaryEncoded) {
+            return new BasicJDBCSerializer(getTablePrefix(), 
+                    new JDBCDictionary(datasource, getTablePrefix()));
+        }
+        return createJDBCSerializer();
     }
     
     @Override
     public ICrawlDataStore createCrawlDataStore(
             ICrawlerConfig config, boolean resume) {
-        String storeDir = config.getWorkDir().getPath() + "/crawlstore/jdbc/" 
-                + FileUtil.toSafeFileName(config.getId()) + "/";
-        return new JDBCCrawlDataStore(
-                storeDir, resume, createJDBCSerializer());
+        int maxConns = maxConnections;
+        if (maxConns <= 0) {
+            // one connection per crawler thread, plus a couple for the 
+            // cache iterator and monitoring
+            maxConns = config.getNumThreads() + 2;
+        }
+        BasicDataSource datasource;
+        if (StringUtils.isBlank(url)) {
+            String storeDir = config.getWorkDir().getPath() 
+                    + "/crawlstore/jdbc/" 
+                    + FileUtil.toSafeFileName(config.getId()) + "/";
+            datasource = JDBCCrawlDataStore.createDataSource(
+                    storeDir, maxConns);
+        } else {
+            datasource = createDataSource(maxConns);
+        }
+        JDBCCrawlDataStore store = new JDBCCrawlDataStore(datasource, 
+                tablePrefix, shared, resume, 
+                createJDBCSerializer(datasource));
+        // other collectors' references would be missing from the filter
+        if (referenceFilterSize > 0 && !shared) {
+            store.setReferenceFilter(
+                    new ReferenceBloomFilter(referenceFilterSize));
+        }
+        store.setCachePageSize(cachePageSize);
+        store.setCompactOnClose(compactOnClose);
+        store.setCompactInterval(compactInterval);
+        return store;
+    }
+
+    private BasicDataSource createDataSource(int maxConns) {
+        BasicDataSource ds = new BasicDataSource();
+        if (StringUtils.isNotBlank(driverClassName)) {
+            ds.setDriverClassName(driverClassName);
+        }
+        ds.setUrl(url);
+        if (StringUtils.isNotBlank(username)) {
+            ds.setUsername(username);
+            // password may be encrypted, decrypt properly
+            ds.setPassword(EncryptionUtil.decrypt(password, passwordKey));
+        }
+        ds.setDefaultAutoCommit(true);
+        ds.setMaxTotal(maxConns);
+        ds.setMaxIdle(maxConns);
+        ds.setPoolPreparedStatements(true);
+        return ds;
+    }
+
+    /**
+     * Gets the JDBC URL of the database. When <code>null</code>, an
+     * embedded H2 database is used.
+     * @return JDBC URL
+     * @since 1.9.2
+     */
+    public String getUrl() {
+        return url;
+    }
+    /**
+     * Sets the JDBC URL of the database. When <code>null</code>, an
+     * embedded H2 database is used.
+     * @param url JDBC URL
+     * @since 1.9.2
+     */
+    public void setUrl(String url) {
+        this.url = url;
+    }
+
+    /**
+     * Gets the JDBC driver class name. Only required when the driver
+     * cannot be detected from the URL.
+     * @return driver class name
+     * @since 1.9.2
+     */
+    public String getDriverClassName() {
+        return driverClassName;
+    }
+    /**
+     * Sets the JDBC driver class name. Only required when the driver
+     * cannot be detected from the URL.
+     * @param driverClassName driver class name
+     * @since 1.9.2
+     */
+    public void setDriverClassName(String driverClassName) {
+        this.driverClassName = driverClassName;
+    }
+
+    /**
+     * Gets the database user name.
+     * @return user name
+     * @since 1.9.2
+     */
+    public String getUsername() {
+        return username;
+    }
+    /**
+     * Sets the database user name.
+     * @param username user name
+     * @since 1.9.2
+     */
+    public void setUsername(String username) {
+        this.username = username;
+    }
+
+    /**
+     * Gets the database user password (possibly encrypted).
+     * @return password
+     * @since 1.9.2
+     */
+    public String getPassword() {
+        return password;
+    }
+    /**
+     * Sets the database user password (possibly encrypted).
+     * @param password password
+     * @since 1.9.2
+     */
+    public void setPassword(String password) {
+        this.password = password;
+    }
+
+    /**
+     * Gets the key used to decrypt the password.
+     * @return password key
+     * @since 1.9.2
+     */
+    public EncryptionKey getPasswordKey() {
+        return passwordKey;
+    }
+    /**
+     * Sets the key used to decrypt the password.
+     * @param passwordKey password key
+     * @since 1.9.2
+     */
+    public void setPasswordKey(EncryptionKey passwordKey) {
+        this.passwordKey = passwordKey;
+    }
+
+    /**
+     * Gets the maximum number of pooled database connections. 
+     * Zero or less uses the number of crawler threads plus two.
+     * @return maximum number of connections
+     * @since 1.9.2
+     */
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+    /**
+     * Sets the maximum number of pooled database connections. 
+     * Zero or less uses the number of crawler threads plus two.
+     * @param maxConnections maximum number of connections
+     * @since 1.9.2
+     */
+    public void setMaxConnections(int maxConnections) {
+        this.maxConnections = maxConnections;
+    }
+
+    /**
+     * Gets the prefix added to table names.
+     * @return table prefix
+     * @since 1.9.2
+     */
+    public String getTablePrefix() {
+        return tablePrefix;
+    }
+    /**
+     * Sets the prefix added to table names.
+     * @param tablePrefix table prefix
+     * @since 1.9.2
+     */
+    public void setTablePrefix(String tablePrefix) {
+        this.tablePrefix = tablePrefix;
+    }
+
+    /**
+     * Gets whether the database tables are shared by several collectors
+     * crawling at the same time.
+     * @return <code>true</code> if shared
+     * @since 1.9.2
+     */
+    public boolean isShared() {
+        return shared;
+    }
+    /**
+     * Sets whether the database tables are shared by several collectors
+     * crawling at the same time.
+     * @param shared <code>true</code> if shared
+     * @since 1.9.2
+     */
+    public void setShared(boolean shared) {
+        this.shared = shared;
+    }
+
+    /**
+     * Gets the expected number of references the reference filter
+     * is sized for. Zero or less disables the filter.
+     * @return reference filter size
+     * @since 1.9.2
+     */
+    public int getReferenceFilterSize() {
+        return referenceFilterSize;
+    }
+    /**
+     * Sets the expected number of references the reference filter
+     * is sized for. Zero or less disables the filter.
+     * @param referenceFilterSize reference filter size
+     * @since 1.9.2
+     */
+    public void setReferenceFilterSize(int referenceFilterSize) {
+        this.referenceFilterSize = referenceFilterSize;
+    }
+
+    /**
+     * Gets the number of cached records read per query when iterating
+     * through them. Zero or less streams them all with a single query.
+     * @return cache page size
+     * @since 1.9.2
+     */
+    public int getCachePageSize() {
+        return cachePageSize;
+    }
+    /**
+     * Sets the number of cached records read per query when iterating
+     * through them. Zero or less streams them all with a single query.
+     * @param cachePageSize cache page size
+     * @since 1.9.2
+     */
+    public void setCachePageSize(int cachePageSize) {
+        this.cachePageSize = cachePageSize;
+    }
+
+    /**
+     * Gets whether repeated values are stored in a dictionary table.
+     * @return <code>true</code> if dictionary-encoded
+     * @since 1.9.2
+     */
+    public boolean isDictionaryEncoded() {
+        return dictionaryEncoded;
+    }
+    /**
+     * Sets whether repeated values are stored in a dictionary table.
+     * @param dictionaryEncoded <code>true</code> if dictionary-encoded
+     * @since 1.9.2
+     */
+    public void setDictionaryEncoded(boolean dictionaryEncoded) {
+        this.dictionaryEncoded = dictionaryEncoded;
+    }
+
+    /**
+     * Gets the milliseconds between background compaction steps 
+     * (H2 only). Zero or less disables background compaction.
+     * @return compaction interval
+     * @since 1.9.2
+     */
+    public long getCompactInterval() {
+        return compactInterval;
+    }
+    /**
+     * Sets the milliseconds between background compaction steps 
+     * (H2 only). Zero or less disables background compaction.
+     * @param compactInterval compaction interval
+     * @since 1.9.2
+     */
+    public void setCompactInterval(long compactInterval) {
+        this.compactInterval = compactInterval;
+    }
+
+    /**
+     * Gets whether the database is fully compacted on close
+     * (H2 only, when not shared).
+     * @return <code>true</code> if compacting on close
+     * @since 1.9.2
+     */
+    public boolean isCompactOnClose() {
+        return compactOnClose;
+    }
+    /**
+     * Sets whether the database is fully compacted on close
+     * (H2 only, when not shared).
+     * @param compactOnClose <code>true</code> to compact on close
+     * @since 1.9.2
+     */
+    public void setCompactOnClose(boolean compactOnClose) {
+        this.compactOnClose = compactOnClose;
     }
 
     @Override
     public void loadFromXML(Reader in) throws IOException {
-        // NOOP
+        XMLConfiguration xml = XMLConfigurationUtil.newXMLConfiguration(in);
+        setUrl(xml.getString("url", getUrl()));
+        setDriverClassName(
+                xml.getString("driverClassName", getDriverClassName()));
+        setUsername(xml.getString("username", getUsername()));
+        setPassword(xml.getString("password", getPassword()));
+
+        // encrypted password:
+        String xmlKey = xml.getString("passwordKey", null);
+        String xmlSource = xml.getString("passwordKeySource", null);
+        if (StringUtils.isNotBlank(xmlKey)) {
+            EncryptionKey.Source source = null;
+            if (StringUtils.isNotBlank(xmlSource)) {
+                source = EncryptionKey.Source.valueOf(xmlSource.toUpperCase());
+            }
+            setPasswordKey(new EncryptionKey(xmlKey, source));
+        }
+
+        setMaxConnections(xml.getInt("maxConnections", getMaxConnections()));
+        setTablePrefix(xml.getString("tablePrefix", getTablePrefix()));
+        setShared(xml.getBoolean("shared", isShared()));
+        setReferenceFilterSize(xml.getInt(
+                "referenceFilterSize", getReferenceFilterSize()));
+        setCachePageSize(xml.getInt("cachePageSize", getCachePageSize()));
+        setDictionaryEncoded(xml.getBoolean(
+                "dictionaryEncoded", isDictionaryEncoded()));
+        setCompactInterval(xml.getLong(
+                "compactInterval", getCompactInterval()));
+        setCompactOnClose(xml.getBoolean(
+                "compactOnClose", isCompactOnClose()));
     }
 
     @Override
@@ -84,6 +522,33 @@ public class BasicJDBCCrawlDataStoreFactory
             EnhancedXMLStreamWriter writer = new EnhancedXMLStreamWriter(out);
             writer.writeStartElement("crawlDataStoreFactory");
             writer.writeAttribute("class", getClass().getCanonicalName());
+            writer.writeElementString("url", getUrl());
+            writer.writeElementString(
+                    "driverClassName", getDriverClassName());
+            writer.writeElementString("username", getUsername());
+            writer.writeElementString("password", getPassword());
+
+            // Encrypted password:
+            EncryptionKey key = getPasswordKey();
+            if (key != null) {
+                writer.writeElementString("passwordKey", key.getValue());
+                if (key.getSource() != null) {
+                    writer.writeElementString("passwordKeySource",
+                            key.getSource().name().toLowerCase());
+                }
+            }
+
+            writer.writeElementInteger("maxConnections", getMaxConnections());
+            writer.writeElementString("tablePrefix", getTablePrefix());
+            writer.writeElementBoolean("shared", isShared());
+            writer.writeElementInteger(
+                    "referenceFilterSize", getReferenceFilterSize());
+            writer.writeElementInteger("cachePageSize", getCachePageSize());
+            writer.writeElementBoolean(
+                    "dictionaryEncoded", isDictionaryEncoded());
+            writer.writeElementLong("compactInterval", getCompactInterval());
+            writer.writeElementBoolean("compactOnClose", isCompactOnClose());
+            writer.writeEndElement();
             writer.flush();
             writer.close();
         } catch (XMLStreamException e) {
@@ -100,6 +565,19 @@ public class BasicJDBCCrawlDataStoreFactory
                 (BasicJDBCCrawlDataStoreFactory) other;
         return new EqualsBuilder()
                 .append(getClass(), castOther.getClass())
+                .append(url, castOther.url)
+                .append(driverClassName, castOther.driverClassName)
+                .append(username, castOther.username)
+                .append(password, castOther.password)
+                .append(passwordKey, castOther.passwordKey)
+                .append(maxConnections, castOther.maxConnections)
+                .append(tablePrefix, castOther.tablePrefix)
+                .append(shared, castOther.shared)
+                .append(referenceFilterSize, castOther.referenceFilterSize)
+                .append(cachePageSize, castOther.cachePageSize)
+                .append(dictionaryEncoded, castOther.dictionaryEncoded)
+                .append(compactInterval, castOther.compactInterval)
+                .append(compactOnClose, castOther.compactOnClose)
                 .isEquals();
     }
 
@@ -107,13 +585,38 @@ public class BasicJDBCCrawlDataStoreFactory
     public int hashCode() {
         return new HashCodeBuilder()
                 .append(getClass())
+                .append(url)
+                .append(driverClassName)
+                .append(username)
+                .append(password)
+                .append(passwordKey)
+                .append(maxConnections)
+                .append(tablePrefix)
+                .append(shared)
+                .append(referenceFilterSize)
+                .append(cachePageSize)
+                .append(dictionaryEncoded)
+                .append(compactInterval)
+                .append(compactOnClose)
                 .toHashCode();
     }
 
     @Override
     public String toString() {
         return new ToStringBuilder(this, ToStringStyle.SHORT_PREFIX_STYLE)
+                .append("url", url)
+                .append("driverClassName", driverClassName)
+                .append("username", username)
+                .append("password", password)
+                .append("passwordKey", passwordKey)
+                .append("maxConnections", maxConnections)
+                .append("tablePrefix", tablePrefix)
+                .append("shared", shared)
+                .append("referenceFilterSize", referenceFilterSize)
+                .append("cachePageSize", cachePageSize)
+                .append("dictionaryEncoded", dictionaryEncoded)
+                .append("compactInterval", compactInterval)
+                .append("compactOnClose", compactOnClose)
                 .toString();
     }    
 }
-
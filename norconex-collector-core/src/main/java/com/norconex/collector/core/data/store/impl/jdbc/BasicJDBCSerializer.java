@@ -1,4 +1,4 @@
-/* Copyright 2014-2016 Norconex Inc.
+/* Copyright 2014-2019 Norconex Inc.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -26,11 +26,21 @@ import com.norconex.collector.core.data.ICrawlData;
 import com.norconex.commons.lang.file.ContentType;
 
 /**
+ * <p>
  * Basic JDBC serializer for storing and retrieving {@link BaseCrawlData}
  * instances.
+ * </p>
+ * <p>
+ * As of 1.9.2, a {@link JDBCDictionary} can be supplied to store 
+ * states and content types as integer codes instead of repeating them 
+ * on every record. Parent root references are too many to be kept 
+ * in a dictionary and are always stored as is. Tables created without
+ * a dictionary cannot be used with one (and vice versa), which 
+ * {@link JDBCCrawlDataStore} checks on startup.
+ * </p>
  * @author Pascal Essiembre
  */
-public class BasicJDBCSerializer implements IJDBCSerializer {
+public class BasicJDBCSerializer implements IPagedJDBCSerializer {
 
     protected static final String ALL_FIELDS = 
               "reference, "
@@ -41,19 +51,79 @@ public class BasicJDBCSerializer implements IJDBCSerializer {
             + "contentChecksum, "
             + "contentType, "
             + "crawlDate ";
+
+    private final String tablePrefix;
+    private final JDBCDictionary dictionary;
+
+    public BasicJDBCSerializer() {
+        this(null);
+    }
+    /**
+     * Creates a serializer for tables having the given name prefix.
+     * @param tablePrefix table name prefix (can be <code>null</code>)
+     * @since 1.9.2
+     */
+    public BasicJDBCSerializer(String tablePrefix) {
+        this(tablePrefix, null);
+    }
+    /**
+     * Creates a serializer for tables having the given name prefix,
+     * storing repeated values in the given dictionary.
+     * @param tablePrefix table name prefix (can be <code>null</code>)
+     * @param dictionary dictionary (can be <code>null</code>)
+     * @since 1.9.2
+     */
+    public BasicJDBCSerializer(
+            String tablePrefix, JDBCDictionary dictionary) {
+        super();
+        this.tablePrefix = StringUtils.trimToEmpty(tablePrefix);
+        this.dictionary = dictionary;
+    }
+
+    /**
+     * Gets the table name prefix.
+     * @return table prefix (never <code>null</code>)
+     * @since 1.9.2
+     */
+    public String getTablePrefix() {
+        return tablePrefix;
+    }
+
+    /**
+     * Gets the dictionary used to store repeated values.
+     * @return dictionary or <code>null</code> if not using one
+     * @since 1.9.2
+     */
+    public JDBCDictionary getDictionary() {
+        return dictionary;
+    }
     
     @Override
     public String[] getCreateTableSQLs(String table) {
-        String sql = "CREATE TABLE " + table + " ("
-                + "reference VARCHAR(32672) NOT NULL, "
-                + "parentRootReference VARCHAR(32672), "
-                + "isRootParentReference BOOLEAN, "
-                + "state VARCHAR(256), "
-                + "metaChecksum VARCHAR(32672), "
-                + "contentChecksum VARCHAR(32672), "
-                + "contentType VARCHAR(256), "
-                + "crawlDate BIGINT, "
-                + "PRIMARY KEY (reference))";
+        String sql;
+        if (dictionary != null) {
+            sql = "CREATE TABLE " + table + " ("
+                    + "reference VARCHAR(32672) NOT NULL, "
+                    + "parentRootReference VARCHAR(32672), "
+                    + "isRootParentReference BOOLEAN, "
+                    + "state INT, "
+                    + "metaChecksum VARCHAR(32672), "
+                    + "contentChecksum VARCHAR(32672), "
+                    + "contentType INT, "
+                    + "crawlDate BIGINT, "
+                    + "PRIMARY KEY (reference))";
+        } else {
+            sql = "CREATE TABLE " + table + " ("
+                    + "reference VARCHAR(32672) NOT NULL, "
+                    + "parentRootReference VARCHAR(32672), "
+                    + "isRootParentReference BOOLEAN, "
+                    + "state VARCHAR(256), "
+                    + "metaChecksum VARCHAR(32672), "
+                    + "contentChecksum VARCHAR(32672), "
+                    + "contentType VARCHAR(256), "
+                    + "crawlDate BIGINT, "
+                    + "PRIMARY KEY (reference))";
+        }
         return new String[] { sql };
     }
 
@@ -63,6 +133,12 @@ public class BasicJDBCSerializer implements IJDBCSerializer {
         return "SELECT " + ALL_FIELDS + "FROM " + table;
     }
 
+    @Override
+    public String getSelectCrawlDataPageSQL(String table) {
+        return "SELECT " + ALL_FIELDS + "FROM " + table 
+                + " WHERE reference > ? ORDER BY reference";
+    }
+
     @Override
     public String getDeleteCrawlDataSQL(String table) {
         return "DELETE FROM " + table + " WHERE reference = ?";
@@ -92,10 +168,10 @@ public class BasicJDBCSerializer implements IJDBCSerializer {
                 crawlData.getReference(),
                 crawlData.getParentRootReference(),
                 crawlData.isRootParentReference(),
-                crawlData.getState().toString(),
+                encode(crawlData.getState().toString()),
                 crawlData.getMetaChecksum(),
                 crawlData.getContentChecksum(),
-                contentType,
+                encode(contentType),
                 crawlDate
         };
     }
@@ -103,7 +179,7 @@ public class BasicJDBCSerializer implements IJDBCSerializer {
     @Override
     public String getNextQueuedCrawlDataSQL() {
         return "SELECT " + ALL_FIELDS 
-                + "FROM " + JDBCCrawlDataStore.TABLE_QUEUE;
+                + "FROM " + tablePrefix + JDBCCrawlDataStore.TABLE_QUEUE;
     }
     @Override
     public Object[] getNextQueuedCrawlDataValues() {
@@ -113,7 +189,7 @@ public class BasicJDBCSerializer implements IJDBCSerializer {
     @Override
     public String getCachedCrawlDataSQL() {
         return "SELECT " + ALL_FIELDS 
-                + "FROM " + JDBCCrawlDataStore.TABLE_CACHE
+                + "FROM " + tablePrefix + JDBCCrawlDataStore.TABLE_CACHE
                 + " WHERE reference = ? ";
     }
     @Override
@@ -140,10 +216,10 @@ public class BasicJDBCSerializer implements IJDBCSerializer {
         data.setReference(rs.getString("reference"));
         data.setParentRootReference(rs.getString("parentRootReference"));
         data.setRootParentReference(rs.getBoolean("isRootParentReference"));
-        data.setState(CrawlState.valueOf(rs.getString("state")));
+        data.setState(CrawlState.valueOf(decode(rs, "state")));
         data.setMetaChecksum(rs.getString("metaChecksum"));
         data.setContentChecksum(rs.getString("contentChecksum"));
-        String contentType = rs.getString("contentType");
+        String contentType = decode(rs, "contentType");
         if (StringUtils.isNoneBlank(contentType)) {
             data.setContentType(ContentType.valueOf(contentType));
         }
@@ -153,4 +229,21 @@ public class BasicJDBCSerializer implements IJDBCSerializer {
         }
         return data;
     }
+
+    private Object encode(String value) {
+        if (dictionary == null) {
+            return value;
+        }
+        return dictionary.getCode(value);
+    }
+    private String decode(ResultSet rs, String column) throws SQLException {
+        if (dictionary == null) {
+            return rs.getString(column);
+        }
+        int code = rs.getInt(column);
+        if (rs.wasNull()) {
+            return null;
+        }
+        return dictionary.getValue(code);
+    }
 }
@@ -0,0 +1,39 @@
+/* Copyright 2019 Norconex Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.norconex.collector.core.data.store.impl.jdbc;
+
+import com.norconex.collector.core.data.ICrawlData;
+
+/**
+ * {@link IJDBCSerializer} able to read a table one page at a time.
+ * {@link JDBCCrawlDataStore} only reads cached records in pages 
+ * (see {@link JDBCCrawlDataStore#setCachePageSize(int)}) when its 
+ * serializer implements this interface.
+ * @author Pascal Essiembre
+ * @since 1.9.2
+ */
+public interface IPagedJDBCSerializer extends IJDBCSerializer {
+
+    /**
+     * Gets the SQL to obtain {@link ICrawlData} entries in the given 
+     * table ordered by reference, starting after the reference 
+     * supplied as the only parameter. Used to read large tables 
+     * one page at a time (the page size being set as the statement
+     * maximum number of rows).
+     * @param table table name
+     * @return SQL
+     */
+    String getSelectCrawlDataPageSQL(String table);
+}
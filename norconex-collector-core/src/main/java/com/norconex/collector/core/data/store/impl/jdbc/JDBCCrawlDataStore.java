@@ -1,4 +1,4 @@
-/* Copyright 2014-2017 Norconex Inc.
+/* Copyright 2014-2019 Norconex Inc.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -14,32 +14,80 @@
  */
 package com.norconex.collector.core.data.store.impl.jdbc;
 
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
 import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
-
-import javax.sql.DataSource;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.dbcp2.BasicDataSource;
 import org.apache.commons.dbutils.DbUtils;
 import org.apache.commons.dbutils.QueryRunner;
 import org.apache.commons.dbutils.ResultSetHandler;
-import org.apache.commons.dbutils.handlers.ArrayListHandler;
 import org.apache.commons.dbutils.handlers.ScalarHandler;
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
+import org.apache.commons.lang3.time.StopWatch;
 import org.apache.log4j.LogManager;
 import org.apache.log4j.Logger;
 
 import com.norconex.collector.core.data.ICrawlData;
 import com.norconex.collector.core.data.store.AbstractCrawlDataStore;
+import com.norconex.collector.core.data.store.CrawlDataStoreCompactor;
 import com.norconex.collector.core.data.store.CrawlDataStoreException;
+import com.norconex.collector.core.data.store.ICompactableCrawlDataStore;
+import com.norconex.collector.core.data.store.ICrawlDataStore;
+import com.norconex.collector.core.data.store.ReferenceBloomFilter;
+import com.norconex.collector.core.data.store.ReferenceStage;
 
-public class JDBCCrawlDataStore extends AbstractCrawlDataStore {
+/**
+ * <p>
+ * JDBC implementation of {@link ICrawlDataStore} using H2 database.
+ * </p>
+ * <p>
+ * As of 1.9.2, this store is safe for concurrent use without 
+ * serializing crawler threads. Each operation uses its own pooled 
+ * connection and queued references are claimed by deleting them from
+ * the queue table: only the thread whose delete succeeds moves a 
+ * reference to the active table. References queued since the crawl 
+ * started are also kept in their own table, so that a reference 
+ * cannot be queued again once claimed or processed.
+ * </p>
+ * <p>
+ * As of 1.9.2, it can also use a database server shared by several
+ * collectors crawling the same site (see 
+ * {@link #JDBCCrawlDataStore(BasicDataSource, String, boolean, boolean, 
+ * IJDBCSerializer)}). When shared and other collectors have queued
+ * or active references, tables are left untouched on startup. Record 
+ * counts are then obtained from the database and active references of 
+ * a collector that stopped abruptly are not queued again. Collectors
+ * prepare tables one at a time on startup, by locking a row of a state 
+ * table. Tables just prepared by another collector have no processed 
+ * references yet and are also left untouched.
+ * </p>
+ * <p>
+ * As of 1.9.2, embedded H2 databases can be compacted in the background 
+ * (see {@link #setCompactInterval(long)}) and when closed
+ * (see {@link #setCompactOnClose(boolean)}). Other databases are 
+ * expected to manage their own storage space.
+ * </p>
+ * @author Pascal Essiembre
+ */
+public class JDBCCrawlDataStore extends AbstractCrawlDataStore
+        implements ICompactableCrawlDataStore {
 
     private static final Logger LOG = 
             LogManager.getLogger(JDBCCrawlDataStore.class);
@@ -49,169 +97,598 @@ public class JDBCCrawlDataStore extends AbstractCrawlDataStore {
     public static final String TABLE_CACHE = "cache";
     public static final String TABLE_PROCESSED_VALID = "valid";
     public static final String TABLE_PROCESSED_INVALID = "invalid";
+    /**
+     * Table of all references queued since the crawl started.
+     * @since 1.9.2
+     */
+    public static final String TABLE_KNOWN = "known";
+    /**
+     * Table the next processed table is created as when caching 
+     * processed references from the last run. It only exists until 
+     * it replaces the processed table.
+     * @since 1.9.2
+     */
+    public static final String TABLE_PROCESSED_VALID_NEXT = "valid_next";
+    /**
+     * Table holding the row shared collectors lock while preparing 
+     * tables on startup.
+     * @since 1.9.2
+     */
+    public static final String TABLE_STATE = "state";
     
-    private static final int NUMBER_OF_TABLES = 5;
-    private static final int H2_ERROR_ALREADY_EXISTS = 23505;
+    // SQL states (and classes) of errors expected with concurrent updates
+    private static final String SQL_STATE_CLASS_CONSTRAINT = "23";
+    private static final String SQL_STATE_CLASS_ROLLBACK = "40";
+    private static final String SQL_STATE_TIMEOUT = "HYT00";
+    private static final String SQL_STATE_H2_CONCURRENT_UPDATE = "90131";
+    private static final int BATCH_SIZE = 500;
+    private static final int PROGRESS_INTERVAL = 50000;
+    private static final int CACHE_FETCH_SIZE = 1000;
+    private static final int DEFAULT_CACHE_PAGE_SIZE = 1000;
 
-    private final DataSource datasource;
+    /** Default maximum number of pooled database connections. */
+    public static final int DEFAULT_MAX_CONNECTIONS = 8;
+
+    private final BasicDataSource datasource;
+    private final QueryRunner queryRunner;
+    // How many queued candidates to read at once when claiming one,
+    // so concurrent threads can fall back on the next ones.
+    private final int claimWindow;
     private final IJDBCSerializer serializer;
-    private final String dbDir;
+    private final boolean shared;
+    private final String queueTable;
+    private final String activeTable;
+    private final String cacheTable;
+    private final String validTable;
+    private final String invalidTable;
+    private final String knownTable;
+    private final String nextValidTable;
+    private final String stateTable;
+
+    // Exact record counts, kept in sync with every table change so size 
+    // checks do not need to query the database (unless shared).
+    private final AtomicInteger queueCount = new AtomicInteger();
+    private final AtomicInteger activeCount = new AtomicInteger();
+    private final AtomicInteger processedCount = new AtomicInteger();
+    private final AtomicInteger cacheCount = new AtomicInteger();
+
+    private volatile int cachePageSize;
+    private CrawlDataStoreCompactor compactor;
+    private boolean compactOnClose;
     
     public JDBCCrawlDataStore(String path, boolean resume,
             IJDBCSerializer serializer) {
+        this(path, resume, serializer, DEFAULT_MAX_CONNECTIONS);
+    }
+    /**
+     * Creates a JDBC crawl data store.
+     * @param path store directory
+     * @param resume whether to resume a previously aborted crawl
+     * @param serializer crawl data serializer
+     * @param maxConnections maximum number of pooled database 
+     *        connections, usually a little more than the number of 
+     *        crawler threads
+     * @since 1.9.2
+     */
+    public JDBCCrawlDataStore(String path, boolean resume,
+            IJDBCSerializer serializer, int maxConnections) {
+        this(createDataSource(path, maxConnections), 
+                null, false, resume, serializer);
+    }
+    /**
+     * Creates a JDBC crawl data store using the given data source, 
+     * which can point to a database server shared by several collectors.
+     * The data source is closed when this store is closed.
+     * @param datasource pooled data source
+     * @param tablePrefix prefix added to table names (can be 
+     *        <code>null</code>)
+     * @param shared whether other collectors are using the same tables
+     *        at the same time
+     * @param resume whether to resume a previously aborted crawl
+     * @param serializer crawl data serializer
+     * @since 1.9.2
+     */
+    public JDBCCrawlDataStore(BasicDataSource datasource, String tablePrefix, 
+            boolean shared, boolean resume, IJDBCSerializer serializer) {
         super();
-        
         this.serializer = serializer;
-        String fullPath = new File(path).getAbsolutePath();
-        
-        LOG.info("Initializing crawl document reference store: " + fullPath);
+        this.datasource = datasource;
+        this.queryRunner = new QueryRunner(datasource);
+        this.shared = shared;
+        int maxConnections = datasource.getMaxTotal();
+        this.claimWindow = maxConnections > 0 
+                ? maxConnections : DEFAULT_MAX_CONNECTIONS;
+        String prefix = StringUtils.trimToEmpty(tablePrefix);
+        this.queueTable = prefix + TABLE_QUEUE;
+        this.activeTable = prefix + TABLE_ACTIVE;
+        this.cacheTable = prefix + TABLE_CACHE;
+        this.validTable = prefix + TABLE_PROCESSED_VALID;
+        this.invalidTable = prefix + TABLE_PROCESSED_INVALID;
+        this.knownTable = prefix + TABLE_KNOWN;
+        this.nextValidTable = prefix + TABLE_PROCESSED_VALID_NEXT;
+        this.stateTable = prefix + TABLE_STATE;
 
+        LOG.info("Initializing crawl document reference store: " 
+                + datasource.getUrl());
+
+        Connection startupLock = shared ? lockStartup() : null;
         try {
-            FileUtils.forceMkdir(new File(fullPath));
-        } catch (IOException e) {
-            throw new CrawlDataStoreException(
-                    "Cannot create crawl store directory: " + fullPath, e);
+            prepareTables(resume);
+        } finally {
+            DbUtils.rollbackAndCloseQuietly(startupLock);
         }
-        this.dbDir = fullPath + "/h2/db";
-        this.datasource = createDataSource(dbDir);
+        reconcileCounts();
+        LOG.info("Done initializing crawl document reference store.");
+    }
+
+    private void prepareTables(boolean resume) {
+        boolean rolledOver;
         boolean incrementalRun;
+        boolean knownTableCreated;
         try {
+            rolledOver = completeRollover();
             incrementalRun = ensureTablesExist();
+            knownTableCreated = ensureKnownTableExists();
         } catch (SQLException e) {
             throw new CrawlDataStoreException(
                     "Problem creating crawl store.", e);
         }
-        if (resume) {
-            if (LOG.isDebugEnabled()) {
-                LOG.debug("Active count: " + getActiveCount());
-                LOG.debug("Processed count: " + getProcessedCount());
-                LOG.debug("Putting active references back in the queue...");
-            }
-            copyCrawlDatasToQueue(TABLE_ACTIVE);
-            LOG.debug("Cleaning active database...");
-            sqlClearTable(TABLE_ACTIVE);
-        } else if (incrementalRun) {
-            LOG.info("Caching processed reference from last run (if any)...");
-            LOG.debug("Rename processed table to cache...");
-            sqlUpdate("DROP TABLE " + TABLE_CACHE);
-            sqlUpdate("ALTER TABLE " + TABLE_PROCESSED_VALID 
-                    + " RENAME TO " + TABLE_CACHE);
-            LOG.debug("Cleaning queue table...");
-            sqlClearTable(TABLE_QUEUE);
-            LOG.debug("Cleaning invalid references table...");
-            sqlClearTable(TABLE_PROCESSED_INVALID);
-            LOG.debug("Cleaning active table...");
-            sqlClearTable(TABLE_ACTIVE);
-            LOG.debug("Re-creating processed table...");
-            sqlCreateTable(TABLE_PROCESSED_VALID);
+        if (shared && isCrawlInProgress()) {
+            LOG.info("Crawl data store tables are new or in use by "
+                    + "other collectors, leaving them as they are.");
+            if (knownTableCreated) {
+                copyReferencesToKnown();
+            }
+        } else if (resume) {
+            requeueActive();
+            if (knownTableCreated) {
+                copyReferencesToKnown();
+            }
+        } else if (incrementalRun && !rolledOver) {
+            rolloverProcessed();
         }
-        LOG.info("Done initializing crawl document reference store.");
     }
 
     @Override
-    public final synchronized void queue(ICrawlData crawlData) {
-        sqlInsertCrawlData(TABLE_QUEUE, crawlData);
+    public final void queue(ICrawlData crawlData) {
+        addToReferenceFilter(crawlData.getReference());
+        queueCount.addAndGet(sqlInsertCrawlData(queueTable, crawlData));
+        // after queuing, so a reference is never known without being queued
+        sqlUpdate("INSERT INTO " + knownTable + " (reference) VALUES (?)",
+                crawlData.getReference());
     }
 
     @Override
-    public final synchronized void processed(ICrawlData crawlData) {
+    public final void processed(ICrawlData crawlData) {
         ICrawlData crawlDataCopy = crawlData.clone();
+        addToReferenceFilter(crawlDataCopy.getReference());
         String table;
         if (crawlDataCopy.getState().isGoodState()) {
-            table = TABLE_PROCESSED_VALID;
+            table = validTable;
         } else {
-            table = TABLE_PROCESSED_INVALID;
+            table = invalidTable;
         }
-        sqlInsertCrawlData(table, crawlDataCopy);
-        sqlDeleteCrawlData(TABLE_ACTIVE, crawlDataCopy);
-        sqlDeleteCrawlData(TABLE_CACHE, crawlDataCopy);
+        sqlProcessCrawlData(table, crawlDataCopy);
     }
 
+    /**
+     * Queues the reference right away when the reference filter reports
+     * it as new. Otherwise, looks up its stage first with a single query.
+     * A reference is queued in the same transaction it is added to 
+     * the table of known references, which can only succeed once per 
+     * crawl (even if it was claimed or processed since it was looked up).
+     * When another thread or collector queues the same reference first, 
+     * its current stage is returned instead 
+     * ({@link ReferenceStage#QUEUED} if not yet visible).
+     */
     @Override
-    public final synchronized boolean isQueueEmpty() {
+    public final ReferenceStage queueIfAbsent(
+            ICrawlData crawlData) {
+        String reference = crawlData.getReference();
+        ReferenceStage stage = getStage(reference);
+        if (stage != ReferenceStage.NONE) {
+            return stage;
+        }
+        addToReferenceFilter(reference);
+        if (sqlQueueIfUnknown(crawlData)) {
+            queueCount.incrementAndGet();
+            return ReferenceStage.NONE;
+        }
+        stage = sqlFindStage(reference);
+        if (stage == ReferenceStage.NONE) {
+            return ReferenceStage.QUEUED;
+        }
+        return stage;
+    }
+
+    @Override
+    public final ReferenceStage getStage(String reference) {
+        if (!isPossiblyKnown(reference)) {
+            return ReferenceStage.NONE;
+        }
+        return referenceFilterChecked(sqlFindStage(reference));
+    }
+
+    @Override
+    public final boolean isQueueEmpty() {
         return getQueueSize()  == 0;
     }
 
     @Override
-    public final synchronized int getQueueSize() {
-        return sqlRecordCount(TABLE_QUEUE);
+    public final int getQueueSize() {
+        if (shared) {
+            return sqlRecordCount(queueTable);
+        }
+        return queueCount.get();
     }
 
     @Override
-    public final synchronized boolean isQueued(String reference) {
-        return sqlReferenceExists(TABLE_QUEUE, reference);
+    public final boolean isQueued(String reference) {
+        return sqlReferenceExists(queueTable, reference);
     }
 
+    /**
+     * Claims the first queued reference another thread has not claimed
+     * already. Candidates are read without locking, so the queue is 
+     * read again only when all of them were claimed by other threads.
+     */
     @Override
-    public final synchronized ICrawlData nextQueued() {
-        ICrawlData crawlData = sqlFindCrawlData(TABLE_QUEUE, 
-                serializer.getNextQueuedCrawlDataSQL(),
-                serializer.getNextQueuedCrawlDataValues());
-        if (crawlData != null) {
-            sqlInsertCrawlData(TABLE_ACTIVE, crawlData);
-            sqlDeleteCrawlData(TABLE_QUEUE, crawlData);
+    public final ICrawlData nextQueued() {
+        while (true) {
+            List<ICrawlData> candidates = sqlFindCrawlDatas(queueTable, 
+                    serializer.getNextQueuedCrawlDataSQL(), claimWindow,
+                    serializer.getNextQueuedCrawlDataValues());
+            if (candidates.isEmpty()) {
+                return null;
+            }
+            for (ICrawlData crawlData : candidates) {
+                if (claimCrawlData(crawlData)) {
+                    return crawlData;
+                }
+            }
         }
-        return crawlData;
     }
 
+    /**
+     * Selects up to <code>max</code> queued references and claims them 
+     * using batched statements within a single transaction. When 
+     * another thread claims some of them at the same time, they are
+     * claimed one by one instead and fewer than <code>max</code> may be 
+     * returned.
+     */
     @Override
-    public final synchronized boolean isActive(String reference) {
-        return sqlReferenceExists(TABLE_ACTIVE, reference);
+    public final List<ICrawlData> nextQueued(int max) {
+        if (max <= 1) {
+            List<ICrawlData> list = new ArrayList<>(1);
+            ICrawlData crawlData = max == 1 ? nextQueued() : null;
+            if (crawlData != null) {
+                list.add(crawlData);
+            }
+            return list;
+        }
+        while (true) {
+            List<ICrawlData> candidates = sqlFindCrawlDatas(queueTable, 
+                    serializer.getNextQueuedCrawlDataSQL(), max,
+                    serializer.getNextQueuedCrawlDataValues());
+            if (candidates.isEmpty()) {
+                return candidates;
+            }
+            List<ICrawlData> claimed;
+            try {
+                claimed = sqlClaimCrawlDatas(candidates);
+            } catch (SQLException e) {
+                if (!alreadyExists(e) && !concurrentUpdate(e)) {
+                    throw new CrawlDataStoreException(
+                            "Problem updating database.", e);
+                }
+                LOG.debug("Could not claim all crawl data at once, "
+                        + "claiming them one by one. SQL Error:" 
+                        + e.getMessage());
+                claimed = new ArrayList<>(candidates.size());
+                for (ICrawlData crawlData : candidates) {
+                    if (claimCrawlData(crawlData)) {
+                        claimed.add(crawlData);
+                    }
+                }
+            }
+            if (!claimed.isEmpty()) {
+                return claimed;
+            }
+        }
+    }
+
+    @Override
+    public final boolean isActive(String reference) {
+        return sqlReferenceExists(activeTable, reference);
     }
     
     @Override
-    public final synchronized int getActiveCount() {
-        return sqlRecordCount(TABLE_ACTIVE);
+    public final int getActiveCount() {
+        if (shared) {
+            return sqlRecordCount(activeTable);
+        }
+        return activeCount.get();
     }
 
     @Override
-    public synchronized ICrawlData getCached(String reference) {
-        return sqlFindCrawlData(TABLE_CACHE, 
+    public ICrawlData getCached(String reference) {
+        return sqlFindCrawlData(cacheTable, 
                 serializer.getCachedCrawlDataSQL(),
                 serializer.getCachedCrawlDataValues(reference));
     }
 
     @Override
-    public final synchronized boolean isCacheEmpty() {
-        return sqlRecordCount(TABLE_CACHE) == 0;
+    public final boolean isCacheEmpty() {
+        if (shared) {
+            return sqlRecordCount(cacheTable) == 0;
+        }
+        return cacheCount.get() == 0;
     }
     
     @Override
-    public final synchronized boolean isProcessed(String reference) {
-        return sqlReferenceExists(TABLE_PROCESSED_VALID, reference)
-                || sqlReferenceExists(TABLE_PROCESSED_INVALID, reference);
+    public final boolean isProcessed(String reference) {
+        return sqlReferenceExists(validTable, reference)
+                || sqlReferenceExists(invalidTable, reference);
     }
 
     @Override
-    public final synchronized int getProcessedCount() {
-        return sqlRecordCount(TABLE_PROCESSED_VALID)
-                + sqlRecordCount(TABLE_PROCESSED_INVALID);
+    public final int getProcessedCount() {
+        if (shared) {
+            return sqlRecordCount(validTable) 
+                    + sqlRecordCount(invalidTable);
+        }
+        return processedCount.get();
+    }
+
+    /**
+     * Gets the number of cached records read at once when iterating
+     * through them one page at a time.
+     * @return cache page size
+     * @since 1.9.2
+     */
+    public int getCachePageSize() {
+        return cachePageSize;
+    }
+    /**
+     * Sets the number of cached records read at once when iterating
+     * through them one page at a time, each page being a new query 
+     * starting after the last reference read. Zero or less
+     * (the default) reads them all with a single streamed query instead,
+     * falling back to pages only when it cannot be created.
+     * Use pages with databases or drivers unable to stream large 
+     * results without holding them in memory. Pages are only used 
+     * with an {@link IPagedJDBCSerializer}.
+     * @param cachePageSize cache page size
+     * @since 1.9.2
+     */
+    public void setCachePageSize(int cachePageSize) {
+        if (cachePageSize > 0 && !isPagedSerializer()) {
+            LOG.warn("Serializer does not implement " 
+                    + IPagedJDBCSerializer.class.getSimpleName()
+                    + ", cache records will not be read in pages.");
+        }
+        this.cachePageSize = cachePageSize;
+    }
+
+    /**
+     * Sets the milliseconds between background compaction steps, 
+     * starting or stopping the background compactor as needed. 
+     * Zero or less disables background compaction (the default).
+     * Only embedded H2 databases are compacted, a compaction step being 
+     * an H2 checkpoint (which rewrites at most a few megabytes).
+     * @param compactInterval compaction interval
+     * @since 1.9.2
+     */
+    public synchronized void setCompactInterval(long compactInterval) {
+        if (compactor != null) {
+            compactor.stop();
+            compactor = null;
+        }
+        if (compactInterval <= 0) {
+            return;
+        }
+        if (!isEmbeddedH2()) {
+            LOG.warn("Background compaction is only supported with "
+                    + "embedded H2 databases. Ignoring it for: " 
+                    + datasource.getUrl());
+            return;
+        }
+        compactor = new CrawlDataStoreCompactor(this, compactInterval);
+        compactor.start();
+    }
+    /**
+     * Gets the background compactor.
+     * @return compactor or <code>null</code> if not compacting in the
+     *         background
+     * @since 1.9.2
+     */
+    public synchronized CrawlDataStoreCompactor getCompactor() {
+        return compactor;
+    }
+
+    /**
+     * Gets whether the database is fully compacted when this store
+     * is closed.
+     * @return <code>true</code> if compacting on close
+     * @since 1.9.2
+     */
+    public boolean isCompactOnClose() {
+        return compactOnClose;
+    }
+    /**
+     * Sets whether the database is fully compacted when this store
+     * is closed. Only applies to embedded H2 databases not shared with
+     * other collectors, since compacting shuts down the database.
+     * @param compactOnClose <code>true</code> to compact on close
+     * @since 1.9.2
+     */
+    public void setCompactOnClose(boolean compactOnClose) {
+        this.compactOnClose = compactOnClose;
     }
 
+    /**
+     * Performs an H2 checkpoint, which also compacts the database file
+     * a little. Does nothing on other databases (including H2 servers).
+     * @return number of bytes the database file shrunk by
+     * @since 1.9.2
+     */
+    @Override
+    public long compact() {
+        if (!isEmbeddedH2()) {
+            return 0;
+        }
+        long sizeBefore = h2FileSize();
+        sqlUpdate("CHECKPOINT");
+        return Math.max(0, sizeBefore - h2FileSize());
+    }
+    /**
+     * Not available from the database, always -1.
+     * @return -1
+     * @since 1.9.2
+     */
+    @Override
+    public int getFillRate() {
+        return -1;
+    }
+    private long h2FileSize() {
+        String sql = "SELECT VALUE FROM INFORMATION_SCHEMA.SETTINGS "
+                + "WHERE NAME = ?";
+        try {
+            String pageCount = queryRunner.query(sql, 
+                    new ScalarHandler<String>(), "info.PAGE_COUNT");
+            String pageSize = queryRunner.query(sql, 
+                    new ScalarHandler<String>(), "info.PAGE_SIZE");
+            return NumberUtils.toLong(pageCount) 
+                    * NumberUtils.toLong(pageSize);
+        } catch (SQLException e) {
+            throw new CrawlDataStoreException(
+                    "Could not get database file size.", e);
+        }
+    }
+
+    /**
+     * Gets an iterator over cached records, reading them as they are 
+     * consumed. The returned iterator is also {@link Closeable} and 
+     * should be closed when not consumed entirely.
+     */
     @Override
     public Iterator<ICrawlData> getCacheIterator() {
+        if (isCacheEmpty()) {
+            return null;
+        }
+        if (cachePageSize > 0 && isPagedSerializer()) {
+            return new PagedCacheIterator(cachePageSize);
+        }
         try {
-            final Connection conn = datasource.getConnection(); 
-            final Statement stmt = conn.createStatement(
-                    ResultSet.TYPE_SCROLL_INSENSITIVE,
-                    ResultSet.CONCUR_READ_ONLY);
-            final ResultSet rs = stmt.executeQuery(
-                    serializer.getSelectCrawlDataSQL(TABLE_CACHE));
-            if (rs == null || !rs.first()) {
+            return new StreamedCacheIterator();
+        } catch (SQLException e) {
+            if (!isPagedSerializer()) {
+                throw new CrawlDataStoreException(
+                        "Problem getting database cache iterator.", e);
+            }
+            LOG.warn("Cannot stream cache records. "
+                    + "Reading them one page at a time instead.", e);
+            return new PagedCacheIterator(DEFAULT_CACHE_PAGE_SIZE);
+        }
+    }
+
+    /**
+     * Sets the filter of known references, unless tables are shared with
+     * other collectors. References queued or processed by other 
+     * collectors would be missing from the filter and would be 
+     * considered new.
+     * @param referenceFilter reference filter (<code>null</code> to disable)
+     * @since 1.9.2
+     */
+    @Override
+    public void setReferenceFilter(ReferenceBloomFilter referenceFilter) {
+        if (shared && referenceFilter != null) {
+            LOG.warn("Reference filters cannot be used with tables shared "
+                    + "with other collectors. Ignoring it.");
+            return;
+        }
+        super.setReferenceFilter(referenceFilter);
+    }
+
+    // Reads the known references table, which holds every reference 
+    // queued in the current crawl, and the processed tables, which also
+    // hold references processed without being queued (e.g., embedded
+    // documents).
+    @Override
+    protected boolean loadReferenceFilter(
+            final ReferenceBloomFilter referenceFilter) {
+        ResultSetHandler<Void> h = new ResultSetHandler<Void>() {
+            @Override
+            public Void handle(ResultSet rs) throws SQLException {
+                while(rs.next()) {
+                    referenceFilter.add(rs.getString(1));
+                }
                 return null;
             }
-            rs.beforeFirst();
-            return new CrawlDataIterator(TABLE_CACHE, rs, conn, stmt);
+        };
+        try {
+            queryRunner.query("SELECT reference FROM " + knownTable, h);
         } catch (SQLException e) {
             throw new CrawlDataStoreException(
-                    "Problem getting database cache iterator.", e);            
+                    "Problem loading known references from database.", e);
         }
+        for (String table : Arrays.asList(validTable, invalidTable)) {
+            try {
+                queryRunner.query("SELECT reference FROM " + table, h);
+            } catch (SQLException e) {
+                // e.g., custom table structure
+                LOG.debug("Could not load processed references at once, "
+                        + "loading them one by one. SQL Error:" 
+                        + e.getMessage());
+                loadReferenceFilter(referenceFilter, table);
+            }
+        }
+        return true;
     }
-    
-    
+    private void loadReferenceFilter(
+            final ReferenceBloomFilter referenceFilter, final String table) {
+        ResultSetHandler<Void> h = new ResultSetHandler<Void>() {
+            @Override
+            public Void handle(ResultSet rs) throws SQLException {
+                while(rs.next()) {
+                    ICrawlData crawlData = serializer.toCrawlData(table, rs);
+                    if (crawlData != null) {
+                        referenceFilter.add(crawlData.getReference());
+                    }
+                }
+                return null;
+            }
+        };
+        try {
+            queryRunner.query(serializer.getSelectCrawlDataSQL(table), h);
+        } catch (SQLException e) {
+            throw new CrawlDataStoreException(
+                    "Problem loading processed references from database.", e);
+        }
+    }
+
     @Override
     public void close() {
-        // NOOP
+        synchronized (this) {
+            if (compactor != null) {
+                compactor.stop();
+                compactor = null;
+            }
+        }
+        // compacting shuts down the database, possibly used by others
+        if (compactOnClose && !shared && isEmbeddedH2()) {
+            LOG.info("Compacting crawl data store...");
+            try {
+                queryRunner.update("SHUTDOWN COMPACT");
+            } catch (SQLException e) {
+                LOG.error("Could not compact crawl data store.", e);
+            }
+        }
+        try {
+            datasource.close();
+        } catch (SQLException e) {
+            LOG.error("Could not close crawl data store connections.", e);
+        }
     }
     
     private boolean sqlReferenceExists(String table, String reference) {
@@ -219,12 +696,75 @@ public class JDBCCrawlDataStore extends AbstractCrawlDataStore {
                 serializer.getReferenceExistsValues(table, reference)) > 0;
     }
     
+    // Checks all tables at once, using one scalar sub-query per table.
+    private ReferenceStage sqlFindStage(String reference) {
+        final String[] tables = { 
+                activeTable, queueTable, 
+                validTable, invalidTable };
+        final ReferenceStage[] stages = { 
+                ReferenceStage.ACTIVE, ReferenceStage.QUEUED, 
+                ReferenceStage.PROCESSED, ReferenceStage.PROCESSED };
+        StringBuilder sql = new StringBuilder("SELECT ");
+        List<Object> params = new ArrayList<>();
+        for (int i = 0; i < tables.length; i++) {
+            if (i > 0) {
+                sql.append(", ");
+            }
+            sql.append('(').append(
+                    serializer.getReferenceExistsSQL(tables[i])).append(')');
+            Object[] values = 
+                    serializer.getReferenceExistsValues(tables[i], reference);
+            if (values != null) {
+                params.addAll(Arrays.asList(values));
+            }
+        }
+        ResultSetHandler<ReferenceStage> h = 
+                new ResultSetHandler<ReferenceStage>() {
+            @Override
+            public ReferenceStage handle(ResultSet rs) throws SQLException {
+                if (rs.next()) {
+                    for (int i = 0; i < stages.length; i++) {
+                        if (rs.getInt(i + 1) > 0) {
+                            return stages[i];
+                        }
+                    }
+                }
+                return ReferenceStage.NONE;
+            }
+        };
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("SQL: " + sql);
+        }
+        try {
+            return queryRunner.query(
+                    sql.toString(), h, params.toArray());
+        } catch (SQLException e) {
+            throw new CrawlDataStoreException(
+                    "Problem getting reference stage.", e);
+        }
+    }
+
+    // Counts records once, after tables were prepared for this run.
+    private void reconcileCounts() {
+        queueCount.set(sqlRecordCount(queueTable));
+        activeCount.set(sqlRecordCount(activeTable));
+        processedCount.set(sqlRecordCount(validTable)
+                + sqlRecordCount(invalidTable));
+        cacheCount.set(sqlRecordCount(cacheTable));
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Record counts: queued=" + queueCount 
+                    + ", active=" + activeCount 
+                    + ", processed=" + processedCount
+                    + ", cached=" + cacheCount);
+        }
+    }
+    
     private void sqlClearTable(String table) {
-        sqlUpdate("DELETE FROM " + table);
+        sqlUpdate("TRUNCATE TABLE " + table);
     }
     
-    private void sqlDeleteCrawlData(String table, ICrawlData crawlData) {
-        sqlUpdate(serializer.getDeleteCrawlDataSQL(table),
+    private int sqlDeleteCrawlData(String table, ICrawlData crawlData) {
+        return sqlUpdate(serializer.getDeleteCrawlDataSQL(table),
                 serializer.getDeleteCrawlDataValues(table, crawlData));
     }
     
@@ -232,27 +772,146 @@ public class JDBCCrawlDataStore extends AbstractCrawlDataStore {
         return sqlQueryInteger("SELECT count(*) FROM " + table);
     }
 
-    private void sqlInsertCrawlData(String table, ICrawlData crawlData) {
-        sqlUpdate(serializer.getInsertCrawlDataSQL(table),
+    private int sqlInsertCrawlData(String table, ICrawlData crawlData) {
+        return sqlUpdate(serializer.getInsertCrawlDataSQL(table),
                 serializer.getInsertCrawlDataValues(table, crawlData));
     }
     
+    // Resumes with set-based SQL so it does not take longer with
+    // more references.
+    private void requeueActive() {
+        StopWatch watch = new StopWatch();
+        watch.start();
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Processed count: " + (
+                    sqlRecordCount(validTable)
+                  + sqlRecordCount(invalidTable)));
+        }
+        int count = sqlRecordCount(activeTable);
+        LOG.info("Putting " + count 
+                + " active references back in the queue...");
+        if (count > 0) {
+            String sql = "INSERT INTO " + queueTable 
+                    + " SELECT * FROM " + activeTable;
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("SQL: " + sql);
+            }
+            try {
+                queryRunner.update(sql);
+            } catch (SQLException e) {
+                // e.g., different table structures or already queued
+                LOG.info("Could not copy active references at once, "
+                        + "copying them in batches. SQL Error:" 
+                        + e.getMessage());
+                copyCrawlDatasToQueue(activeTable);
+            }
+            LOG.debug("Cleaning active table...");
+            sqlClearTable(activeTable);
+        }
+        watch.stop();
+        LOG.info("Done putting active references back in the queue in " 
+                + watch);
+    }
+
+    // Renames and truncates tables rather than moving records.
+    // The new processed table is created under another name first and 
+    // renamed last, so a rollover interrupted after the cache was dropped
+    // can be completed by completeRollover() when the store is created 
+    // again, without losing processed references from the last run.
+    private void rolloverProcessed() {
+        StopWatch watch = new StopWatch();
+        watch.start();
+        LOG.info("Caching processed reference from last run (if any)...");
+        LOG.debug("Creating next processed table...");
+        sqlCreateTable(nextValidTable);
+        LOG.debug("Cleaning queue table...");
+        sqlClearTable(queueTable);
+        LOG.debug("Cleaning invalid references table...");
+        sqlClearTable(invalidTable);
+        LOG.debug("Cleaning active table...");
+        sqlClearTable(activeTable);
+        LOG.debug("Cleaning known references table...");
+        sqlClearTable(knownTable);
+        LOG.debug("Rename processed table to cache...");
+        sqlUpdate("DROP TABLE " + cacheTable);
+        renameProcessedTables();
+        watch.stop();
+        LOG.info("Cached " + sqlRecordCount(cacheTable) 
+                + " processed references from last run in " + watch);
+    }
+
+    private void renameProcessedTables() {
+        sqlUpdate("ALTER TABLE " + validTable 
+                + " RENAME TO " + cacheTable);
+        sqlUpdate("ALTER TABLE " + nextValidTable 
+                + " RENAME TO " + validTable);
+    }
+
+    // Returns true if an interrupted rollover was completed. When 
+    // interrupted before the cache was dropped, the next processed 
+    // table is discarded and the rollover is performed again.
+    private boolean completeRollover() throws SQLException {
+        boolean nextExists;
+        boolean validExists;
+        boolean cacheExists;
+        Connection conn = null;
+        try {                
+            conn = datasource.getConnection();
+            DatabaseMetaData meta = conn.getMetaData();
+            nextExists = tableExists(meta, nextValidTable);
+            validExists = tableExists(meta, validTable);
+            cacheExists = tableExists(meta, cacheTable);
+        } finally {
+            DbUtils.closeQuietly(conn);
+        }
+        if (!nextExists) {
+            return false;
+        }
+        if (validExists && cacheExists) {
+            LOG.info("Discarding next processed table left by an "
+                    + "interrupted rollover.");
+            sqlUpdate("DROP TABLE " + nextValidTable);
+            return false;
+        }
+        LOG.info("Completing interrupted caching of processed references "
+                + "from last run.");
+        if (validExists) {
+            renameProcessedTables();
+        } else {
+            sqlUpdate("ALTER TABLE " + nextValidTable 
+                    + " RENAME TO " + validTable);
+        }
+        return true;
+    }
+
     private void copyCrawlDatasToQueue(final String sourceTable) {
         ResultSetHandler<Void> h = new ResultSetHandler<Void>() {
             @Override
             public Void handle(ResultSet rs) throws SQLException {
+                List<ICrawlData> batch = new ArrayList<>(BATCH_SIZE);
+                int copied = 0;
                 while(rs.next()) {
                     ICrawlData crawlData = 
                             serializer.toCrawlData(sourceTable, rs);
                     if (crawlData != null) {
-                        queue(crawlData);
+                        batch.add(crawlData);
+                    }
+                    if (batch.size() == BATCH_SIZE) {
+                        queueCount.addAndGet(
+                                sqlInsertCrawlDatas(queueTable, batch));
+                        batch.clear();
+                        copied += BATCH_SIZE;
+                        if (copied % PROGRESS_INTERVAL == 0) {
+                            LOG.info(copied + " references copied to queue.");
+                        }
                     }
                 }
+                queueCount.addAndGet(sqlInsertCrawlDatas(queueTable, batch));
                 return null;
             }
         };
         try {
-            new QueryRunner(datasource).query(
+            queryRunner.query(
                     serializer.getSelectCrawlDataSQL(sourceTable), h);
         } catch (SQLException e) {
             throw new CrawlDataStoreException(
@@ -260,6 +919,55 @@ public class JDBCCrawlDataStore extends AbstractCrawlDataStore {
         }
     }
 
+    // Known references table created after a crawl started (e.g., 
+    // with tables from a previous version).
+    private void copyReferencesToKnown() {
+        LOG.info("Copying known references...");
+        StringBuilder sql = new StringBuilder(
+                "INSERT INTO " + knownTable + " (reference) ");
+        String[] tables = { queueTable, activeTable, validTable, invalidTable };
+        for (int i = 0; i < tables.length; i++) {
+            if (i > 0) {
+                sql.append(" UNION ");
+            }
+            sql.append("SELECT reference FROM ").append(tables[i]);
+        }
+        try {
+            queryRunner.update(sql.toString());
+        } catch (SQLException e) {
+            // e.g., custom table structure
+            LOG.info("Could not copy known references at once, "
+                    + "copying them one by one. SQL Error:" 
+                    + e.getMessage());
+            for (String table : tables) {
+                copyReferencesToKnown(table);
+            }
+        }
+        LOG.info("Done copying known references.");
+    }
+    private void copyReferencesToKnown(final String table) {
+        final String sql = 
+                "INSERT INTO " + knownTable + " (reference) VALUES (?)";
+        ResultSetHandler<Void> h = new ResultSetHandler<Void>() {
+            @Override
+            public Void handle(ResultSet rs) throws SQLException {
+                while(rs.next()) {
+                    ICrawlData crawlData = serializer.toCrawlData(table, rs);
+                    if (crawlData != null) {
+                        sqlUpdate(sql, crawlData.getReference());
+                    }
+                }
+                return null;
+            }
+        };
+        try {
+            queryRunner.query(serializer.getSelectCrawlDataSQL(table), h);
+        } catch (SQLException e) {
+            throw new CrawlDataStoreException(
+                    "Problem loading crawl data from database.", e);            
+        }
+    }
+
     private ICrawlData sqlFindCrawlData(
             final String table, String sql, Object... params) {
       try {
@@ -275,19 +983,259 @@ public class JDBCCrawlDataStore extends AbstractCrawlDataStore {
           if (LOG.isDebugEnabled()) {
               LOG.debug("SQL: " + sql);
           }
-          return new QueryRunner(datasource).query(sql, h, params);
+          return queryRunner.query(sql, h, params);
       } catch (SQLException e) {
           throw new CrawlDataStoreException(
                   "Problem running database query.", e);            
       }
     }
     
+    private List<ICrawlData> sqlFindCrawlDatas(
+            String table, String sql, int max, Object... params) {
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("SQL: " + sql);
+        }
+        List<ICrawlData> crawlDatas = new ArrayList<>(max);
+        Connection conn = null;
+        PreparedStatement stmt = null;
+        ResultSet rs = null;
+        try {
+            conn = datasource.getConnection();
+            stmt = conn.prepareStatement(sql);
+            stmt.setMaxRows(max);
+            queryRunner.fillStatement(stmt, params);
+            rs = stmt.executeQuery();
+            while (rs.next() && crawlDatas.size() < max) {
+                ICrawlData crawlData = serializer.toCrawlData(table, rs);
+                if (crawlData != null) {
+                    crawlDatas.add(crawlData);
+                }
+            }
+            return crawlDatas;
+        } catch (SQLException e) {
+            throw new CrawlDataStoreException(
+                    "Problem running database query.", e);
+        } finally {
+            DbUtils.closeQuietly(conn, stmt, rs);
+        }
+    }
+
+    // Deletes from the queue and inserts in the active table in one 
+    // transaction. Only one thread can delete a given reference, so only
+    // one can claim it. Active count is incremented before queue count 
+    // is decremented so both are never seen as empty at the same time.
+    private boolean claimCrawlData(ICrawlData crawlData) {
+        Connection conn = null;
+        try {
+            conn = datasource.getConnection();
+            conn.setAutoCommit(false);
+            int deleted = queryRunner.update(conn, 
+                    serializer.getDeleteCrawlDataSQL(queueTable), 
+                    serializer.getDeleteCrawlDataValues(
+                            queueTable, crawlData));
+            if (deleted == 0) {
+                conn.rollback();
+                return false;
+            }
+            int inserted = sqlReplaceCrawlData(conn, activeTable, crawlData);
+            conn.commit();
+            activeCount.addAndGet(inserted);
+            queueCount.addAndGet(-deleted);
+            return true;
+        } catch (SQLException e) {
+            rollbackQuietly(conn);
+            if (concurrentUpdate(e)) {
+                // claimed by another thread
+                return false;
+            }
+            throw new CrawlDataStoreException(
+                    "Problem updating database.", e);
+        } finally {
+            // the pool restores auto-commit on return
+            DbUtils.closeQuietly(conn);
+        }
+    }
+    // Adds to known references and queues in one transaction. Returns
+    // false if already known (or queued).
+    private boolean sqlQueueIfUnknown(ICrawlData crawlData) {
+        Connection conn = null;
+        try {
+            conn = datasource.getConnection();
+            conn.setAutoCommit(false);
+            queryRunner.update(conn, "INSERT INTO " + knownTable 
+                    + " (reference) VALUES (?)", crawlData.getReference());
+            queryRunner.update(conn, 
+                    serializer.getInsertCrawlDataSQL(queueTable), 
+                    serializer.getInsertCrawlDataValues(queueTable, crawlData));
+            conn.commit();
+            return true;
+        } catch (SQLException e) {
+            rollbackQuietly(conn);
+            if (alreadyExists(e) || concurrentUpdate(e)) {
+                return false;
+            }
+            throw new CrawlDataStoreException(
+                    "Problem updating database.", e);
+        } finally {
+            // the pool restores auto-commit on return
+            DbUtils.closeQuietly(conn);
+        }
+    }
+
+    // Moves a crawl data to a processed table in one transaction.
+    private void sqlProcessCrawlData(String table, ICrawlData crawlData) {
+        Connection conn = null;
+        try {
+            conn = datasource.getConnection();
+            conn.setAutoCommit(false);
+            int inserted = sqlReplaceCrawlData(conn, table, crawlData);
+            int deletedActive = queryRunner.update(conn, 
+                    serializer.getDeleteCrawlDataSQL(activeTable), 
+                    serializer.getDeleteCrawlDataValues(
+                            activeTable, crawlData));
+            int deletedCache = queryRunner.update(conn, 
+                    serializer.getDeleteCrawlDataSQL(cacheTable), 
+                    serializer.getDeleteCrawlDataValues(
+                            cacheTable, crawlData));
+            conn.commit();
+            processedCount.addAndGet(inserted);
+            activeCount.addAndGet(-deletedActive);
+            cacheCount.addAndGet(-deletedCache);
+        } catch (SQLException e) {
+            rollbackQuietly(conn);
+            throw new CrawlDataStoreException(
+                    "Problem updating database.", e);
+        } finally {
+            DbUtils.closeQuietly(conn);
+        }
+    }
+
+    // Inserts within an existing transaction, replacing an existing one.
+    // Does not rely on failed statements, which abort transactions with 
+    // some databases. Returns the number of new records.
+    private int sqlReplaceCrawlData(Connection conn, 
+            String table, ICrawlData crawlData) throws SQLException {
+        int deleted = queryRunner.update(conn, 
+                serializer.getDeleteCrawlDataSQL(table), 
+                serializer.getDeleteCrawlDataValues(table, crawlData));
+        int inserted = queryRunner.update(conn, 
+                serializer.getInsertCrawlDataSQL(table), 
+                serializer.getInsertCrawlDataValues(table, crawlData));
+        return inserted - deleted;
+    }
+
+    // Inserts with a single batch and transaction. If some already exist,
+    // the transaction is rolled back and they are inserted one by one,
+    // ignoring existing ones.
+    private int sqlInsertCrawlDatas(
+            String table, List<ICrawlData> crawlDatas) throws SQLException {
+        if (crawlDatas.isEmpty()) {
+            return 0;
+        }
+        Connection conn = datasource.getConnection();
+        PreparedStatement stmt = null;
+        try {
+            conn.setAutoCommit(false);
+            stmt = conn.prepareStatement(
+                    serializer.getInsertCrawlDataSQL(table));
+            for (ICrawlData crawlData : crawlDatas) {
+                queryRunner.fillStatement(stmt, 
+                        serializer.getInsertCrawlDataValues(table, crawlData));
+                stmt.addBatch();
+            }
+            int[] counts = stmt.executeBatch();
+            conn.commit();
+            return updateCount(counts);
+        } catch (SQLException e) {
+            rollbackQuietly(conn);
+            if (!alreadyExists(e)) {
+                throw e;
+            }
+            LOG.debug("Some already exist in table, inserting them "
+                    + "one by one. SQL Error:" + e.getMessage());
+        } finally {
+            DbUtils.closeQuietly(stmt);
+            DbUtils.closeQuietly(conn);
+        }
+        int inserted = 0;
+        for (ICrawlData crawlData : crawlDatas) {
+            inserted += sqlInsertCrawlData(table, crawlData);
+        }
+        return inserted;
+    }
+
+    private List<ICrawlData> sqlClaimCrawlDatas(
+            List<ICrawlData> crawlDatas) throws SQLException {
+        Object[][] deleteParams = new Object[crawlDatas.size()][];
+        for (int i = 0; i < crawlDatas.size(); i++) {
+            deleteParams[i] = serializer.getDeleteCrawlDataValues(
+                    queueTable, crawlDatas.get(i));
+        }
+        Connection conn = datasource.getConnection();
+        try {
+            conn.setAutoCommit(false);
+            int[] deleted = queryRunner.batch(conn, 
+                    serializer.getDeleteCrawlDataSQL(queueTable), 
+                    deleteParams);
+            List<ICrawlData> claimed = new ArrayList<>(crawlDatas.size());
+            for (int i = 0; i < deleted.length; i++) {
+                if (deleted[i] != 0) {
+                    claimed.add(crawlDatas.get(i));
+                }
+            }
+            int inserted = 0;
+            if (!claimed.isEmpty()) {
+                Object[][] insertParams = new Object[claimed.size()][];
+                for (int i = 0; i < claimed.size(); i++) {
+                    insertParams[i] = serializer.getInsertCrawlDataValues(
+                            activeTable, claimed.get(i));
+                }
+                inserted = updateCount(queryRunner.batch(conn, 
+                        serializer.getInsertCrawlDataSQL(activeTable), 
+                        insertParams));
+            }
+            conn.commit();
+            activeCount.addAndGet(inserted);
+            queueCount.addAndGet(-updateCount(deleted));
+            return claimed;
+        } catch (SQLException e) {
+            rollbackQuietly(conn);
+            throw e;
+        } finally {
+            // the pool restores auto-commit on return
+            DbUtils.closeQuietly(conn);
+        }
+    }
+
+    private void rollbackQuietly(Connection conn) {
+        if (conn == null) {
+            return;
+        }
+        try {
+            conn.rollback();
+        } catch (SQLException e) {
+            LOG.debug("Could not rollback transaction.", e);
+        }
+    }
+
+    private int updateCount(int[] batchCounts) {
+        int count = 0;
+        for (int batchCount : batchCounts) {
+            if (batchCount == Statement.SUCCESS_NO_INFO) {
+                count++;
+            } else if (batchCount > 0) {
+                count += batchCount;
+            }
+        }
+        return count;
+    }
+
     private int sqlQueryInteger(String sql, Object... params) {
         if (LOG.isDebugEnabled()) {
             LOG.debug("SQL: " + sql);
         }
         try {
-            Object value = new QueryRunner(datasource).query(
+            Object value = queryRunner.query(
                     sql, new ScalarHandler<Object>(), params);
             if (value == null) {
                 return 0;
@@ -302,16 +1250,18 @@ public class JDBCCrawlDataStore extends AbstractCrawlDataStore {
                     "Problem getting database scalar value.", e);            
         }
     }
-    private void sqlUpdate(String sql, Object... params) {
+    // Returns the number of updated records (zero when already existing).
+    private int sqlUpdate(String sql, Object... params) {
         if (LOG.isDebugEnabled()) {
             LOG.debug("SQL: " + sql);
         }
         try {
-            new QueryRunner(datasource).update(sql, params);
+            return queryRunner.update(sql, params);
         } catch (SQLException e) {
             if (alreadyExists(e)) {
                 LOG.debug("Already exists in table. SQL Error:" 
                         + e.getMessage());
+                return 0;
             } else {
                 throw new CrawlDataStoreException(
                         "Problem updating database.", e);            
@@ -319,41 +1269,263 @@ public class JDBCCrawlDataStore extends AbstractCrawlDataStore {
         }
     }
 
-    private boolean alreadyExists(SQLException e) {
-        return e.getErrorCode() == H2_ERROR_ALREADY_EXISTS;
+    // Integrity constraint violation (e.g., duplicate key)
+    static boolean alreadyExists(SQLException e) {
+        return StringUtils.startsWith(
+                sqlState(e), SQL_STATE_CLASS_CONSTRAINT);
+    }
+    // Transaction rolled back (e.g., serialization failure or deadlock),
+    // lock timeout, or H2 concurrent update of the same row
+    private boolean concurrentUpdate(SQLException e) {
+        String state = sqlState(e);
+        return StringUtils.startsWith(state, SQL_STATE_CLASS_ROLLBACK)
+                || SQL_STATE_TIMEOUT.equals(state)
+                || SQL_STATE_H2_CONCURRENT_UPDATE.equals(state);
+    }
+    // Batch errors may only have a state on the underlying error
+    private static String sqlState(SQLException e) {
+        SQLException ex = e;
+        while (ex != null && ex.getSQLState() == null) {
+            ex = ex.getNextException();
+        }
+        return ex != null ? ex.getSQLState() : null;
     }
     
-    private DataSource createDataSource(String dbDir) {
+    // Embedded H2 database in the given directory
+    static BasicDataSource createDataSource(
+            String path, int maxConnections) {
+        String fullPath = new File(path).getAbsolutePath();
+        try {
+            FileUtils.forceMkdir(new File(fullPath));
+        } catch (IOException e) {
+            throw new CrawlDataStoreException(
+                    "Cannot create crawl store directory: " + fullPath, e);
+        }
         BasicDataSource ds = new BasicDataSource();
         ds.setDriverClassName("org.h2.Driver");
-        ds.setUrl("jdbc:h2:" + dbDir + ";WRITE_DELAY=0;AUTOCOMMIT=ON");
+        ds.setUrl("jdbc:h2:" + fullPath 
+                + "/h2/db;WRITE_DELAY=0;AUTOCOMMIT=ON");
         ds.setDefaultAutoCommit(true);
+        ds.setMaxTotal(maxConnections);
+        ds.setMaxIdle(maxConnections);
+        // the same few statements are prepared over and over
+        ds.setPoolPreparedStatements(true);
         return ds;
     }
 
+    private boolean isPagedSerializer() {
+        return serializer instanceof IPagedJDBCSerializer;
+    }
+
+    private boolean isEmbeddedH2() {
+        String url = StringUtils.lowerCase(datasource.getUrl());
+        return StringUtils.startsWith(url, "jdbc:h2:")
+                && !StringUtils.startsWithAny(
+                        url, "jdbc:h2:tcp:", "jdbc:h2:ssl:");
+    }
+
+    // Returns true if the table was created
+    private boolean ensureKnownTableExists() throws SQLException {
+        if (knownTableExists()) {
+            return false;
+        }
+        LOG.debug("    Creating known references table: " + knownTable);
+        try {
+            queryRunner.update("CREATE TABLE " + knownTable + " ("
+                    + "reference VARCHAR(32672) NOT NULL, "
+                    + "PRIMARY KEY (reference))");
+        } catch (SQLException e) {
+            // may just have been created by another collector
+            if (!knownTableExists()) {
+                throw e;
+            }
+            return false;
+        }
+        return true;
+    }
+    private boolean knownTableExists() throws SQLException {
+        Connection conn = null;
+        try {                
+            conn = datasource.getConnection();
+            return tableExists(conn.getMetaData(), knownTable);
+        } finally {
+            DbUtils.closeQuietly(conn);
+        }
+    }
+
+    // A crawl is in progress when there are queued or active references.
+    // Tables another collector just prepared have none yet, but have no 
+    // processed references either (unlike those of a finished crawl).
+    private boolean isCrawlInProgress() {
+        return sqlRecordCount(queueTable) > 0 
+                || sqlRecordCount(activeTable) > 0
+                || sqlRecordCount(validTable) == 0 
+                        && sqlRecordCount(invalidTable) == 0;
+    }
+
+    // Locks the state table row until the returned connection is rolled
+    // back, waiting for other collectors preparing tables to be done.
+    private Connection lockStartup() {
+        String sql = "SELECT id FROM " + stateTable + " WHERE id = 1 "
+                + "FOR UPDATE";
+        try {
+            ensureStateRowExists();
+            while (true) {
+                Connection conn = datasource.getConnection();
+                try {
+                    conn.setAutoCommit(false);
+                    queryRunner.query(conn, sql, new ScalarHandler<Object>());
+                    return conn;
+                } catch (SQLException e) {
+                    DbUtils.rollbackAndCloseQuietly(conn);
+                    if (!concurrentUpdate(e)) {
+                        throw e;
+                    }
+                    LOG.info("Waiting for another collector to prepare "
+                            + "crawl data store tables...");
+                }
+            }
+        } catch (SQLException e) {
+            throw new CrawlDataStoreException(
+                    "Could not lock crawl data store tables.", e);
+        }
+    }
+    private void ensureStateRowExists() throws SQLException {
+        if (!stateTableExists()) {
+            LOG.debug("    Creating state table: " + stateTable);
+            try {
+                queryRunner.update("CREATE TABLE " + stateTable 
+                        + " (id INT NOT NULL, PRIMARY KEY (id))");
+            } catch (SQLException e) {
+                // may just have been created by another collector
+                if (!stateTableExists()) {
+                    throw e;
+                }
+            }
+        }
+        if (sqlRecordCount(stateTable) > 0) {
+            return;
+        }
+        try {
+            queryRunner.update(
+                    "INSERT INTO " + stateTable + " (id) VALUES (1)");
+        } catch (SQLException e) {
+            // may just have been inserted by another collector
+            if (!alreadyExists(e) && !concurrentUpdate(e)) {
+                throw e;
+            }
+        }
+    }
+    private boolean stateTableExists() throws SQLException {
+        Connection conn = null;
+        try {                
+            conn = datasource.getConnection();
+            return tableExists(conn.getMetaData(), stateTable);
+        } finally {
+            DbUtils.closeQuietly(conn);
+        }
+    }
+
+    // Returns true if all tables already existed
     private boolean ensureTablesExist() throws SQLException {
-        ArrayListHandler arrayListHandler = new ArrayListHandler();
+        List<String> missingTables = new ArrayList<>();
         Connection conn = null;
         try {                
             conn = datasource.getConnection();
-            List<Object[]> tables = arrayListHandler.handle(
-                    conn.getMetaData().getTables(
-                            null, null, null, new String[]{"TABLE"}));
-            if (tables.size() == NUMBER_OF_TABLES) {
-                LOG.debug("    Re-using existing tables.");
-                return true;
+            DatabaseMetaData meta = conn.getMetaData();
+            for (String table : Arrays.asList(queueTable, activeTable, 
+                    validTable, invalidTable, cacheTable)) {
+                if (!tableExists(meta, table)) {
+                    missingTables.add(table);
+                } else {
+                    checkDictionaryEncoding(meta, table);
+                }
             }
         } finally {
             DbUtils.closeQuietly(conn);
         }
-        LOG.debug("    Creating new crawl tables...");
-        sqlCreateTable(TABLE_QUEUE);
-        sqlCreateTable(TABLE_ACTIVE);
-        sqlCreateTable(TABLE_PROCESSED_VALID);
-        sqlCreateTable(TABLE_PROCESSED_INVALID);
-        sqlCreateTable(TABLE_CACHE);
+        if (missingTables.isEmpty()) {
+            LOG.debug("    Re-using existing tables.");
+            return true;
+        }
+        LOG.debug("    Creating new crawl tables: " + missingTables);
+        for (String table : missingTables) {
+            sqlCreateTable(table);
+        }
         return false;
     }
+    // Tables created with a dictionary hold codes instead of values,
+    // which the "state" column type tells apart.
+    private void checkDictionaryEncoding(
+            DatabaseMetaData meta, String table) throws SQLException {
+        if (!(serializer instanceof BasicJDBCSerializer)) {
+            return;
+        }
+        Integer type = columnType(meta, table, "state");
+        if (type == null) {
+            return;
+        }
+        boolean encoded = !isCharacterType(type);
+        boolean dictionary = 
+                ((BasicJDBCSerializer) serializer).getDictionary() != null;
+        if (encoded != dictionary) {
+            throw new CrawlDataStoreException("Crawl store table \"" 
+                    + table + "\" was created " 
+                    + (encoded ? "with" : "without") 
+                    + " dictionary encoding and cannot be used "
+                    + (dictionary ? "with" : "without") + " it. Use a new "
+                    + "database or table prefix, or drop existing tables.");
+        }
+    }
+    private static boolean isCharacterType(int type) {
+        return type == Types.CHAR || type == Types.VARCHAR 
+                || type == Types.LONGVARCHAR || type == Types.NCHAR 
+                || type == Types.NVARCHAR || type == Types.LONGNVARCHAR
+                || type == Types.CLOB || type == Types.NCLOB;
+    }
+    // Returns null if the column does not exist
+    private static Integer columnType(DatabaseMetaData meta, 
+            String table, String column) throws SQLException {
+        String tableName = toStoredCase(meta, table);
+        String columnName = toStoredCase(meta, column);
+        ResultSet rs = meta.getColumns(null, null, tableName, columnName);
+        try {
+            while (rs.next()) {
+                if (tableName.equals(rs.getString("TABLE_NAME"))
+                        && columnName.equals(rs.getString("COLUMN_NAME"))) {
+                    return rs.getInt("DATA_TYPE");
+                }
+            }
+            return null;
+        } finally {
+            DbUtils.closeQuietly(rs);
+        }
+    }
+    static boolean tableExists(DatabaseMetaData meta, String table) 
+            throws SQLException {
+        String name = toStoredCase(meta, table);
+        ResultSet rs = meta.getTables(null, null, name, new String[]{"TABLE"});
+        try {
+            while (rs.next()) {
+                if (name.equals(rs.getString("TABLE_NAME"))) {
+                    return true;
+                }
+            }
+            return false;
+        } finally {
+            DbUtils.closeQuietly(rs);
+        }
+    }
+
+    private static String toStoredCase(
+            DatabaseMetaData meta, String identifier) throws SQLException {
+        if (meta.storesUpperCaseIdentifiers()) {
+            return identifier.toUpperCase();
+        } else if (meta.storesLowerCaseIdentifiers()) {
+            return identifier.toLowerCase();
+        }
+        return identifier;
+    }
 
     private void sqlCreateTable(String table) {
         String[] sqls = serializer.getCreateTableSQLs(table);
@@ -362,54 +1534,167 @@ public class JDBCCrawlDataStore extends AbstractCrawlDataStore {
         }
     }
     
-    private final class CrawlDataIterator implements Iterator<ICrawlData> {
-        private final ResultSet rs;
-        private final Connection conn;
-        private final Statement stmt;
-        private final String tableName;
+    // Reads the next record as it is consumed and releases database
+    // resources once all were read.
+    private abstract class CacheIterator 
+            implements Iterator<ICrawlData>, Closeable {
+        private ICrawlData nextData;
+        private boolean done;
 
-        private CrawlDataIterator(
-                String tableName,
-                ResultSet rs, Connection conn, Statement stmt) {
-            this.tableName = tableName;
-            this.rs = rs;
-            this.conn = conn;
-            this.stmt = stmt;
-        }
+        protected abstract ICrawlData fetchNext() throws SQLException;
 
         @Override
         public boolean hasNext() {
+            if (nextData != null) {
+                return true;
+            }
+            if (done) {
+                return false;
+            }
             try {
-                if (conn.isClosed()) {
-                    return false;
-                }
-                if (!rs.isLast()) {
-                    return true;
-                } else {
-                    DbUtils.closeQuietly(conn, stmt, rs);
-                    return false;
-                }
+                nextData = fetchNext();
             } catch (SQLException e) {
-                LOG.error("Database problem.", e);
-                return false;
+                close();
+                throw new CrawlDataStoreException(
+                        "Problem reading database cache records.", e);
             }
+            if (nextData == null) {
+                close();
+            }
+            return nextData != null;
         }
 
         @Override
         public ICrawlData next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            ICrawlData data = nextData;
+            nextData = null;
+            return data;
+        }
+
+        @Override
+        public void close() {
+            done = true;
+            nextData = null;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    // A forward-only result set fetched a little at a time. With an
+    // embedded H2 database, lazy query execution is enabled for it so 
+    // rows are not all buffered upfront (not supported remotely).
+    private final class StreamedCacheIterator extends CacheIterator {
+        private final Connection conn;
+        private Statement stmt;
+        private ResultSet rs;
+        private boolean lazy;
+
+        private StreamedCacheIterator() throws SQLException {
+            conn = datasource.getConnection();
             try {
-                if (rs.next()) {
-                    return serializer.toCrawlData(tableName, rs);
+                if (isEmbeddedH2()) {
+                    setLazyQueryExecution(true);
                 }
+                // some drivers only stream within a transaction
+                conn.setAutoCommit(false);
+                stmt = conn.createStatement(ResultSet.TYPE_FORWARD_ONLY,
+                        ResultSet.CONCUR_READ_ONLY);
+                stmt.setFetchSize(CACHE_FETCH_SIZE);
+                rs = stmt.executeQuery(
+                        serializer.getSelectCrawlDataSQL(cacheTable));
             } catch (SQLException e) {
-                LOG.error("Database problem.", e);
+                close();
+                throw e;
+            }
+        }
+
+        @Override
+        protected ICrawlData fetchNext() throws SQLException {
+            if (rs.next()) {
+                return serializer.toCrawlData(cacheTable, rs);
             }
             return null;
         }
 
         @Override
-        public void remove() {
-            throw new UnsupportedOperationException();
+        public void close() {
+            super.close();
+            DbUtils.closeQuietly(rs);
+            DbUtils.closeQuietly(stmt);
+            try {
+                if (lazy) {
+                    setLazyQueryExecution(false);
+                }
+                conn.setAutoCommit(true);
+            } catch (SQLException e) {
+                LOG.debug("Could not reset cache iterator connection.", e);
+            }
+            DbUtils.closeQuietly(conn);
+        }
+
+        private void setLazyQueryExecution(boolean enabled) 
+                throws SQLException {
+            try (Statement s = conn.createStatement()) {
+                s.execute("SET LAZY_QUERY_EXECUTION " + (enabled ? 1 : 0));
+            }
+            lazy = enabled;
+        }
+    }
+
+    // Keyset pagination: each page is a new query starting after the 
+    // last reference read, holding no connection between pages.
+    private final class PagedCacheIterator extends CacheIterator {
+        private final int pageSize;
+        private final LinkedList<ICrawlData> page = new LinkedList<>();
+        private String lastReference = "";
+        private boolean lastPage;
+
+        private PagedCacheIterator(int pageSize) {
+            this.pageSize = pageSize;
+        }
+
+        @Override
+        protected ICrawlData fetchNext() throws SQLException {
+            if (page.isEmpty() && !lastPage) {
+                fetchPage();
+            }
+            return page.poll();
+        }
+
+        private void fetchPage() throws SQLException {
+            try (Connection conn = datasource.getConnection();
+                    PreparedStatement ps = conn.prepareStatement(
+                            ((IPagedJDBCSerializer) serializer)
+                                    .getSelectCrawlDataPageSQL(cacheTable))) {
+                ps.setMaxRows(pageSize);
+                ps.setString(1, lastReference);
+                int rowCount = 0;
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) {
+                        rowCount++;
+                        ICrawlData crawlData = 
+                                serializer.toCrawlData(cacheTable, rs);
+                        if (crawlData != null) {
+                            page.add(crawlData);
+                        }
+                    }
+                }
+                lastPage = rowCount < pageSize;
+            }
+            if (!page.isEmpty()) {
+                lastReference = page.getLast().getReference();
+            } else if (!lastPage) {
+                // the next page would start from the same reference
+                LOG.warn("No crawl data could be read from a page of "
+                        + "cache records, ignoring the remaining ones.");
+                lastPage = true;
+            }
         }
     }
 }
@@ -0,0 +1,212 @@
+/* Copyright 2019 Norconex Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.norconex.collector.core.data.store.impl.jdbc;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.sql.DataSource;
+
+import org.apache.commons.dbutils.DbUtils;
+import org.apache.commons.dbutils.QueryRunner;
+import org.apache.commons.dbutils.ResultSetHandler;
+import org.apache.commons.dbutils.handlers.ScalarHandler;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+import com.norconex.collector.core.data.store.CrawlDataStoreException;
+
+/**
+ * <p>
+ * Dictionary of repeated crawl data values (e.g., states, content types), 
+ * stored in its own database table so records only hold their integer 
+ * codes. All entries are kept in memory and each new value is added
+ * with a database round trip, so only use it for values having few 
+ * distinct occurrences.
+ * </p>
+ * <p>
+ * Codes are never changed or removed once assigned. When the table is
+ * shared by several collectors, codes added by others are loaded
+ * when first encountered.
+ * </p>
+ * @author Pascal Essiembre
+ * @since 1.9.2
+ */
+public class JDBCDictionary {
+
+    private static final Logger LOG = 
+            LogManager.getLogger(JDBCDictionary.class);
+
+    public static final String TABLE_DICTIONARY = "dictionary";
+
+    private final DataSource datasource;
+    private final QueryRunner queryRunner;
+    private final String table;
+    private final ConcurrentMap<String, Integer> codes = 
+            new ConcurrentHashMap<>();
+    private final ConcurrentMap<Integer, String> values = 
+            new ConcurrentHashMap<>();
+
+    /**
+     * Creates a dictionary, creating its table if it does not exist
+     * and loading existing entries.
+     * @param datasource data source
+     * @param tablePrefix prefix added to the table name (can be 
+     *        <code>null</code>)
+     */
+    public JDBCDictionary(DataSource datasource, String tablePrefix) {
+        super();
+        this.datasource = datasource;
+        this.queryRunner = new QueryRunner(datasource);
+        this.table = StringUtils.trimToEmpty(tablePrefix) + TABLE_DICTIONARY;
+        try {
+            ensureTableExists();
+        } catch (SQLException e) {
+            throw new CrawlDataStoreException(
+                    "Problem creating dictionary table: " + table, e);
+        }
+        load();
+    }
+
+    /**
+     * Gets the code of the given value, adding it to the dictionary 
+     * if not already present.
+     * @param value the value to encode
+     * @return code or <code>null</code> if the value is <code>null</code>
+     */
+    public Integer getCode(String value) {
+        if (value == null) {
+            return null;
+        }
+        Integer code = codes.get(value);
+        if (code != null) {
+            return code;
+        }
+        return addValue(value);
+    }
+
+    /**
+     * Gets the value having the given code.
+     * @param code value code
+     * @return value or <code>null</code> if the code is <code>null</code>
+     * @throws CrawlDataStoreException if the code does not exist
+     */
+    public String getValue(Integer code) {
+        if (code == null) {
+            return null;
+        }
+        String value = values.get(code);
+        if (value == null) {
+            // may have been added by another collector
+            load();
+            value = values.get(code);
+        }
+        if (value == null) {
+            throw new CrawlDataStoreException(
+                    "Unknown dictionary code: " + code);
+        }
+        return value;
+    }
+
+    /**
+     * Gets the number of dictionary entries loaded.
+     * @return dictionary size
+     */
+    public int size() {
+        return values.size();
+    }
+
+    private synchronized Integer addValue(String value) {
+        Integer code = codes.get(value);
+        while (code == null) {
+            Object max = query("SELECT MAX(id) FROM " + table, 
+                    new ScalarHandler<Object>());
+            int newCode = max == null ? 0 : ((Number) max).intValue() + 1;
+            try {
+                queryRunner.update("INSERT INTO " + table 
+                        + " (id, dictValue) VALUES (?, ?)", newCode, value);
+                putEntry(newCode, value);
+            } catch (SQLException e) {
+                if (!JDBCCrawlDataStore.alreadyExists(e)) {
+                    throw new CrawlDataStoreException(
+                            "Problem adding dictionary value.", e);
+                }
+                // code taken by another collector, maybe for this value
+                load();
+            }
+            code = codes.get(value);
+        }
+        return code;
+    }
+
+    private void load() {
+        query("SELECT id, dictValue FROM " + table + " ORDER BY id", 
+                new ResultSetHandler<Void>() {
+            @Override
+            public Void handle(ResultSet rs) throws SQLException {
+                while (rs.next()) {
+                    putEntry(rs.getInt(1), rs.getString(2));
+                }
+                return null;
+            }
+        });
+    }
+
+    private void putEntry(int code, String value) {
+        values.put(code, value);
+        // lowest code wins if a value was added twice
+        codes.putIfAbsent(value, code);
+    }
+
+    private <T> T query(String sql, ResultSetHandler<T> handler) {
+        try {
+            return queryRunner.query(sql, handler);
+        } catch (SQLException e) {
+            throw new CrawlDataStoreException(
+                    "Problem reading dictionary table: " + table, e);
+        }
+    }
+
+    private void ensureTableExists() throws SQLException {
+        if (tableExists()) {
+            return;
+        }
+        LOG.debug("Creating dictionary table: " + table);
+        try {
+            queryRunner.update("CREATE TABLE " + table + " ("
+                    + "id INT NOT NULL, "
+                    + "dictValue VARCHAR(32672) NOT NULL, "
+                    + "PRIMARY KEY (id))");
+        } catch (SQLException e) {
+            // may just have been created by another collector
+            if (!tableExists()) {
+                throw e;
+            }
+        }
+    }
+    private boolean tableExists() throws SQLException {
+        Connection conn = null;
+        try {
+            conn = datasource.getConnection();
+            return JDBCCrawlDataStore.tableExists(conn.getMetaData(), table);
+        } finally {
+            DbUtils.closeQuietly(conn);
+        }
+    }
+}
@@ -0,0 +1,317 @@
+/* Copyright 2019 Norconex Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.norconex.collector.core.data.store.impl.memory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+import com.norconex.collector.core.data.ICrawlData;
+import com.norconex.collector.core.data.store.AbstractCrawlDataStore;
+import com.norconex.collector.core.data.store.CrawlDataStoreException;
+import com.norconex.collector.core.data.store.ICrawlDataStore;
+import com.norconex.collector.core.data.store.ReferenceStage;
+
+/**
+ * <p>
+ * In-memory {@link ICrawlDataStore} implementation, relying on 
+ * concurrent maps and a lock-free queue.  Nothing is written to disk
+ * while crawling, so a crawler using this store cannot be resumed.
+ * </p>
+ * <p>
+ * When a snapshot file is specified, valid processed references are
+ * written to it when the store is closed, and loaded back as the
+ * cache the next time the store is created. This allows for
+ * incremental crawls.
+ * </p>
+ * @author Pascal Essiembre
+ * @since 1.9.2
+ */
+public class InMemoryCrawlDataStore extends AbstractCrawlDataStore {
+
+    private static final Logger LOG = 
+            LogManager.getLogger(InMemoryCrawlDataStore.class);
+
+    private final File snapshotFile;
+
+    // Queued references, with their queuing order kept separately.
+    // A reference is in "queueOrder" at most once while it is queued.
+    // Entries are compared by identity so a tentatively queued entry 
+    // can be removed without removing an equal one queued in between.
+    private final ConcurrentMap<String, QueuedEntry> mapQueued =
+            new ConcurrentHashMap<>();
+    private final Queue<String> queueOrder = new ConcurrentLinkedQueue<>();
+    private final ConcurrentMap<String, ICrawlData> mapActive =
+            new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, ICrawlData> mapProcessedValid =
+            new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, ICrawlData> mapProcessedInvalid =
+            new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, ICrawlData> mapCached =
+            new ConcurrentHashMap<>();
+
+    /**
+     * Constructor.
+     * @param resume whether to resume an aborted job (not supported, 
+     *        a warning is logged and a new job is started instead)
+     * @param snapshotFile file where to save processed references on close
+     *        and load cached references from on creation 
+     *        (<code>null</code> to disable snapshots)
+     */
+    public InMemoryCrawlDataStore(boolean resume, File snapshotFile) {
+        super();
+        this.snapshotFile = snapshotFile;
+        if (resume) {
+            LOG.warn("In-memory crawl data store cannot resume a previous "
+                    + "execution. Starting a new one instead.");
+        }
+        if (snapshotFile != null && snapshotFile.isFile()) {
+            loadSnapshot();
+        }
+    }
+
+    /**
+     * Gets the snapshot file.
+     * @return snapshot file or <code>null</code> if snapshots are disabled
+     */
+    public File getSnapshotFile() {
+        return snapshotFile;
+    }
+
+    @Override
+    public void queue(ICrawlData crawlData) {
+        QueuedEntry entry = new QueuedEntry(crawlData.clone());
+        String ref = crawlData.getReference();
+        // only add to queue order if not already queued
+        if (mapQueued.put(ref, entry) == null) {
+            queueOrder.offer(ref);
+        }
+    }
+
+    // Stages are checked in the order references go through them.
+    // Since a reference is always added to its next stage before being
+    // removed from its previous one, a reference cannot be missed.
+    @Override
+    public ReferenceStage queueIfAbsent(ICrawlData crawlData) {
+        String ref = crawlData.getReference();
+        QueuedEntry entry = new QueuedEntry(crawlData.clone());
+        if (mapQueued.putIfAbsent(ref, entry) != null) {
+            return ReferenceStage.QUEUED;
+        }
+        // Not yet in queue order so it cannot be dequeued while checking.
+        ReferenceStage stage = ReferenceStage.NONE;
+        if (mapActive.containsKey(ref)) {
+            stage = ReferenceStage.ACTIVE;
+        } else if (isProcessed(ref)) {
+            stage = ReferenceStage.PROCESSED;
+        }
+        if (stage != ReferenceStage.NONE) {
+            // If our copy was replaced by queue(ICrawlData) in between,
+            // it was not added to queue order since it was already queued.
+            if (!mapQueued.remove(ref, entry)) {
+                queueOrder.offer(ref);
+            }
+            return stage;
+        }
+        queueOrder.offer(ref);
+        return ReferenceStage.NONE;
+    }
+
+    @Override
+    public ReferenceStage getStage(String reference) {
+        if (mapQueued.containsKey(reference)) {
+            return ReferenceStage.QUEUED;
+        }
+        if (mapActive.containsKey(reference)) {
+            return ReferenceStage.ACTIVE;
+        }
+        if (isProcessed(reference)) {
+            return ReferenceStage.PROCESSED;
+        }
+        return ReferenceStage.NONE;
+    }
+
+    @Override
+    public boolean isQueueEmpty() {
+        return mapQueued.isEmpty();
+    }
+
+    @Override
+    public int getQueueSize() {
+        return mapQueued.size();
+    }
+
+    @Override
+    public boolean isQueued(String reference) {
+        return mapQueued.containsKey(reference);
+    }
+
+    @Override
+    public ICrawlData nextQueued() {
+        String ref;
+        while ((ref = queueOrder.poll()) != null) {
+            QueuedEntry entry = mapQueued.get(ref);
+            if (entry == null) {
+                continue;
+            }
+            ICrawlData data = entry.crawlData;
+            // Mark as active before removing it from the queue so 
+            // other threads never see it as neither queued nor active.
+            mapActive.put(ref, data);
+            QueuedEntry removed = mapQueued.remove(ref);
+            if (removed != null) {
+                if (removed != entry) {
+                    // it was re-queued in between, keep the latest
+                    mapActive.put(ref, removed.crawlData);
+                }
+                return removed.crawlData;
+            }
+            mapActive.remove(ref, data);
+        }
+        return null;
+    }
+
+    @Override
+    public boolean isActive(String reference) {
+        return mapActive.containsKey(reference);
+    }
+
+    @Override
+    public int getActiveCount() {
+        return mapActive.size();
+    }
+
+    @Override
+    public ICrawlData getCached(String cacheReference) {
+        return mapCached.get(cacheReference);
+    }
+
+    @Override
+    public boolean isCacheEmpty() {
+        return mapCached.isEmpty();
+    }
+
+    @Override
+    public void processed(ICrawlData crawlData) {
+        ICrawlData crawlDataCopy = crawlData.clone();
+        String ref = crawlDataCopy.getReference();
+        if (crawlDataCopy.getState().isGoodState()) {
+            mapProcessedValid.put(ref, crawlDataCopy);
+        } else {
+            mapProcessedInvalid.put(ref, crawlDataCopy);
+        }
+        mapActive.remove(ref);
+        mapCached.remove(ref);
+    }
+
+    @Override
+    public boolean isProcessed(String reference) {
+        return mapProcessedValid.containsKey(reference)
+                || mapProcessedInvalid.containsKey(reference);
+    }
+
+    @Override
+    public int getProcessedCount() {
+        return mapProcessedValid.size() + mapProcessedInvalid.size();
+    }
+
+    @Override
+    public Iterator<ICrawlData> getCacheIterator() {
+        return mapCached.values().iterator();
+    }
+
+    @Override
+    public void close() {
+        if (snapshotFile != null) {
+            saveSnapshot();
+        }
+    }
+
+    private void loadSnapshot() {
+        LOG.info("Loading cached references from snapshot: " 
+                + snapshotFile.getAbsolutePath());
+        try (ObjectInputStream in = new ObjectInputStream(
+                new BufferedInputStream(new FileInputStream(snapshotFile)))) {
+            Object obj;
+            while ((obj = in.readObject()) != null) {
+                ICrawlData data = (ICrawlData) obj;
+                mapCached.put(data.getReference(), data);
+            }
+        } catch (IOException | ClassNotFoundException e) {
+            throw new CrawlDataStoreException(
+                    "Cannot load crawl data store snapshot: " 
+                            + snapshotFile.getAbsolutePath(), e);
+        }
+        LOG.info(mapCached.size() + " cached references loaded.");
+    }
+
+    // Written to a temporary file first so an interrupted write never
+    // replaces the previous snapshot.
+    private void saveSnapshot() {
+        LOG.info("Saving processed references to snapshot: " 
+                + snapshotFile.getAbsolutePath());
+        File tempFile = new File(snapshotFile.getPath() + ".tmp");
+        try {
+            FileUtils.forceMkdir(
+                    snapshotFile.getAbsoluteFile().getParentFile());
+            try (ObjectOutputStream out = new ObjectOutputStream(
+                    new BufferedOutputStream(
+                            new FileOutputStream(tempFile)))) {
+                for (ICrawlData data : mapProcessedValid.values()) {
+                    out.writeObject(data);
+                }
+                out.writeObject(null);
+            }
+            try {
+                Files.move(tempFile.toPath(), snapshotFile.toPath(), 
+                        StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tempFile.toPath(), snapshotFile.toPath(), 
+                        StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            throw new CrawlDataStoreException(
+                    "Cannot save crawl data store snapshot: " 
+                            + snapshotFile.getAbsolutePath(), e);
+        }
+        LOG.info(mapProcessedValid.size() + " processed references saved.");
+    }
+
+    // Does not override equals(Object), so entries are compared by identity.
+    private static final class QueuedEntry {
+        private final ICrawlData crawlData;
+        private QueuedEntry(ICrawlData crawlData) {
+            this.crawlData = crawlData;
+        }
+    }
+}
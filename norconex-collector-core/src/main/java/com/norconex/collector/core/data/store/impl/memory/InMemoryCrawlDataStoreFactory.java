@@ -0,0 +1,150 @@
+/* Copyright 2019 Norconex Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.norconex.collector.core.data.store.impl.memory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+
+import javax.xml.stream.XMLStreamException;
+
+import org.apache.commons.configuration.XMLConfiguration;
+import org.apache.commons.lang3.builder.EqualsBuilder;
+import org.apache.commons.lang3.builder.HashCodeBuilder;
+import org.apache.commons.lang3.builder.ToStringBuilder;
+import org.apache.commons.lang3.builder.ToStringStyle;
+
+import com.norconex.collector.core.crawler.ICrawlerConfig;
+import com.norconex.collector.core.data.store.ICrawlDataStore;
+import com.norconex.collector.core.data.store.ICrawlDataStoreFactory;
+import com.norconex.commons.lang.config.IXMLConfigurable;
+import com.norconex.commons.lang.config.XMLConfigurationUtil;
+import com.norconex.commons.lang.file.FileUtil;
+import com.norconex.commons.lang.xml.EnhancedXMLStreamWriter;
+
+/**
+ * <p>
+ * In-memory crawl data store factory. Best suited for short crawls
+ * with many documents, where the ability to resume is not required.
+ * Stopped or aborted crawls cannot be resumed and will start over.
+ * Make sure to have enough memory to hold all references encountered
+ * during a crawl.
+ * </p>
+ * 
+ * <h3>Snapshot</h3>
+ * <p>
+ * By default nothing is written to disk and every crawl is treated as a 
+ * first crawl (no cached references). To support incremental crawls, 
+ * enable <code>snapshot</code>. Valid processed references will then be
+ * saved when the crawl ends and become the cached references of the next
+ * crawl. The snapshot file is stored under the crawler working directory.
+ * </p>
+ * 
+ * <h3>XML configuration usage:</h3>
+ * <pre>
+ *  &lt;crawlDataStoreFactory 
+ *          class="com.norconex.collector.core.data.store.impl.memory.InMemoryCrawlDataStoreFactory"&gt;
+ *      &lt;snapshot&gt;[false|true]&lt;/snapshot&gt;
+ *  &lt;/crawlDataStoreFactory&gt;
+ * </pre>
+ * 
+ * @author Pascal Essiembre
+ * @since 1.9.2
+ */
+public class InMemoryCrawlDataStoreFactory 
+        implements ICrawlDataStoreFactory, IXMLConfigurable {
+
+    public static final String SNAPSHOT_FILE_NAME = "snapshot.ser";
+
+    private boolean snapshot;
+
+    @Override
+    public ICrawlDataStore createCrawlDataStore(ICrawlerConfig config,
+            boolean resume) {
+        File snapshotFile = null;
+        if (snapshot) {
+            snapshotFile = new File(config.getWorkDir().getPath()
+                    + "/crawlstore/memory/"
+                    + FileUtil.toSafeFileName(config.getId()) + "/"
+                    + SNAPSHOT_FILE_NAME);
+        }
+        return new InMemoryCrawlDataStore(resume, snapshotFile);
+    }
+
+    /**
+     * Gets whether valid processed references are saved on close to become
+     * the cached references of the next crawl.
+     * @return <code>true</code> if saving a snapshot
+     */
+    public boolean isSnapshot() {
+        return snapshot;
+    }
+    /**
+     * Sets whether valid processed references are saved on close to become
+     * the cached references of the next crawl.
+     * @param snapshot <code>true</code> to save a snapshot
+     */
+    public void setSnapshot(boolean snapshot) {
+        this.snapshot = snapshot;
+    }
+
+    @Override
+    public void loadFromXML(Reader in) throws IOException {
+        XMLConfiguration xml = XMLConfigurationUtil.newXMLConfiguration(in);
+        setSnapshot(xml.getBoolean("snapshot", isSnapshot()));
+    }
+
+    @Override
+    public void saveToXML(Writer out) throws IOException {
+        try {
+            EnhancedXMLStreamWriter writer = new EnhancedXMLStreamWriter(out);
+            writer.writeStartElement("crawlDataStoreFactory");
+            writer.writeAttribute("class", getClass().getCanonicalName());
+            writer.writeElementBoolean("snapshot", isSnapshot());
+            writer.writeEndElement();
+            writer.flush();
+            writer.close();
+        } catch (XMLStreamException e) {
+            throw new IOException("Cannot save as XML.", e);
+        }
+    }
+
+    @Override
+    public boolean equals(final Object other) {
+        if (!(other instanceof InMemoryCrawlDataStoreFactory)) {
+            return false;
+        }
+        InMemoryCrawlDataStoreFactory castOther = 
+                (InMemoryCrawlDataStoreFactory) other;
+        return new EqualsBuilder()
+                .append(snapshot, castOther.snapshot)
+                .isEquals();
+    }
+
+    @Override
+    public int hashCode() {
+        return new HashCodeBuilder()
+                .append(snapshot)
+                .toHashCode();
+    }
+
+    @Override
+    public String toString() {
+        return new ToStringBuilder(this, ToStringStyle.SHORT_PREFIX_STYLE)
+                .append("snapshot", snapshot)
+                .toString();
+    }
+}
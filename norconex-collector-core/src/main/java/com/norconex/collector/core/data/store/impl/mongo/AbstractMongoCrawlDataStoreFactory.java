@@ -1,4 +1,4 @@
-/* Copyright 2014-2017 Norconex Inc.
+/* Copyright 2014-2019 Norconex Inc.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -30,6 +30,7 @@ import org.apache.commons.lang3.builder.ToStringStyle;
 import com.norconex.collector.core.crawler.ICrawlerConfig;
 import com.norconex.collector.core.data.store.ICrawlDataStore;
 import com.norconex.collector.core.data.store.ICrawlDataStoreFactory;
+import com.norconex.collector.core.data.store.ReferenceBloomFilter;
 import com.norconex.commons.lang.config.IXMLConfigurable;
 import com.norconex.commons.lang.config.XMLConfigurationUtil;
 import com.norconex.commons.lang.encrypt.EncryptionKey;
@@ -94,6 +95,12 @@ import com.norconex.commons.lang.xml.EnhancedXMLStreamWriter;
  *      &lt;mechanism&gt;(Optional authentication mechanism)&lt;/mechanism&gt;
  *      &lt;sslEnabled&gt;[false|true]&lt;/sslEnabled&gt;
  *      &lt;sslInvalidHostNameAllowed&gt;[false|true]&lt;/sslInvalidHostNameAllowed&gt;
+ *      &lt;referenceFilterSize&gt;(Expected number of references. Default is 1000000)&lt;/referenceFilterSize&gt;
+ *      &lt;writeBatchSize&gt;(Maximum number of buffered writes. Default is 100)&lt;/writeBatchSize&gt;
+ *      &lt;writeDelay&gt;(Maximum milliseconds before buffered writes are sent. Default is 1000)&lt;/writeDelay&gt;
+ *      &lt;countReconcileInterval&gt;(Milliseconds between reference counts reconciliations. Default is 0)&lt;/countReconcileInterval&gt;
+ *      &lt;nodeId&gt;(Unique identifier of this collector node. Default is generated)&lt;/nodeId&gt;
+ *      &lt;leaseDuration&gt;(Milliseconds active references are leased to a node. Default is 0)&lt;/leaseDuration&gt;
  *
  *      &lt;!-- Use the following if password is encrypted. --&gt;
  *      &lt;passwordKey&gt;(the encryption key or a reference to it)&lt;/passwordKey&gt;
@@ -135,29 +142,91 @@ import com.norconex.commons.lang.xml.EnhancedXMLStreamWriter;
  * As of 1.9.2, you can enable SSL.
  * </p>
  *
+ * <p>
+ * As of 1.9.2, a Bloom filter of known references is kept in memory
+ * so new references can be queued without looking them up first
+ * (see {@link ReferenceBloomFilter}). It is sized for the expected
+ * number of references with <code>referenceFilterSize</code>. Set it to
+ * zero to disable it. It is not used when a <code>leaseDuration</code>
+ * is set (see below).
+ * </p>
+ *
+ * <h3>Write-behind</h3>
+ * <p>
+ * As of 1.9.2, reference writes are buffered and sent in bulk once 
+ * <code>writeBatchSize</code> writes are buffered or after 
+ * <code>writeDelay</code> milliseconds. Set <code>writeBatchSize</code>
+ * to zero to send each write right away.
+ * </p>
+ *
+ * <h3>Reference counts</h3>
+ * <p>
+ * As of 1.9.2, the number of queued, active and processed references
+ * are kept in memory instead of being counted by the database every time.
+ * To guard against drifts (e.g., other processes modifying the same 
+ * collections), you can have them reconciled with the database at 
+ * most every <code>countReconcileInterval</code> milliseconds. 
+ * Zero (default) disables periodic reconciliation.
+ * </p>
+ *
+ * <h3>Multiple collector nodes</h3>
+ * <p>
+ * As of 1.9.2, several collector nodes can crawl from the same database
+ * when a <code>leaseDuration</code> is set. Each active reference is 
+ * then leased to the node processing it, identified with 
+ * <code>nodeId</code>. Nodes keep renewing their leases while running.
+ * When a node dies, its active references are queued again by the
+ * other nodes once their lease expires. A node started while a crawl is
+ * in progress joins it. Giving each node a fixed <code>nodeId</code>
+ * lets a restarted node queue again right away what it left active.
+ * You should also set a <code>countReconcileInterval</code> so 
+ * counts reflect the work of all nodes. The reference filter is 
+ * disabled, since other nodes add references to it, and the 
+ * serializer must implement {@link IBatchMongoSerializer}.
+ * </p>
+ *
  * @author Pascal Essiembre
  * @see BaseMongoSerializer
  */
 public abstract class AbstractMongoCrawlDataStoreFactory
         implements ICrawlDataStoreFactory, IXMLConfigurable {
 
+    public static final int DEFAULT_WRITE_BATCH_SIZE = 100;
+    public static final long DEFAULT_WRITE_DELAY = 1000;
+
     private final MongoConnectionDetails connDetails =
             new MongoConnectionDetails();
     private String referencesCollectionName =
             MongoCrawlDataStore.DEFAULT_REFERENCES_COL_NAME;
     private String cachedCollectionName =
             MongoCrawlDataStore.DEFAULT_CACHED_COL_NAME;
+    private int referenceFilterSize = 
+            ReferenceBloomFilter.DEFAULT_EXPECTED_COUNT;
+    private int writeBatchSize = DEFAULT_WRITE_BATCH_SIZE;
+    private long writeDelay = DEFAULT_WRITE_DELAY;
+    private long countReconcileInterval;
+    private String nodeId;
+    private long leaseDuration;
 
     @Override
     public ICrawlDataStore createCrawlDataStore(
             ICrawlerConfig config, boolean resume) {
-        return new MongoCrawlDataStore(
+        MongoCrawlDataStore store = new MongoCrawlDataStore(
                 config.getId(),
                 resume,
                 getConnectionDetails(),
                 createMongoSerializer(),
                 getReferencesCollectionName(),
-                getCachedCollectionName());
+                getCachedCollectionName(),
+                getNodeId(),
+                getLeaseDuration());
+        if (referenceFilterSize > 0 && getLeaseDuration() <= 0) {
+            store.setReferenceFilter(
+                    new ReferenceBloomFilter(referenceFilterSize));
+        }
+        store.setWriteBehind(writeBatchSize, writeDelay);
+        store.setCountReconcileInterval(countReconcileInterval);
+        return store;
     }
 
     public MongoConnectionDetails getConnectionDetails() {
@@ -197,6 +266,124 @@ public abstract class AbstractMongoCrawlDataStoreFactory
         this.cachedCollectionName = cachedCollectionName;
     }
 
+    /**
+     * Gets the expected number of references the reference filter
+     * is sized for. Zero or less disables the filter.
+     * @return reference filter size
+     * @since 1.9.2
+     */
+    public int getReferenceFilterSize() {
+        return referenceFilterSize;
+    }
+    /**
+     * Sets the expected number of references the reference filter
+     * is sized for. Zero or less disables the filter.
+     * @param referenceFilterSize reference filter size
+     * @since 1.9.2
+     */
+    public void setReferenceFilterSize(int referenceFilterSize) {
+        this.referenceFilterSize = referenceFilterSize;
+    }
+
+    /**
+     * Gets the maximum number of buffered writes before they are sent.
+     * Zero or less disables write-behind.
+     * @return write batch size
+     * @since 1.9.2
+     */
+    public int getWriteBatchSize() {
+        return writeBatchSize;
+    }
+    /**
+     * Sets the maximum number of buffered writes before they are sent.
+     * Zero or less disables write-behind.
+     * @param writeBatchSize write batch size
+     * @since 1.9.2
+     */
+    public void setWriteBatchSize(int writeBatchSize) {
+        this.writeBatchSize = writeBatchSize;
+    }
+
+    /**
+     * Gets the maximum number of milliseconds before buffered writes
+     * are sent.
+     * @return write delay
+     * @since 1.9.2
+     */
+    public long getWriteDelay() {
+        return writeDelay;
+    }
+    /**
+     * Sets the maximum number of milliseconds before buffered writes
+     * are sent.
+     * @param writeDelay write delay
+     * @since 1.9.2
+     */
+    public void setWriteDelay(long writeDelay) {
+        this.writeDelay = writeDelay;
+    }
+
+    /**
+     * Gets the minimum number of milliseconds between two reconciliations
+     * of reference counts with the database. Zero or less disables 
+     * periodic reconciliation.
+     * @return count reconcile interval
+     * @since 1.9.2
+     */
+    public long getCountReconcileInterval() {
+        return countReconcileInterval;
+    }
+    /**
+     * Sets the minimum number of milliseconds between two reconciliations
+     * of reference counts with the database. Zero or less disables 
+     * periodic reconciliation.
+     * @param countReconcileInterval count reconcile interval
+     * @since 1.9.2
+     */
+    public void setCountReconcileInterval(long countReconcileInterval) {
+        this.countReconcileInterval = countReconcileInterval;
+    }
+
+    /**
+     * Gets the unique identifier of this collector node. 
+     * A random one is generated when blank.
+     * @return node id
+     * @since 1.9.2
+     */
+    public String getNodeId() {
+        return nodeId;
+    }
+    /**
+     * Sets the unique identifier of this collector node. 
+     * A random one is generated when blank.
+     * @param nodeId node id
+     * @since 1.9.2
+     */
+    public void setNodeId(String nodeId) {
+        this.nodeId = nodeId;
+    }
+
+    /**
+     * Gets the number of milliseconds active references are leased to
+     * the node processing them. Zero or less disables leasing, 
+     * allowing only one collector node per database (the default).
+     * @return lease duration
+     * @since 1.9.2
+     */
+    public long getLeaseDuration() {
+        return leaseDuration;
+    }
+    /**
+     * Sets the number of milliseconds active references are leased to
+     * the node processing them. Zero or less disables leasing, 
+     * allowing only one collector node per database (the default).
+     * @param leaseDuration lease duration
+     * @since 1.9.2
+     */
+    public void setLeaseDuration(long leaseDuration) {
+        this.leaseDuration = leaseDuration;
+    }
+
     protected abstract IMongoSerializer createMongoSerializer();
 
     @Override
@@ -234,6 +421,15 @@ public abstract class AbstractMongoCrawlDataStoreFactory
         connDetails.setSslInvalidHostNameAllowed(
                 xml.getBoolean("sslInvalidHostNameAllowed",
                         connDetails.isSslInvalidHostNameAllowed()));
+
+        setReferenceFilterSize(xml.getInt(
+                "referenceFilterSize", getReferenceFilterSize()));
+        setWriteBatchSize(xml.getInt("writeBatchSize", getWriteBatchSize()));
+        setWriteDelay(xml.getLong("writeDelay", getWriteDelay()));
+        setCountReconcileInterval(xml.getLong(
+                "countReconcileInterval", getCountReconcileInterval()));
+        setNodeId(xml.getString("nodeId", getNodeId()));
+        setLeaseDuration(xml.getLong("leaseDuration", getLeaseDuration()));
     }
 
     @Override
@@ -270,6 +466,15 @@ public abstract class AbstractMongoCrawlDataStoreFactory
             writer.writeElementBoolean("sslInvalidHostNameAllowed",
                     connDetails.isSslInvalidHostNameAllowed());
 
+            writer.writeElementInteger(
+                    "referenceFilterSize", getReferenceFilterSize());
+            writer.writeElementInteger("writeBatchSize", getWriteBatchSize());
+            writer.writeElementLong("writeDelay", getWriteDelay());
+            writer.writeElementLong(
+                    "countReconcileInterval", getCountReconcileInterval());
+            writer.writeElementString("nodeId", getNodeId());
+            writer.writeElementLong("leaseDuration", getLeaseDuration());
+
             writer.flush();
             writer.close();
         } catch (XMLStreamException e) {
@@ -289,6 +494,13 @@ public abstract class AbstractMongoCrawlDataStoreFactory
                 .append(referencesCollectionName,
                         castOther.referencesCollectionName)
                 .append(cachedCollectionName, castOther.cachedCollectionName)
+                .append(referenceFilterSize, castOther.referenceFilterSize)
+                .append(writeBatchSize, castOther.writeBatchSize)
+                .append(writeDelay, castOther.writeDelay)
+                .append(countReconcileInterval,
+                        castOther.countReconcileInterval)
+                .append(nodeId, castOther.nodeId)
+                .append(leaseDuration, castOther.leaseDuration)
                 .isEquals();
     }
     @Override
@@ -297,6 +509,12 @@ public abstract class AbstractMongoCrawlDataStoreFactory
                 .append(connDetails)
                 .append(referencesCollectionName)
                 .append(cachedCollectionName)
+                .append(referenceFilterSize)
+                .append(writeBatchSize)
+                .append(writeDelay)
+                .append(countReconcileInterval)
+                .append(nodeId)
+                .append(leaseDuration)
                 .toHashCode();
     }
     @Override
@@ -305,6 +523,12 @@ public abstract class AbstractMongoCrawlDataStoreFactory
                 .append("connDetails", connDetails)
                 .append("referencesCollectionName", referencesCollectionName)
                 .append("cachedCollectionName", cachedCollectionName)
+                .append("referenceFilterSize", referenceFilterSize)
+                .append("writeBatchSize", writeBatchSize)
+                .append("writeDelay", writeDelay)
+                .append("countReconcileInterval", countReconcileInterval)
+                .append("nodeId", nodeId)
+                .append("leaseDuration", leaseDuration)
                 .toString();
     }
 }
@@ -1,4 +1,4 @@
-/* Copyright 2014-2017 Norconex Inc.
+/* Copyright 2014-2019 Norconex Inc.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -14,16 +14,27 @@
  */
 package com.norconex.collector.core.data.store.impl.mongo;
 
+import static com.mongodb.client.model.Filters.and;
 import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Filters.in;
+import static com.mongodb.client.model.Filters.nin;
+import static com.mongodb.client.model.Sorts.ascending;
 
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 import java.util.Objects;
+import java.util.UUID;
 
 import org.apache.commons.lang3.StringUtils;
 import org.bson.Document;
+import org.bson.conversions.Bson;
 
 import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.model.FindOneAndUpdateOptions;
 import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.result.UpdateResult;
 import com.norconex.collector.core.data.BaseCrawlData;
 import com.norconex.collector.core.data.CrawlState;
 import com.norconex.collector.core.data.ICrawlData;
@@ -34,7 +45,10 @@ import com.norconex.commons.lang.file.ContentType;
  * Basic Mongo serializer for {@link BaseCrawlData} instances.
  * @author Pascal Essiembre
  */
-public class BaseMongoSerializer implements IMongoSerializer {
+public class BaseMongoSerializer implements IBatchMongoSerializer {
+
+    // times queued documents are looked for when others claimed them first
+    private static final int MAX_CLAIM_ATTEMPTS = 5;
 
     @Override
     public Document toDocument(Stage stage, ICrawlData crawlData) {
@@ -99,12 +113,88 @@ public class BaseMongoSerializer implements IMongoSerializer {
         return data;
     }
 
+    /**
+     * Gets the next queued document with the lowest depth.
+     */
     @Override
     public Document getNextQueued(MongoCollection<Document> collRefs) {
         Document newDocument = new Document(
                 "$set", new Document(FIELD_STAGE, Stage.ACTIVE.name()));
         return collRefs.findOneAndUpdate(
-                eq(FIELD_STAGE, Stage.QUEUED.name()), newDocument);
+                eq(FIELD_STAGE, Stage.QUEUED.name()), newDocument,
+                new FindOneAndUpdateOptions().sort(ascending(FIELD_DEPTH)));
+    }
+
+    /**
+     * Gets the next queued documents with the lowest depths, using the
+     * stage and depth index. The documents found are all activated at 
+     * once and tagged with a unique claim identifier. Only when some 
+     * of them were claimed concurrently by another thread are the 
+     * ones claimed by this invocation read again, and queued documents
+     * not yet tried looked for, a few times at most.
+     * @since 1.9.2
+     */
+    @Override
+    public List<Document> getNextQueued(MongoCollection<Document> collRefs,
+            int max, Document claimFields) {
+        List<Document> docs = new ArrayList<>(Math.max(0, max));
+        if (max < 1) {
+            return docs;
+        }
+        Document claim = new Document();
+        if (claimFields != null) {
+            claim.putAll(claimFields);
+        }
+        claim.put(FIELD_STAGE, Stage.ACTIVE.name());
+        String claimId = UUID.randomUUID().toString();
+        claim.put(FIELD_CLAIM, claimId);
+
+        Bson queuedFilter = eq(FIELD_STAGE, Stage.QUEUED.name());
+        List<Object> triedIds = new ArrayList<>(max);
+        for (int i = 0; i < MAX_CLAIM_ATTEMPTS && docs.size() < max; i++) {
+            int limit = max - docs.size();
+            Bson filter = queuedFilter;
+            if (!triedIds.isEmpty()) {
+                filter = and(queuedFilter, nin("_id", triedIds));
+            }
+            List<Document> found = new ArrayList<>(limit);
+            List<Object> ids = new ArrayList<>(limit);
+            try (MongoCursor<Document> cursor = collRefs.find(filter)
+                    .sort(ascending(FIELD_DEPTH)).limit(limit).iterator()) {
+                while (cursor.hasNext()) {
+                    Document doc = cursor.next();
+                    ids.add(doc.get("_id"));
+                    found.add(doc);
+                }
+            }
+            if (ids.isEmpty()) {
+                break;
+            }
+            triedIds.addAll(ids);
+            UpdateResult result = collRefs.updateMany(
+                    and(in("_id", ids), queuedFilter), 
+                    new Document("$set", claim));
+            if (result.getModifiedCount() == found.size()) {
+                for (Document doc : found) {
+                    doc.putAll(claim);
+                }
+                docs.addAll(found);
+            } else if (result.getModifiedCount() > 0) {
+                // some were claimed by others in the meantime
+                try (MongoCursor<Document> cursor = collRefs.find(
+                        and(in("_id", ids), eq(FIELD_CLAIM, claimId)))
+                        .sort(ascending(FIELD_DEPTH)).iterator()) {
+                    while (cursor.hasNext()) {
+                        docs.add(cursor.next());
+                    }
+                }
+            }
+            if (found.size() < limit) {
+                // no more queued documents when looked for
+                break;
+            }
+        }
+        return docs;
     }
 
     @Override
@@ -112,6 +202,8 @@ public class BaseMongoSerializer implements IMongoSerializer {
             MongoCollection<Document> referenceCollection, 
             MongoCollection<Document> cachedCollection) {
         ensureIndex(referenceCollection, true, FIELD_REFERENCE);
+        // covers reference stage lookups
+        ensureIndex(referenceCollection, false, FIELD_REFERENCE, FIELD_STAGE);
         ensureIndex(cachedCollection, true, FIELD_REFERENCE);
         ensureIndex(referenceCollection, false, FIELD_IS_VALID);
         ensureIndex(referenceCollection, false, FIELD_STAGE);
@@ -0,0 +1,46 @@
+/* Copyright 2019 Norconex Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.norconex.collector.core.data.store.impl.mongo;
+
+import java.util.List;
+
+import org.bson.Document;
+
+import com.mongodb.client.MongoCollection;
+
+/**
+ * {@link IMongoSerializer} able to claim several queued documents at once.
+ * {@link MongoCrawlDataStore} claims queued documents one at a time 
+ * with {@link #getNextQueued(MongoCollection)} when its serializer
+ * does not implement this interface.
+ * @author Pascal Essiembre
+ * @since 1.9.2
+ */
+public interface IBatchMongoSerializer extends IMongoSerializer {
+
+    /**
+     * Gets up to <code>max</code> queued DB documents from the given 
+     * collection, marking them as active. Documents should be claimed 
+     * atomically so that none is returned more than once when this 
+     * method is invoked concurrently.
+     * @param referenceCollection the collection to get the documents from
+     * @param max maximum number of documents to get
+     * @param claimFields additional fields to set on claimed documents
+     *        (e.g., lease owner). Can be <code>null</code>.
+     * @return Mongo documents (never <code>null</code>)
+     */
+    List<Document> getNextQueued(MongoCollection<Document> referenceCollection,
+            int max, Document claimFields);
+}
@@ -1,4 +1,4 @@
-/* Copyright 2014-2017 Norconex Inc.
+/* Copyright 2014-2019 Norconex Inc.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -44,6 +44,21 @@ public interface IMongoSerializer {
     String FIELD_CRAWL_DATE = "crawlDate";
     /** @since 1.9.0 */
     String FIELD_REFERENCE_EXCESSIVE = "reference-excess";
+    /**
+     * Identifies references claimed together by a batch dequeue.
+     * @since 1.9.2
+     */
+    String FIELD_CLAIM = "claim";
+    /**
+     * Identifies the collector node owning an active reference.
+     * @since 1.9.2
+     */
+    String FIELD_OWNER = "owner";
+    /**
+     * Date after which an active reference lease expires.
+     * @since 1.9.2
+     */
+    String FIELD_LEASE = "lease";
     
     /**
      * Converts a {@link ICrawlData} to a Mongo {@link Document}.
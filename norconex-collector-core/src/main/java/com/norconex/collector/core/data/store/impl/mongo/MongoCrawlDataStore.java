@@ -1,4 +1,4 @@
-/* Copyright 2014-2018 Norconex Inc.
+/* Copyright 2014-2019 Norconex Inc.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -16,29 +16,66 @@ package com.norconex.collector.core.data.store.impl.mongo;
 
 import static com.mongodb.client.model.Filters.and;
 import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Filters.exists;
+import static com.mongodb.client.model.Filters.in;
+import static com.mongodb.client.model.Filters.lt;
+import static com.mongodb.client.model.Filters.ne;
+import static com.mongodb.client.model.Filters.or;
+import static com.mongodb.client.model.Projections.excludeId;
+import static com.mongodb.client.model.Projections.fields;
+import static com.mongodb.client.model.Projections.include;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.lang3.StringUtils;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
 import org.bson.Document;
 import org.bson.conversions.Bson;
 
 import com.mongodb.MongoClient;
 import com.mongodb.MongoException;
+import com.mongodb.MongoNamespace;
 import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoCursor;
 import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.BulkWriteOptions;
 import com.mongodb.client.model.CountOptions;
+import com.mongodb.client.model.DeleteOneModel;
+import com.mongodb.client.model.FindOneAndUpdateOptions;
+import com.mongodb.client.model.RenameCollectionOptions;
+import com.mongodb.client.model.ReturnDocument;
 import com.mongodb.client.model.UpdateOneModel;
 import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.Updates;
 import com.mongodb.client.model.WriteModel;
 import com.norconex.collector.core.data.ICrawlData;
 import com.norconex.collector.core.data.store.AbstractCrawlDataStore;
+import com.norconex.collector.core.data.store.CrawlDataStoreException;
 import com.norconex.collector.core.data.store.ICrawlDataStore;
+import com.norconex.collector.core.data.store.IFlushableCrawlDataStore;
+import com.norconex.collector.core.data.store.ReferenceBloomFilter;
+import com.norconex.collector.core.data.store.ReferenceStage;
 import com.norconex.collector.core.data.store.impl.mongo.IMongoSerializer.Stage;
+import com.norconex.commons.lang.Sleeper;
 import com.norconex.commons.lang.StringUtil;
 
 /**
@@ -56,14 +93,82 @@ import com.norconex.commons.lang.StringUtil;
  * new constructors.
  * </p>
  *
+ * <p>
+ * As of 1.9.2, writes can be buffered and sent in bulk (see 
+ * {@link #setWriteBehind(int, long)}). Processed references are sent
+ * after the other buffered writes, once these were written, so a 
+ * reference is never stored as processed before the references it
+ * queued. Buffered writes not yet sent when a crawl ends abruptly are 
+ * lost, but since the references they originate from are still active,
+ * these are processed again when resuming.
+ * </p>
+ *
+ * <p>
+ * As of 1.9.2, the number of queued, active and processed references
+ * are kept in memory, counted when the store is opened and updated
+ * on every stage change. They can optionally be reconciled with the 
+ * database at a regular interval 
+ * (see {@link #setCountReconcileInterval(long)}).
+ * </p>
+ *
+ * <p>
+ * As of 1.9.2, several collector nodes can share the same crawl 
+ * database when constructed with a lease duration. Active references
+ * are then leased to the node that claimed them, which keeps renewing 
+ * its leases while running. Active references whose lease has expired
+ * are queued again by the other nodes. A node started while a crawl is
+ * in progress joins it rather than starting over, queuing again the 
+ * references it left active if it was restarted with the same node id.
+ * Nodes prepare collections one at a time on startup, by leasing a lock 
+ * document in a state collection (named after the references 
+ * collection, with a "_state" suffix). A references collection just
+ * renamed to become the cache by another node is empty, so the nodes
+ * started at the same time join the crawl of the first one.
+ * Since each node keeps its own counts, they should be reconciled 
+ * periodically when sharing a crawl.
+ * </p>
+ *
+ * <p>
+ * As of 1.9.2, starting a new crawl renames the references collection
+ * to become the cache instead of copying valid processed references
+ * one by one, so it no longer takes longer as sites grow. The 
+ * references that should not be cached are deleted in the background.
+ * </p>
+ *
  * @author Pascal Essiembre
  */
-public class MongoCrawlDataStore extends AbstractCrawlDataStore {
+public class MongoCrawlDataStore extends AbstractCrawlDataStore
+        implements IFlushableCrawlDataStore {
 
     public static final String DEFAULT_CACHED_COL_NAME = "cached";
     public static final String DEFAULT_REFERENCES_COL_NAME = "references";
 
-    private static final int BATCH_UPDATE_SIZE = 1000;
+    private static final Logger LOG = 
+            LogManager.getLogger(MongoCrawlDataStore.class);
+
+    private static final int MAX_RETRIES = 5;
+    private static final String STATE_COL_SUFFIX = "_state";
+    private static final String STARTUP_LOCK_ID = "startup";
+    private static final long STARTUP_LOCK_POLL_INTERVAL = 500;
+    private static final int DUPLICATE_KEY_ERROR_CODE = 11000;
+    private static final UpdateOptions UPSERT = 
+            new UpdateOptions().upsert(true);
+    // only what the reference+stage index holds, so lookups are covered
+    private static final Bson STAGE_PROJECTION = fields(include(
+            IMongoSerializer.FIELD_REFERENCE, IMongoSerializer.FIELD_STAGE),
+            excludeId());
+    // upsert returning the previous stage only
+    private static final FindOneAndUpdateOptions UPSERT_STAGE_BEFORE = 
+            new FindOneAndUpdateOptions()
+                    .upsert(true)
+                    .returnDocument(ReturnDocument.BEFORE)
+                    .projection(STAGE_PROJECTION);
+    // references collection documents making up the cache once renamed
+    private static final Bson CACHED_FILTER = and(
+            eq(IMongoSerializer.FIELD_STAGE, Stage.PROCESSED.name()),
+            eq(IMongoSerializer.FIELD_IS_VALID, true));
+    private static final BulkWriteOptions UNORDERED = 
+            new BulkWriteOptions().ordered(false);
 
     private final MongoClient client;
     private final MongoDatabase database;
@@ -80,6 +185,32 @@ public class MongoCrawlDataStore extends AbstractCrawlDataStore {
     private final MongoCollection<Document> collCached;
     private final MongoCollection<Document> collRefs;
 
+    // Write-behind buffer, keyed by reference so that several writes
+    // of the same reference only result in one.
+    private final Object bufferLock = new Object();
+    private final Object flushLock = new Object();
+    private final Map<String, PendingWrite> pendingWrites = 
+            new LinkedHashMap<>();
+    private final Set<String> pendingCacheDeletes = new LinkedHashSet<>();
+    private int writeBatchSize;
+    private ScheduledExecutorService flushScheduler;
+
+    // Stage counts, seeded at open and updated on each stage change
+    private final AtomicInteger queuedCount = new AtomicInteger();
+    private final AtomicInteger activeCount = new AtomicInteger();
+    private final AtomicInteger processedCount = new AtomicInteger();
+    private volatile long countReconcileInterval;
+    private volatile long lastCountReconcile;
+
+    // Leases on active references, for multi-node crawling
+    private final String nodeId;
+    private final long leaseDuration;
+    private ScheduledExecutorService leaseScheduler;
+    private Thread staleCacheCleaner;
+    // references claimed by this store, when write-behind is enabled
+    private final Set<String> claimedReferences = 
+            Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
     /**
      * Constructor.
      * @param crawlerId crawler id
@@ -106,9 +237,34 @@ public class MongoCrawlDataStore extends AbstractCrawlDataStore {
     public MongoCrawlDataStore(String crawlerId, boolean resume,
             MongoConnectionDetails conn, IMongoSerializer serializer,
             String referencesCollectionName, String cachedCollectionName) {
+        this(crawlerId, resume, conn, serializer, 
+                referencesCollectionName, cachedCollectionName, null, 0);
+    }
+    /**
+     * Constructor.
+     * @param crawlerId crawler id
+     * @param resume whether to resume an aborted job
+     * @param serializer Mongo serializer
+     * @param conn Mongo connection details
+     * @param referencesCollectionName name of Mongo references collection
+     * @param cachedCollectionName name of Mongo cached collection
+     * @param nodeId unique identifier of this collector node
+     *        (generated when blank)
+     * @param leaseDuration milliseconds active references are leased
+     *        to this node (zero or less disables leasing). Leasing
+     *        requires a serializer implementing 
+     *        {@link IBatchMongoSerializer}, so references are activated
+     *        and leased at once.
+     * @since 1.9.2
+     */
+    public MongoCrawlDataStore(String crawlerId, boolean resume,
+            MongoConnectionDetails conn, IMongoSerializer serializer,
+            String referencesCollectionName, String cachedCollectionName,
+            String nodeId, long leaseDuration) {
         this(resume, buildMongoClient(crawlerId, conn),
                 MongoUtil.getSafeDBName(conn.getDatabaseName(), crawlerId),
-                serializer, referencesCollectionName, cachedCollectionName);
+                serializer, referencesCollectionName, cachedCollectionName,
+                nodeId, leaseDuration);
     }
 
     /**
@@ -135,6 +291,38 @@ public class MongoCrawlDataStore extends AbstractCrawlDataStore {
     public MongoCrawlDataStore(boolean resume, MongoClient client,
             String dbName, IMongoSerializer serializer,
             String referencesCollectionName, String cachedCollectionName) {
+        this(resume, client, dbName, serializer, 
+                referencesCollectionName, cachedCollectionName, null, 0);
+    }
+    /**
+     * Constructor. When leasing is enabled and a crawl is already in 
+     * progress in the database, this store joins it instead of 
+     * starting a new one or resuming it. 
+     * @param resume whether to resume an aborted job
+     * @param client Mongo client
+     * @param dbName Mongo database name
+     * @param serializer Mongo serializer
+     * @param referencesCollectionName name of Mongo references collection
+     * @param cachedCollectionName name of Mongo cached collection
+     * @param nodeId unique identifier of this collector node
+     *        (generated when blank)
+     * @param leaseDuration milliseconds active references are leased
+     *        to this node (zero or less disables leasing). Leasing
+     *        requires a serializer implementing 
+     *        {@link IBatchMongoSerializer}, so references are activated
+     *        and leased at once.
+     * @since 1.9.2
+     */
+    public MongoCrawlDataStore(boolean resume, MongoClient client,
+            String dbName, IMongoSerializer serializer,
+            String referencesCollectionName, String cachedCollectionName,
+            String nodeId, long leaseDuration) {
+        if (leaseDuration > 0 
+                && !(serializer instanceof IBatchMongoSerializer)) {
+            throw new CrawlDataStoreException("Leasing requires a serializer "
+                    + "implementing IBatchMongoSerializer: " 
+                    + serializer.getClass().getName());
+        }
         this.serializer = serializer;
         this.client = client;
         this.database = client.getDatabase(dbName);
@@ -145,17 +333,43 @@ public class MongoCrawlDataStore extends AbstractCrawlDataStore {
                         cachedCollectionName, DEFAULT_CACHED_COL_NAME));
         this.referencesCollectionName = referencesCollectionName;
         this.cachedCollectionName = cachedCollectionName;
+        this.nodeId = StringUtils.defaultIfBlank(
+                nodeId, UUID.randomUUID().toString());
+        this.leaseDuration = leaseDuration;
 
-        if (resume) {
-            changeStage(Stage.ACTIVE, Stage.QUEUED);
+        if (isLeasing()) {
+            MongoCollection<Document> collState = database.getCollection(
+                    collRefs.getNamespace().getCollectionName() 
+                            + STATE_COL_SUFFIX);
+            lockStartup(collState);
+            try {
+                prepareCollections(resume);
+            } finally {
+                unlockStartup(collState);
+            }
         } else {
-            // Delete everything except valid processed urls that are
-            // transfered to cache
-            deleteAllDocuments(collCached);
-            processedToCached();
-            deleteAllDocuments(collRefs);
+            prepareCollections(resume);
         }
         serializer.createIndices(collRefs, collCached);
+        reconcileCounts();
+        if (isLeasing()) {
+            startLeaseHeartbeat();
+        }
+    }
+
+    private void prepareCollections(boolean resume) {
+        if (isLeasing() && isCrawlInProgress()) {
+            LOG.info("Crawl in progress, node \"" + nodeId 
+                    + "\" is joining it.");
+            // whatever this node had active was left unfinished
+            requeueActive(eq(IMongoSerializer.FIELD_OWNER, nodeId));
+            recoverExpiredLeases();
+        } else if (resume) {
+            changeStage(Stage.ACTIVE, Stage.QUEUED);
+        } else {
+            // Valid processed references become the cache
+            referencesToCached();
+        }
     }
 
     /**
@@ -175,6 +389,428 @@ public class MongoCrawlDataStore extends AbstractCrawlDataStore {
         return cachedCollectionName;
     }
 
+    /**
+     * Buffers reference writes and sends them in bulk once 
+     * <code>batchSize</code> writes are buffered or after 
+     * <code>delay</code> milliseconds, whichever comes first. 
+     * Buffered writes are taken into account when reading references 
+     * and are sent when no more queued references can be found. 
+     * A batch size of zero or less disables write-behind (the default).
+     * @param batchSize maximum number of buffered writes
+     * @param delay maximum number of milliseconds before buffered writes
+     *        are sent
+     * @since 1.9.2
+     */
+    public synchronized void setWriteBehind(int batchSize, long delay) {
+        if (flushScheduler != null) {
+            flushScheduler.shutdown();
+            flushScheduler = null;
+        }
+        flush();
+        this.writeBatchSize = batchSize;
+        if (batchSize > 0 && delay > 0) {
+            flushScheduler = Executors.newSingleThreadScheduledExecutor(
+                    new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "MongoCrawlDataStore-flush");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            flushScheduler.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        flush();
+                    } catch (Exception e) {
+                        LOG.error("Could not write buffered references.", e);
+                    }
+                }
+            }, delay, delay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Gets the unique identifier of this collector node, used as 
+     * the owner of the active references it leases.
+     * @return node id
+     * @since 1.9.2
+     */
+    public String getNodeId() {
+        return nodeId;
+    }
+    /**
+     * Gets the number of milliseconds active references are leased to 
+     * this node before other nodes can queue them again, unless renewed.
+     * Zero or less when leasing is disabled.
+     * @return lease duration
+     * @since 1.9.2
+     */
+    public long getLeaseDuration() {
+        return leaseDuration;
+    }
+
+    /**
+     * Extends the lease of all active references owned by this node.
+     * Invoked at regular intervals when leasing is enabled.
+     * @return number of leases renewed
+     * @since 1.9.2
+     */
+    public int renewLeases() {
+        if (!isLeasing()) {
+            return 0;
+        }
+        return (int) collRefs.updateMany(and(
+                eq(IMongoSerializer.FIELD_STAGE, Stage.ACTIVE.name()),
+                eq(IMongoSerializer.FIELD_OWNER, nodeId)),
+                Updates.set(IMongoSerializer.FIELD_LEASE, newLeaseExpiry()))
+                        .getModifiedCount();
+    }
+
+    /**
+     * Queues again active references whose lease has expired (or that 
+     * have no lease), presumably because the node owning them died.
+     * Invoked at regular intervals when leasing is enabled.
+     * @return number of references queued again
+     * @since 1.9.2
+     */
+    public int recoverExpiredLeases() {
+        if (!isLeasing()) {
+            return 0;
+        }
+        int count = requeueActive(or(
+                lt(IMongoSerializer.FIELD_LEASE, new Date()),
+                exists(IMongoSerializer.FIELD_LEASE, false)));
+        if (count > 0) {
+            LOG.info(count + " active references with expired leases "
+                    + "were queued again.");
+            // mostly claimed by other nodes, so not counted by this one
+            reconcileCounts();
+        }
+        return count;
+    }
+
+    private boolean isLeasing() {
+        return leaseDuration > 0;
+    }
+    private Date newLeaseExpiry() {
+        return new Date(System.currentTimeMillis() + leaseDuration);
+    }
+    // A crawl just started by another node has no references yet, 
+    // unlike a finished one
+    private boolean isCrawlInProgress() {
+        return hasReferences(Stage.QUEUED) || hasReferences(Stage.ACTIVE)
+                || collRefs.count(new Document(), 
+                        new CountOptions().limit(1)) == 0;
+    }
+    // The lock is leased like active references, so it is released
+    // should this node die while holding it. Only one node can upsert
+    // the lock document when it has no owner or its lease expired, 
+    // others failing with a duplicate key.
+    private void lockStartup(MongoCollection<Document> collState) {
+        while (true) {
+            try {
+                collState.findOneAndUpdate(and(
+                        eq("_id", STARTUP_LOCK_ID), 
+                        or(exists(IMongoSerializer.FIELD_OWNER, false),
+                                lt(IMongoSerializer.FIELD_LEASE, 
+                                        new Date()))),
+                        Updates.combine(
+                                Updates.set(IMongoSerializer.FIELD_OWNER, 
+                                        nodeId),
+                                Updates.set(IMongoSerializer.FIELD_LEASE, 
+                                        newLeaseExpiry())),
+                        new FindOneAndUpdateOptions().upsert(true));
+                return;
+            } catch (MongoException e) {
+                if (!isDuplicateKey(e)) {
+                    throw e;
+                }
+            }
+            LOG.info("Waiting for another node to prepare the crawl...");
+            Sleeper.sleepMillis(STARTUP_LOCK_POLL_INTERVAL);
+        }
+    }
+    private void unlockStartup(MongoCollection<Document> collState) {
+        try {
+            collState.updateOne(and(eq("_id", STARTUP_LOCK_ID), 
+                    eq(IMongoSerializer.FIELD_OWNER, nodeId)), 
+                    Updates.combine(
+                            Updates.unset(IMongoSerializer.FIELD_OWNER),
+                            Updates.unset(IMongoSerializer.FIELD_LEASE)));
+        } catch (MongoException e) {
+            LOG.error("Could not release startup lock, other nodes will "
+                    + "wait for it to expire.", e);
+        }
+    }
+    private static boolean isDuplicateKey(MongoException e) {
+        return e.getCode() == DUPLICATE_KEY_ERROR_CODE 
+                || StringUtils.contains(e.getMessage(), "E11000 ");
+    }
+    private int requeueActive(Bson filter) {
+        return (int) collRefs.updateMany(and(
+                eq(IMongoSerializer.FIELD_STAGE, Stage.ACTIVE.name()), filter),
+                Updates.combine(
+                        Updates.set(IMongoSerializer.FIELD_STAGE, 
+                                Stage.QUEUED.name()),
+                        Updates.unset(IMongoSerializer.FIELD_OWNER),
+                        Updates.unset(IMongoSerializer.FIELD_LEASE),
+                        Updates.unset(IMongoSerializer.FIELD_CLAIM)))
+                                .getModifiedCount();
+    }
+    private void startLeaseHeartbeat() {
+        long period = Math.max(1, leaseDuration / 3);
+        leaseScheduler = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "MongoCrawlDataStore-lease");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        leaseScheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    renewLeases();
+                    recoverExpiredLeases();
+                } catch (Exception e) {
+                    LOG.error("Could not renew or recover leases.", e);
+                }
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Gets the minimum number of milliseconds between two reconciliations
+     * of the in-memory reference counts with the database.
+     * @return count reconcile interval
+     * @since 1.9.2
+     */
+    public long getCountReconcileInterval() {
+        return countReconcileInterval;
+    }
+    /**
+     * Sets the minimum number of milliseconds between two reconciliations
+     * of the in-memory reference counts with the database. Counts are 
+     * otherwise only obtained from the database when the store is opened
+     * and when a count drops to zero while references at that stage 
+     * still exist. Zero or less never reconciles them periodically 
+     * (the default).
+     * @param countReconcileInterval count reconcile interval
+     * @since 1.9.2
+     */
+    public void setCountReconcileInterval(long countReconcileInterval) {
+        this.countReconcileInterval = countReconcileInterval;
+    }
+
+    /**
+     * Sets the in-memory queued, active, and processed reference counts
+     * to the ones found in the database, after sending buffered writes.
+     * @since 1.9.2
+     */
+    public void reconcileCounts() {
+        flush();
+        queuedCount.set(getReferencesCount(Stage.QUEUED));
+        activeCount.set(getReferencesCount(Stage.ACTIVE));
+        processedCount.set(getReferencesCount(Stage.PROCESSED));
+        lastCountReconcile = System.currentTimeMillis();
+    }
+
+    /**
+     * Sends all buffered writes to the database.
+     * @since 1.9.2
+     */
+    @Override
+    public void flush() {
+        synchronized (flushLock) {
+            Map<String, PendingWrite> writes;
+            List<String> cacheDeletes;
+            synchronized (bufferLock) {
+                if (pendingWrites.isEmpty() && pendingCacheDeletes.isEmpty()) {
+                    return;
+                }
+                writes = new LinkedHashMap<>(pendingWrites);
+                cacheDeletes = new ArrayList<>(pendingCacheDeletes);
+            }
+            // stages of references not accounted for in counts yet
+            List<String> uncounted = new ArrayList<>();
+            for (Entry<String, PendingWrite> en : writes.entrySet()) {
+                if (en.getValue().countedStage == null) {
+                    uncounted.add(en.getKey());
+                }
+            }
+            Map<String, ReferenceStage> previousStages = 
+                    findStages(uncounted);
+
+            // processed ones last, so the references they queued are
+            // never lost once they are processed
+            List<WriteModel<Document>> refModels = 
+                    new ArrayList<>(writes.size());
+            List<WriteModel<Document>> processedModels = new ArrayList<>();
+            for (Entry<String, PendingWrite> en : writes.entrySet()) {
+                PendingWrite write = en.getValue();
+                WriteModel<Document> model = new UpdateOneModel<Document>(
+                        referenceFilter(en.getKey()), new Document(
+                                write.insertOnly ? "$setOnInsert" : "$set",
+                                write.document), UPSERT);
+                if (write.getStage() == ReferenceStage.PROCESSED) {
+                    processedModels.add(model);
+                } else {
+                    refModels.add(model);
+                }
+            }
+            List<WriteModel<Document>> cacheModels = 
+                    new ArrayList<>(cacheDeletes.size());
+            for (String ref : cacheDeletes) {
+                cacheModels.add(
+                        new DeleteOneModel<Document>(referenceFilter(ref)));
+            }
+            if (!refModels.isEmpty()) {
+                bulkWrite(collRefs, refModels);
+            }
+            if (!processedModels.isEmpty()) {
+                bulkWrite(collRefs, processedModels);
+            }
+            if (!cacheModels.isEmpty()) {
+                bulkWrite(collCached, cacheModels);
+            }
+            for (Entry<String, PendingWrite> en : writes.entrySet()) {
+                PendingWrite write = en.getValue();
+                ReferenceStage previous = write.countedStage;
+                if (previous == null) {
+                    previous = previousStages.get(truncate(en.getKey()));
+                }
+                countTransition(previous, write.getStage());
+            }
+            // Only forget writes not replaced by newer ones in the meantime
+            synchronized (bufferLock) {
+                for (Entry<String, PendingWrite> en : writes.entrySet()) {
+                    if (pendingWrites.get(en.getKey()) == en.getValue()) {
+                        pendingWrites.remove(en.getKey());
+                    }
+                }
+                pendingCacheDeletes.removeAll(cacheDeletes);
+            }
+        }
+    }
+
+    private boolean isWriteBehind() {
+        return writeBatchSize > 0;
+    }
+    private boolean hasPendingWrites() {
+        synchronized (bufferLock) {
+            return !pendingWrites.isEmpty() || !pendingCacheDeletes.isEmpty();
+        }
+    }
+    private PendingWrite getPendingWrite(String reference) {
+        synchronized (bufferLock) {
+            return pendingWrites.get(reference);
+        }
+    }
+    private void bufferWrite(String reference, 
+            Document document, boolean deleteFromCache) {
+        int size;
+        ReferenceStage stage = ReferenceStage.valueOf(
+                document.getString(IMongoSerializer.FIELD_STAGE));
+        synchronized (bufferLock) {
+            // count right away when the previous stage is known, else 
+            // when written
+            PendingWrite replaced = pendingWrites.get(reference);
+            ReferenceStage previous = null;
+            if (replaced != null) {
+                previous = replaced.countedStage;
+            } else if (claimedReferences.remove(reference)) {
+                previous = ReferenceStage.ACTIVE;
+            }
+            if (previous != null) {
+                countTransition(previous, stage);
+            }
+            pendingWrites.put(reference, new PendingWrite(document, false,
+                    previous == null ? null : stage));
+            if (deleteFromCache) {
+                pendingCacheDeletes.add(reference);
+            }
+            size = pendingWrites.size() + pendingCacheDeletes.size();
+        }
+        flushIfFull(size);
+    }
+    private void flushIfFull(int size) {
+        if (size >= writeBatchSize) {
+            flush();
+        }
+    }
+
+    private Map<String, ReferenceStage> findStages(List<String> references) {
+        Map<String, ReferenceStage> stages = new HashMap<>();
+        if (references.isEmpty()) {
+            return stages;
+        }
+        List<String> keys = new ArrayList<>(references.size());
+        for (String reference : references) {
+            keys.add(truncate(reference));
+        }
+        try (MongoCursor<Document> cursor = collRefs.find(
+                in(IMongoSerializer.FIELD_REFERENCE, keys)).projection(
+                        STAGE_PROJECTION).iterator()) {
+            while (cursor.hasNext()) {
+                Document doc = cursor.next();
+                stages.put(doc.getString(IMongoSerializer.FIELD_REFERENCE),
+                        toReferenceStage(doc));
+            }
+        }
+        return stages;
+    }
+
+    private void countTransition(ReferenceStage from, ReferenceStage to) {
+        if (from == to) {
+            return;
+        }
+        AtomicInteger count = getCounter(from);
+        if (count != null) {
+            count.decrementAndGet();
+        }
+        count = getCounter(to);
+        if (count != null) {
+            count.incrementAndGet();
+        }
+    }
+    private AtomicInteger getCounter(ReferenceStage stage) {
+        if (stage == null) {
+            return null;
+        }
+        switch (stage) {
+        case QUEUED:
+            return queuedCount;
+        case ACTIVE:
+            return activeCount;
+        case PROCESSED:
+            return processedCount;
+        default:
+            return null;
+        }
+    }
+    private int getCount(AtomicInteger count, Stage stage) {
+        if (countReconcileInterval > 0 && System.currentTimeMillis() 
+                - lastCountReconcile >= countReconcileInterval) {
+            reconcileCounts();
+        } else if (count.get() <= 0) {
+            // buffered writes may not be counted yet
+            flush();
+            // make sure not to report none when there are some
+            if (count.get() <= 0 && hasReferences(stage)) {
+                reconcileCounts();
+            }
+        }
+        return Math.max(0, count.get());
+    }
+    private boolean hasReferences(Stage stage) {
+        return collRefs.count(eq(IMongoSerializer.FIELD_STAGE, stage.name()), 
+                new CountOptions().limit(1)) > 0;
+    }
+
     protected static MongoClient buildMongoClient(
             String crawlerId, MongoConnectionDetails connDetails) {
         return connDetails.buildMongoClient(crawlerId);
@@ -182,22 +818,116 @@ public class MongoCrawlDataStore extends AbstractCrawlDataStore {
 
     @Override
     public void queue(ICrawlData crawlData) {
+        addToReferenceFilter(crawlData.getReference());
         Document document = serializer.toDocument(Stage.QUEUED, crawlData);
-
+        if (isWriteBehind()) {
+            bufferWrite(crawlData.getReference(), document, false);
+            return;
+        }
         // If the document does not exist yet, it will be inserted. If exists,
         // it will be replaced.
-        upsertOne(collRefs, referenceFilter(crawlData.getReference()), document);
+        countTransition(upsertReference(
+                referenceFilter(crawlData.getReference()), document),
+                ReferenceStage.QUEUED);
+    }
+
+    /**
+     * Queues the reference with a single upsert only setting fields 
+     * when inserting, returning the stage of the reference before the 
+     * upsert. With write-behind, references the reference filter 
+     * reports as new are buffered instead.
+     */
+    @Override
+    public ReferenceStage queueIfAbsent(ICrawlData crawlData) {
+        String ref = crawlData.getReference();
+        Document document = serializer.toDocument(Stage.QUEUED, crawlData);
+        if (isWriteBehind()) {
+            int size;
+            synchronized (bufferLock) {
+                PendingWrite pending = pendingWrites.get(ref);
+                if (pending != null) {
+                    return pending.getStage();
+                }
+                if (isPossiblyKnown(ref)) {
+                    size = -1;
+                } else {
+                    addToReferenceFilter(ref);
+                    pendingWrites.put(ref, new PendingWrite(
+                            document, true, ReferenceStage.QUEUED));
+                    countTransition(
+                            ReferenceStage.NONE, ReferenceStage.QUEUED);
+                    size = pendingWrites.size() + pendingCacheDeletes.size();
+                }
+            }
+            if (size != -1) {
+                flushIfFull(size);
+                return ReferenceStage.NONE;
+            }
+        }
+        boolean possiblyKnown = isPossiblyKnown(ref);
+        addToReferenceFilter(ref);
+        for (int retry = 0; ; ++retry) {
+            try {
+                ReferenceStage stage = toReferenceStage(
+                        collRefs.findOneAndUpdate(referenceFilter(ref),
+                                new Document("$setOnInsert", document),
+                                UPSERT_STAGE_BEFORE));
+                if (possiblyKnown) {
+                    stage = referenceFilterChecked(stage);
+                }
+                if (stage == ReferenceStage.NONE) {
+                    countTransition(stage, ReferenceStage.QUEUED);
+                }
+                return stage;
+            } catch (MongoException e) {
+                // Workaround for https://jira.mongodb.org/browse/SERVER-14322
+                if (retry < MAX_RETRIES - 1 
+                        && e.getMessage().contains("E11000 ")) {
+                    continue;
+                }
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Gets the reference stage with a query covered by the 
+     * reference and stage index.
+     */
+    @Override
+    public ReferenceStage getStage(String reference) {
+        PendingWrite pending = getPendingWrite(reference);
+        if (pending != null) {
+            return pending.getStage();
+        }
+        if (!isPossiblyKnown(reference)) {
+            return ReferenceStage.NONE;
+        }
+        return referenceFilterChecked(toReferenceStage(
+                collRefs.find(referenceFilter(reference)).projection(
+                        STAGE_PROJECTION).first()));
+    }
+
+    private ReferenceStage toReferenceStage(Document doc) {
+        if (doc == null) {
+            return ReferenceStage.NONE;
+        }
+        String stage = doc.getString(IMongoSerializer.FIELD_STAGE);
+        if (StringUtils.isBlank(stage)) {
+            return ReferenceStage.NONE;
+        }
+        return ReferenceStage.valueOf(stage);
     }
 
     @Override
     public boolean isQueueEmpty() {
-        return (int) collRefs.count(eq(IMongoSerializer.FIELD_STAGE, 
-                Stage.QUEUED.name()), new CountOptions().limit(1)) == 0;
+        flush();
+        return !hasReferences(Stage.QUEUED);
     }
 
     @Override
     public int getQueueSize() {
-        return getReferencesCount(Stage.QUEUED);
+        return getCount(queuedCount, Stage.QUEUED);
     }
 
     @Override
@@ -207,7 +937,91 @@ public class MongoCrawlDataStore extends AbstractCrawlDataStore {
 
     @Override
     public ICrawlData nextQueued() {
-        return serializer.fromDocument(serializer.getNextQueued(collRefs));
+        ICrawlData crawlData = claimQueued();
+        if (crawlData == null && hasPendingWrites()) {
+            // there may be buffered ones
+            flush();
+            crawlData = claimQueued();
+        }
+        return crawlData;
+    }
+    private ICrawlData claimQueued() {
+        if (isLeasing()) {
+            List<ICrawlData> crawlDatas = claimQueued(1);
+            return crawlDatas.isEmpty() ? null : crawlDatas.get(0);
+        }
+        ICrawlData crawlData = 
+                serializer.fromDocument(serializer.getNextQueued(collRefs));
+        if (crawlData != null) {
+            countTransition(ReferenceStage.QUEUED, ReferenceStage.ACTIVE);
+            if (isWriteBehind()) {
+                claimedReferences.add(crawlData.getReference());
+            }
+        }
+        return crawlData;
+    }
+
+    /**
+     * Claims up to <code>max</code> queued references at once, ordered
+     * by depth (see {@link IBatchMongoSerializer#getNextQueued(
+     * MongoCollection, int, Document)}), instead of one find-and-modify 
+     * per reference. Serializers not implementing 
+     * {@link IBatchMongoSerializer} claim them one at a time.
+     */
+    @Override
+    public List<ICrawlData> nextQueued(int max) {
+        List<ICrawlData> crawlDatas = new ArrayList<>(Math.max(0, max));
+        if (max == 1) {
+            ICrawlData crawlData = nextQueued();
+            if (crawlData != null) {
+                crawlDatas.add(crawlData);
+            }
+            return crawlDatas;
+        }
+        if (max < 1) {
+            return crawlDatas;
+        }
+        crawlDatas = claimQueued(max);
+        if (crawlDatas.isEmpty() && hasPendingWrites()) {
+            // there may be buffered ones
+            flush();
+            crawlDatas = claimQueued(max);
+        }
+        return crawlDatas;
+    }
+    private List<ICrawlData> claimQueued(int max) {
+        List<ICrawlData> crawlDatas = new ArrayList<>(max);
+        Document leaseFields = null;
+        if (isLeasing()) {
+            leaseFields = new Document(IMongoSerializer.FIELD_OWNER, nodeId)
+                    .append(IMongoSerializer.FIELD_LEASE, newLeaseExpiry());
+        }
+        for (Document doc : getNextQueued(max, leaseFields)) {
+            ICrawlData crawlData = serializer.fromDocument(doc);
+            crawlDatas.add(crawlData);
+            countTransition(ReferenceStage.QUEUED, ReferenceStage.ACTIVE);
+            if (isWriteBehind()) {
+                claimedReferences.add(crawlData.getReference());
+            }
+        }
+        return crawlDatas;
+    }
+
+    private List<Document> getNextQueued(int max, Document leaseFields) {
+        if (serializer instanceof IBatchMongoSerializer) {
+            return ((IBatchMongoSerializer) serializer).getNextQueued(
+                    collRefs, max, leaseFields);
+        }
+        // not leasing, as enforced by the constructor
+        List<Document> docs = new ArrayList<>(max);
+        while (docs.size() < max) {
+            Document doc = serializer.getNextQueued(collRefs);
+            if (doc == null) {
+                break;
+            }
+            docs.add(doc);
+        }
+        return docs;
     }
 
     @Override
@@ -217,27 +1031,41 @@ public class MongoCrawlDataStore extends AbstractCrawlDataStore {
 
     @Override
     public int getActiveCount() {
-        return getReferencesCount(Stage.ACTIVE);
+        return getCount(activeCount, Stage.ACTIVE);
     }
 
     @Override
     public ICrawlData getCached(String reference) {
-        Document result = collCached.find(referenceFilter(reference)).first();
+        synchronized (bufferLock) {
+            if (pendingCacheDeletes.contains(reference)) {
+                return null;
+            }
+        }
+        Document result = collCached.find(
+                and(referenceFilter(reference), CACHED_FILTER)).first();
         return serializer.fromDocument(result);
     }
 
     @Override
     public boolean isCacheEmpty() {
-        return collCached.count() == 0;
+        flush();
+        return collCached.count(CACHED_FILTER, 
+                new CountOptions().limit(1)) == 0;
     }
 
     @Override
     public void processed(ICrawlData crawlData) {
+        addToReferenceFilter(crawlData.getReference());
         Document document = serializer.toDocument(Stage.PROCESSED, crawlData);
+        if (isWriteBehind()) {
+            bufferWrite(crawlData.getReference(), document, true);
+            return;
+        }
         // If the document does not exist yet, it will be inserted. If exists,
         // it will be updated.
         Bson filter = referenceFilter(crawlData.getReference());
-        upsertOne(collRefs, filter, document);
+        countTransition(upsertReference(filter, document), 
+                ReferenceStage.PROCESSED);
 
         // Remove from cache
         collCached.deleteOne(filter);
@@ -250,7 +1078,7 @@ public class MongoCrawlDataStore extends AbstractCrawlDataStore {
 
     @Override
     public int getProcessedCount() {
-        return getReferencesCount(Stage.PROCESSED);
+        return getCount(processedCount, Stage.PROCESSED);
     }
 
     private void changeStage(
@@ -270,59 +1098,119 @@ public class MongoCrawlDataStore extends AbstractCrawlDataStore {
     }
 
     protected int getReferencesCount(IMongoSerializer.Stage stage) {
+        flush();
         return (int) collRefs.count(
                 eq(IMongoSerializer.FIELD_STAGE, stage.name()));
     }
 
     protected boolean isStage(String reference, IMongoSerializer.Stage stage) {
-        Document result = collRefs.find(referenceFilter(reference)).first();
-        if (result == null
-                || result.get(IMongoSerializer.FIELD_STAGE) == null) {
-            return false;
-        }
-        IMongoSerializer.Stage currentStage = Stage.valueOf(
-                (String) result.get(IMongoSerializer.FIELD_STAGE));
-        return stage.equals(currentStage);
+        return getStage(reference).name().equals(stage.name());
     }
 
+    /**
+     * Sets the filter of known references, unless leasing is enabled.
+     * References queued or processed by other nodes would be missing 
+     * from the filter and would be considered new.
+     * @param referenceFilter reference filter (<code>null</code> to disable)
+     * @since 1.9.2
+     */
     @Override
-    public void close() {
-        client.close();
+    public void setReferenceFilter(ReferenceBloomFilter referenceFilter) {
+        if (isLeasing() && referenceFilter != null) {
+            LOG.warn("Reference filters cannot be used when leasing, as "
+                    + "collections are shared with other nodes. Ignoring it.");
+            return;
+        }
+        super.setReferenceFilter(referenceFilter);
     }
 
-    private void processedToCached() {
-        Bson filter = and(
-                eq(IMongoSerializer.FIELD_STAGE, Stage.PROCESSED.name()),
-                eq(IMongoSerializer.FIELD_IS_VALID, true));
-        MongoCursor<Document> cursor = collRefs.find(filter).iterator();
+    @Override
+    protected boolean loadReferenceFilter(
+            ReferenceBloomFilter referenceFilter) {
+        try (MongoCursor<Document> cursor = collRefs.find().projection(
+                include(IMongoSerializer.FIELD_REFERENCE,
+                        IMongoSerializer.FIELD_REFERENCE_EXCESSIVE))
+                .iterator()) {
+            while (cursor.hasNext()) {
+                Document doc = cursor.next();
+                // use the original reference when it was truncated
+                String ref = doc.getString(
+                        IMongoSerializer.FIELD_REFERENCE_EXCESSIVE);
+                if (StringUtils.isBlank(ref)) {
+                    ref = doc.getString(IMongoSerializer.FIELD_REFERENCE);
+                }
+                referenceFilter.add(ref);
+            }
+        }
+        return true;
+    }
 
-        // Add them to cache in batch
-        List<WriteModel<Document>> list = new ArrayList<>(BATCH_UPDATE_SIZE);
-        while (cursor.hasNext()) {
-            Document document = cursor.next();
-            String reference = document.getString(IMongoSerializer.FIELD_REFERENCE);
-            list.add(new UpdateOneModel<Document>(
-                    eq(IMongoSerializer.FIELD_REFERENCE, reference),
-                    new Document("$set", document), new UpdateOptions().upsert(true)));
-            if (list.size() == BATCH_UPDATE_SIZE) {
-                bulkWrite(collCached, list);
-                list.clear();
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (flushScheduler != null) {
+                flushScheduler.shutdown();
+                flushScheduler = null;
+            }
+            if (leaseScheduler != null) {
+                leaseScheduler.shutdown();
+                leaseScheduler = null;
             }
         }
-        if (!list.isEmpty()) {
-            bulkWrite(collCached, list);
+        flush();
+        if (staleCacheCleaner != null) {
+            try {
+                staleCacheCleaner.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
         }
+        client.close();
     }
 
-    private static final int maxRetries = 5;
-    
-    private void upsertOne(MongoCollection<Document> coll, Bson filter, Document document) {
-        for (int retry = 0; retry < maxRetries; ++retry) {
+    // Renaming the references collection replaces the previous cache
+    // in constant time, whatever the size of the last crawl. Documents
+    // other than valid processed ones are ignored by cache queries and 
+    // deleted in the background.
+    private void referencesToCached() {
+        if (collRefs.count(new Document(), 
+                new CountOptions().limit(1)) == 0) {
+            collCached.drop();
+            return;
+        }
+        collRefs.renameCollection(
+                new MongoNamespace(database.getName(), 
+                        collCached.getNamespace().getCollectionName()),
+                new RenameCollectionOptions().dropTarget(true));
+        staleCacheCleaner = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    collCached.deleteMany(or(
+                            ne(IMongoSerializer.FIELD_STAGE, 
+                                    Stage.PROCESSED.name()),
+                            ne(IMongoSerializer.FIELD_IS_VALID, true)));
+                } catch (MongoException e) {
+                    LOG.error("Could not delete stale cache documents.", e);
+                }
+            }
+        }, "MongoCrawlDataStore-cache-cleaner");
+        staleCacheCleaner.setDaemon(true);
+        staleCacheCleaner.start();
+    }
+
+    // Returns the reference stage before the upsert
+    private ReferenceStage upsertReference(
+            Bson filter, Document document) {
+        for (int retry = 0; ; ++retry) {
             try {
-                coll.updateOne(filter, new Document("$set", document), new UpdateOptions().upsert(true));
+                return toReferenceStage(collRefs.findOneAndUpdate(
+                        filter, new Document("$set", document), 
+                        UPSERT_STAGE_BEFORE));
             } catch (MongoException e) {
                 // Workaround for https://jira.mongodb.org/browse/SERVER-14322
-                if (retry < maxRetries - 1 && e.getMessage().contains("E11000 ")) {
+                if (retry < MAX_RETRIES - 1 
+                        && e.getMessage().contains("E11000 ")) {
                     continue;
                 }
                 throw e;
@@ -330,13 +1218,16 @@ public class MongoCrawlDataStore extends AbstractCrawlDataStore {
         }
     }
     
-    private void bulkWrite(MongoCollection<Document> coll, List<WriteModel<Document>> list) {
-        for (int retry = 0; retry < maxRetries; ++retry) {
+    private void bulkWrite(MongoCollection<Document> coll, 
+            List<WriteModel<Document>> list) {
+        for (int retry = 0; ; ++retry) {
             try {
-                coll.bulkWrite(list);
+                coll.bulkWrite(list, UNORDERED);
+                return;
             } catch (MongoException e) {
                 // Workaround for https://jira.mongodb.org/browse/SERVER-14322
-                if (retry < maxRetries - 1 && e.getMessage().contains("E11000 ")) {
+                if (retry < MAX_RETRIES - 1 
+                        && e.getMessage().contains("E11000 ")) {
                     continue;
                 }
                 throw e;
@@ -344,18 +1235,18 @@ public class MongoCrawlDataStore extends AbstractCrawlDataStore {
         }
     }
     
-    private void deleteAllDocuments(MongoCollection<Document> coll) {
-        coll.deleteMany(new Document());
-    }
-
     private Bson referenceFilter(String reference) {
-        return eq(IMongoSerializer.FIELD_REFERENCE,
-                StringUtil.truncateWithHash(reference, 1024, "!"));
+        return eq(IMongoSerializer.FIELD_REFERENCE, truncate(reference));
+    }
+    private String truncate(String reference) {
+        return StringUtil.truncateWithHash(reference, 1024, "!");
     }
 
     @Override
     public Iterator<ICrawlData> getCacheIterator() {
-        final MongoCursor<Document> cursor = collCached.find().iterator();
+        flush();
+        final MongoCursor<Document> cursor = 
+                collCached.find(CACHED_FILTER).iterator();
         return new Iterator<ICrawlData>() {
             @Override
             public boolean hasNext() {
@@ -371,4 +1262,22 @@ public class MongoCrawlDataStore extends AbstractCrawlDataStore {
             }
         };
     }
+
+    private static final class PendingWrite {
+        private final Document document;
+        // only write when the reference does not exist
+        private final boolean insertOnly;
+        // stage already reflected in counts, null if yet unknown
+        private final ReferenceStage countedStage;
+        private PendingWrite(Document document, boolean insertOnly,
+                ReferenceStage countedStage) {
+            this.document = document;
+            this.insertOnly = insertOnly;
+            this.countedStage = countedStage;
+        }
+        private ReferenceStage getStage() {
+            return ReferenceStage.valueOf(
+                    document.getString(IMongoSerializer.FIELD_STAGE));
+        }
+    }
 }
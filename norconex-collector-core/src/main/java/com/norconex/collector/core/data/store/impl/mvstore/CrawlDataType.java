@@ -0,0 +1,500 @@
+/* Copyright 2019 Norconex Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.norconex.collector.core.data.store.impl.mvstore;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.commons.lang3.ObjectUtils;
+import org.h2.mvstore.DataUtils;
+import org.h2.mvstore.MVMap;
+import org.h2.mvstore.WriteBuffer;
+import org.h2.mvstore.type.DataType;
+import org.h2.mvstore.type.ObjectDataType;
+
+import com.norconex.collector.core.data.BaseCrawlData;
+import com.norconex.collector.core.data.CrawlState;
+import com.norconex.collector.core.data.ICrawlData;
+import com.norconex.collector.core.data.store.CrawlDataStoreException;
+import com.norconex.commons.lang.file.ContentType;
+
+/**
+ * <p>
+ * MVStore {@link DataType} for {@link ICrawlData} values. 
+ * {@link BaseCrawlData} instances are written in a compact binary 
+ * format: variable-length numbers, common crawl states and content types
+ * as small codes, and hexadecimal checksums as raw bytes.
+ * Other {@link ICrawlData} implementations (e.g., subclasses holding more
+ * fields) are written using Java serialization, like MVStore does by 
+ * default.
+ * </p>
+ * <p>
+ * When created with an {@link ICrawlDataCodec}, instances of the 
+ * {@link BaseCrawlData} subclass it is for are also written in compact
+ * form, the codec writing the subclass fields after the 
+ * {@link BaseCrawlData} ones.
+ * </p>
+ * <p>
+ * Each value starts with a format byte so the encoding can evolve 
+ * without breaking existing stores. The state and content type codes
+ * can only be appended to.
+ * </p>
+ * <p>
+ * When created with a dictionary map, parent root references and 
+ * uncommon states and content types are written as codes from that
+ * dictionary, shared by all values of a store. Values must be added to
+ * the dictionary with {@link #addToDictionary(ICrawlData)} before being 
+ * stored for the dictionary to be used. The dictionary is limited
+ * to {@value #MAX_DICTIONARY_SIZE} entries, after which values are 
+ * written as is.
+ * </p>
+ * @author Pascal Essiembre
+ * @since 1.9.2
+ */
+public class CrawlDataType implements DataType {
+
+    /** Value written with Java serialization. */
+    static final byte FORMAT_SERIALIZED = 0;
+    /** {@link BaseCrawlData} written in compact form, first version. */
+    static final byte FORMAT_BASE_V1 = 1;
+    /** {@link BaseCrawlData} written in compact form using a dictionary. */
+    static final byte FORMAT_BASE_V2 = 2;
+
+    /** Maximum number of dictionary entries. */
+    public static final int MAX_DICTIONARY_SIZE = 100000;
+
+    // Code of null values and of values not in the code tables.
+    // Codes of known values start after.
+    private static final int CODE_NULL = 0;
+    private static final int CODE_LITERAL = 1;
+    private static final int CODE_FIRST = 2;
+
+    private static final int FLAG_PARENT_ROOT_REF = 1;
+    private static final int FLAG_IS_ROOT_PARENT_REF = 1 << 1;
+    private static final int FLAG_CRAWL_DATE = 1 << 2;
+    private static final int FLAG_CODEC = 1 << 3;
+
+    private static final int CHECKSUM_NULL = 0;
+    private static final int CHECKSUM_LITERAL = 1;
+    private static final int CHECKSUM_HEX = 2;
+
+    // Never remove or reorder, only append.
+    private static final List<String> STATES = 
+            Collections.unmodifiableList(Arrays.asList(
+                    CrawlState.NEW.toString(),
+                    CrawlState.MODIFIED.toString(),
+                    CrawlState.UNMODIFIED.toString(),
+                    CrawlState.ERROR.toString(),
+                    CrawlState.REJECTED.toString(),
+                    CrawlState.BAD_STATUS.toString(),
+                    CrawlState.DELETED.toString(),
+                    CrawlState.NOT_FOUND.toString(),
+                    CrawlState.PREMATURE.toString()));
+    private static final List<String> CONTENT_TYPES = 
+            Collections.unmodifiableList(Arrays.asList(
+                    ContentType.HTML.toString(),
+                    ContentType.PDF.toString(),
+                    ContentType.TEXT.toString(),
+                    ContentType.XML.toString(),
+                    ContentType.CSV.toString(),
+                    ContentType.TSV.toString(),
+                    ContentType.ZIP.toString(),
+                    ContentType.JPEG.toString(),
+                    ContentType.GIF.toString(),
+                    ContentType.BMP.toString(),
+                    ContentType.PNG.toString(),
+                    "application/xhtml+xml",
+                    "application/json",
+                    "application/msword",
+                    "application/vnd.ms-excel",
+                    "application/vnd.ms-powerpoint",
+                    "application/vnd.openxmlformats-officedocument"
+                            + ".wordprocessingml.document",
+                    "application/vnd.openxmlformats-officedocument"
+                            + ".spreadsheetml.sheet",
+                    "application/vnd.openxmlformats-officedocument"
+                            + ".presentationml.presentation",
+                    "application/rtf",
+                    "application/octet-stream",
+                    "text/css",
+                    "application/javascript",
+                    "image/svg+xml"));
+    private static final List<String> NO_VALUES = 
+            Collections.emptyList();
+    private static final Map<String, Integer> NO_CODES = 
+            Collections.emptyMap();
+    private static final Map<String, Integer> STATE_CODES = 
+            toCodes(STATES);
+    private static final Map<String, Integer> CONTENT_TYPE_CODES = 
+            toCodes(CONTENT_TYPES);
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final ObjectDataType serializedType = new ObjectDataType();
+    private final MVMap<Integer, String> dictionary;
+    private final ICrawlDataCodec codec;
+    private final ConcurrentMap<String, Integer> dictionaryCodes = 
+            new ConcurrentHashMap<>();
+    private final ConcurrentMap<Integer, String> dictionaryValues = 
+            new ConcurrentHashMap<>();
+
+    /**
+     * Creates a data type without a dictionary.
+     */
+    public CrawlDataType() {
+        this(null);
+    }
+    /**
+     * Creates a data type using the given map as a dictionary. 
+     * @param dictionary map holding dictionary entries (can be 
+     *        <code>null</code>)
+     */
+    public CrawlDataType(MVMap<Integer, String> dictionary) {
+        this(dictionary, null);
+    }
+    /**
+     * Creates a data type using the given map as a dictionary and 
+     * the given codec for a {@link BaseCrawlData} subclass.
+     * @param dictionary map holding dictionary entries (can be 
+     *        <code>null</code>)
+     * @param codec codec writing the subclass fields (can be 
+     *        <code>null</code>)
+     */
+    public CrawlDataType(
+            MVMap<Integer, String> dictionary, ICrawlDataCodec codec) {
+        super();
+        this.dictionary = dictionary;
+        this.codec = codec;
+        if (dictionary != null) {
+            for (Entry<Integer, String> en : dictionary.entrySet()) {
+                dictionaryCodes.putIfAbsent(en.getValue(), en.getKey());
+                dictionaryValues.put(en.getKey(), en.getValue());
+            }
+        }
+    }
+
+    /**
+     * Adds to the dictionary the crawl data values that can be
+     * dictionary-encoded, if not already present. Does nothing if this 
+     * data type has no dictionary or the dictionary is full.
+     * @param crawlData crawl data about to be stored
+     */
+    public void addToDictionary(ICrawlData crawlData) {
+        if (dictionary == null || !isCompact(crawlData)) {
+            return;
+        }
+        addToDictionary(crawlData.getParentRootReference());
+        if (crawlData.getState() != null) {
+            String state = crawlData.getState().toString();
+            if (!STATE_CODES.containsKey(state)) {
+                addToDictionary(state);
+            }
+        }
+        if (crawlData.getContentType() != null) {
+            String contentType = crawlData.getContentType().toString();
+            if (!CONTENT_TYPE_CODES.containsKey(contentType)) {
+                addToDictionary(contentType);
+            }
+        }
+    }
+    private void addToDictionary(String value) {
+        if (value == null || dictionaryCodes.containsKey(value)) {
+            return;
+        }
+        synchronized (dictionary) {
+            if (dictionaryCodes.containsKey(value)
+                    || dictionaryValues.size() >= MAX_DICTIONARY_SIZE) {
+                return;
+            }
+            Integer lastCode = dictionary.lastKey();
+            int code = lastCode == null ? 0 : lastCode + 1;
+            dictionary.put(code, value);
+            dictionaryValues.put(code, value);
+            dictionaryCodes.put(value, code);
+        }
+    }
+
+    /**
+     * Gets the number of dictionary entries.
+     * @return dictionary size
+     */
+    public int getDictionarySize() {
+        return dictionaryValues.size();
+    }
+
+    @Override
+    public int compare(Object a, Object b) {
+        // values are never sorted, only checked for equality
+        if (Objects.equals(a, b)) {
+            return 0;
+        }
+        String refA = a == null ? null : ((ICrawlData) a).getReference();
+        String refB = b == null ? null : ((ICrawlData) b).getReference();
+        int result = ObjectUtils.compare(refA, refB);
+        if (result == 0) {
+            result = Integer.compare(
+                    System.identityHashCode(a), System.identityHashCode(b));
+        }
+        return result;
+    }
+
+    @Override
+    public int getMemory(Object obj) {
+        if (!isCompact(obj)) {
+            return serializedType.getMemory(obj);
+        }
+        BaseCrawlData data = (BaseCrawlData) obj;
+        return 120 + 2 * (length(data.getReference()) 
+                + length(data.getParentRootReference())
+                + length(data.getMetaChecksum())
+                + length(data.getContentChecksum()));
+    }
+
+    @Override
+    public void write(WriteBuffer buff, Object obj) {
+        if (!isCompact(obj)) {
+            buff.put(FORMAT_SERIALIZED);
+            serializedType.write(buff, obj);
+            return;
+        }
+        BaseCrawlData data = (BaseCrawlData) obj;
+        boolean v2 = dictionary != null;
+        buff.put(v2 ? FORMAT_BASE_V2 : FORMAT_BASE_V1);
+        int flags = 0;
+        if (!v2 && data.getParentRootReference() != null) {
+            flags |= FLAG_PARENT_ROOT_REF;
+        }
+        if (data.isRootParentReference()) {
+            flags |= FLAG_IS_ROOT_PARENT_REF;
+        }
+        if (data.getCrawlDate() != null) {
+            flags |= FLAG_CRAWL_DATE;
+        }
+        boolean extended = data.getClass() != BaseCrawlData.class;
+        if (extended) {
+            flags |= FLAG_CODEC;
+        }
+        buff.putVarInt(flags);
+        writeString(buff, data.getReference());
+        if (v2) {
+            writeCoded(buff, NO_CODES, data.getParentRootReference(), true);
+        } else if (data.getParentRootReference() != null) {
+            writeString(buff, data.getParentRootReference());
+        }
+        writeCoded(buff, STATE_CODES, data.getState() == null 
+                ? null : data.getState().toString(), v2);
+        writeChecksum(buff, data.getMetaChecksum());
+        writeChecksum(buff, data.getContentChecksum());
+        writeCoded(buff, CONTENT_TYPE_CODES, data.getContentType() == null 
+                ? null : data.getContentType().toString(), v2);
+        if (data.getCrawlDate() != null) {
+            buff.putVarLong(data.getCrawlDate().getTime());
+        }
+        if (extended) {
+            codec.write(buff, data);
+        }
+    }
+
+    @Override
+    public void write(WriteBuffer buff, Object[] obj, int len, boolean key) {
+        for (int i = 0; i < len; i++) {
+            write(buff, obj[i]);
+        }
+    }
+
+    @Override
+    public Object read(ByteBuffer buff) {
+        byte format = buff.get();
+        if (format == FORMAT_SERIALIZED) {
+            return serializedType.read(buff);
+        }
+        boolean v2 = format == FORMAT_BASE_V2;
+        if (format != FORMAT_BASE_V1 && !v2) {
+            throw new CrawlDataStoreException(
+                    "Unsupported crawl data format: " + format);
+        }
+        if (v2 && dictionary == null) {
+            throw new CrawlDataStoreException(
+                    "Cannot read crawl data without a dictionary.");
+        }
+        int flags = DataUtils.readVarInt(buff);
+        boolean extended = (flags & FLAG_CODEC) != 0;
+        if (extended && codec == null) {
+            throw new CrawlDataStoreException("Cannot read crawl data "
+                    + "written with a crawl data codec without one.");
+        }
+        BaseCrawlData data = 
+                extended ? codec.newCrawlData() : new BaseCrawlData();
+        data.setReference(readString(buff));
+        if (v2) {
+            data.setParentRootReference(readCoded(buff, NO_VALUES));
+        } else if ((flags & FLAG_PARENT_ROOT_REF) != 0) {
+            data.setParentRootReference(readString(buff));
+        }
+        data.setRootParentReference((flags & FLAG_IS_ROOT_PARENT_REF) != 0);
+        String state = readCoded(buff, STATES);
+        data.setState(state == null ? null : CrawlState.valueOf(state));
+        data.setMetaChecksum(readChecksum(buff));
+        data.setContentChecksum(readChecksum(buff));
+        String contentType = readCoded(buff, CONTENT_TYPES);
+        if (contentType != null) {
+            data.setContentType(ContentType.valueOf(contentType));
+        }
+        if ((flags & FLAG_CRAWL_DATE) != 0) {
+            data.setCrawlDate(new Date(DataUtils.readVarLong(buff)));
+        }
+        if (extended) {
+            codec.read(buff, data);
+        }
+        return data;
+    }
+
+    @Override
+    public void read(ByteBuffer buff, Object[] obj, int len, boolean key) {
+        for (int i = 0; i < len; i++) {
+            obj[i] = read(buff);
+        }
+    }
+
+    // Subclasses may hold more fields, so only exact instances 
+    // are written in compact form, or instances of the codec class.
+    private boolean isCompact(Object obj) {
+        if (obj == null) {
+            return false;
+        }
+        Class<?> cls = obj.getClass();
+        if (cls != BaseCrawlData.class && (codec == null 
+                || cls != codec.getCrawlDataClass())) {
+            return false;
+        }
+        return ((BaseCrawlData) obj).getReference() != null;
+    }
+
+    private static int length(String s) {
+        return s == null ? 0 : s.length();
+    }
+
+    private static void writeString(WriteBuffer buff, String s) {
+        int len = s.length();
+        buff.putVarInt(len).putStringData(s, len);
+    }
+    private static String readString(ByteBuffer buff) {
+        return DataUtils.readString(buff, DataUtils.readVarInt(buff));
+    }
+
+    // Dictionary codes follow the built-in codes.
+    private void writeCoded(WriteBuffer buff, Map<String, Integer> codes, 
+            String value, boolean useDictionary) {
+        if (value == null) {
+            buff.putVarInt(CODE_NULL);
+            return;
+        }
+        Integer code = codes.get(value);
+        if (code == null && useDictionary) {
+            Integer dictCode = dictionaryCodes.get(value);
+            if (dictCode != null) {
+                code = CODE_FIRST + codes.size() + dictCode;
+            }
+        }
+        if (code != null) {
+            buff.putVarInt(code);
+        } else {
+            buff.putVarInt(CODE_LITERAL);
+            writeString(buff, value);
+        }
+    }
+    private String readCoded(ByteBuffer buff, List<String> values) {
+        int code = DataUtils.readVarInt(buff);
+        if (code == CODE_NULL) {
+            return null;
+        }
+        if (code == CODE_LITERAL) {
+            return readString(buff);
+        }
+        int index = code - CODE_FIRST;
+        if (index < values.size()) {
+            return values.get(index);
+        }
+        String value = dictionaryValues.get(index - values.size());
+        if (value == null) {
+            throw new CrawlDataStoreException(
+                    "Unknown crawl data value code: " + code);
+        }
+        return value;
+    }
+
+    private static void writeChecksum(WriteBuffer buff, String checksum) {
+        if (checksum == null) {
+            buff.put((byte) CHECKSUM_NULL);
+        } else if (isLowerHex(checksum)) {
+            buff.put((byte) CHECKSUM_HEX);
+            int len = checksum.length() / 2;
+            buff.putVarInt(len);
+            for (int i = 0; i < len; i++) {
+                buff.put((byte) Integer.parseInt(
+                        checksum.substring(i * 2, i * 2 + 2), 16));
+            }
+        } else {
+            buff.put((byte) CHECKSUM_LITERAL);
+            writeString(buff, checksum);
+        }
+    }
+    private static String readChecksum(ByteBuffer buff) {
+        byte type = buff.get();
+        if (type == CHECKSUM_NULL) {
+            return null;
+        }
+        if (type == CHECKSUM_LITERAL) {
+            return readString(buff);
+        }
+        int len = DataUtils.readVarInt(buff);
+        char[] chars = new char[len * 2];
+        for (int i = 0; i < len; i++) {
+            int b = buff.get() & 0xFF;
+            chars[i * 2] = HEX[b >>> 4];
+            chars[i * 2 + 1] = HEX[b & 0x0F];
+        }
+        return new String(chars);
+    }
+    private static boolean isLowerHex(String s) {
+        if (s.isEmpty() || s.length() % 2 != 0) {
+            return false;
+        }
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static Map<String, Integer> toCodes(List<String> values) {
+        Map<String, Integer> codes = new HashMap<>();
+        for (int i = 0; i < values.size(); i++) {
+            codes.put(values.get(i), CODE_FIRST + i);
+        }
+        return Collections.unmodifiableMap(codes);
+    }
+}
@@ -0,0 +1,80 @@
+/* Copyright 2019 Norconex Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.norconex.collector.core.data.store.impl.mvstore;
+
+import java.nio.ByteBuffer;
+
+import org.h2.mvstore.DataUtils;
+import org.h2.mvstore.WriteBuffer;
+import org.h2.mvstore.type.StringDataType;
+
+/**
+ * <p>
+ * MVStore string {@link org.h2.mvstore.type.DataType} writing the sorted
+ * keys of a page using front coding: each key only holds the number of 
+ * leading characters it shares with the previous key, followed by 
+ * the remaining characters. References under the same site sharing 
+ * long prefixes, this greatly reduces the size of pages on disk.
+ * Keys are kept whole in memory.
+ * </p>
+ * <p>
+ * Pages written with this type cannot be read with 
+ * {@link StringDataType} (and vice versa).
+ * </p>
+ * @author Pascal Essiembre
+ * @since 1.9.2
+ */
+public class FrontCodedStringDataType extends StringDataType {
+
+    public static final FrontCodedStringDataType INSTANCE = 
+            new FrontCodedStringDataType();
+
+    @Override
+    public void write(WriteBuffer buff, Object[] obj, int len, boolean key) {
+        String previous = "";
+        for (int i = 0; i < len; i++) {
+            String s = obj[i].toString();
+            int shared = sharedPrefixLength(previous, s);
+            int suffixLength = s.length() - shared;
+            buff.putVarInt(shared)
+                    .putVarInt(suffixLength)
+                    .putStringData(s.substring(shared), suffixLength);
+            previous = s;
+        }
+    }
+
+    @Override
+    public void read(ByteBuffer buff, Object[] obj, int len, boolean key) {
+        String previous = "";
+        for (int i = 0; i < len; i++) {
+            int shared = DataUtils.readVarInt(buff);
+            int suffixLength = DataUtils.readVarInt(buff);
+            String suffix = DataUtils.readString(buff, suffixLength);
+            String s = shared == 0 
+                    ? suffix : previous.substring(0, shared).concat(suffix);
+            obj[i] = s;
+            previous = s;
+        }
+    }
+
+    private static int sharedPrefixLength(String a, String b) {
+        int max = Math.min(a.length(), b.length());
+        int i = 0;
+        while (i < max && a.charAt(i) == b.charAt(i)) {
+            i++;
+        }
+        return i;
+    }
+}
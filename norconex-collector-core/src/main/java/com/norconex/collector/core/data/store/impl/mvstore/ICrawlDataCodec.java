@@ -0,0 +1,74 @@
+/* Copyright 2019 Norconex Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.norconex.collector.core.data.store.impl.mvstore;
+
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+
+import org.h2.mvstore.WriteBuffer;
+
+import com.norconex.collector.core.data.BaseCrawlData;
+
+/**
+ * <p>
+ * Writes and reads the fields a {@link BaseCrawlData} subclass adds,
+ * so {@link CrawlDataType} can store instances of that subclass in
+ * compact form instead of using Java serialization.
+ * The {@link BaseCrawlData} fields are written by {@link CrawlDataType}
+ * before the subclass fields.
+ * </p>
+ * <p>
+ * Codecs should be stateless. Values written with a codec can only be
+ * read back when the same codec is used. Fields can only be appended
+ * to what a codec writes, unless existing stores are discarded.
+ * </p>
+ * @author Pascal Essiembre
+ * @since 1.9.2
+ * @see MVStoreCrawlDataStoreConfig#setCrawlDataCodec(ICrawlDataCodec)
+ */
+public interface ICrawlDataCodec extends Serializable {
+
+    /**
+     * Gets the crawl data class this codec is for. Only instances of that
+     * exact class are written using this codec.
+     * @return crawl data class
+     */
+    Class<? extends BaseCrawlData> getCrawlDataClass();
+
+    /**
+     * Creates a new, empty instance of the crawl data class this codec
+     * is for. Its {@link BaseCrawlData} fields are set by
+     * {@link CrawlDataType} before {@link #read(ByteBuffer, BaseCrawlData)}
+     * is invoked.
+     * @return new crawl data
+     */
+    BaseCrawlData newCrawlData();
+
+    /**
+     * Writes the fields the crawl data class adds to
+     * {@link BaseCrawlData}.
+     * @param buff buffer to write to
+     * @param crawlData crawl data to write
+     */
+    void write(WriteBuffer buff, BaseCrawlData crawlData);
+
+    /**
+     * Reads the fields the crawl data class adds to
+     * {@link BaseCrawlData}, in the order they were written.
+     * @param buff buffer to read from
+     * @param crawlData crawl data to set the fields on
+     */
+    void read(ByteBuffer buff, BaseCrawlData crawlData);
+}
@@ -1,4 +1,4 @@
-/* Copyright 2014-2016 Norconex Inc.
+/* Copyright 2014-2019 Norconex Inc.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -16,38 +16,123 @@ package com.norconex.collector.core.data.store.impl.mvstore;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang3.ObjectUtils;
+import org.apache.commons.lang3.math.NumberUtils;
 import org.apache.log4j.LogManager;
 import org.apache.log4j.Logger;
+import org.h2.mvstore.DataUtils;
 import org.h2.mvstore.MVMap;
 import org.h2.mvstore.MVStore;
+import org.h2.mvstore.type.StringDataType;
 
 import com.norconex.collector.core.data.ICrawlData;
 import com.norconex.collector.core.data.store.AbstractCrawlDataStore;
+import com.norconex.collector.core.data.store.CrawlDataStoreCompactor;
 import com.norconex.collector.core.data.store.CrawlDataStoreException;
+import com.norconex.collector.core.data.store.ICompactableCrawlDataStore;
 import com.norconex.collector.core.data.store.ICrawlDataStore;
+import com.norconex.collector.core.data.store.ReferenceBloomFilter;
+import com.norconex.collector.core.data.store.ReferenceStage;
+import com.norconex.collector.core.data.store.impl.mvstore.MVStoreCrawlDataStoreConfig.CommitMode;
 
 /**
+ * <p>
  * H2 MVStore {@link ICrawlDataStore} implementation.
+ * </p>
+ * <p>
+ * As of 1.9.2, how often changes are committed to disk is configurable
+ * (see {@link MVStoreCrawlDataStoreConfig}).
+ * </p>
+ * <p>
+ * As of 1.9.2, crawl data is stored using {@link CrawlDataType}, with
+ * repeated values kept once in a dictionary shared by the whole store.
+ * Stores created with earlier versions are converted when opened.
+ * Reference keys can also be stored using front coding
+ * (see {@link MVStoreCrawlDataStoreConfig#setFrontCodedKeys(boolean)}),
+ * existing stores being converted when that setting changes.
+ * </p>
+ * <p>
+ * As of 1.9.2, starting a new crawl (not resuming) makes the previous
+ * crawl valid processed references the cache by renaming maps, 
+ * which no longer depends on how many references there are. 
+ * Replaced maps are removed in a background thread.
+ * </p>
+ * <p>
+ * As of 1.9.2, the store file can be compacted in the background
+ * and/or when closed (see {@link MVStoreCrawlDataStoreConfig}).
+ * </p>
  * @author Pascal Dimassimo
  */
-public class MVStoreCrawlDataStore extends AbstractCrawlDataStore {
+public class MVStoreCrawlDataStore extends AbstractCrawlDataStore
+        implements ICompactableCrawlDataStore {
     
     private static final Logger LOG = 
             LogManager.getLogger(MVStoreCrawlDataStore.class);
     
+    private static final String[] MAP_NAMES = { "queued", "active", 
+            "processedValid", "processedInvalid", "cached" };
+    private static final String SETTINGS_MAP = "settings";
+    private static final String DICTIONARY_MAP = "dictionary";
+    private static final String SETTING_FORMAT_PREFIX = "format.";
+    private static final String SETTING_GENERATION = "generation";
+    private static final String STALE_MAP_PREFIX = "stale.";
+    // same as H2 database background compaction
+    private static final int COMPACT_TARGET_FILL_RATE = 50;
+    private static final int COMPACT_WRITE_LIMIT = 4 * 1024 * 1024;
+    private static final String CHUNK_PREFIX = "chunk.";
+    private static final long BLOCK_SIZE = 4096;
+    private static final String FORMAT_COMPACT = "compact";
+    private static final String FORMAT_COMPACT_FRONT_CODED = 
+            "compact-frontCoded";
+    
     private final MVStore store;
+    private final CommitMode commitMode;
+    private final int commitInterval;
+    private final AtomicInteger uncommittedCount = new AtomicInteger();
+    private final CrawlDataType dataType;
+    private final String mapFormat;
     
     private final MVMap<String, ICrawlData> mapQueued;
     private final MVMap<String, ICrawlData> mapActive;
     private final MVMap<String, ICrawlData> mapProcessedValid;
     private final MVMap<String, ICrawlData> mapProcessedInvalid;
     private final MVMap<String, ICrawlData> mapCached;
+
+    private Thread staleMapCleaner;
+    private final boolean compactOnClose;
+    private final CrawlDataStoreCompactor compactor;
     
     public MVStoreCrawlDataStore(String path, boolean resume) {
-        
+        this(path, resume, null);
+    }
+
+    /**
+     * Constructor.
+     * @param path store directory
+     * @param resume whether to resume an aborted job
+     * @param config store configuration (<code>null</code> for defaults)
+     * @since 1.9.2
+     */
+    public MVStoreCrawlDataStore(
+            String path, boolean resume, MVStoreCrawlDataStoreConfig config) {
+        MVStoreCrawlDataStoreConfig cfg = config;
+        if (cfg == null) {
+            cfg = new MVStoreCrawlDataStoreConfig();
+        }
+        this.commitMode = ObjectUtils.defaultIfNull(
+                cfg.getCommitMode(), 
+                MVStoreCrawlDataStoreConfig.DEFAULT_COMMIT_MODE);
+        this.commitInterval = Math.max(1, cfg.getCommitInterval());
+
         try {
             FileUtils.forceMkdir(new File(path));
         } catch (IOException e) {
@@ -55,12 +140,26 @@ public class MVStoreCrawlDataStore extends AbstractCrawlDataStore {
                     "Cannot create crawl data store directory: " + path, e);
         }
         store = MVStore.open(path + "/mvstore");
+        if (commitMode != CommitMode.OPERATION && cfg.getCommitDelay() > 0) {
+            // The store background thread takes care of committing
+            // at least as often as the commit delay.
+            store.setAutoCommitDelay(cfg.getCommitDelay());
+        }
         
-        mapQueued = store.openMap("queued");
-        mapActive = store.openMap("active");
-        mapProcessedValid = store.openMap("processedValid");
-        mapProcessedInvalid = store.openMap("processedInvalid");
-        mapCached = store.openMap("cached");
+        dataType = new CrawlDataType(
+                store.<Integer, String>openMap(DICTIONARY_MAP),
+                cfg.getCrawlDataCodec());
+        mapFormat = cfg.isFrontCodedKeys() 
+                ? FORMAT_COMPACT_FRONT_CODED : FORMAT_COMPACT;
+        checkFormat();
+        if (!resume) {
+            newGeneration();
+        }
+        mapQueued = openMap("queued");
+        mapActive = openMap("active");
+        mapProcessedValid = openMap("processedValid");
+        mapProcessedInvalid = openMap("processedInvalid");
+        mapCached = openMap("cached");
         
         if (resume) {
             if (LOG.isDebugEnabled()) {
@@ -76,29 +175,203 @@ public class MVStoreCrawlDataStore extends AbstractCrawlDataStore {
                 mapQueued.put(key, mapActive.remove(key));
             }
             
+        }
+        store.commit();
+        removeStaleMaps();
+
+        compactOnClose = cfg.isCompactOnClose();
+        if (cfg.getCompactInterval() > 0) {
+            compactor = new CrawlDataStoreCompactor(
+                    this, cfg.getCompactInterval());
+            compactor.start();
         } else {
-            mapCached.clear();
-            mapActive.clear();
-            mapQueued.clear();
-            mapProcessedInvalid.clear();
-
-            // Valid Processed -> Cached
-            for (String key : mapProcessedValid.keySet()) {
-                ICrawlData processed = mapProcessedValid.remove(key);
-                if (processed.getState().isGoodState()) {
-                    mapCached.put(key, processed);
+            compactor = null;
+        }
+    }
+
+    /**
+     * Gets the background compactor.
+     * @return compactor or <code>null</code> if not compacting in the
+     *         background
+     * @since 1.9.2
+     */
+    public CrawlDataStoreCompactor getCompactor() {
+        return compactor;
+    }
+
+    // Valid processed references become the cache by renaming maps
+    // instead of copying them, so starting a new crawl takes the same 
+    // time whatever the size of the previous one. Other maps are renamed
+    // as stale and removed in the background.
+    private void newGeneration() {
+        MVMap<String, String> settings = store.openMap(SETTINGS_MAP);
+        int generation = NumberUtils.toInt(
+                settings.get(SETTING_GENERATION)) + 1;
+        settings.put(SETTING_GENERATION, Integer.toString(generation));
+        for (String name : new String[] { 
+                "cached", "active", "queued", "processedInvalid" }) {
+            if (store.hasMap(name)) {
+                String staleName = STALE_MAP_PREFIX + generation + "." + name;
+                settings.put(SETTING_FORMAT_PREFIX + staleName, mapFormat);
+                store.renameMap(openMap(name), staleName);
+            }
+        }
+        if (store.hasMap("processedValid")) {
+            store.renameMap(openMap("processedValid"), "cached");
+        }
+        store.commit();
+    }
+
+    private void removeStaleMaps() {
+        final List<String> staleNames = new ArrayList<>();
+        for (String name : store.getMapNames()) {
+            if (name.startsWith(STALE_MAP_PREFIX)) {
+                staleNames.add(name);
+            }
+        }
+        if (staleNames.isEmpty()) {
+            return;
+        }
+        staleMapCleaner = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    MVMap<String, String> settings = 
+                            store.openMap(SETTINGS_MAP);
+                    for (String name : staleNames) {
+                        String setting = SETTING_FORMAT_PREFIX + name;
+                        store.removeMap(store.openMap(
+                                name, createMapBuilder(settings.get(setting))));
+                        settings.remove(setting);
+                    }
+                    // committed with the next store commit
+                } catch (IllegalStateException e) {
+                    LOG.error("Could not remove stale crawl data maps.", e);
                 }
             }
+        }, "MVStoreCrawlDataStore-stale-maps");
+        staleMapCleaner.setDaemon(true);
+        staleMapCleaner.start();
+    }
+
+    // Converts maps not in the expected format: maps created before the
+    // compact data type existed (values stored using Java serialization)
+    // or with a different key format. Each map format is recorded in
+    // the settings map. The order of operations allows an interrupted
+    // conversion to be resumed.
+    private void checkFormat() {
+        MVMap<String, String> settings = store.openMap(SETTINGS_MAP);
+        for (String name : MAP_NAMES) {
+            String format = settings.get(SETTING_FORMAT_PREFIX + name);
+            if (mapFormat.equals(format)) {
+                continue;
+            }
+            String tempName = name + "-converted";
+            if (store.hasMap(tempName) && !store.hasMap(name)) {
+                // conversion was interrupted after removing the old map
+                settings.put(SETTING_FORMAT_PREFIX + name, mapFormat);
+                store.renameMap(openMap(tempName), name);
+                store.commit();
+            } else {
+                convertMap(settings, name, format);
+            }
+        }
+    }
+    private void convertMap(MVMap<String, String> settings, 
+            String name, String fromFormat) {
+        String tempName = name + "-converted";
+        if (store.hasMap(tempName)) {
+            // left over from an interrupted conversion
+            store.removeMap(openMap(tempName));
+        }
+        if (store.hasMap(name)) {
+            LOG.info("Converting crawl data store map \"" + name 
+                    + "\" to format \"" + mapFormat + "\"...");
+            MVMap<String, ICrawlData> oldMap = 
+                    store.openMap(name, createMapBuilder(fromFormat));
+            MVMap<String, ICrawlData> newMap = openMap(tempName);
+            for (String key : oldMap.keySet()) {
+                ICrawlData data = oldMap.get(key);
+                dataType.addToDictionary(data);
+                newMap.put(key, data);
+            }
+            store.removeMap(oldMap);
+            settings.put(SETTING_FORMAT_PREFIX + name, mapFormat);
+            store.renameMap(newMap, name);
+        } else {
+            settings.put(SETTING_FORMAT_PREFIX + name, mapFormat);
         }
         store.commit();
     }
 
+    private MVMap<String, ICrawlData> openMap(String name) {
+        return store.openMap(name, createMapBuilder(mapFormat));
+    }
+    private MVMap.Builder<String, ICrawlData> createMapBuilder(
+            String format) {
+        MVMap.Builder<String, ICrawlData> builder = new MVMap.Builder<>();
+        if (format == null) {
+            // Java serialization, MVStore default
+            return builder;
+        }
+        if (FORMAT_COMPACT_FRONT_CODED.equals(format)) {
+            builder.keyType(FrontCodedStringDataType.INSTANCE);
+        } else if (FORMAT_COMPACT.equals(format)) {
+            builder.keyType(StringDataType.INSTANCE);
+        } else {
+            throw new CrawlDataStoreException(
+                    "Unsupported crawl data store format: " + format);
+        }
+        return builder.valueType(dataType);
+    }
+
     @Override
     public void queue(ICrawlData crawlData) {
         ICrawlData crawlDataCopy = crawlData.clone();
+        addToReferenceFilter(crawlDataCopy.getReference());
+        dataType.addToDictionary(crawlDataCopy);
         mapQueued.put(crawlDataCopy.getReference(), crawlDataCopy);
     }
 
+    // Synchronized with nextQueued() so a reference is never seen
+    // as moving from queued to active.
+    @Override
+    public synchronized ReferenceStage queueIfAbsent(ICrawlData crawlData) {
+        String ref = crawlData.getReference();
+        ReferenceStage stage = ReferenceStage.NONE;
+        if (isPossiblyKnown(ref)) {
+            stage = referenceFilterChecked(findStage(ref));
+        }
+        if (stage == ReferenceStage.NONE) {
+            queue(crawlData);
+        }
+        return stage;
+    }
+
+    @Override
+    public synchronized ReferenceStage getStage(String reference) {
+        if (!isPossiblyKnown(reference)) {
+            return ReferenceStage.NONE;
+        }
+        return referenceFilterChecked(findStage(reference));
+    }
+
+    // Since processed() adds to processed maps before removing from
+    // the active one, checking active before processed never misses it.
+    private ReferenceStage findStage(String reference) {
+        if (mapActive.containsKey(reference)) {
+            return ReferenceStage.ACTIVE;
+        }
+        if (mapQueued.containsKey(reference)) {
+            return ReferenceStage.QUEUED;
+        }
+        if (mapProcessedValid.containsKey(reference)
+                || mapProcessedInvalid.containsKey(reference)) {
+            return ReferenceStage.PROCESSED;
+        }
+        return ReferenceStage.NONE;
+    }
+
     @Override
     public boolean isQueueEmpty() {
         return mapQueued.isEmpty();
@@ -115,21 +388,41 @@ public class MVStoreCrawlDataStore extends AbstractCrawlDataStore {
     }
 
     @Override
-    public synchronized ICrawlData nextQueued() {
-        String key = mapQueued.firstKey();
-        if (key == null) {
-            return null;
+    public ICrawlData nextQueued() {
+        ICrawlData data;
+        synchronized (this) {
+            String key = mapQueued.firstKey();
+            if (key == null) {
+                return null;
+            }
+            data = mapQueued.remove(key);
+            mapActive.put(key, data);
         }
-        ICrawlData data = mapQueued.remove(key);
-        mapActive.put(key, data);
-        // Commit on every put() is required if we want to guarantee
-        // recovery on a cold JVM/OS/System crash.
-        //TODO if performance is too impacted, make it a configurable
-        //option to offer guarantee or not?
-        store.commit();
+        commitIfRequired(1);
         return data;
     }
 
+    @Override
+    public List<ICrawlData> nextQueued(int max) {
+        List<ICrawlData> list = new ArrayList<>(Math.max(0, max));
+        synchronized (this) {
+            while (list.size() < max) {
+                String key = mapQueued.firstKey();
+                if (key == null) {
+                    break;
+                }
+                ICrawlData data = mapQueued.remove(key);
+                mapActive.put(key, data);
+                list.add(data);
+            }
+        }
+        // one commit for the whole batch
+        if (!list.isEmpty()) {
+            commitIfRequired(list.size());
+        }
+        return list;
+    }
+
     @Override
     public boolean isActive(String reference) {
         return mapActive.containsKey(reference);
@@ -151,9 +444,11 @@ public class MVStoreCrawlDataStore extends AbstractCrawlDataStore {
     }
 
     @Override
-    public synchronized void processed(ICrawlData crawlData) {
+    public void processed(ICrawlData crawlData) {
         ICrawlData crawlDataCopy = crawlData.clone();
         String ref = crawlDataCopy.getReference();
+        addToReferenceFilter(ref);
+        dataType.addToDictionary(crawlDataCopy);
         if (crawlDataCopy.getState().isGoodState()) {
             mapProcessedValid.put(ref, crawlDataCopy);
         } else {
@@ -161,11 +456,7 @@ public class MVStoreCrawlDataStore extends AbstractCrawlDataStore {
         }
         mapActive.remove(ref);
         mapCached.remove(ref);
-        // Commit on every put() is required if we want to guarantee
-        // recovery on a cold JVM/OS/System crash.
-        //TODO if performance is too impacted, make it a configurable
-        //option to offer guarantee or not?
-        store.commit();
+        commitIfRequired(1);
     }
 
     @Override
@@ -184,8 +475,118 @@ public class MVStoreCrawlDataStore extends AbstractCrawlDataStore {
         return mapCached.values().iterator();
     }
 
+    @Override
+    protected boolean loadReferenceFilter(
+            ReferenceBloomFilter referenceFilter) {
+        for (String key : mapQueued.keySet()) {
+            referenceFilter.add(key);
+        }
+        for (String key : mapActive.keySet()) {
+            referenceFilter.add(key);
+        }
+        for (String key : mapProcessedValid.keySet()) {
+            referenceFilter.add(key);
+        }
+        for (String key : mapProcessedInvalid.keySet()) {
+            referenceFilter.add(key);
+        }
+        return true;
+    }
+
+    // Committing on every operation is required if we want to guarantee
+    // recovery on a cold JVM/OS/System crash. Other commit modes trade
+    // some re-processing after a crash for throughput.
+    private void commitIfRequired(int changeCount) {
+        if (commitMode == CommitMode.OPERATION) {
+            store.commit();
+        } else if (commitMode == CommitMode.GROUP && uncommittedCount.addAndGet(
+                changeCount) >= commitInterval) {
+            uncommittedCount.set(0);
+            store.commit();
+        }
+        // ASYNC: left to the store background thread
+    }
+
+    /**
+     * Rewrites live data from chunks that are mostly unused, 
+     * rewriting at most 4MB.
+     * @return estimated bytes reclaimed
+     * @since 1.9.2
+     */
+    @Override
+    public long compact() {
+        Map<String, long[]> before = getChunkSpace();
+        store.compact(COMPACT_TARGET_FILL_RATE, COMPACT_WRITE_LIMIT);
+        Map<String, long[]> after = getChunkSpace();
+        // the space of chunks emptied is reclaimed, minus their live 
+        // data that was written again
+        long reclaimed = 0;
+        for (Entry<String, long[]> chunk : before.entrySet()) {
+            long length = chunk.getValue()[0];
+            long live = chunk.getValue()[1];
+            long[] chunkAfter = after.get(chunk.getKey());
+            if (live > 0 && (chunkAfter == null || chunkAfter[1] == 0)) {
+                reclaimed += Math.max(0, length - live);
+            }
+        }
+        return reclaimed;
+    }
+    /**
+     * Gets the percentage of the store file in use.
+     * @return fill rate
+     * @since 1.9.2
+     */
+    @Override
+    public int getFillRate() {
+        return store.getFileStore().getFillRate();
+    }
+    // Length and live bytes of each chunk, from chunk metadata.
+    private Map<String, long[]> getChunkSpace() {
+        Map<String, long[]> chunks = new HashMap<>();
+        MVMap<String, String> meta = store.getMetaMap();
+        Iterator<String> it = meta.keyIterator(CHUNK_PREFIX);
+        while (it.hasNext()) {
+            String key = it.next();
+            if (!key.startsWith(CHUNK_PREFIX)) {
+                break;
+            }
+            Map<String, String> chunk = DataUtils.parseMap(meta.get(key));
+            chunks.put(key, new long[] {
+                    DataUtils.readHexLong(chunk, "len", 0) * BLOCK_SIZE,
+                    DataUtils.readHexLong(chunk, "liveMax", 0) });
+        }
+        return chunks;
+    }
+
+    // Rewrites all live data and moves it to the beginning of the file,
+    // which is then truncated.
+    private void compactFully() {
+        LOG.info("Compacting crawl data store...");
+        long size = store.getFileStore().size();
+        // no need to retain old versions when closing
+        store.setRetentionTime(0);
+        store.compactRewriteFully();
+        store.compactMoveChunks();
+        LOG.info("Crawl data store compacted from " + size + " to " 
+                + store.getFileStore().size() + " bytes.");
+    }
+
     @Override
     public void close() {
+        if (compactor != null) {
+            compactor.stop();
+        }
+        if (staleMapCleaner != null) {
+            try {
+                staleMapCleaner.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (compactOnClose) {
+            compactFully();
+        }
+        // closing commits any pending changes
         store.close();
     }
 }
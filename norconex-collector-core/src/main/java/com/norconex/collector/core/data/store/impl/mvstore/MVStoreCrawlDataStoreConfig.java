@@ -0,0 +1,295 @@
+/* Copyright 2019 Norconex Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.norconex.collector.core.data.store.impl.mvstore;
+
+import java.io.Serializable;
+
+import org.apache.commons.lang3.builder.EqualsBuilder;
+import org.apache.commons.lang3.builder.HashCodeBuilder;
+import org.apache.commons.lang3.builder.ToStringBuilder;
+import org.apache.commons.lang3.builder.ToStringStyle;
+
+import com.norconex.collector.core.data.BaseCrawlData;
+import com.norconex.collector.core.data.store.CrawlDataStoreCompactor;
+import com.norconex.collector.core.data.store.ReferenceBloomFilter;
+
+/**
+ * <p>
+ * Holds {@link MVStoreCrawlDataStore} settings.
+ * </p>
+ * @author Pascal Essiembre
+ * @since 1.9.2
+ */
+public class MVStoreCrawlDataStoreConfig implements Serializable {
+
+    private static final long serialVersionUID = -5285410385235207331L;
+
+    /**
+     * How changes made to the crawl data store are committed to disk.
+     */
+    public enum CommitMode {
+        /**
+         * Commits on every reference state change. Guarantees that no
+         * processed reference will be processed again after a crash,
+         * at the cost of serializing crawler threads on disk writes.
+         */
+        OPERATION,
+        /**
+         * Commits once every "commit interval" state changes, or
+         * after "commit delay" milliseconds, whichever comes first.
+         * At most that many references may be processed again after a crash.
+         */
+        GROUP,
+        /**
+         * Leaves all commits to a background thread, at most every
+         * "commit delay" milliseconds. References changed during that
+         * delay may be processed again after a crash.
+         */
+        ASYNC
+    }
+
+    public static final CommitMode DEFAULT_COMMIT_MODE = CommitMode.OPERATION;
+    public static final int DEFAULT_COMMIT_INTERVAL = 100;
+    public static final int DEFAULT_COMMIT_DELAY = 1000;
+    /** @since 1.9.2 */
+    public static final int DEFAULT_SHARDS = 1;
+
+    private CommitMode commitMode = DEFAULT_COMMIT_MODE;
+    private int commitInterval = DEFAULT_COMMIT_INTERVAL;
+    private int commitDelay = DEFAULT_COMMIT_DELAY;
+    private int referenceFilterSize = 
+            ReferenceBloomFilter.DEFAULT_EXPECTED_COUNT;
+    private boolean frontCodedKeys;
+    private int shards = DEFAULT_SHARDS;
+    private long compactInterval;
+    private boolean compactOnClose;
+    private ICrawlDataCodec crawlDataCodec;
+
+    /**
+     * Gets the commit mode. Default is {@link CommitMode#OPERATION}.
+     * @return commit mode
+     */
+    public CommitMode getCommitMode() {
+        return commitMode;
+    }
+    /**
+     * Sets the commit mode.
+     * @param commitMode commit mode
+     */
+    public void setCommitMode(CommitMode commitMode) {
+        this.commitMode = commitMode;
+    }
+
+    /**
+     * Gets the maximum number of reference state changes before a commit
+     * is forced, when using {@link CommitMode#GROUP}.
+     * @return commit interval
+     */
+    public int getCommitInterval() {
+        return commitInterval;
+    }
+    /**
+     * Sets the maximum number of reference state changes before a commit
+     * is forced, when using {@link CommitMode#GROUP}.
+     * @param commitInterval commit interval
+     */
+    public void setCommitInterval(int commitInterval) {
+        this.commitInterval = commitInterval;
+    }
+
+    /**
+     * Gets the maximum delay in milliseconds before uncommitted changes are
+     * written to disk by the background thread (does not apply to
+     * {@link CommitMode#OPERATION}).
+     * @return commit delay
+     */
+    public int getCommitDelay() {
+        return commitDelay;
+    }
+    /**
+     * Sets the maximum delay in milliseconds before uncommitted changes are
+     * written to disk by the background thread (does not apply to
+     * {@link CommitMode#OPERATION}).
+     * @param commitDelay commit delay
+     */
+    public void setCommitDelay(int commitDelay) {
+        this.commitDelay = commitDelay;
+    }
+
+    /**
+     * Gets the expected number of references the reference filter
+     * is sized for. Zero or less disables the filter.
+     * @return reference filter size
+     * @see ReferenceBloomFilter
+     */
+    public int getReferenceFilterSize() {
+        return referenceFilterSize;
+    }
+    /**
+     * Sets the expected number of references the reference filter
+     * is sized for. Zero or less disables the filter.
+     * @param referenceFilterSize reference filter size
+     * @see ReferenceBloomFilter
+     */
+    public void setReferenceFilterSize(int referenceFilterSize) {
+        this.referenceFilterSize = referenceFilterSize;
+    }
+
+    /**
+     * Gets whether reference keys are stored using front coding
+     * (see {@link FrontCodedStringDataType}).
+     * @return <code>true</code> if using front coding
+     */
+    public boolean isFrontCodedKeys() {
+        return frontCodedKeys;
+    }
+    /**
+     * Sets whether reference keys are stored using front coding
+     * (see {@link FrontCodedStringDataType}). Existing stores are
+     * converted when opened with a different setting.
+     * @param frontCodedKeys <code>true</code> to use front coding
+     */
+    public void setFrontCodedKeys(boolean frontCodedKeys) {
+        this.frontCodedKeys = frontCodedKeys;
+    }
+
+    /**
+     * Gets the number of stores references are spread across.
+     * Default is 1 (no sharding).
+     * @return number of shards
+     * @see ShardedMVStoreCrawlDataStore
+     */
+    public int getShards() {
+        return shards;
+    }
+    /**
+     * Sets the number of stores references are spread across, to reduce
+     * lock contention between crawler threads. Cannot be changed for an 
+     * existing store.
+     * @param shards number of shards
+     * @see ShardedMVStoreCrawlDataStore
+     */
+    public void setShards(int shards) {
+        this.shards = shards;
+    }
+
+    /**
+     * Gets the milliseconds between background compaction steps.
+     * Zero or less disables background compaction (the default).
+     * @return compaction interval
+     * @see CrawlDataStoreCompactor
+     */
+    public long getCompactInterval() {
+        return compactInterval;
+    }
+    /**
+     * Sets the milliseconds between background compaction steps.
+     * Zero or less disables background compaction.
+     * @param compactInterval compaction interval
+     * @see CrawlDataStoreCompactor
+     */
+    public void setCompactInterval(long compactInterval) {
+        this.compactInterval = compactInterval;
+    }
+
+    /**
+     * Gets whether the store file is fully compacted when the store
+     * is closed.
+     * @return <code>true</code> if compacting on close
+     */
+    public boolean isCompactOnClose() {
+        return compactOnClose;
+    }
+    /**
+     * Sets whether the store file is fully compacted when the store
+     * is closed. This makes closing slower on large stores.
+     * @param compactOnClose <code>true</code> to compact on close
+     */
+    public void setCompactOnClose(boolean compactOnClose) {
+        this.compactOnClose = compactOnClose;
+    }
+
+    /**
+     * Gets the codec writing the fields of a {@link BaseCrawlData}
+     * subclass, so instances of that subclass are stored in compact form.
+     * Default is <code>null</code> (subclasses are serialized).
+     * @return crawl data codec
+     */
+    public ICrawlDataCodec getCrawlDataCodec() {
+        return crawlDataCodec;
+    }
+    /**
+     * Sets the codec writing the fields of a {@link BaseCrawlData}
+     * subclass, so instances of that subclass are stored in compact form.
+     * Existing stores must be read with the codec they were written with.
+     * Codecs are compared by class.
+     * @param crawlDataCodec crawl data codec
+     */
+    public void setCrawlDataCodec(ICrawlDataCodec crawlDataCodec) {
+        this.crawlDataCodec = crawlDataCodec;
+    }
+
+    @Override
+    public boolean equals(final Object other) {
+        if (!(other instanceof MVStoreCrawlDataStoreConfig)) {
+            return false;
+        }
+        MVStoreCrawlDataStoreConfig castOther =
+                (MVStoreCrawlDataStoreConfig) other;
+        return new EqualsBuilder()
+                .append(commitMode, castOther.commitMode)
+                .append(commitInterval, castOther.commitInterval)
+                .append(commitDelay, castOther.commitDelay)
+                .append(referenceFilterSize, castOther.referenceFilterSize)
+                .append(frontCodedKeys, castOther.frontCodedKeys)
+                .append(shards, castOther.shards)
+                .append(compactInterval, castOther.compactInterval)
+                .append(compactOnClose, castOther.compactOnClose)
+                .append(getCodecClass(), castOther.getCodecClass())
+                .isEquals();
+    }
+    @Override
+    public int hashCode() {
+        return new HashCodeBuilder()
+                .append(commitMode)
+                .append(commitInterval)
+                .append(commitDelay)
+                .append(referenceFilterSize)
+                .append(frontCodedKeys)
+                .append(shards)
+                .append(compactInterval)
+                .append(compactOnClose)
+                .append(getCodecClass())
+                .toHashCode();
+    }
+    @Override
+    public String toString() {
+        return new ToStringBuilder(this, ToStringStyle.SHORT_PREFIX_STYLE)
+                .append("commitMode", commitMode)
+                .append("commitInterval", commitInterval)
+                .append("commitDelay", commitDelay)
+                .append("referenceFilterSize", referenceFilterSize)
+                .append("frontCodedKeys", frontCodedKeys)
+                .append("shards", shards)
+                .append("compactInterval", compactInterval)
+                .append("compactOnClose", compactOnClose)
+                .append("crawlDataCodec", getCodecClass())
+                .toString();
+    }
+
+    private Class<?> getCodecClass() {
+        return crawlDataCodec == null ? null : crawlDataCodec.getClass();
+    }
+}
@@ -1,4 +1,4 @@
-/* Copyright 2014-2017 Norconex Inc.
+/* Copyright 2014-2019 Norconex Inc.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -14,14 +14,30 @@
  */
 package com.norconex.collector.core.data.store.impl.mvstore;
 
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+
+import javax.xml.stream.XMLStreamException;
+
+import org.apache.commons.configuration.XMLConfiguration;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.builder.EqualsBuilder;
 import org.apache.commons.lang3.builder.HashCodeBuilder;
 import org.apache.commons.lang3.builder.ToStringBuilder;
 import org.apache.commons.lang3.builder.ToStringStyle;
 
 import com.norconex.collector.core.crawler.ICrawlerConfig;
+import com.norconex.collector.core.data.store.AbstractCrawlDataStore;
+import com.norconex.collector.core.data.store.CrawlDataStoreCompactor;
 import com.norconex.collector.core.data.store.ICrawlDataStore;
 import com.norconex.collector.core.data.store.ICrawlDataStoreFactory;
+import com.norconex.collector.core.data.store.ReferenceBloomFilter;
+import com.norconex.collector.core.data.store.impl.mvstore.MVStoreCrawlDataStoreConfig.CommitMode;
+import com.norconex.commons.lang.config.IXMLConfigurable;
+import com.norconex.commons.lang.config.XMLConfigurationUtil;
 import com.norconex.commons.lang.file.FileUtil;
+import com.norconex.commons.lang.xml.EnhancedXMLStreamWriter;
 
 /**
  * <p>
@@ -30,15 +46,106 @@ import com.norconex.commons.lang.file.FileUtil;
  * >http://h2database.com/html/mvstore.html</a>).
  * </p>
  * 
+ * <h3>Commit mode</h3>
+ * <p>
+ * As of 1.9.2, you can control how often changes are committed to disk,
+ * trading crash-recovery guarantees for throughput when using many threads.
+ * The following commit modes are supported:
+ * </p>
+ * <ul>
+ *   <li><b>OPERATION</b>: (Default) Commits every time a reference
+ *       changes state.  No reference already processed will be
+ *       processed again after a crash.</li>
+ *   <li><b>GROUP</b>: Commits every <code>commitInterval</code> reference
+ *       state changes, or every <code>commitDelay</code> milliseconds,
+ *       whichever comes first. At most that many references may be 
+ *       processed again after a crash.</li>
+ *   <li><b>ASYNC</b>: Commits in a background thread every 
+ *       <code>commitDelay</code> milliseconds.</li>
+ * </ul>
+ * 
+ * <h3>Reference filter</h3>
+ * <p>
+ * As of 1.9.2, a Bloom filter of known references is kept in memory
+ * so new references can be queued without looking them up first
+ * (see {@link ReferenceBloomFilter}). It is sized for the expected
+ * number of references with <code>referenceFilterSize</code>. Set it to
+ * zero to disable it.
+ * </p>
+ * 
+ * <h3>Front-coded keys</h3>
+ * <p>
+ * As of 1.9.2, setting <code>frontCodedKeys</code> to <code>true</code>
+ * stores each reference key on disk as the number of leading characters
+ * it shares with the previous key plus the remaining characters 
+ * (see {@link FrontCodedStringDataType}). This makes stores for deep 
+ * sites much smaller. Existing stores are converted the first time they 
+ * are opened with a different setting.
+ * </p>
+ * 
+ * <h3>Shards</h3>
+ * <p>
+ * As of 1.9.2, setting <code>shards</code> to more than one spreads
+ * references across that many stores, each with its own file and lock
+ * (see {@link ShardedMVStoreCrawlDataStore}). This reduces contention 
+ * when using many crawler threads. The number of shards cannot be changed
+ * once a store was created (delete the crawl store directory first).
+ * </p>
+ * 
+ * <h3>Compaction</h3>
+ * <p>
+ * As of 1.9.2, the store file can be compacted in the background 
+ * every <code>compactInterval</code> milliseconds, a little at a time
+ * (see {@link CrawlDataStoreCompactor}), and/or fully compacted when 
+ * closed by setting <code>compactOnClose</code> to <code>true</code>.
+ * Both are disabled by default.
+ * </p>
+ * 
+ * <h3>Crawl data codec</h3>
+ * <p>
+ * As of 1.9.2, crawl data subclasses are stored using Java serialization
+ * unless a <code>crawlDataCodec</code> for that subclass is configured
+ * (see {@link ICrawlDataCodec}). A store must always be opened with the
+ * codec it was written with.
+ * </p>
+ * 
  * <h3>XML configuration usage:</h3>
  * <pre>
  *  &lt;crawlDataStoreFactory 
- *          class="com.norconex.collector.core.data.store.impl.mvstore.MVStoreCrawlDataStoreFactory" /&gt;
+ *          class="com.norconex.collector.core.data.store.impl.mvstore.MVStoreCrawlDataStoreFactory"&gt;
+ *      &lt;commitMode&gt;[OPERATION|GROUP|ASYNC]&lt;/commitMode&gt;
+ *      &lt;commitInterval&gt;(Max. state changes between commits, GROUP only. Default is 100)&lt;/commitInterval&gt;
+ *      &lt;commitDelay&gt;(Max. milliseconds between commits, GROUP and ASYNC only. Default is 1000)&lt;/commitDelay&gt;
+ *      &lt;referenceFilterSize&gt;(Expected number of references. Default is 1000000)&lt;/referenceFilterSize&gt;
+ *      &lt;frontCodedKeys&gt;[false|true]&lt;/frontCodedKeys&gt;
+ *      &lt;shards&gt;(Number of stores references are spread across. Default is 1)&lt;/shards&gt;
+ *      &lt;compactInterval&gt;(Milliseconds between background compaction steps. Default is 0, disabled)&lt;/compactInterval&gt;
+ *      &lt;compactOnClose&gt;[false|true]&lt;/compactOnClose&gt;
+ *      &lt;crawlDataCodec class="(ICrawlDataCodec implementation)" /&gt;
+ *  &lt;/crawlDataStoreFactory&gt;
+ * </pre>
+ * 
+ * <h4>Usage example:</h4>
+ * <p>
+ * The following commits at most every 500 processed references or every 
+ * 2 seconds.
+ * </p> 
+ * <pre>
+ *  &lt;crawlDataStoreFactory 
+ *          class="com.norconex.collector.core.data.store.impl.mvstore.MVStoreCrawlDataStoreFactory"&gt;
+ *      &lt;commitMode&gt;GROUP&lt;/commitMode&gt;
+ *      &lt;commitInterval&gt;500&lt;/commitInterval&gt;
+ *      &lt;commitDelay&gt;2000&lt;/commitDelay&gt;
+ *  &lt;/crawlDataStoreFactory&gt;
  * </pre>
  * 
  * @author Pascal Dimassimo
  */
-public class MVStoreCrawlDataStoreFactory implements ICrawlDataStoreFactory {
+public class MVStoreCrawlDataStoreFactory 
+        implements ICrawlDataStoreFactory, IXMLConfigurable {
+
+    private final MVStoreCrawlDataStoreConfig storeConfig =
+            new MVStoreCrawlDataStoreConfig();
 
     @Override
     public ICrawlDataStore createCrawlDataStore(ICrawlerConfig config,
@@ -46,7 +153,90 @@ public class MVStoreCrawlDataStoreFactory implements ICrawlDataStoreFactory {
         String storeDir = config.getWorkDir().getPath()
                 + "/crawlstore/mvstore/"
                 + FileUtil.toSafeFileName(config.getId()) + "/";
-        return new MVStoreCrawlDataStore(storeDir, resume);
+        AbstractCrawlDataStore store;
+        if (storeConfig.getShards() > 1) {
+            store = new ShardedMVStoreCrawlDataStore(
+                    storeDir, resume, storeConfig);
+        } else {
+            ShardedMVStoreCrawlDataStore.checkShards(storeDir, 1);
+            store = new MVStoreCrawlDataStore(storeDir, resume, storeConfig);
+        }
+        if (storeConfig.getReferenceFilterSize() > 0) {
+            store.setReferenceFilter(new ReferenceBloomFilter(
+                    storeConfig.getReferenceFilterSize()));
+        }
+        return store;
+    }
+
+    /**
+     * Gets the MVStore configuration.
+     * @return configuration (never <code>null</code>)
+     * @since 1.9.2
+     */
+    public MVStoreCrawlDataStoreConfig getStoreConfig() {
+        return storeConfig;
+    }
+
+    @Override
+    public void loadFromXML(Reader in) throws IOException {
+        XMLConfiguration xml = XMLConfigurationUtil.newXMLConfiguration(in);
+        String mode = xml.getString("commitMode", null);
+        if (StringUtils.isNotBlank(mode)) {
+            storeConfig.setCommitMode(
+                    CommitMode.valueOf(mode.trim().toUpperCase()));
+        }
+        storeConfig.setCommitInterval(xml.getInt(
+                "commitInterval", storeConfig.getCommitInterval()));
+        storeConfig.setCommitDelay(xml.getInt(
+                "commitDelay", storeConfig.getCommitDelay()));
+        storeConfig.setReferenceFilterSize(xml.getInt(
+                "referenceFilterSize", storeConfig.getReferenceFilterSize()));
+        storeConfig.setFrontCodedKeys(xml.getBoolean(
+                "frontCodedKeys", storeConfig.isFrontCodedKeys()));
+        storeConfig.setShards(xml.getInt("shards", storeConfig.getShards()));
+        storeConfig.setCompactInterval(xml.getLong(
+                "compactInterval", storeConfig.getCompactInterval()));
+        storeConfig.setCompactOnClose(xml.getBoolean(
+                "compactOnClose", storeConfig.isCompactOnClose()));
+        storeConfig.setCrawlDataCodec(XMLConfigurationUtil.newInstance(xml,
+                "crawlDataCodec", storeConfig.getCrawlDataCodec()));
+    }
+
+    @Override
+    public void saveToXML(Writer out) throws IOException {
+        try {
+            EnhancedXMLStreamWriter writer = new EnhancedXMLStreamWriter(out);
+            writer.writeStartElement("crawlDataStoreFactory");
+            writer.writeAttribute("class", getClass().getCanonicalName());
+            if (storeConfig.getCommitMode() != null) {
+                writer.writeElementString("commitMode", 
+                        storeConfig.getCommitMode().name());
+            }
+            writer.writeElementInteger(
+                    "commitInterval", storeConfig.getCommitInterval());
+            writer.writeElementInteger(
+                    "commitDelay", storeConfig.getCommitDelay());
+            writer.writeElementInteger("referenceFilterSize", 
+                    storeConfig.getReferenceFilterSize());
+            writer.writeElementBoolean(
+                    "frontCodedKeys", storeConfig.isFrontCodedKeys());
+            writer.writeElementInteger("shards", storeConfig.getShards());
+            writer.writeElementLong(
+                    "compactInterval", storeConfig.getCompactInterval());
+            writer.writeElementBoolean(
+                    "compactOnClose", storeConfig.isCompactOnClose());
+            if (storeConfig.getCrawlDataCodec() != null) {
+                writer.writeStartElement("crawlDataCodec");
+                writer.writeAttribute("class", storeConfig
+                        .getCrawlDataCodec().getClass().getCanonicalName());
+                writer.writeEndElement();
+            }
+            writer.writeEndElement();
+            writer.flush();
+            writer.close();
+        } catch (XMLStreamException e) {
+            throw new IOException("Cannot save as XML.", e);
+        }
     }
 
     @Override
@@ -54,18 +244,24 @@ public class MVStoreCrawlDataStoreFactory implements ICrawlDataStoreFactory {
         if (!(other instanceof MVStoreCrawlDataStoreFactory)) {
             return false;
         }
-        return true;
+        MVStoreCrawlDataStoreFactory castOther = 
+                (MVStoreCrawlDataStoreFactory) other;
+        return new EqualsBuilder()
+                .append(storeConfig, castOther.storeConfig)
+                .isEquals();
     }
 
     @Override
     public int hashCode() {
         return new HashCodeBuilder()
+                .append(storeConfig)
                 .toHashCode();
     }
 
     @Override
     public String toString() {
         return new ToStringBuilder(this, ToStringStyle.SHORT_PREFIX_STYLE)
+                .append("storeConfig", storeConfig)
                 .toString();
     }
 }
@@ -0,0 +1,278 @@
+/* Copyright 2019 Norconex Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.norconex.collector.core.data.store.impl.mvstore;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.norconex.collector.core.data.ICrawlData;
+import com.norconex.collector.core.data.store.AbstractCrawlDataStore;
+import com.norconex.collector.core.data.store.CrawlDataStoreException;
+import com.norconex.collector.core.data.store.ICrawlDataStore;
+import com.norconex.collector.core.data.store.ReferenceBloomFilter;
+import com.norconex.collector.core.data.store.ReferenceStage;
+
+/**
+ * <p>
+ * {@link ICrawlDataStore} spreading references across several 
+ * {@link MVStoreCrawlDataStore} instances (shards), each having its own
+ * file, lock and commits. A reference always goes to the same shard,
+ * based on its hash code, so crawler threads working on different 
+ * references rarely wait on each other. Queued references are 
+ * taken from each shard in turn.
+ * </p>
+ * <p>
+ * Shards are stored in "shard-N" sub-directories of the store directory.
+ * The number of shards cannot be changed for an existing store.
+ * </p>
+ * @author Pascal Essiembre
+ * @since 1.9.2
+ */
+public class ShardedMVStoreCrawlDataStore extends AbstractCrawlDataStore {
+
+    private static final String SHARD_DIR_PREFIX = "shard-";
+
+    private final MVStoreCrawlDataStore[] shards;
+    private final AtomicInteger nextShard = new AtomicInteger();
+
+    /**
+     * Creates a sharded crawl data store.
+     * @param path store directory
+     * @param resume whether to resume an aborted job
+     * @param config store configuration, including the number of shards
+     *        (<code>null</code> for defaults)
+     */
+    public ShardedMVStoreCrawlDataStore(
+            String path, boolean resume, MVStoreCrawlDataStoreConfig config) {
+        super();
+        int shardCount = config == null ? 1 : Math.max(1, config.getShards());
+        checkShards(path, shardCount);
+        shards = new MVStoreCrawlDataStore[shardCount];
+        try {
+            for (int i = 0; i < shardCount; i++) {
+                shards[i] = new MVStoreCrawlDataStore(new File(
+                        path, SHARD_DIR_PREFIX + i).getPath(), resume, config);
+            }
+        } catch (RuntimeException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Gets the number of shards.
+     * @return shard count
+     */
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    // Fails if the store directory holds a different number of shards, 
+    // since references would no longer be found in their shard.
+    static void checkShards(String path, int shardCount) {
+        File[] shardDirs = new File(path).listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return file.isDirectory() 
+                        && file.getName().startsWith(SHARD_DIR_PREFIX);
+            }
+        });
+        int existing = shardDirs == null ? 0 : shardDirs.length;
+        if (existing == 0 && new File(path, "mvstore").exists()) {
+            existing = 1;
+        }
+        if (existing != 0 && existing != shardCount) {
+            throw new CrawlDataStoreException("Crawl data store at \"" 
+                    + path + "\" has " + existing + " shard(s) but "
+                    + shardCount + " are configured. Either configure " 
+                    + existing + " shard(s) or delete the store directory.");
+        }
+    }
+
+    private MVStoreCrawlDataStore shardFor(String reference) {
+        int hash = reference.hashCode();
+        hash ^= hash >>> 16;
+        return shards[(hash & Integer.MAX_VALUE) % shards.length];
+    }
+
+    @Override
+    public void queue(ICrawlData crawlData) {
+        shardFor(crawlData.getReference()).queue(crawlData);
+    }
+    @Override
+    public ReferenceStage queueIfAbsent(ICrawlData crawlData) {
+        return shardFor(crawlData.getReference()).queueIfAbsent(crawlData);
+    }
+    @Override
+    public ReferenceStage getStage(String reference) {
+        return shardFor(reference).getStage(reference);
+    }
+    @Override
+    public boolean isQueued(String reference) {
+        return shardFor(reference).isQueued(reference);
+    }
+    @Override
+    public boolean isActive(String reference) {
+        return shardFor(reference).isActive(reference);
+    }
+    @Override
+    public boolean isProcessed(String reference) {
+        return shardFor(reference).isProcessed(reference);
+    }
+    @Override
+    public ICrawlData getCached(String cacheReference) {
+        return shardFor(cacheReference).getCached(cacheReference);
+    }
+    @Override
+    public void processed(ICrawlData crawlData) {
+        shardFor(crawlData.getReference()).processed(crawlData);
+    }
+
+    @Override
+    public ICrawlData nextQueued() {
+        int start = nextShard.getAndIncrement();
+        for (int i = 0; i < shards.length; i++) {
+            ICrawlData data = shard(start + i).nextQueued();
+            if (data != null) {
+                return data;
+            }
+        }
+        return null;
+    }
+    @Override
+    public List<ICrawlData> nextQueued(int max) {
+        List<ICrawlData> list = new ArrayList<>(Math.max(0, max));
+        int start = nextShard.getAndIncrement();
+        boolean found = true;
+        while (found && list.size() < max) {
+            found = false;
+            // each shard gives its share of what is left to get
+            for (int i = 0; i < shards.length && list.size() < max; i++) {
+                int share = (max - list.size() + shards.length - i - 1) 
+                        / (shards.length - i);
+                List<ICrawlData> datas = shard(start + i).nextQueued(share);
+                found |= !datas.isEmpty();
+                list.addAll(datas);
+            }
+        }
+        return list;
+    }
+    private MVStoreCrawlDataStore shard(int index) {
+        return shards[(index & Integer.MAX_VALUE) % shards.length];
+    }
+
+    @Override
+    public boolean isQueueEmpty() {
+        for (MVStoreCrawlDataStore shard : shards) {
+            if (!shard.isQueueEmpty()) {
+                return false;
+            }
+        }
+        return true;
+    }
+    @Override
+    public int getQueueSize() {
+        int size = 0;
+        for (MVStoreCrawlDataStore shard : shards) {
+            size += shard.getQueueSize();
+        }
+        return size;
+    }
+    @Override
+    public int getActiveCount() {
+        int count = 0;
+        for (MVStoreCrawlDataStore shard : shards) {
+            count += shard.getActiveCount();
+        }
+        return count;
+    }
+    @Override
+    public boolean isCacheEmpty() {
+        for (MVStoreCrawlDataStore shard : shards) {
+            if (!shard.isCacheEmpty()) {
+                return false;
+            }
+        }
+        return true;
+    }
+    @Override
+    public int getProcessedCount() {
+        int count = 0;
+        for (MVStoreCrawlDataStore shard : shards) {
+            count += shard.getProcessedCount();
+        }
+        return count;
+    }
+
+    @Override
+    public Iterator<ICrawlData> getCacheIterator() {
+        return new Iterator<ICrawlData>() {
+            private int index;
+            private Iterator<ICrawlData> it = shards[0].getCacheIterator();
+            @Override
+            public boolean hasNext() {
+                while (!it.hasNext() && index < shards.length - 1) {
+                    index++;
+                    it = shards[index].getCacheIterator();
+                }
+                return it.hasNext();
+            }
+            @Override
+            public ICrawlData next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return it.next();
+            }
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    // The same filter is shared by all shards.
+    @Override
+    public void setReferenceFilter(ReferenceBloomFilter referenceFilter) {
+        if (referenceFilter == null) {
+            for (MVStoreCrawlDataStore shard : shards) {
+                shard.setReferenceFilter(null);
+            }
+        }
+        super.setReferenceFilter(referenceFilter);
+    }
+    @Override
+    protected boolean loadReferenceFilter(
+            ReferenceBloomFilter referenceFilter) {
+        for (MVStoreCrawlDataStore shard : shards) {
+            shard.setReferenceFilter(referenceFilter);
+        }
+        return true;
+    }
+
+    @Override
+    public void close() {
+        for (MVStoreCrawlDataStore shard : shards) {
+            if (shard != null) {
+                shard.close();
+            }
+        }
+    }
+}
@@ -1,4 +1,4 @@
-/* Copyright 2014 Norconex Inc.
+/* Copyright 2014-2019 Norconex Inc.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -14,7 +14,9 @@
  */
 package com.norconex.collector.core.jmx;
 
+import com.norconex.collector.core.data.store.CrawlDataStoreUtil;
 import com.norconex.collector.core.data.store.ICrawlDataStore;
+import com.norconex.collector.core.data.store.ReferenceBloomFilter;
 
 public class Monitoring implements MonitoringMBean {
 
@@ -34,4 +36,24 @@ public class Monitoring implements MonitoringMBean {
         return refStore.getQueueSize();
     }
 
+    @Override
+    public long getReferenceFilterLookupCount() {
+        ReferenceBloomFilter filter = 
+                CrawlDataStoreUtil.getReferenceFilter(refStore);
+        return filter == null ? 0 : filter.getLookupCount();
+    }
+
+    @Override
+    public long getReferenceFilterNegativeCount() {
+        ReferenceBloomFilter filter = 
+                CrawlDataStoreUtil.getReferenceFilter(refStore);
+        return filter == null ? 0 : filter.getNegativeCount();
+    }
+
+    @Override
+    public long getReferenceFilterFalsePositiveCount() {
+        ReferenceBloomFilter filter = 
+                CrawlDataStoreUtil.getReferenceFilter(refStore);
+        return filter == null ? 0 : filter.getFalsePositiveCount();
+    }
 }
@@ -1,4 +1,4 @@
-/* Copyright 2014 Norconex Inc.
+/* Copyright 2014-2019 Norconex Inc.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -19,5 +19,23 @@ public interface MonitoringMBean {
     int getProcessedURLCount();
     
     int getURLQueueSize();
+
+    /**
+     * @return number of reference filter look-ups
+     * @since 1.9.2
+     */
+    long getReferenceFilterLookupCount();
+
+    /**
+     * @return number of references found new by the reference filter
+     * @since 1.9.2
+     */
+    long getReferenceFilterNegativeCount();
+
+    /**
+     * @return number of reference filter false positives
+     * @since 1.9.2
+     */
+    long getReferenceFilterFalsePositiveCount();
     
 }
@@ -1,4 +1,4 @@
-/* Copyright 2014 Norconex Inc.
+/* Copyright 2014-2019 Norconex Inc.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -18,7 +18,9 @@ import org.apache.commons.lang3.StringUtils;
 import org.apache.log4j.LogManager;
 import org.apache.log4j.Logger;
 
+import com.norconex.collector.core.data.store.CrawlDataStoreUtil;
 import com.norconex.collector.core.data.store.ICrawlDataStore;
+import com.norconex.collector.core.data.store.ReferenceStage;
 import com.norconex.collector.core.pipeline.BasePipelineContext;
 import com.norconex.commons.lang.pipeline.IPipelineStage;
 
@@ -46,15 +48,17 @@ public class QueueReferenceStage
             return true;
         }
         ICrawlDataStore refStore = ctx.getCrawlDataStore();
-        
-        if (refStore.isActive(ref)) {
+
+        // the crawl data is copied when queued
+        ReferenceStage stage = CrawlDataStoreUtil.queueIfAbsent(
+                refStore, ctx.getCrawlData());
+        if (stage == ReferenceStage.ACTIVE) {
             debug("Already being processed: %s", ref);
-        } else if (refStore.isQueued(ref)) {
+        } else if (stage == ReferenceStage.QUEUED) {
             debug("Already queued: %s", ref);
-        } else if (refStore.isProcessed(ref)) {
+        } else if (stage == ReferenceStage.PROCESSED) {
             debug("Already processed: %s", ref);
         } else {
-            refStore.queue(ctx.getCrawlData().clone());
             debug("Queued for processing: %s", ref);
         }
         return true;
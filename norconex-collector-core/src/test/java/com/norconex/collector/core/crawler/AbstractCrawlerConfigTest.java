@@ -32,6 +32,7 @@ public class AbstractCrawlerConfigTest {
         MockCrawlerConfig c = new MockCrawlerConfig();
         c.setId("id");
         c.setMaxDocuments(33);
+        c.setNextQueuedBatchSize(5);
         c.setNumThreads(3);
         c.setOrphansStrategy(OrphansStrategy.IGNORE);
         c.setWorkDir(new File("c:\temp"));
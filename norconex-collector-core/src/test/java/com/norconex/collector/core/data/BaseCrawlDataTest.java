@@ -0,0 +1,127 @@
+/* Copyright 2019 Norconex Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.norconex.collector.core.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+
+import java.util.Date;
+
+import org.junit.Test;
+
+import com.norconex.commons.lang.file.ContentType;
+
+public class BaseCrawlDataTest {
+
+    @Test
+    public void testClone() {
+        BaseCrawlData data = newCrawlData("http://example.com/");
+        BaseCrawlData copy = (BaseCrawlData) data.clone();
+        assertEquals(data, copy);
+        assertNotSame(data.getCrawlDate(), copy.getCrawlDate());
+
+        CustomCrawlData custom = new CustomCrawlData("http://example.com/");
+        custom.setExtra("extra");
+        CustomCrawlData customCopy = (CustomCrawlData) custom.clone();
+        assertEquals("extra", customCopy.getExtra());
+    }
+
+    @Test
+    public void testCopyNullProperties() {
+        BaseCrawlData cached = newCrawlData("http://example.com/");
+        BaseCrawlData data = new BaseCrawlData("http://example.com/");
+        data.setState(CrawlState.UNMODIFIED);
+        data.setMetaChecksum("newMetaChecksum");
+        data.copyNullProperties(cached);
+        assertEquals(CrawlState.UNMODIFIED, data.getState());
+        assertEquals("newMetaChecksum", data.getMetaChecksum());
+        assertEquals(cached.getContentChecksum(), data.getContentChecksum());
+        assertEquals(cached.getContentType(), data.getContentType());
+        assertEquals(cached.getCrawlDate(), data.getCrawlDate());
+        assertEquals(cached.getParentRootReference(), 
+                data.getParentRootReference());
+    }
+
+    @Test
+    public void testCopyNullPropertiesSubclass() {
+        CustomCrawlData cached = new CustomCrawlData("http://example.com/");
+        cached.setContentChecksum("contentChecksum");
+        cached.setExtra("extra");
+        CustomCrawlData data = new CustomCrawlData("http://example.com/");
+        data.copyNullProperties(cached);
+        assertEquals("contentChecksum", data.getContentChecksum());
+        assertEquals("extra", data.getExtra());
+    }
+
+    @Test
+    public void testCopyNullPropertiesOverridden() {
+        CopyingCrawlData cached = new CopyingCrawlData("http://example.com/");
+        cached.setContentChecksum("contentChecksum");
+        cached.setExtra("extra");
+        CopyingCrawlData data = new CopyingCrawlData("http://example.com/");
+        // would fail if copied using reflection
+        data.copyNullProperties(cached);
+        assertEquals("contentChecksum", data.getContentChecksum());
+        assertEquals("extra", data.getExtra());
+    }
+
+    private BaseCrawlData newCrawlData(String reference) {
+        BaseCrawlData data = new BaseCrawlData(reference);
+        data.setParentRootReference("http://example.com/parent");
+        data.setState(CrawlState.MODIFIED);
+        data.setMetaChecksum("metaChecksum");
+        data.setContentChecksum("contentChecksum");
+        data.setContentType(ContentType.HTML);
+        data.setCrawlDate(new Date());
+        return data;
+    }
+
+    public static class CustomCrawlData extends BaseCrawlData {
+        private static final long serialVersionUID = 1L;
+        private String extra;
+        public CustomCrawlData() {
+            super();
+        }
+        public CustomCrawlData(String reference) {
+            super(reference);
+        }
+        public String getExtra() {
+            return extra;
+        }
+        public void setExtra(String extra) {
+            this.extra = extra;
+        }
+    }
+
+    public static class CopyingCrawlData extends CustomCrawlData {
+        private static final long serialVersionUID = 1L;
+        public CopyingCrawlData(String reference) {
+            super(reference);
+        }
+        public String getUnreadable() {
+            throw new UnsupportedOperationException();
+        }
+        public void setUnreadable(String unreadable) {
+            // not stored
+        }
+        @Override
+        public void copyNullProperties(ICrawlData source) {
+            super.copyNullProperties(source);
+            if (getExtra() == null) {
+                setExtra(((CustomCrawlData) source).getExtra());
+            }
+        }
+    }
+}
@@ -0,0 +1,151 @@
+/* Copyright 2019 Norconex Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.norconex.collector.core.data.store;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Iterator;
+
+import org.junit.Test;
+
+import com.norconex.collector.core.data.BaseCrawlData;
+import com.norconex.collector.core.data.ICrawlData;
+import com.norconex.collector.core.data.store.impl.async.AsyncCrawlDataStore;
+import com.norconex.collector.core.data.store.impl.cache.CachingCrawlDataStore;
+import com.norconex.collector.core.data.store.impl.memory.InMemoryCrawlDataStore;
+
+public class CrawlDataStoreUtilTest {
+
+    @Test
+    public void testQueueIfAbsentWithoutStages() {
+        assertStages(new PlainCrawlDataStore());
+    }
+
+    @Test
+    public void testDecoratorsWithoutStages() {
+        assertStages(new CachingCrawlDataStore(
+                new PlainCrawlDataStore(), 100, 0));
+        AsyncCrawlDataStore async = 
+                new AsyncCrawlDataStore(new PlainCrawlDataStore(), 10, 5);
+        assertStages(async);
+        async.close();
+    }
+
+    private void assertStages(ICrawlDataStore store) {
+        String ref = "http://example.com/";
+        BaseCrawlData crawlData = new BaseCrawlData(ref);
+        assertEquals(ReferenceStage.NONE, 
+                CrawlDataStoreUtil.getStage(store, ref));
+        assertEquals(ReferenceStage.NONE, 
+                CrawlDataStoreUtil.queueIfAbsent(store, crawlData));
+        assertEquals(ReferenceStage.QUEUED, 
+                CrawlDataStoreUtil.queueIfAbsent(store, crawlData));
+        assertEquals(1, store.getQueueSize());
+
+        ICrawlData next = store.nextQueued();
+        assertNotSame(crawlData, next);
+        assertEquals(ReferenceStage.ACTIVE, 
+                CrawlDataStoreUtil.getStage(store, ref));
+        store.processed(next);
+        assertEquals(ReferenceStage.PROCESSED, 
+                CrawlDataStoreUtil.queueIfAbsent(store, crawlData));
+        assertTrue(store.isQueueEmpty());
+    }
+
+    @Test
+    public void testNextQueuedWithoutBatches() {
+        ICrawlDataStore store = new PlainCrawlDataStore();
+        for (int i = 0; i < 5; i++) {
+            store.queue(new BaseCrawlData("http://example.com/" + i));
+        }
+        assertEquals(3, CrawlDataStoreUtil.nextQueued(store, 3).size());
+        assertEquals(2, CrawlDataStoreUtil.nextQueued(store, 3).size());
+        assertTrue(CrawlDataStoreUtil.nextQueued(store, 3).isEmpty());
+        assertEquals(5, store.getActiveCount());
+    }
+
+    @Test
+    public void testReferenceFilterWithoutStages() {
+        assertNull(CrawlDataStoreUtil.getReferenceFilter(
+                new PlainCrawlDataStore()));
+        assertNull(CrawlDataStoreUtil.getReferenceFilter(
+                new CachingCrawlDataStore(new PlainCrawlDataStore(), 100, 0)));
+    }
+
+    // Only implements the original ICrawlDataStore methods
+    private static class PlainCrawlDataStore implements ICrawlDataStore {
+        private final ICrawlDataStore store = 
+                new InMemoryCrawlDataStore(false, null);
+        @Override
+        public void queue(ICrawlData crawlData) {
+            store.queue(crawlData);
+        }
+        @Override
+        public boolean isQueueEmpty() {
+            return store.isQueueEmpty();
+        }
+        @Override
+        public int getQueueSize() {
+            return store.getQueueSize();
+        }
+        @Override
+        public boolean isQueued(String reference) {
+            return store.isQueued(reference);
+        }
+        @Override
+        public ICrawlData nextQueued() {
+            return store.nextQueued();
+        }
+        @Override
+        public boolean isActive(String reference) {
+            return store.isActive(reference);
+        }
+        @Override
+        public int getActiveCount() {
+            return store.getActiveCount();
+        }
+        @Override
+        public ICrawlData getCached(String cacheReference) {
+            return store.getCached(cacheReference);
+        }
+        @Override
+        public boolean isCacheEmpty() {
+            return store.isCacheEmpty();
+        }
+        @Override
+        public void processed(ICrawlData crawlData) {
+            store.processed(crawlData);
+        }
+        @Override
+        public boolean isProcessed(String reference) {
+            return store.isProcessed(reference);
+        }
+        @Override
+        public int getProcessedCount() {
+            return store.getProcessedCount();
+        }
+        @Override
+        public Iterator<ICrawlData> getCacheIterator() {
+            return store.getCacheIterator();
+        }
+        @Override
+        public void close() {
+            store.close();
+        }
+    }
+}
@@ -0,0 +1,76 @@
+/* Copyright 2019 Norconex Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.norconex.collector.core.data.store;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class ReferenceBloomFilterTest {
+
+    @Test
+    public void testNoFalseNegatives() {
+        ReferenceBloomFilter filter = new ReferenceBloomFilter(10000);
+        for (int i = 0; i < 10000; i++) {
+            filter.add("http://example.com/page" + i);
+        }
+        for (int i = 0; i < 10000; i++) {
+            assertTrue(filter.mightContain("http://example.com/page" + i));
+        }
+        assertEquals(10000, filter.getLookupCount());
+        assertEquals(0, filter.getNegativeCount());
+    }
+
+    @Test
+    public void testFalsePositiveRate() {
+        ReferenceBloomFilter filter = new ReferenceBloomFilter(10000, 0.01);
+        for (int i = 0; i < 10000; i++) {
+            filter.add("http://example.com/page" + i);
+        }
+        int positives = 0;
+        for (int i = 0; i < 10000; i++) {
+            if (filter.mightContain("http://example.com/other" + i)) {
+                positives++;
+                filter.falsePositive();
+            }
+        }
+        // allow some margin over the 1% target
+        assertTrue("Too many false positives: " + positives, positives < 200);
+        assertEquals(positives, filter.getFalsePositiveCount());
+        assertEquals(10000 - positives, filter.getNegativeCount());
+    }
+
+    @Test
+    public void testEmpty() {
+        ReferenceBloomFilter filter = new ReferenceBloomFilter(100);
+        assertFalse(filter.mightContain("http://example.com/"));
+        assertEquals(1, filter.getNegativeCount());
+    }
+
+    @Test
+    public void testExpectedCountExceeded() {
+        ReferenceBloomFilter filter = new ReferenceBloomFilter(100);
+        for (int i = 0; i < 100; i++) {
+            filter.add("http://example.com/page" + i);
+        }
+        assertFalse(filter.isExpectedCountExceeded());
+        for (int i = 100; i < 200; i++) {
+            filter.add("http://example.com/page" + i);
+        }
+        assertTrue(filter.isExpectedCountExceeded());
+    }
+}
@@ -1,4 +1,4 @@
-/* Copyright 2010-2016 Norconex Inc.
+/* Copyright 2010-2019 Norconex Inc.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -23,7 +23,10 @@ import static org.junit.Assert.assertTrue;
 import java.io.IOException;
 import java.io.Writer;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
 
 import org.apache.commons.configuration.XMLConfiguration;
 import org.junit.After;
@@ -37,7 +40,13 @@ import com.norconex.collector.core.crawler.ICrawlerConfig;
 import com.norconex.collector.core.data.BaseCrawlData;
 import com.norconex.collector.core.data.CrawlState;
 import com.norconex.collector.core.data.ICrawlData;
+import com.norconex.collector.core.data.store.AbstractCrawlDataStore;
+import com.norconex.collector.core.data.store.CrawlDataStoreUtil;
+import com.norconex.collector.core.data.store.IBatchCrawlDataStore;
 import com.norconex.collector.core.data.store.ICrawlDataStore;
+import com.norconex.collector.core.data.store.IStagedCrawlDataStore;
+import com.norconex.collector.core.data.store.ReferenceBloomFilter;
+import com.norconex.collector.core.data.store.ReferenceStage;
 import com.norconex.commons.lang.file.ContentType;
 
 /**
@@ -122,6 +131,10 @@ public abstract class BaseCrawlDataStoreTest {
         // implementations.
         resetDatabase(false);
     }
+    protected void setReferenceFilter(
+            ICrawlDataStore crawlStore, ReferenceBloomFilter filter) {
+        ((AbstractCrawlDataStore) crawlStore).setReferenceFilter(filter);
+    }
     protected String getCrawlerId() {
         return getClass().getSimpleName();
     }
@@ -192,6 +205,81 @@ public abstract class BaseCrawlDataStoreTest {
         assertTrue(crawlStore.isActive(ref));
     }
 
+    @Test
+    public void testNextBatch() throws Exception {
+        Set<String> refs = new HashSet<>();
+        for (int i = 0; i < 5; i++) {
+            String ref = "https://www.norconex.com/" + i;
+            refs.add(ref);
+            crawlStore.queue(createCrawlData(ref));
+        }
+
+        // Obtain a first batch smaller than the queue
+        IBatchCrawlDataStore store = (IBatchCrawlDataStore) crawlStore;
+        List<ICrawlData> batch = store.nextQueued(3);
+        assertEquals(3, batch.size());
+        assertEquals(2, crawlStore.getQueueSize());
+        assertEquals(3, crawlStore.getActiveCount());
+        Set<String> claimed = new HashSet<>();
+        for (ICrawlData data : batch) {
+            assertTrue(crawlStore.isActive(data.getReference()));
+            assertFalse(crawlStore.isQueued(data.getReference()));
+            claimed.add(data.getReference());
+        }
+
+        // Obtain the remaining ones, asking for more than queued
+        batch = store.nextQueued(10);
+        assertEquals(2, batch.size());
+        for (ICrawlData data : batch) {
+            claimed.add(data.getReference());
+        }
+        assertEquals(refs, claimed);
+        assertTrue(crawlStore.isQueueEmpty());
+        assertEquals(5, crawlStore.getActiveCount());
+
+        // Queue is empty
+        assertTrue(store.nextQueued(10).isEmpty());
+    }
+
+    @Test
+    public void testQueueIfAbsent() throws Exception {
+        IStagedCrawlDataStore store = (IStagedCrawlDataStore) crawlStore;
+        String ref = "https://www.norconex.com/";
+        assertEquals(ReferenceStage.NONE, store.getStage(ref));
+        assertEquals(ReferenceStage.NONE, 
+                store.queueIfAbsent(createCrawlData(ref)));
+        assertTrue(crawlStore.isQueued(ref));
+
+        assertEquals(ReferenceStage.QUEUED, store.getStage(ref));
+        assertEquals(ReferenceStage.QUEUED, 
+                store.queueIfAbsent(createCrawlData(ref)));
+        assertEquals(1, crawlStore.getQueueSize());
+
+        ICrawlData next = crawlStore.nextQueued();
+        assertEquals(ReferenceStage.ACTIVE, store.getStage(ref));
+        assertEquals(ReferenceStage.ACTIVE, 
+                store.queueIfAbsent(createCrawlData(ref)));
+        assertTrue(crawlStore.isQueueEmpty());
+
+        crawlStore.processed(next);
+        assertEquals(ReferenceStage.PROCESSED, store.getStage(ref));
+        assertEquals(ReferenceStage.PROCESSED, 
+                store.queueIfAbsent(createCrawlData(ref)));
+        assertTrue(crawlStore.isQueueEmpty());
+    }
+
+    @Test
+    public void testQueueIfAbsentCached() throws Exception {
+        // being cached does not prevent queuing
+        String ref = "https://www.norconex.com/";
+        cacheReference(ref);
+        IStagedCrawlDataStore store = (IStagedCrawlDataStore) crawlStore;
+        assertEquals(ReferenceStage.NONE, store.getStage(ref));
+        assertEquals(ReferenceStage.NONE, 
+                store.queueIfAbsent(createCrawlData(ref)));
+        assertTrue(crawlStore.isQueued(ref));
+    }
+
     @Test
     public void testProcess() throws Exception {
 
@@ -210,6 +298,40 @@ public abstract class BaseCrawlDataStoreTest {
         assertFalse(crawlStore.isActive(ref));
     }
 
+    @Test
+    public void testCounts() throws Exception {
+        crawlStore.queue(createCrawlData("https://www.norconex.com/1"));
+        crawlStore.queue(createCrawlData("https://www.norconex.com/2"));
+        crawlStore.queue(createCrawlData("https://www.norconex.com/3"));
+        assertEquals(3, crawlStore.getQueueSize());
+
+        ICrawlData next = crawlStore.nextQueued();
+        crawlStore.nextQueued();
+        assertEquals(1, crawlStore.getQueueSize());
+        assertEquals(2, crawlStore.getActiveCount());
+        assertEquals(0, crawlStore.getProcessedCount());
+
+        crawlStore.processed(next);
+        assertEquals(1, crawlStore.getQueueSize());
+        assertEquals(1, crawlStore.getActiveCount());
+        assertEquals(1, crawlStore.getProcessedCount());
+    }
+
+    @Test
+    public void testResumeCounts() throws Exception {
+        crawlStore.queue(createCrawlData("https://www.norconex.com/1"));
+        crawlStore.queue(createCrawlData("https://www.norconex.com/2"));
+        crawlStore.queue(createCrawlData("https://www.norconex.com/3"));
+        crawlStore.processed(crawlStore.nextQueued());
+        crawlStore.nextQueued();
+
+        // active ones are queued again
+        resetDatabase(true);
+        assertEquals(2, crawlStore.getQueueSize());
+        assertEquals(0, crawlStore.getActiveCount());
+        assertEquals(1, crawlStore.getProcessedCount());
+    }
+
     @Test
     public void testCache() throws Exception {
 
@@ -428,4 +550,36 @@ public abstract class BaseCrawlDataStoreTest {
         assertNotNull(cached);
         assertFalse(crawlStore.isCacheEmpty());
     }
+
+    @Test
+    public void testReferenceFilter() throws Exception {
+        String processedRef = "https://www.norconex.com/processed";
+        String queuedRef = "https://www.norconex.com/queued";
+        // e.g., embedded documents are processed without being queued
+        String processedOnlyRef = "https://www.norconex.com/processedOnly";
+        crawlStore.queue(createCrawlData(processedRef));
+        crawlStore.processed(crawlStore.nextQueued());
+        crawlStore.queue(createCrawlData(queuedRef));
+        crawlStore.processed(createCrawlData(processedOnlyRef));
+        resetDatabase(true);
+
+        // references already in store must be loaded in the filter
+        setReferenceFilter(crawlStore, new ReferenceBloomFilter(1000));
+        ReferenceBloomFilter filter = 
+                CrawlDataStoreUtil.getReferenceFilter(crawlStore);
+        if (filter == null) {
+            // not supported by this implementation
+            return;
+        }
+        assertTrue(filter.mightContain(processedRef));
+        assertTrue(filter.mightContain(queuedRef));
+        assertTrue(filter.mightContain(processedOnlyRef));
+        assertEquals(ReferenceStage.PROCESSED, CrawlDataStoreUtil.queueIfAbsent(
+                crawlStore, createCrawlData(processedOnlyRef)));
+        assertFalse(crawlStore.isQueued(processedOnlyRef));
+
+        String newRef = "https://www.norconex.com/new";
+        crawlStore.queue(createCrawlData(newRef));
+        assertTrue(filter.mightContain(newRef));
+    }
 }
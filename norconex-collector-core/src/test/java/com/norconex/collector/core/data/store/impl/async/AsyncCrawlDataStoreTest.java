@@ -0,0 +1,258 @@
+/* Copyright 2019 Norconex Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.norconex.collector.core.data.store.impl.async;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.norconex.collector.core.TestUtil;
+import com.norconex.collector.core.crawler.ICrawlerConfig;
+import com.norconex.collector.core.data.ICrawlData;
+import com.norconex.collector.core.data.store.CrawlDataStoreException;
+import com.norconex.collector.core.data.store.ICrawlDataStore;
+import com.norconex.collector.core.data.store.IStagedCrawlDataStore;
+import com.norconex.collector.core.data.store.ReferenceBloomFilter;
+import com.norconex.collector.core.data.store.ReferenceStage;
+import com.norconex.collector.core.data.store.impl.BaseCrawlDataStoreTest;
+import com.norconex.collector.core.data.store.impl.memory.InMemoryCrawlDataStore;
+import com.norconex.collector.core.data.store.impl.mvstore.MVStoreCrawlDataStoreFactory;
+import com.norconex.commons.lang.config.XMLConfigurationUtil;
+
+public class AsyncCrawlDataStoreTest extends BaseCrawlDataStoreTest {
+
+    @Override
+    protected ICrawlDataStore createCrawlDataStore(
+            ICrawlerConfig config, TemporaryFolder tempFolder, boolean resume) {
+        return new AsyncCrawlDataStoreFactory(
+                new MVStoreCrawlDataStoreFactory()).createCrawlDataStore(
+                        config, resume);
+    }
+
+    @Override
+    protected void setReferenceFilter(
+            ICrawlDataStore crawlStore, ReferenceBloomFilter filter) {
+        super.setReferenceFilter(
+                ((AsyncCrawlDataStore) crawlStore).getDelegate(), filter);
+    }
+
+    @Test
+    public void testReadYourWrites() throws Exception {
+        final CountDownLatch latch = new CountDownLatch(1);
+        ICrawlDataStore slowStore = new InMemoryCrawlDataStore(false, null) {
+            @Override
+            public void processed(ICrawlData crawlData) {
+                await(latch);
+                super.processed(crawlData);
+            }
+        };
+        AsyncCrawlDataStore store = new AsyncCrawlDataStore(slowStore, 10, 5);
+        String ref = "http://example.com/1";
+        store.queue(createCrawlData(ref));
+        store.processed(store.nextQueued());
+
+        // not yet written, but seen as processed
+        assertEquals(1, store.getPendingCount());
+        assertTrue(store.isProcessed(ref));
+        assertFalse(store.isActive(ref));
+        assertEquals(ReferenceStage.PROCESSED, store.getStage(ref));
+        assertEquals(ReferenceStage.PROCESSED, 
+                store.queueIfAbsent(createCrawlData(ref)));
+        assertNull(store.getCached(ref));
+        assertFalse(slowStore.isProcessed(ref));
+
+        latch.countDown();
+        store.flush();
+        assertEquals(0, store.getPendingCount());
+        assertTrue(slowStore.isProcessed(ref));
+        assertEquals(1, store.getProcessedCount());
+        store.close();
+    }
+
+    // would hang if counts waited for changes to be applied
+    @Test(timeout = 30000)
+    public void testCountsDoNotWait() throws Exception {
+        final CountDownLatch latch = new CountDownLatch(1);
+        ICrawlDataStore slowStore = new InMemoryCrawlDataStore(false, null) {
+            @Override
+            public void processed(ICrawlData crawlData) {
+                await(latch);
+                super.processed(crawlData);
+            }
+        };
+        AsyncCrawlDataStore store = new AsyncCrawlDataStore(slowStore, 10, 5);
+        store.queue(createCrawlData("http://example.com/1"));
+        store.queue(createCrawlData("http://example.com/2"));
+        store.processed(store.nextQueued());
+        store.queue(createCrawlData("http://example.com/3"));
+
+        // the writer is blocked processing the first reference
+        assertEquals(2, store.getQueueSize());
+        assertFalse(store.isQueueEmpty());
+        assertEquals(1, store.getProcessedCount());
+        assertEquals(0, slowStore.getProcessedCount());
+
+        latch.countDown();
+        store.flush();
+        assertEquals(0, store.getPendingCount());
+        assertEquals(2, store.getQueueSize());
+        assertEquals(1, store.getProcessedCount());
+        store.close();
+    }
+
+    // would hang if crawler threads were waiting on one another
+    @Test(timeout = 30000)
+    public void testNoGlobalLock() throws Exception {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final CountDownLatch lookingUp = new CountDownLatch(1);
+        final String slowRef = "http://example.com/slow";
+        ICrawlDataStore slowStore = new InMemoryCrawlDataStore(false, null) {
+            @Override
+            public ReferenceStage getStage(String reference) {
+                if (slowRef.equals(reference)) {
+                    lookingUp.countDown();
+                    await(latch);
+                }
+                return super.getStage(reference);
+            }
+            @Override
+            public void queue(ICrawlData crawlData) {
+                await(latch);
+                super.queue(crawlData);
+            }
+        };
+        final AsyncCrawlDataStore store = 
+                new AsyncCrawlDataStore(slowStore, 1, 1);
+        Thread slowThread = new Thread() {
+            @Override
+            public void run() {
+                store.queueIfAbsent(createCrawlData(slowRef));
+            }
+        };
+        slowThread.start();
+        lookingUp.await();
+
+        // a slow look-up does not block other references
+        String ref1 = "http://example.com/1";
+        assertEquals(ReferenceStage.NONE, 
+                store.queueIfAbsent(createCrawlData(ref1)));
+        // the writer is now blocked, filling the queue
+        String ref2 = "http://example.com/2";
+        assertEquals(ReferenceStage.NONE, 
+                store.queueIfAbsent(createCrawlData(ref2)));
+        // waiting for room in the queue does not block look-ups
+        final String ref3 = "http://example.com/3";
+        Thread fullQueueThread = new Thread() {
+            @Override
+            public void run() {
+                store.queue(createCrawlData(ref3));
+            }
+        };
+        fullQueueThread.start();
+        assertEquals(ReferenceStage.QUEUED, store.getStage(ref1));
+        assertEquals(ReferenceStage.QUEUED, 
+                store.queueIfAbsent(createCrawlData(ref2)));
+        // being looked up by the slow thread
+        assertEquals(ReferenceStage.QUEUED, 
+                store.queueIfAbsent(createCrawlData(slowRef)));
+
+        latch.countDown();
+        slowThread.join();
+        fullQueueThread.join();
+        store.flush();
+        assertEquals(4, slowStore.getQueueSize());
+        store.close();
+    }
+    // would hang if the writer missed changes submitted while closing
+    @Test(timeout = 30000)
+    public void testCloseWhileSubmitting() throws Exception {
+        for (int i = 0; i < 20; i++) {
+            final AsyncCrawlDataStore store = new AsyncCrawlDataStore(
+                    new InMemoryCrawlDataStore(false, null), 1000, 10);
+            final CountDownLatch submitting = new CountDownLatch(1);
+            Thread submitter = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int j = 0; ; j++) {
+                            store.queue(createCrawlData(
+                                    "http://example.com/" + j));
+                            submitting.countDown();
+                        }
+                    } catch (CrawlDataStoreException e) {
+                        // closed
+                    }
+                }
+            };
+            submitter.start();
+            submitting.await();
+            store.close();
+            submitter.join();
+        }
+    }
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Test
+    public void testQueuedInOrder() throws Exception {
+        IStagedCrawlDataStore store = 
+                (IStagedCrawlDataStore) getCrawlDataStore();
+        for (int i = 0; i < 500; i++) {
+            assertEquals(ReferenceStage.NONE, store.queueIfAbsent(
+                    createCrawlData("http://example.com/" + i)));
+        }
+        assertEquals(ReferenceStage.QUEUED, store.queueIfAbsent(
+                createCrawlData("http://example.com/0")));
+        ICrawlData data;
+        int count = 0;
+        while ((data = store.nextQueued()) != null) {
+            store.processed(data);
+            count++;
+        }
+        assertEquals(500, count);
+        assertEquals(500, store.getProcessedCount());
+        assertTrue(store.isQueueEmpty());
+    }
+
+    @Test
+    public void testValidation() throws IOException {
+        TestUtil.testValidation(getClass());
+    }
+
+    @Test
+    public void testWriteRead() throws IOException {
+        AsyncCrawlDataStoreFactory f = new AsyncCrawlDataStoreFactory();
+        f.setQueueSize(5000);
+        f.setBatchSize(50);
+        MVStoreCrawlDataStoreFactory mvstore = 
+                new MVStoreCrawlDataStoreFactory();
+        mvstore.getStoreConfig().setCommitInterval(500);
+        f.setCrawlDataStoreFactory(mvstore);
+        System.out.println("Writing/Reading this: " + f);
+        XMLConfigurationUtil.assertWriteRead(f);
+    }
+}
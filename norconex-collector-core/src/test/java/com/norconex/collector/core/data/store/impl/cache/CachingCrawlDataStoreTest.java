@@ -0,0 +1,154 @@
+/* Copyright 2019 Norconex Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.norconex.collector.core.data.store.impl.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.norconex.collector.core.TestUtil;
+import com.norconex.collector.core.crawler.ICrawlerConfig;
+import com.norconex.collector.core.data.ICrawlData;
+import com.norconex.collector.core.data.store.ICrawlDataStore;
+import com.norconex.collector.core.data.store.ReferenceBloomFilter;
+import com.norconex.collector.core.data.store.ReferenceStage;
+import com.norconex.collector.core.data.store.impl.BaseCrawlDataStoreTest;
+import com.norconex.collector.core.data.store.impl.jdbc.BasicJDBCCrawlDataStoreFactory;
+import com.norconex.collector.core.data.store.impl.mvstore.MVStoreCrawlDataStore;
+import com.norconex.collector.core.data.store.impl.mvstore.MVStoreCrawlDataStoreFactory;
+import com.norconex.commons.lang.config.XMLConfigurationUtil;
+
+public class CachingCrawlDataStoreTest extends BaseCrawlDataStoreTest {
+
+    @Override
+    protected ICrawlDataStore createCrawlDataStore(
+            ICrawlerConfig config, TemporaryFolder tempFolder, boolean resume) {
+        return new CachingCrawlDataStoreFactory(
+                new MVStoreCrawlDataStoreFactory()).createCrawlDataStore(
+                        config, resume);
+    }
+
+    @Test
+    public void testHitRatio() throws Exception {
+        String ref = "http://example.com/cached";
+        cacheReference(ref);
+        CachingCrawlDataStore store = 
+                (CachingCrawlDataStore) getCrawlDataStore();
+        ICrawlData cached = store.getCached(ref);
+        assertNotSame(cached, store.getCached(ref));
+        assertNull(store.getCached("http://example.com/notcached"));
+        assertNull(store.getCached("http://example.com/notcached"));
+        assertEquals(2, store.getHitCount());
+        assertEquals(2, store.getMissCount());
+
+        // processed references are remembered
+        store.queue(cached);
+        store.processed(store.nextQueued());
+        assertNull(store.getCached(ref));
+        assertEquals(ReferenceStage.PROCESSED, store.getStage(ref));
+        assertEquals(ReferenceStage.PROCESSED, store.queueIfAbsent(cached));
+        assertEquals(5.0 / 7, store.getHitRatio(), 0.0001);
+    }
+
+    @Test(timeout = 30000)
+    public void testProcessedWhileLookingUpCached() throws Exception {
+        getCrawlDataStore().close();
+        final String ref = "http://example.com/cached";
+        String path = getTempfolder().newFolder().getPath();
+        MVStoreCrawlDataStore mvstore = new MVStoreCrawlDataStore(path, false);
+        mvstore.processed(createCrawlData(ref));
+        mvstore.close();
+
+        final CountDownLatch lookedUp = new CountDownLatch(1);
+        final CountDownLatch proceed = new CountDownLatch(1);
+        ICrawlDataStore slowStore = new MVStoreCrawlDataStore(path, false) {
+            @Override
+            public ICrawlData getCached(String cacheReference) {
+                ICrawlData data = super.getCached(cacheReference);
+                lookedUp.countDown();
+                try {
+                    proceed.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return data;
+            }
+        };
+        final CachingCrawlDataStore store = 
+                new CachingCrawlDataStore(slowStore, 100, 0);
+        setCrawlDataStore(store);
+        Thread lookup = new Thread() {
+            @Override
+            public void run() {
+                store.getCached(ref);
+            }
+        };
+        lookup.start();
+        lookedUp.await();
+        store.queue(createCrawlData(ref));
+        store.processed(store.nextQueued());
+        proceed.countDown();
+        lookup.join();
+        // the value looked up before being processed is not kept
+        assertNull(store.getCached(ref));
+    }
+
+    @Override
+    protected void setReferenceFilter(
+            ICrawlDataStore crawlStore, ReferenceBloomFilter filter) {
+        super.setReferenceFilter(
+                ((CachingCrawlDataStore) crawlStore).getDelegate(), filter);
+    }
+
+    @Test
+    public void testExpiry() throws Exception {
+        LRUCache<String, String> cache = new LRUCache<>(100, 50);
+        cache.put("key", "value");
+        assertEquals("value", cache.get("key").getValue());
+        Thread.sleep(100);
+        assertNull(cache.get("key"));
+
+        cache = new LRUCache<>(16, 0);
+        for (int i = 0; i < 1000; i++) {
+            cache.put("key" + i, null);
+        }
+        assertEquals(16, cache.size());
+    }
+
+    @Test
+    public void testValidation() throws IOException {
+        TestUtil.testValidation(getClass());
+    }
+
+    @Test
+    public void testWriteRead() throws IOException {
+        CachingCrawlDataStoreFactory f = new CachingCrawlDataStoreFactory();
+        f.setMaxSize(5000);
+        f.setTimeToLive(60000);
+        BasicJDBCCrawlDataStoreFactory jdbc = 
+                new BasicJDBCCrawlDataStoreFactory();
+        jdbc.setUrl("jdbc:h2:tcp://localhost/~/crawlstore");
+        jdbc.setShared(true);
+        f.setCrawlDataStoreFactory(jdbc);
+        System.out.println("Writing/Reading this: " + f);
+        XMLConfigurationUtil.assertWriteRead(f);
+    }
+}
@@ -1,4 +1,4 @@
-/* Copyright 2010-2017 Norconex Inc.
+/* Copyright 2010-2019 Norconex Inc.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -14,16 +14,46 @@
  */
 package com.norconex.collector.core.data.store.impl.jdbc;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.Closeable;
 import java.io.IOException;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import org.apache.commons.dbcp2.BasicDataSource;
+import org.apache.commons.dbutils.QueryRunner;
+import org.apache.commons.dbutils.handlers.ScalarHandler;
 import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
 
 import com.norconex.collector.core.TestUtil;
 import com.norconex.collector.core.crawler.ICrawlerConfig;
+import com.norconex.collector.core.data.BaseCrawlData;
+import com.norconex.collector.core.data.CrawlState;
+import com.norconex.collector.core.data.ICrawlData;
+import com.norconex.collector.core.data.store.CrawlDataStoreCompactor;
+import com.norconex.collector.core.data.store.CrawlDataStoreException;
+import com.norconex.collector.core.data.store.IBatchCrawlDataStore;
 import com.norconex.collector.core.data.store.ICrawlDataStore;
+import com.norconex.collector.core.data.store.IStagedCrawlDataStore;
 import com.norconex.collector.core.data.store.impl.BaseCrawlDataStoreTest;
 import com.norconex.commons.lang.config.XMLConfigurationUtil;
+import com.norconex.commons.lang.encrypt.EncryptionKey;
+import com.norconex.commons.lang.encrypt.EncryptionKey.Source;
+import com.norconex.commons.lang.file.ContentType;
 
 public class H2CrawlDataStoreTest extends BaseCrawlDataStoreTest {
 	
@@ -34,6 +64,364 @@ public class H2CrawlDataStoreTest extends BaseCrawlDataStoreTest {
                 config, resume);
     }
     
+    @Test
+    public void testCompaction() throws Exception {
+        JDBCCrawlDataStore store = (JDBCCrawlDataStore) getCrawlDataStore();
+        for (int i = 0; i < 1000; i++) {
+            store.queue(createCrawlData("http://example.com/" + i));
+        }
+        ICrawlData data;
+        while ((data = store.nextQueued()) != null) {
+            store.processed(data);
+        }
+        assertTrue(store.compact() >= 0);
+        store.setCompactInterval(10);
+        CrawlDataStoreCompactor compactor = store.getCompactor();
+        for (int i = 0; i < 100 && compactor.getStepCount() == 0; i++) {
+            Thread.sleep(20);
+        }
+        assertTrue(compactor.getStepCount() > 0);
+        assertEquals(-1, compactor.getFillRate());
+
+        // still usable after compacting on close
+        store.setCompactOnClose(true);
+        resetDatabase(true);
+        assertEquals(1000, getCrawlDataStore().getProcessedCount());
+    }
+
+    @Test
+    public void testConcurrentNext() throws Exception {
+        final IBatchCrawlDataStore store = 
+                (IBatchCrawlDataStore) getCrawlDataStore();
+        final int refCount = 500;
+        for (int i = 0; i < refCount; i++) {
+            store.queue(createCrawlData("http://example.com/" + i));
+        }
+        final Set<String> claimed = Collections.newSetFromMap(
+                new ConcurrentHashMap<String, Boolean>());
+        final AtomicInteger claimCount = new AtomicInteger();
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            final boolean batch = i % 2 == 0;
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    while (true) {
+                        List<ICrawlData> datas = store.nextQueued(
+                                batch ? 5 : 1);
+                        if (datas.isEmpty()) {
+                            return;
+                        }
+                        for (ICrawlData data : datas) {
+                            claimed.add(data.getReference());
+                            claimCount.incrementAndGet();
+                            store.processed(data);
+                        }
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        // each reference was claimed exactly once
+        assertEquals(refCount, claimCount.get());
+        assertEquals(refCount, claimed.size());
+        assertTrue(store.isQueueEmpty());
+        assertEquals(0, store.getActiveCount());
+        assertEquals(refCount, store.getProcessedCount());
+        assertNull(store.nextQueued());
+    }
+
+    @Test
+    public void testConcurrentQueueIfAbsent() throws Exception {
+        final IStagedCrawlDataStore store = 
+                (IStagedCrawlDataStore) getCrawlDataStore();
+        final int refCount = 300;
+        final ConcurrentHashMap<String, AtomicInteger> claims = 
+                new ConcurrentHashMap<>();
+        final AtomicInteger queuersDone = new AtomicInteger();
+        final Thread[] queuers = new Thread[3];
+        for (int i = 0; i < queuers.length; i++) {
+            queuers[i] = new Thread() {
+                @Override
+                public void run() {
+                    // several passes, so some are queued again while
+                    // others claim them
+                    for (int pass = 0; pass < 5; pass++) {
+                        for (int j = 0; j < refCount; j++) {
+                            store.queueIfAbsent(createCrawlData(
+                                    "http://example.com/" + j));
+                        }
+                    }
+                    queuersDone.incrementAndGet();
+                }
+            };
+        }
+        Thread[] claimers = new Thread[3];
+        for (int i = 0; i < claimers.length; i++) {
+            claimers[i] = new Thread() {
+                @Override
+                public void run() {
+                    while (queuersDone.get() < queuers.length 
+                            || !store.isQueueEmpty()) {
+                        ICrawlData data = store.nextQueued();
+                        if (data != null) {
+                            AtomicInteger count = new AtomicInteger();
+                            AtomicInteger existing = claims.putIfAbsent(
+                                    data.getReference(), count);
+                            (existing != null ? existing : count)
+                                    .incrementAndGet();
+                            store.processed(data);
+                        }
+                    }
+                }
+            };
+        }
+        for (int i = 0; i < queuers.length; i++) {
+            queuers[i].start();
+            claimers[i].start();
+        }
+        for (int i = 0; i < queuers.length; i++) {
+            queuers[i].join();
+            claimers[i].join();
+        }
+        // each reference was queued and claimed exactly once
+        assertEquals(refCount, claims.size());
+        for (AtomicInteger count : claims.values()) {
+            assertEquals(1, count.get());
+        }
+        assertEquals(refCount, store.getProcessedCount());
+        assertTrue(store.isQueueEmpty());
+    }
+
+    @Test
+    public void testProcessedTwice() throws Exception {
+        ICrawlDataStore store = getCrawlDataStore();
+        store.queue(createCrawlData("http://example.com/1"));
+        ICrawlData data = store.nextQueued();
+        store.processed(data);
+        // replaced, within the same transaction
+        ((BaseCrawlData) data).setContentChecksum("changed");
+        store.processed(data);
+        assertEquals(1, store.getProcessedCount());
+        assertEquals(0, store.getActiveCount());
+        assertTrue(store.isProcessed("http://example.com/1"));
+    }
+
+    @Test
+    public void testResumeManyActive() throws Exception {
+        // more than one insert batch
+        int refCount = 1234;
+        for (int i = 0; i < refCount; i++) {
+            getCrawlDataStore().queue(
+                    createCrawlData("http://example.com/" + i));
+        }
+        assertEquals(refCount, ((IBatchCrawlDataStore) 
+                getCrawlDataStore()).nextQueued(refCount).size());
+        resetDatabase(true);
+        assertEquals(refCount, getCrawlDataStore().getQueueSize());
+        assertEquals(0, getCrawlDataStore().getActiveCount());
+        assertTrue(getCrawlDataStore().isQueued("http://example.com/1233"));
+    }
+
+    @Test
+    public void testCacheIterators() throws Exception {
+        int refCount = 25;
+        for (int i = 0; i < refCount; i++) {
+            getCrawlDataStore().processed(
+                    createCrawlData("http://example.com/" + i));
+        }
+        moveProcessedToCache();
+        JDBCCrawlDataStore store = (JDBCCrawlDataStore) getCrawlDataStore();
+
+        // streamed
+        assertEquals(refCount, countCached(store));
+        // by pages, last one being partial
+        store.setCachePageSize(10);
+        assertEquals(refCount, countCached(store));
+        // by pages, last one being full
+        store.setCachePageSize(5);
+        assertEquals(refCount, countCached(store));
+
+        // closing before the end releases the connection
+        store.setCachePageSize(0);
+        for (int i = 0; i < 20; i++) {
+            Iterator<ICrawlData> it = store.getCacheIterator();
+            assertTrue(it.hasNext());
+            ((Closeable) it).close();
+            assertFalse(it.hasNext());
+        }
+    }
+    @Test
+    public void testCacheIteratorWithoutPagedSerializer() throws Exception {
+        getCrawlDataStore().close();
+        String path = getTempfolder().newFolder().getPath();
+        JDBCCrawlDataStore store = new JDBCCrawlDataStore(
+                path, false, new UnpagedJDBCSerializer());
+        for (int i = 0; i < 5; i++) {
+            store.processed(createCrawlData("http://example.com/" + i));
+        }
+        store.close();
+        store = new JDBCCrawlDataStore(
+                path, false, new UnpagedJDBCSerializer());
+        setCrawlDataStore(store);
+        // streamed, pages requiring a paged serializer
+        store.setCachePageSize(2);
+        assertEquals(5, countCached(store));
+    }
+
+    private int countCached(ICrawlDataStore store) {
+        Set<String> refs = new HashSet<>();
+        Iterator<ICrawlData> it = store.getCacheIterator();
+        while (it.hasNext()) {
+            assertTrue(refs.add(it.next().getReference()));
+        }
+        return refs.size();
+    }
+
+    @Test
+    public void testDictionaryEncoded() throws Exception {
+        getCrawlDataStore().close();
+        BasicDataSource ds = JDBCCrawlDataStore.createDataSource(
+                getTempfolder().newFolder().getPath(), 4);
+        JDBCDictionary dictionary = new JDBCDictionary(ds, "dict_");
+        JDBCCrawlDataStore store = new JDBCCrawlDataStore(ds, "dict_", 
+                false, false, new BasicJDBCSerializer("dict_", dictionary));
+        setCrawlDataStore(store);
+        for (int i = 0; i < 10; i++) {
+            BaseCrawlData data = new BaseCrawlData("http://example.com/" + i);
+            data.setParentRootReference("http://example.com/");
+            data.setContentType(ContentType.HTML);
+            data.setState(i % 2 == 0 ? CrawlState.NEW : CrawlState.ERROR);
+            store.queue(data);
+        }
+        // 2 states, 1 content type (root references are not encoded)
+        assertEquals(3, dictionary.size());
+
+        ICrawlData data = store.nextQueued();
+        assertEquals("http://example.com/", data.getParentRootReference());
+        assertEquals(ContentType.HTML, data.getContentType());
+        store.processed(data);
+        assertTrue(store.isProcessed(data.getReference()));
+
+        // codes are loaded back
+        assertEquals(3, new JDBCDictionary(ds, "dict_").size());
+        assertEquals("NEW", new JDBCDictionary(ds, "dict_").getValue(0));
+    }
+
+    @Test
+    public void testDictionaryEncodingMismatch() throws Exception {
+        getCrawlDataStore().close();
+        String path = getTempfolder().newFolder().getPath();
+        new JDBCCrawlDataStore(JDBCCrawlDataStore.createDataSource(path, 4),
+                "plain_", false, false, new BasicJDBCSerializer("plain_"))
+                        .close();
+        new JDBCCrawlDataStore(JDBCCrawlDataStore.createDataSource(path, 4),
+                "dict_", false, false, newDictionarySerializer(path, "dict_"))
+                        .close();
+        try {
+            new JDBCCrawlDataStore(
+                    JDBCCrawlDataStore.createDataSource(path, 4), "plain_", 
+                    false, false, newDictionarySerializer(path, "plain_"));
+            fail("Should not use tables created without a dictionary.");
+        } catch (CrawlDataStoreException e) {
+            assertTrue(e.getMessage(), 
+                    e.getMessage().contains("without dictionary encoding"));
+        }
+        try {
+            new JDBCCrawlDataStore(
+                    JDBCCrawlDataStore.createDataSource(path, 4), "dict_", 
+                    false, false, new BasicJDBCSerializer("dict_"));
+            fail("Should not use tables created with a dictionary.");
+        } catch (CrawlDataStoreException e) {
+            assertTrue(e.getMessage(), 
+                    e.getMessage().contains("with dictionary encoding"));
+        }
+    }
+    private BasicJDBCSerializer newDictionarySerializer(
+            String path, String prefix) {
+        return new BasicJDBCSerializer(prefix, new JDBCDictionary(
+                JDBCCrawlDataStore.createDataSource(path, 1), prefix));
+    }
+
+    @Test
+    public void testResumeWithoutKnownTable() throws Exception {
+        getCrawlDataStore().close();
+        String path = getTempfolder().newFolder().getPath();
+        JDBCCrawlDataStore store = new JDBCCrawlDataStore(
+                path, false, new BasicJDBCSerializer());
+        store.queue(createCrawlData("http://example.com/1"));
+        store.queue(createCrawlData("http://example.com/2"));
+        store.processed(store.nextQueued());
+        store.close();
+
+        // tables from a previous version
+        BasicDataSource ds = JDBCCrawlDataStore.createDataSource(path, 1);
+        new QueryRunner(ds).update(
+                "DROP TABLE " + JDBCCrawlDataStore.TABLE_KNOWN);
+        ds.close();
+
+        ds = JDBCCrawlDataStore.createDataSource(path, 4);
+        store = new JDBCCrawlDataStore(ds, null, false, true, 
+                new BasicJDBCSerializer());
+        setCrawlDataStore(store);
+        assertEquals(2L, ((Number) new QueryRunner(ds).query(
+                "SELECT COUNT(*) FROM " + JDBCCrawlDataStore.TABLE_KNOWN, 
+                new ScalarHandler<Object>())).longValue());
+        assertEquals(1, store.getQueueSize());
+        assertEquals(1, store.getProcessedCount());
+    }
+
+    @Test
+    public void testInterruptedRollover() throws Exception {
+        getCrawlDataStore().close();
+        String cache = JDBCCrawlDataStore.TABLE_CACHE;
+        String valid = JDBCCrawlDataStore.TABLE_PROCESSED_VALID;
+        // interrupted before the cache was dropped
+        assertRolloverCompleted();
+        // interrupted after the cache was dropped
+        assertRolloverCompleted("DROP TABLE " + cache);
+        // interrupted after the processed table became the cache
+        assertRolloverCompleted("DROP TABLE " + cache,
+                "ALTER TABLE " + valid + " RENAME TO " + cache);
+    }
+    // Sets up tables as left by a rollover interrupted after the next
+    // processed table was created and the given statements were run.
+    private void assertRolloverCompleted(String... sqls) throws Exception {
+        String path = getTempfolder().newFolder().getPath();
+        JDBCCrawlDataStore store = new JDBCCrawlDataStore(
+                path, false, new BasicJDBCSerializer());
+        store.processed(createCrawlData("http://example.com/1"));
+        store.processed(createCrawlData("http://example.com/2"));
+        store.close();
+
+        BasicDataSource ds = JDBCCrawlDataStore.createDataSource(path, 1);
+        QueryRunner runner = new QueryRunner(ds);
+        String next = JDBCCrawlDataStore.TABLE_PROCESSED_VALID_NEXT;
+        for (String sql : new BasicJDBCSerializer().getCreateTableSQLs(next)) {
+            runner.update(sql);
+        }
+        for (String sql : sqls) {
+            runner.update(sql);
+        }
+        ds.close();
+
+        store = new JDBCCrawlDataStore(path, false, new BasicJDBCSerializer());
+        setCrawlDataStore(store);
+        assertEquals(0, store.getProcessedCount());
+        assertFalse(store.isCacheEmpty());
+        assertEquals(2, countCached(store));
+        store.close();
+        ds = JDBCCrawlDataStore.createDataSource(path, 1);
+        try (Connection conn = ds.getConnection()) {
+            assertFalse(JDBCCrawlDataStore.tableExists(
+                    conn.getMetaData(), next));
+        }
+        ds.close();
+    }
+
     @Test
     public void testValidation() throws IOException {
         TestUtil.testValidation(getClass());
@@ -42,7 +430,82 @@ public class H2CrawlDataStoreTest extends BaseCrawlDataStoreTest {
     @Test
     public void testWriteRead() throws IOException {
         BasicJDBCCrawlDataStoreFactory f = new BasicJDBCCrawlDataStoreFactory();
+        f.setUrl("jdbc:h2:tcp://localhost/~/crawlstore");
+        f.setDriverClassName("org.h2.Driver");
+        f.setUsername("user");
+        f.setPassword("password");
+        f.setPasswordKey(new EncryptionKey("key", Source.KEY));
+        f.setMaxConnections(12);
+        f.setTablePrefix("mycrawler_");
+        f.setShared(true);
+        f.setReferenceFilterSize(5000);
+        f.setCachePageSize(1000);
+        f.setDictionaryEncoded(true);
+        f.setCompactInterval(60000);
+        f.setCompactOnClose(true);
         System.out.println("Writing/Reading this: " + f);
         XMLConfigurationUtil.assertWriteRead(f);
     }
+
+    // Serializer written before cache pages existed
+    private static class UnpagedJDBCSerializer implements IJDBCSerializer {
+        private final BasicJDBCSerializer serializer = 
+                new BasicJDBCSerializer();
+        @Override
+        public String[] getCreateTableSQLs(String table) {
+            return serializer.getCreateTableSQLs(table);
+        }
+        @Override
+        public String getSelectCrawlDataSQL(String table) {
+            return serializer.getSelectCrawlDataSQL(table);
+        }
+        @Override
+        public String getDeleteCrawlDataSQL(String table) {
+            return serializer.getDeleteCrawlDataSQL(table);
+        }
+        @Override
+        public Object[] getDeleteCrawlDataValues(
+                String table, ICrawlData crawlData) {
+            return serializer.getDeleteCrawlDataValues(table, crawlData);
+        }
+        @Override
+        public String getInsertCrawlDataSQL(String table) {
+            return serializer.getInsertCrawlDataSQL(table);
+        }
+        @Override
+        public Object[] getInsertCrawlDataValues(
+                String table, ICrawlData crawlData) {
+            return serializer.getInsertCrawlDataValues(table, crawlData);
+        }
+        @Override
+        public String getNextQueuedCrawlDataSQL() {
+            return serializer.getNextQueuedCrawlDataSQL();
+        }
+        @Override
+        public Object[] getNextQueuedCrawlDataValues() {
+            return serializer.getNextQueuedCrawlDataValues();
+        }
+        @Override
+        public String getCachedCrawlDataSQL() {
+            return serializer.getCachedCrawlDataSQL();
+        }
+        @Override
+        public Object[] getCachedCrawlDataValues(String reference) {
+            return serializer.getCachedCrawlDataValues(reference);
+        }
+        @Override
+        public String getReferenceExistsSQL(String table) {
+            return serializer.getReferenceExistsSQL(table);
+        }
+        @Override
+        public Object[] getReferenceExistsValues(
+                String table, String reference) {
+            return serializer.getReferenceExistsValues(table, reference);
+        }
+        @Override
+        public ICrawlData toCrawlData(String table, ResultSet rs)
+                throws SQLException {
+            return serializer.toCrawlData(table, rs);
+        }
+    }
 }
@@ -0,0 +1,246 @@
+/* Copyright 2019 Norconex Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.norconex.collector.core.data.store.impl.jdbc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.h2.tools.Server;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.norconex.collector.core.crawler.ICrawlerConfig;
+import com.norconex.collector.core.data.ICrawlData;
+import com.norconex.collector.core.data.store.CrawlDataStoreUtil;
+import com.norconex.collector.core.data.store.ICrawlDataStore;
+import com.norconex.collector.core.data.store.IStagedCrawlDataStore;
+import com.norconex.collector.core.data.store.ReferenceStage;
+import com.norconex.collector.core.data.store.impl.BaseCrawlDataStoreTest;
+
+/**
+ * Runs crawl data store tests against an H2 database server.
+ */
+public class H2ServerCrawlDataStoreTest extends BaseCrawlDataStoreTest {
+
+    private static Server server;
+
+    @BeforeClass
+    public static void startServer() throws SQLException, IOException {
+        int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        server = Server.createTcpServer(
+                "-tcpPort", Integer.toString(port)).start();
+    }
+    @AfterClass
+    public static void stopServer() {
+        if (server != null) {
+            server.stop();
+        }
+    }
+
+    @Override
+    protected ICrawlDataStore createCrawlDataStore(
+            ICrawlerConfig config, TemporaryFolder tempFolder, boolean resume) {
+        return createFactory(tempFolder, false).createCrawlDataStore(
+                config, resume);
+    }
+
+    private BasicJDBCCrawlDataStoreFactory createFactory(
+            TemporaryFolder tempFolder, boolean shared) {
+        BasicJDBCCrawlDataStoreFactory f = new BasicJDBCCrawlDataStoreFactory();
+        f.setUrl("jdbc:h2:tcp://localhost:" + server.getPort() + "/" 
+                + tempFolder.getRoot().getAbsolutePath() + "/db");
+        f.setDriverClassName("org.h2.Driver");
+        f.setTablePrefix("test_");
+        f.setShared(shared);
+        return f;
+    }
+
+    @Test
+    public void testSharedCollectors() throws Exception {
+        // one store per collector, sharing the same tables
+        getCrawlDataStore().close();
+        final ICrawlDataStore store1 = createFactory(getTempfolder(), true)
+                .createCrawlDataStore(getCrawlerConfig(), false);
+        setCrawlDataStore(store1);
+        final int refCount = 300;
+        for (int i = 0; i < refCount; i++) {
+            store1.queue(createCrawlData("http://example.com/" + i));
+        }
+        final ICrawlDataStore store2 = createFactory(getTempfolder(), true)
+                .createCrawlDataStore(getCrawlerConfig(), false);
+        try {
+            // joining a crawl in progress does not clear the queue
+            assertEquals(refCount, store2.getQueueSize());
+
+            final Set<String> claimed = Collections.newSetFromMap(
+                    new ConcurrentHashMap<String, Boolean>());
+            final AtomicInteger claimCount = new AtomicInteger();
+            Thread[] threads = new Thread[4];
+            for (int i = 0; i < threads.length; i++) {
+                final ICrawlDataStore store = i % 2 == 0 ? store1 : store2;
+                threads[i] = new Thread() {
+                    @Override
+                    public void run() {
+                        ICrawlData data;
+                        while ((data = store.nextQueued()) != null) {
+                            claimed.add(data.getReference());
+                            claimCount.incrementAndGet();
+                            store.processed(data);
+                        }
+                    }
+                };
+                threads[i].start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            assertEquals(refCount, claimCount.get());
+            assertEquals(refCount, claimed.size());
+            assertTrue(store1.isQueueEmpty());
+            assertTrue(store2.isQueueEmpty());
+            assertEquals(refCount, store1.getProcessedCount());
+            assertEquals(refCount, store2.getProcessedCount());
+        } finally {
+            store2.close();
+        }
+    }
+
+    @Test
+    public void testSharedCollectorsStartTogether() throws Exception {
+        getCrawlDataStore().close();
+        final BasicJDBCCrawlDataStoreFactory f = 
+                createFactory(getTempfolder(), true);
+        ICrawlDataStore store = 
+                f.createCrawlDataStore(getCrawlerConfig(), false);
+        String ref = "http://example.com/lastRun";
+        store.queue(createCrawlData(ref));
+        store.processed(store.nextQueued());
+        store.close();
+
+        // both start at the same time after the last run finished
+        final CountDownLatch latch = new CountDownLatch(1);
+        final ICrawlDataStore[] stores = new ICrawlDataStore[2];
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+        Thread[] threads = new Thread[stores.length];
+        for (int i = 0; i < threads.length; i++) {
+            final int index = i;
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        latch.await();
+                        stores[index] = f.createCrawlDataStore(
+                                getCrawlerConfig(), false);
+                    } catch (Throwable e) {
+                        error.set(e);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        latch.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        setCrawlDataStore(stores[0]);
+        try {
+            assertNull(error.get());
+            // last run was only cached once
+            for (ICrawlDataStore s : stores) {
+                assertNotNull(s.getCached(ref));
+                assertEquals(0, s.getProcessedCount());
+            }
+        } finally {
+            if (stores[1] != null) {
+                stores[1].close();
+            }
+        }
+    }
+
+    @Test
+    public void testSharedQueueIfAbsent() throws Exception {
+        getCrawlDataStore().close();
+        BasicJDBCCrawlDataStoreFactory f = createFactory(getTempfolder(), true);
+        f.setReferenceFilterSize(1000);
+        ICrawlDataStore store1 = f.createCrawlDataStore(
+                getCrawlerConfig(), false);
+        setCrawlDataStore(store1);
+        IStagedCrawlDataStore store2 = (IStagedCrawlDataStore) 
+                f.createCrawlDataStore(getCrawlerConfig(), false);
+        try {
+            String ref = "http://example.com/shared";
+            store1.queue(createCrawlData(ref));
+            ICrawlData data = store1.nextQueued();
+            assertEquals(ref, data.getReference());
+            assertEquals(ReferenceStage.ACTIVE, 
+                    store2.queueIfAbsent(createCrawlData(ref)));
+            store1.processed(data);
+            assertEquals(ReferenceStage.PROCESSED, 
+                    store2.queueIfAbsent(createCrawlData(ref)));
+            assertTrue(store2.isQueueEmpty());
+            assertNull(store2.nextQueued());
+
+            String queuedRef = "http://example.com/sharedQueued";
+            store1.queue(createCrawlData(queuedRef));
+            assertEquals(ReferenceStage.QUEUED, 
+                    store2.queueIfAbsent(createCrawlData(queuedRef)));
+            assertEquals(1, store2.getQueueSize());
+
+            // other collectors' references would be missing from filters
+            assertNull(CrawlDataStoreUtil.getReferenceFilter(store1));
+            assertNull(store2.getReferenceFilter());
+        } finally {
+            store2.close();
+        }
+    }
+
+    @Test
+    public void testNoServerCompaction() throws Exception {
+        getCrawlDataStore().close();
+        BasicJDBCCrawlDataStoreFactory f = 
+                createFactory(getTempfolder(), false);
+        f.setCompactInterval(10);
+        f.setCompactOnClose(true);
+        JDBCCrawlDataStore store = (JDBCCrawlDataStore) 
+                f.createCrawlDataStore(getCrawlerConfig(), false);
+        store.queue(createCrawlData("http://example.com/1"));
+        assertNull(store.getCompactor());
+        assertEquals(0, store.compact());
+        // must not shut down the server database
+        store.close();
+
+        store = (JDBCCrawlDataStore) f.createCrawlDataStore(
+                getCrawlerConfig(), true);
+        setCrawlDataStore(store);
+        assertEquals(1, store.getQueueSize());
+    }
+}
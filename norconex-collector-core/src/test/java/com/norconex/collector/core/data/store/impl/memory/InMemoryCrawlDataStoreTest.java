@@ -0,0 +1,190 @@
+/* Copyright 2019 Norconex Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.norconex.collector.core.data.store.impl.memory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.norconex.collector.core.TestUtil;
+import com.norconex.collector.core.crawler.ICrawlerConfig;
+import com.norconex.collector.core.data.ICrawlData;
+import com.norconex.collector.core.data.store.ICrawlDataStore;
+import com.norconex.collector.core.data.store.ReferenceStage;
+import com.norconex.collector.core.data.store.impl.BaseCrawlDataStoreTest;
+import com.norconex.commons.lang.config.XMLConfigurationUtil;
+
+public class InMemoryCrawlDataStoreTest extends BaseCrawlDataStoreTest {
+
+    private File snapshotFile;
+
+    @Before
+    public void setup() throws Exception {
+        snapshotFile = new File(getTempfolder().newFolder(), "snapshot.ser");
+        super.setup();
+    }
+    @Override
+    protected ICrawlDataStore createCrawlDataStore(
+            ICrawlerConfig config, TemporaryFolder tempFolder, boolean resume) {
+        return new InMemoryCrawlDataStore(resume, snapshotFile);
+    }
+
+    // Resuming is not supported: a new crawl is always started.
+
+    @Override
+    @Test
+    public void testResumeQueued() throws Exception {
+        getCrawlDataStore().queue(createCrawlData("http://example.com/"));
+        resetDatabase(true);
+        assertTrue(getCrawlDataStore().isQueueEmpty());
+    }
+    @Override
+    @Test
+    public void testResumeActived() throws Exception {
+        getCrawlDataStore().queue(createCrawlData("http://example.com/"));
+        getCrawlDataStore().nextQueued();
+        resetDatabase(true);
+        assertTrue(getCrawlDataStore().isQueueEmpty());
+        assertEquals(0, getCrawlDataStore().getActiveCount());
+    }
+    @Override
+    @Test
+    public void testResumeProcessed() throws Exception {
+        // processed references become cached ones
+        String ref = "http://example.com/";
+        getCrawlDataStore().queue(createCrawlData(ref));
+        getCrawlDataStore().processed(getCrawlDataStore().nextQueued());
+        resetDatabase(true);
+        assertEquals(0, getCrawlDataStore().getProcessedCount());
+        assertEquals(ref, getCrawlDataStore().getCached(ref).getReference());
+    }
+    @Override
+    @Test
+    public void testResumeCached() throws Exception {
+        // nothing processed since cached: the cache is not carried over
+        cacheReference("http://example.com/");
+        resetDatabase(true);
+        assertTrue(getCrawlDataStore().isCacheEmpty());
+    }
+    @Override
+    @Test
+    public void testResumeCounts() throws Exception {
+        getCrawlDataStore().queue(createCrawlData("http://example.com/1"));
+        getCrawlDataStore().queue(createCrawlData("http://example.com/2"));
+        getCrawlDataStore().processed(getCrawlDataStore().nextQueued());
+        resetDatabase(true);
+        assertEquals(0, getCrawlDataStore().getQueueSize());
+        assertEquals(0, getCrawlDataStore().getActiveCount());
+        assertEquals(0, getCrawlDataStore().getProcessedCount());
+    }
+
+    @Test
+    public void testNoSnapshot() throws Exception {
+        getCrawlDataStore().close();
+        setCrawlDataStore(new InMemoryCrawlDataStore(false, null));
+        String ref = "http://example.com/";
+        getCrawlDataStore().queue(createCrawlData(ref));
+        getCrawlDataStore().processed(getCrawlDataStore().nextQueued());
+        getCrawlDataStore().close();
+        setCrawlDataStore(new InMemoryCrawlDataStore(false, null));
+        assertTrue(getCrawlDataStore().isCacheEmpty());
+    }
+
+    @Test
+    public void testConcurrentNext() throws Exception {
+        final ICrawlDataStore store = getCrawlDataStore();
+        final int refCount = 2000;
+        for (int i = 0; i < refCount; i++) {
+            store.queue(createCrawlData("http://example.com/" + i));
+        }
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    ICrawlData data;
+                    while ((data = store.nextQueued()) != null) {
+                        store.processed(data);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertTrue(store.isQueueEmpty());
+        assertEquals(0, store.getActiveCount());
+        assertEquals(refCount, store.getProcessedCount());
+        assertNull(store.nextQueued());
+        assertFalse(store.isQueued("http://example.com/0"));
+    }
+
+    @Test
+    public void testQueueWhileQueueIfAbsent() throws Exception {
+        final String ref = "http://example.com/";
+        final InMemoryCrawlDataStore store = 
+                new InMemoryCrawlDataStore(false, null) {
+            @Override
+            public boolean isProcessed(String reference) {
+                // another thread queues the reference while it is
+                // tentatively queued by queueIfAbsent
+                Thread queuer = new Thread() {
+                    @Override
+                    public void run() {
+                        queue(createCrawlData(ref));
+                    }
+                };
+                queuer.start();
+                try {
+                    queuer.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return super.isProcessed(reference);
+            }
+        };
+        getCrawlDataStore().close();
+        setCrawlDataStore(store);
+        store.processed(createCrawlData(ref));
+
+        assertEquals(ReferenceStage.PROCESSED, 
+                store.queueIfAbsent(createCrawlData(ref)));
+        assertTrue(store.isQueued(ref));
+        assertEquals(ref, store.nextQueued().getReference());
+        assertTrue(store.isQueueEmpty());
+    }
+
+    @Test
+    public void testValidation() throws IOException {
+        TestUtil.testValidation(getClass());
+    }
+
+    @Test
+    public void testWriteRead() throws IOException {
+        InMemoryCrawlDataStoreFactory f = new InMemoryCrawlDataStoreFactory();
+        f.setSnapshot(true);
+        System.out.println("Writing/Reading this: " + f);
+        XMLConfigurationUtil.assertWriteRead(f);
+    }
+}
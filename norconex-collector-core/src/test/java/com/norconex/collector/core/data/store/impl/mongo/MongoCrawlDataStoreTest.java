@@ -1,4 +1,4 @@
-/* Copyright 2013-2017 Norconex Inc.
+/* Copyright 2013-2019 Norconex Inc.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -16,20 +16,36 @@ package com.norconex.collector.core.data.store.impl.mongo;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Date;
+import java.util.List;
 
 import org.apache.commons.lang3.StringUtils;
+import org.bson.Document;
+import org.bson.conversions.Bson;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
 
 import com.github.fakemongo.Fongo;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.UpdateOptions;
 import com.norconex.collector.core.TestUtil;
 import com.norconex.collector.core.crawler.ICrawlerConfig;
+import com.norconex.collector.core.data.ICrawlData;
+import com.norconex.collector.core.data.store.CrawlDataStoreException;
+import com.norconex.collector.core.data.store.IBatchCrawlDataStore;
 import com.norconex.collector.core.data.store.ICrawlDataStore;
+import com.norconex.collector.core.data.store.ReferenceBloomFilter;
+import com.norconex.collector.core.data.store.ReferenceStage;
 import com.norconex.collector.core.data.store.impl.BaseCrawlDataStoreTest;
 import com.norconex.commons.lang.config.XMLConfigurationUtil;
 
@@ -84,6 +100,269 @@ public class MongoCrawlDataStoreTest extends BaseCrawlDataStoreTest {
         assertEquals(ref, crawlStore.nextQueued().getReference());
     }
 
+    @Test
+    public void testCountsNotQueried() throws Exception {
+        MongoCrawlDataStore store = 
+                (MongoCrawlDataStore) getCrawlDataStore();
+        store.queue(createCrawlData("http://example.com/1"));
+        store.queue(createCrawlData("http://example.com/2"));
+        assertEquals(2, store.getQueueSize());
+
+        // changes made outside the store are only seen once reconciled
+        fongo.getMongo().getDatabase("crawl-test").getCollection(
+                MongoCrawlDataStore.DEFAULT_REFERENCES_COL_NAME).deleteMany(
+                        new Document("reference", "http://example.com/1"));
+        assertEquals(2, store.getQueueSize());
+        store.reconcileCounts();
+        assertEquals(1, store.getQueueSize());
+
+        // never reports zero when there are some
+        store.nextQueued();
+        fongo.getMongo().getDatabase("crawl-test").getCollection(
+                MongoCrawlDataStore.DEFAULT_REFERENCES_COL_NAME).updateMany(
+                        new Document(), new Document("$set", 
+                                new Document("stage", "QUEUED")));
+        assertEquals(1, store.getQueueSize());
+        assertEquals(0, store.getActiveCount());
+    }
+
+    @Test
+    public void testReferencesRenamedToCached() throws Exception {
+        ICrawlDataStore crawlStore = getCrawlDataStore();
+        crawlStore.queue(createCrawlData("http://example.com/1"));
+        crawlStore.queue(createCrawlData("http://example.com/2"));
+        crawlStore.processed(crawlStore.nextQueued());
+        moveProcessedToCache();
+
+        MongoCollection<Document> cached = fongo.getMongo().getDatabase(
+                "crawl-test").getCollection(
+                        MongoCrawlDataStore.DEFAULT_CACHED_COL_NAME);
+        crawlStore = getCrawlDataStore();
+        assertNotNull(crawlStore.getCached("http://example.com/1"));
+        assertNull(crawlStore.getCached("http://example.com/2"));
+        assertTrue(crawlStore.isQueueEmpty());
+        // closing waits for stale documents to be deleted
+        crawlStore.close();
+        assertEquals(1, cached.count());
+        resetDatabase(true);
+    }
+
+    @Test
+    public void testNextQueuedByDepth() throws Exception {
+        IBatchCrawlDataStore store = 
+                (IBatchCrawlDataStore) getCrawlDataStore();
+        MongoCollection<Document> refs = fongo.getMongo().getDatabase(
+                "crawl-test").getCollection(
+                        MongoCrawlDataStore.DEFAULT_REFERENCES_COL_NAME);
+        int[] depths = { 3, 1, 4, 0, 2 };
+        for (int i = 0; i < depths.length; i++) {
+            String ref = "http://example.com/" + depths[i];
+            store.queue(createCrawlData(ref));
+            refs.updateOne(new Document("reference", ref), new Document(
+                    "$set", new Document("depth", depths[i])));
+        }
+        assertEquals("http://example.com/0", 
+                store.nextQueued().getReference());
+        List<ICrawlData> next = store.nextQueued(2);
+        assertEquals(2, next.size());
+        assertEquals("http://example.com/1", next.get(0).getReference());
+        assertEquals("http://example.com/2", next.get(1).getReference());
+        assertEquals(3, store.getActiveCount());
+        assertEquals(2, store.getQueueSize());
+        assertEquals(2, refs.count(new Document("claim", 
+                refs.find(new Document("reference", "http://example.com/1"))
+                        .first().get("claim"))));
+    }
+
+    @Test
+    public void testNextQueuedClaimedConcurrently() throws Exception {
+        ICrawlDataStore store = getCrawlDataStore();
+        for (int i = 0; i < 4; i++) {
+            store.queue(createCrawlData("http://example.com/" + i));
+        }
+        final MongoCollection<Document> refs = fongo.getMongo().getDatabase(
+                "crawl-test").getCollection(
+                        MongoCrawlDataStore.DEFAULT_REFERENCES_COL_NAME);
+        // another thread claims the documents found first
+        @SuppressWarnings("unchecked")
+        MongoCollection<Document> racingRefs = 
+                (MongoCollection<Document>) Proxy.newProxyInstance(
+                        getClass().getClassLoader(), 
+                        new Class<?>[] { MongoCollection.class }, 
+                        new InvocationHandler() {
+            private boolean raced;
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args)
+                    throws Throwable {
+                if (!raced && "updateMany".equals(method.getName())) {
+                    raced = true;
+                    refs.updateMany((Bson) args[0], new Document("$set", 
+                            new Document(IMongoSerializer.FIELD_STAGE,
+                                    IMongoSerializer.Stage.ACTIVE.name())
+                                    .append(IMongoSerializer.FIELD_CLAIM, 
+                                            "other")));
+                }
+                try {
+                    return method.invoke(refs, args);
+                } catch (InvocationTargetException e) {
+                    throw e.getCause();
+                }
+            }
+        });
+        List<Document> docs = 
+                new BaseMongoSerializer().getNextQueued(racingRefs, 2, null);
+        assertEquals(2, docs.size());
+        assertEquals(2, refs.count(
+                new Document(IMongoSerializer.FIELD_CLAIM, "other")));
+        assertEquals(0, refs.count(new Document(IMongoSerializer.FIELD_STAGE,
+                IMongoSerializer.Stage.QUEUED.name())));
+    }
+
+    @Test
+    public void testLeases() throws Exception {
+        MongoCollection<Document> refs = fongo.getMongo().getDatabase(
+                "crawl-test").getCollection(
+                        MongoCrawlDataStore.DEFAULT_REFERENCES_COL_NAME);
+        MongoCrawlDataStore node1 = new MongoCrawlDataStore(false,
+                fongo.getMongo(), "crawl-test", new BaseMongoSerializer(),
+                null, null, "node1", 60000);
+        for (int i = 0; i < 5; i++) {
+            node1.queue(createCrawlData("http://example.com/" + i));
+        }
+        // crawl in progress, so node2 joins it
+        MongoCrawlDataStore node2 = new MongoCrawlDataStore(false,
+                fongo.getMongo(), "crawl-test", new BaseMongoSerializer(),
+                null, null, "node2", 60000);
+        assertEquals(5, node2.getQueueSize());
+
+        assertEquals(2, node1.nextQueued(2).size());
+        assertNotNull(node2.nextQueued());
+        assertEquals(2, refs.count(new Document("owner", "node1")));
+        assertEquals(1, refs.count(new Document("owner", "node2")));
+        assertEquals(2, node1.renewLeases());
+        assertEquals(0, node2.recoverExpiredLeases());
+
+        // node1 dies: its leases expire and are recovered by node2
+        refs.updateMany(new Document("owner", "node1"), new Document("$set",
+                new Document("lease", new Date(0))));
+        assertEquals(2, node2.recoverExpiredLeases());
+        assertEquals(4, node2.getQueueSize());
+        assertEquals(1, node2.getActiveCount());
+        assertEquals(0, refs.count(new Document("owner", "node1")));
+
+        // node2 restarted with same id queues its active ones again
+        node2.close();
+        node2 = new MongoCrawlDataStore(false,
+                fongo.getMongo(), "crawl-test", new BaseMongoSerializer(),
+                null, null, "node2", 60000);
+        assertEquals(5, node2.getQueueSize());
+        assertEquals(0, node2.getActiveCount());
+        node2.close();
+    }
+
+    @Test
+    public void testLeasesStartTogether() throws Exception {
+        MongoCrawlDataStore node1 = new MongoCrawlDataStore(false,
+                fongo.getMongo(), "crawl-test", new BaseMongoSerializer(),
+                null, null, "node1", 60000);
+        String ref = "http://example.com/lastRun";
+        node1.queue(createCrawlData(ref));
+        node1.processed(node1.nextQueued());
+        node1.close();
+
+        // lock left by a node that died while starting, now expired
+        MongoCollection<Document> state = fongo.getMongo().getDatabase(
+                "crawl-test").getCollection(
+                        MongoCrawlDataStore.DEFAULT_REFERENCES_COL_NAME
+                                + "_state");
+        state.updateOne(new Document("_id", "startup"), new Document("$set",
+                new Document("owner", "node0").append("lease", new Date(0))),
+                new UpdateOptions().upsert(true));
+
+        // node1 caches the last run, node2 started with it joins
+        node1 = new MongoCrawlDataStore(false,
+                fongo.getMongo(), "crawl-test", new BaseMongoSerializer(),
+                null, null, "node1", 60000);
+        MongoCrawlDataStore node2 = new MongoCrawlDataStore(false,
+                fongo.getMongo(), "crawl-test", new BaseMongoSerializer(),
+                null, null, "node2", 60000);
+        assertNotNull(node1.getCached(ref));
+        assertNotNull(node2.getCached(ref));
+        assertEquals(0, node2.getProcessedCount());
+        assertNull(state.find().first().get("owner"));
+        node1.close();
+        node2.close();
+    }
+
+    @Test
+    public void testLeasesIgnoreReferenceFilter() throws Exception {
+        MongoCrawlDataStore node1 = new MongoCrawlDataStore(false,
+                fongo.getMongo(), "crawl-test", new BaseMongoSerializer(),
+                null, null, "node1", 60000);
+        node1.setReferenceFilter(new ReferenceBloomFilter(1000));
+        node1.queue(createCrawlData("http://example.com/0"));
+        MongoCrawlDataStore node2 = new MongoCrawlDataStore(false,
+                fongo.getMongo(), "crawl-test", new BaseMongoSerializer(),
+                null, null, "node2", 60000);
+        node2.setReferenceFilter(new ReferenceBloomFilter(1000));
+        assertNull(node1.getReferenceFilter());
+        assertNull(node2.getReferenceFilter());
+
+        // references added by one node are known to the other
+        node1.queue(createCrawlData("http://example.com/1"));
+        node2.queue(createCrawlData("http://example.com/2"));
+        assertTrue(node2.isQueued("http://example.com/1"));
+        assertEquals(ReferenceStage.QUEUED, 
+                node1.getStage("http://example.com/2"));
+        assertEquals(ReferenceStage.QUEUED, node2.queueIfAbsent(
+                createCrawlData("http://example.com/1")));
+
+        ICrawlData crawlData = node1.nextQueued();
+        assertTrue(node2.isActive(crawlData.getReference()));
+        node1.processed(crawlData);
+        assertTrue(node2.isProcessed(crawlData.getReference()));
+        assertEquals(ReferenceStage.PROCESSED, 
+                node2.queueIfAbsent(crawlData));
+        assertEquals(2, node2.getQueueSize());
+        node1.close();
+        node2.close();
+    }
+
+    @Test(expected = CrawlDataStoreException.class)
+    public void testLeasesRequireBatchSerializer() throws Exception {
+        new MongoCrawlDataStore(false, fongo.getMongo(), "crawl-test", 
+                new SingleMongoSerializer(), null, null, "node1", 60000);
+    }
+
+    @Test
+    public void testNextQueuedWithoutBatchSerializer() throws Exception {
+        MongoCrawlDataStore store = new MongoCrawlDataStore(false,
+                fongo.getMongo(), "crawl-test", new SingleMongoSerializer());
+        for (int i = 0; i < 5; i++) {
+            store.queue(createCrawlData("http://example.com/" + i));
+        }
+        assertEquals(3, store.nextQueued(3).size());
+        assertEquals(3, store.getActiveCount());
+        assertEquals(2, store.nextQueued(3).size());
+        assertTrue(store.nextQueued(3).isEmpty());
+        store.close();
+    }
+
+    @Test
+    public void testStageIndex() throws Exception {
+        boolean found = false;
+        for (Document index : fongo.getMongo().getDatabase(
+                "crawl-test").getCollection(MongoCrawlDataStore
+                        .DEFAULT_REFERENCES_COL_NAME).listIndexes()) {
+            Document key = (Document) index.get("key");
+            if (key.size() == 2 && key.containsKey("reference") 
+                    && key.containsKey("stage")) {
+                found = true;
+            }
+        }
+        assertTrue(found);
+    }
+
     @Test
     public void testValidation() throws IOException {
         TestUtil.testValidation(getClass());
@@ -102,7 +381,38 @@ public class MongoCrawlDataStoreTest extends BaseCrawlDataStoreTest {
         f.getConnectionDetails().setSslInvalidHostNameAllowed(true);
         f.setCachedCollectionName("mycache");
         f.setReferencesCollectionName("myrefs");
+        f.setReferenceFilterSize(5000);
+        f.setWriteBatchSize(50);
+        f.setWriteDelay(500);
+        f.setCountReconcileInterval(60000);
+        f.setNodeId("node1");
+        f.setLeaseDuration(30000);
         System.out.println("Writing/Reading this: " + f);
         XMLConfigurationUtil.assertWriteRead(f);
     }
+
+    // Serializer written before batch claims existed
+    private static class SingleMongoSerializer implements IMongoSerializer {
+        private final BaseMongoSerializer serializer = 
+                new BaseMongoSerializer();
+        @Override
+        public Document toDocument(Stage stage, ICrawlData crawlData) {
+            return serializer.toDocument(stage, crawlData);
+        }
+        @Override
+        public ICrawlData fromDocument(Document document) {
+            return serializer.fromDocument(document);
+        }
+        @Override
+        public Document getNextQueued(
+                MongoCollection<Document> referenceCollection) {
+            return serializer.getNextQueued(referenceCollection);
+        }
+        @Override
+        public void createIndices(
+                MongoCollection<Document> referenceCollection,
+                MongoCollection<Document> cachedCollection) {
+            serializer.createIndices(referenceCollection, cachedCollection);
+        }
+    }
 }
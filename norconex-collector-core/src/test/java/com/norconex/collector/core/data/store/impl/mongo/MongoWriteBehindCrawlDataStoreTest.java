@@ -0,0 +1,106 @@
+/* Copyright 2019 Norconex Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.norconex.collector.core.data.store.impl.mongo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.bson.Document;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.github.fakemongo.Fongo;
+import com.mongodb.client.MongoCollection;
+import com.norconex.collector.core.crawler.ICrawlerConfig;
+import com.norconex.collector.core.data.ICrawlData;
+import com.norconex.collector.core.data.store.ICrawlDataStore;
+import com.norconex.collector.core.data.store.ReferenceBloomFilter;
+import com.norconex.collector.core.data.store.ReferenceStage;
+import com.norconex.collector.core.data.store.impl.BaseCrawlDataStoreTest;
+
+/**
+ * Runs Mongo crawl data store tests with buffered writes.
+ */
+public class MongoWriteBehindCrawlDataStoreTest 
+        extends BaseCrawlDataStoreTest {
+
+    private static final int BATCH_SIZE = 10;
+
+    private Fongo fongo;
+
+    @Override
+    @Before
+    public void setup() throws Exception {
+        fongo = new Fongo("mongo server 1");
+        super.setup();
+    }
+
+    @Override
+    protected ICrawlDataStore createCrawlDataStore(
+            ICrawlerConfig config, TemporaryFolder tempFolder, boolean resume) {
+        MongoCrawlDataStore store = new MongoCrawlDataStore(resume,
+                fongo.getMongo(), "crawl-test", new BaseMongoSerializer());
+        store.setReferenceFilter(new ReferenceBloomFilter(1000));
+        // no delay so only the batch size triggers writes
+        store.setWriteBehind(BATCH_SIZE, 0);
+        return store;
+    }
+
+    @Test
+    public void testBufferedWrites() throws Exception {
+        MongoCrawlDataStore store = 
+                (MongoCrawlDataStore) getCrawlDataStore();
+        MongoCollection<Document> refs = fongo.getMongo().getDatabase(
+                "crawl-test").getCollection(
+                        MongoCrawlDataStore.DEFAULT_REFERENCES_COL_NAME);
+
+        store.queue(createCrawlData("http://example.com/1"));
+        assertEquals(ReferenceStage.NONE, 
+                store.queueIfAbsent(createCrawlData("http://example.com/2")));
+        assertEquals(ReferenceStage.QUEUED, 
+                store.queueIfAbsent(createCrawlData("http://example.com/2")));
+        // buffered, but visible
+        assertEquals(0, refs.count());
+        assertTrue(store.isQueued("http://example.com/1"));
+        assertEquals(ReferenceStage.QUEUED, 
+                store.getStage("http://example.com/2"));
+
+        // nothing queued in database, so buffered writes are sent
+        ICrawlData next = store.nextQueued();
+        assertEquals(2, refs.count());
+        store.processed(next);
+        assertEquals(ReferenceStage.PROCESSED, 
+                store.getStage(next.getReference()));
+        assertNull(store.getCached(next.getReference()));
+        // counted without sending buffered writes
+        assertEquals(1, store.getProcessedCount());
+        assertEquals(0, refs.count(new Document(
+                "stage", ReferenceStage.PROCESSED.name())));
+        store.flush();
+
+        // several writes of the same reference count as one
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            store.queue(createCrawlData("http://example.com/3"));
+        }
+        assertEquals(2, refs.count());
+        // batch size reached
+        for (int i = 4; i < BATCH_SIZE + 3; i++) {
+            store.queue(createCrawlData("http://example.com/" + i));
+        }
+        assertEquals(BATCH_SIZE + 2, refs.count());
+    }
+}
@@ -0,0 +1,199 @@
+/* Copyright 2019 Norconex Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.norconex.collector.core.data.store.impl.mvstore;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.Date;
+
+import org.h2.mvstore.DataUtils;
+import org.h2.mvstore.MVMap;
+import org.h2.mvstore.MVStore;
+import org.h2.mvstore.WriteBuffer;
+import org.h2.mvstore.type.ObjectDataType;
+import org.junit.Test;
+
+import com.norconex.collector.core.data.BaseCrawlData;
+import com.norconex.collector.core.data.CrawlState;
+import com.norconex.collector.core.data.store.CrawlDataStoreException;
+import com.norconex.commons.lang.file.ContentType;
+
+public class CrawlDataTypeTest {
+
+    private final CrawlDataType type = new CrawlDataType();
+
+    @Test
+    public void testFullRoundTrip() {
+        BaseCrawlData data = new BaseCrawlData("http://example.com/page");
+        data.setParentRootReference("http://example.com/");
+        data.setRootParentReference(true);
+        data.setState(CrawlState.MODIFIED);
+        data.setMetaChecksum("0a1b2c3d4e5f");
+        data.setContentChecksum("d41d8cd98f00b204e9800998ecf8427e");
+        data.setContentType(ContentType.HTML);
+        data.setCrawlDate(new Date());
+        ByteBuffer buff = write(data);
+        assertEquals(CrawlDataType.FORMAT_BASE_V1, buff.get(0));
+        WriteBuffer serialized = new WriteBuffer();
+        new ObjectDataType().write(serialized, data);
+        assertTrue("Not compact: " + buff.remaining(), 
+                buff.remaining() * 4 < serialized.position());
+        assertEquals(data, type.read(buff));
+    }
+
+    @Test
+    public void testMinimalRoundTrip() {
+        BaseCrawlData data = new BaseCrawlData("http://example.com/");
+        assertEquals(data, type.read(write(data)));
+    }
+
+    @Test
+    public void testUncodedValuesRoundTrip() {
+        BaseCrawlData data = new BaseCrawlData("http://example.com/é");
+        data.setState(CrawlState.valueOf("CUSTOM_STATE"));
+        data.setMetaChecksum("ABCDEF");
+        data.setContentChecksum("abc");
+        data.setContentType(ContentType.valueOf("application/x-custom"));
+        assertEquals(data, type.read(write(data)));
+    }
+
+    @Test
+    public void testDictionaryRoundTrip() {
+        MVStore store = MVStore.open(null);
+        MVMap<Integer, String> dictionary = store.openMap("dictionary");
+        CrawlDataType dictType = new CrawlDataType(dictionary);
+        BaseCrawlData data = new BaseCrawlData("http://example.com/page");
+        data.setParentRootReference("http://example.com/");
+        data.setState(CrawlState.valueOf("CUSTOM_STATE"));
+        data.setContentType(ContentType.valueOf("application/x-custom"));
+        int literalSize = write(dictType, data).remaining();
+        dictType.addToDictionary(data);
+        assertEquals(3, dictType.getDictionarySize());
+        ByteBuffer buff = write(dictType, data);
+        assertEquals(CrawlDataType.FORMAT_BASE_V2, buff.get(0));
+        assertTrue(buff.remaining() < literalSize - 40);
+
+        // dictionary is loaded back from its map
+        assertEquals(data, new CrawlDataType(dictionary).read(buff));
+        // values written without a dictionary are still readable
+        assertEquals(data, dictType.read(write(type, data)));
+        store.close();
+    }
+
+    @Test
+    public void testSubclassSerialized() {
+        BaseCrawlData data = new CustomCrawlData("http://example.com/");
+        data.setState(CrawlState.NEW);
+        ByteBuffer buff = write(data);
+        assertEquals(CrawlDataType.FORMAT_SERIALIZED, buff.get(0));
+        Object read = type.read(buff);
+        assertEquals(CustomCrawlData.class, read.getClass());
+        assertEquals(data.getReference(), 
+                ((CustomCrawlData) read).getReference());
+    }
+
+    @Test
+    public void testSubclassCodecRoundTrip() {
+        MVStore store = MVStore.open(null);
+        MVMap<Integer, String> dictionary = store.openMap("dictionary");
+        CrawlDataType codecType = 
+                new CrawlDataType(dictionary, new CustomCrawlDataCodec());
+        CustomCrawlData data = new CustomCrawlData("http://example.com/a");
+        data.setParentRootReference("http://example.com/");
+        data.setState(CrawlState.MODIFIED);
+        data.setContentChecksum("d41d8cd98f00b204e9800998ecf8427e");
+        data.setDepth(3);
+        codecType.addToDictionary(data);
+        assertEquals(1, codecType.getDictionarySize());
+        ByteBuffer buff = write(codecType, data);
+        assertEquals(CrawlDataType.FORMAT_BASE_V2, buff.get(0));
+        assertTrue(buff.remaining() < write(data).remaining());
+        CustomCrawlData read = (CustomCrawlData) codecType.read(buff);
+        assertEquals(data, read);
+        assertEquals(3, read.getDepth());
+
+        // other subclasses are still serialized
+        BaseCrawlData other = new OtherCrawlData("http://example.com/b");
+        assertEquals(CrawlDataType.FORMAT_SERIALIZED, 
+                write(codecType, other).get(0));
+        store.close();
+    }
+
+    @Test(expected = CrawlDataStoreException.class)
+    public void testSubclassCodecMissing() {
+        CustomCrawlData data = new CustomCrawlData("http://example.com/");
+        ByteBuffer buff = write(new CrawlDataType(
+                null, new CustomCrawlDataCodec()), data);
+        type.read(buff);
+    }
+
+    private ByteBuffer write(Object obj) {
+        return write(type, obj);
+    }
+    private ByteBuffer write(CrawlDataType dataType, Object obj) {
+        WriteBuffer buff = new WriteBuffer();
+        dataType.write(buff, obj);
+        ByteBuffer bytes = buff.getBuffer();
+        bytes.flip();
+        return bytes;
+    }
+
+    public static class CustomCrawlData extends BaseCrawlData {
+        private static final long serialVersionUID = 1L;
+        private int depth;
+        public CustomCrawlData() {
+            super();
+        }
+        public CustomCrawlData(String reference) {
+            super(reference);
+        }
+        public int getDepth() {
+            return depth;
+        }
+        public void setDepth(int depth) {
+            this.depth = depth;
+        }
+    }
+
+    public static class OtherCrawlData extends CustomCrawlData {
+        private static final long serialVersionUID = 1L;
+        public OtherCrawlData(String reference) {
+            super(reference);
+        }
+    }
+
+    public static class CustomCrawlDataCodec implements ICrawlDataCodec {
+        private static final long serialVersionUID = 1L;
+        @Override
+        public Class<? extends BaseCrawlData> getCrawlDataClass() {
+            return CustomCrawlData.class;
+        }
+        @Override
+        public BaseCrawlData newCrawlData() {
+            return new CustomCrawlData();
+        }
+        @Override
+        public void write(WriteBuffer buff, BaseCrawlData crawlData) {
+            buff.putVarInt(((CustomCrawlData) crawlData).getDepth());
+        }
+        @Override
+        public void read(ByteBuffer buff, BaseCrawlData crawlData) {
+            ((CustomCrawlData) crawlData).setDepth(
+                    DataUtils.readVarInt(buff));
+        }
+    }
+}
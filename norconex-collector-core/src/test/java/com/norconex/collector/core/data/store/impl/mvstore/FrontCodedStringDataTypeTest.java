@@ -0,0 +1,56 @@
+/* Copyright 2019 Norconex Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.norconex.collector.core.data.store.impl.mvstore;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+
+import org.h2.mvstore.WriteBuffer;
+import org.h2.mvstore.type.StringDataType;
+import org.junit.Test;
+
+public class FrontCodedStringDataTypeTest {
+
+    @Test
+    public void testPageRoundTrip() {
+        String[] keys = { 
+                "", 
+                "http://example.com/", 
+                "http://example.com/a/b/c", 
+                "http://example.com/a/b/c/d", 
+                "http://example.com/a/b/x", 
+                "http://example.com/été", 
+                "http://example.org/",
+                "https://example.com/😀",
+                "https://example.com/😁",
+        };
+        WriteBuffer buff = new WriteBuffer();
+        FrontCodedStringDataType.INSTANCE.write(
+                buff, keys, keys.length, true);
+        WriteBuffer plainBuff = new WriteBuffer();
+        StringDataType.INSTANCE.write(
+                plainBuff, keys, keys.length, true);
+        assertTrue(buff.position() < plainBuff.position() / 2);
+
+        ByteBuffer bytes = buff.getBuffer();
+        bytes.flip();
+        String[] read = new String[keys.length];
+        FrontCodedStringDataType.INSTANCE.read(
+                bytes, read, read.length, true);
+        assertArrayEquals(keys, read);
+    }
+}
@@ -1,4 +1,4 @@
-/* Copyright 2014-2016 Norconex Inc.
+/* Copyright 2014-2019 Norconex Inc.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -14,14 +14,33 @@
  */
 package com.norconex.collector.core.data.store.impl.mvstore;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
 import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Iterator;
 
+import org.h2.mvstore.MVMap;
+import org.h2.mvstore.MVStore;
 import org.junit.Before;
+import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
 
+import com.norconex.collector.core.TestUtil;
 import com.norconex.collector.core.crawler.ICrawlerConfig;
+import com.norconex.collector.core.data.BaseCrawlData;
+import com.norconex.collector.core.data.CrawlState;
+import com.norconex.collector.core.data.ICrawlData;
+import com.norconex.collector.core.data.store.CrawlDataStoreCompactor;
 import com.norconex.collector.core.data.store.ICrawlDataStore;
 import com.norconex.collector.core.data.store.impl.BaseCrawlDataStoreTest;
+import com.norconex.collector.core.data.store.impl.mvstore.MVStoreCrawlDataStoreConfig.CommitMode;
+import com.norconex.commons.lang.config.XMLConfigurationUtil;
 
 public class MVStoreCrawlDataStoreTest extends BaseCrawlDataStoreTest {
 
@@ -37,4 +56,209 @@ public class MVStoreCrawlDataStoreTest extends BaseCrawlDataStoreTest {
             ICrawlerConfig config, TemporaryFolder tempFolder, boolean resume) {
         return new MVStoreCrawlDataStore(store.getPath(), resume);
     }
+
+    @Test
+    public void testGroupCommitResume() throws Exception {
+        getCrawlDataStore().close();
+        MVStoreCrawlDataStoreConfig cfg = new MVStoreCrawlDataStoreConfig();
+        cfg.setCommitMode(CommitMode.GROUP);
+        cfg.setCommitInterval(3);
+        ICrawlDataStore groupStore = 
+                new MVStoreCrawlDataStore(store.getPath(), false, cfg);
+        for (int i = 0; i < 10; i++) {
+            groupStore.queue(new BaseCrawlData("http://example.com/" + i));
+        }
+        for (int i = 0; i < 5; i++) {
+            ICrawlData data = groupStore.nextQueued();
+            groupStore.processed(data);
+        }
+        groupStore.nextQueued();
+        // closing must commit whatever was not committed yet
+        groupStore.close();
+
+        setCrawlDataStore(
+                new MVStoreCrawlDataStore(store.getPath(), true, cfg));
+        ICrawlDataStore resumed = getCrawlDataStore();
+        assertEquals(5, resumed.getProcessedCount());
+        assertEquals(5, resumed.getQueueSize());
+        assertEquals(0, resumed.getActiveCount());
+        assertTrue(resumed.isProcessed("http://example.com/0"));
+        assertFalse(resumed.isProcessed("http://example.com/9"));
+    }
+
+    @Test
+    public void testLegacyFormatConverted() throws Exception {
+        getCrawlDataStore().close();
+        File legacyDir = getTempfolder().newFolder();
+        MVStore legacy = MVStore.open(legacyDir.getPath() + "/mvstore");
+        MVMap<String, ICrawlData> queued = legacy.openMap("queued");
+        MVMap<String, ICrawlData> valid = legacy.openMap("processedValid");
+        queued.put("http://example.com/q", 
+                new BaseCrawlData("http://example.com/q"));
+        BaseCrawlData processed = new BaseCrawlData("http://example.com/p");
+        processed.setState(CrawlState.NEW);
+        processed.setContentChecksum("abc123");
+        valid.put(processed.getReference(), processed);
+        legacy.close();
+
+        setCrawlDataStore(new MVStoreCrawlDataStore(
+                legacyDir.getPath(), true));
+        ICrawlDataStore converted = getCrawlDataStore();
+        assertEquals(1, converted.getQueueSize());
+        assertEquals(1, converted.getProcessedCount());
+        converted.close();
+
+        // not resuming moves processed to cache
+        setCrawlDataStore(new MVStoreCrawlDataStore(
+                legacyDir.getPath(), false));
+        assertEquals(processed, getCrawlDataStore().getCached(
+                "http://example.com/p"));
+    }
+
+    @Test
+    public void testFrontCodedKeys() throws Exception {
+        getCrawlDataStore().close();
+        MVStoreCrawlDataStoreConfig cfg = new MVStoreCrawlDataStoreConfig();
+        File plainDir = getTempfolder().newFolder();
+        File frontCodedDir = getTempfolder().newFolder();
+        queueDeepSite(new MVStoreCrawlDataStore(
+                plainDir.getPath(), false, cfg));
+        cfg.setFrontCodedKeys(true);
+        queueDeepSite(new MVStoreCrawlDataStore(
+                frontCodedDir.getPath(), false, cfg));
+        long plainSize = new File(plainDir, "mvstore").length();
+        long frontCodedSize = new File(frontCodedDir, "mvstore").length();
+        assertTrue(frontCodedSize + " >= " + plainSize, 
+                frontCodedSize < plainSize);
+
+        // converted when opened with a different setting
+        for (boolean frontCoded : new boolean[] { true, false, true }) {
+            cfg.setFrontCodedKeys(frontCoded);
+            ICrawlDataStore reopened = new MVStoreCrawlDataStore(
+                    plainDir.getPath(), true, cfg);
+            assertEquals(2000, reopened.getQueueSize());
+            assertTrue(reopened.isQueued(
+                    "http://example.com/section/subsection/page/1999"));
+            assertEquals("http://example.com/section/subsection/page/0",
+                    reopened.nextQueued().getReference());
+            reopened.queue(reopened.nextQueued());
+            reopened.close();
+        }
+        setCrawlDataStore(new MVStoreCrawlDataStore(
+                plainDir.getPath(), true, cfg));
+    }
+    private void queueDeepSite(ICrawlDataStore crawlStore) {
+        for (int i = 0; i < 2000; i++) {
+            crawlStore.queue(new BaseCrawlData(
+                    "http://example.com/section/subsection/page/" + i));
+        }
+        crawlStore.close();
+    }
+
+    @Test
+    public void testNewGeneration() throws Exception {
+        getCrawlDataStore().close();
+        for (int run = 0; run < 3; run++) {
+            ICrawlDataStore crawlStore = 
+                    new MVStoreCrawlDataStore(store.getPath(), false);
+            assertEquals(run == 0 ? 0 : 1, count(
+                    crawlStore.getCacheIterator()));
+            crawlStore.queue(new BaseCrawlData("http://example.com/1-valid"));
+            crawlStore.queue(new BaseCrawlData("http://example.com/2-bad"));
+            crawlStore.queue(new BaseCrawlData("http://example.com/3-queued"));
+            for (int i = 0; i < 2; i++) {
+                BaseCrawlData data = (BaseCrawlData) crawlStore.nextQueued();
+                data.setState(data.getReference().endsWith("bad")
+                        ? CrawlState.BAD_STATUS : CrawlState.NEW);
+                crawlStore.processed(data);
+            }
+            crawlStore.close();
+        }
+        MVStore mvstore = MVStore.open(store.getPath() + "/mvstore");
+        for (String name : mvstore.getMapNames()) {
+            assertFalse(name, name.startsWith("stale."));
+        }
+        mvstore.close();
+
+        setCrawlDataStore(new MVStoreCrawlDataStore(store.getPath(), false));
+        ICrawlDataStore crawlStore = getCrawlDataStore();
+        assertEquals(0, crawlStore.getQueueSize());
+        assertEquals(0, crawlStore.getProcessedCount());
+        assertNotNull(crawlStore.getCached("http://example.com/1-valid"));
+        assertNull(crawlStore.getCached("http://example.com/2-bad"));
+        assertNull(crawlStore.getCached("http://example.com/3-queued"));
+    }
+    private int count(Iterator<ICrawlData> it) {
+        int count = 0;
+        while (it.hasNext()) {
+            it.next();
+            count++;
+        }
+        return count;
+    }
+
+    @Test
+    public void testCompaction() throws Exception {
+        getCrawlDataStore().close();
+        MVStoreCrawlDataStoreConfig cfg = new MVStoreCrawlDataStoreConfig();
+        cfg.setCompactInterval(10);
+        MVStoreCrawlDataStore crawlStore = 
+                new MVStoreCrawlDataStore(store.getPath(), false, cfg);
+        for (int i = 0; i < 5000; i++) {
+            crawlStore.queue(new BaseCrawlData("http://example.com/" + i));
+        }
+        ICrawlData data;
+        while ((data = crawlStore.nextQueued()) != null) {
+            crawlStore.processed(data);
+        }
+        CrawlDataStoreCompactor compactor = crawlStore.getCompactor();
+        for (int i = 0; i < 100 && compactor.getStepCount() == 0; i++) {
+            Thread.sleep(20);
+        }
+        assertTrue(compactor.getStepCount() > 0);
+        assertTrue(compactor.getFillRate() > 0);
+        compactor.pause();
+        Thread.sleep(50);
+        long stepCount = compactor.getStepCount();
+        Thread.sleep(50);
+        assertEquals(stepCount, compactor.getStepCount());
+        crawlStore.close();
+
+        File file = new File(store, "mvstore");
+        long size = file.length();
+        cfg.setCompactInterval(0);
+        cfg.setCompactOnClose(true);
+        new MVStoreCrawlDataStore(store.getPath(), true, cfg).close();
+        assertTrue(file.length() + " >= " + size, file.length() < size);
+
+        setCrawlDataStore(new MVStoreCrawlDataStore(store.getPath(), true));
+        assertEquals(5000, getCrawlDataStore().getProcessedCount());
+    }
+
+    @Test
+    public void testValidation() throws IOException {
+        TestUtil.testValidation(getClass());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidCommitMode() throws IOException {
+        new MVStoreCrawlDataStoreFactory().loadFromXML(new StringReader(
+                "<crawlDataStoreFactory><commitMode>SOMETIMES</commitMode>"
+                + "</crawlDataStoreFactory>"));
+    }
+
+    @Test
+    public void testWriteRead() throws IOException {
+        MVStoreCrawlDataStoreFactory f = new MVStoreCrawlDataStoreFactory();
+        f.getStoreConfig().setCommitMode(CommitMode.GROUP);
+        f.getStoreConfig().setCommitInterval(500);
+        f.getStoreConfig().setCommitDelay(2000);
+        f.getStoreConfig().setFrontCodedKeys(true);
+        f.getStoreConfig().setShards(4);
+        f.getStoreConfig().setCompactInterval(60000);
+        f.getStoreConfig().setCompactOnClose(true);
+        f.getStoreConfig().setReferenceFilterSize(5000);
+        System.out.println("Writing/Reading this: " + f);
+        XMLConfigurationUtil.assertWriteRead(f);
+    }
 }
@@ -0,0 +1,107 @@
+/* Copyright 2019 Norconex Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.norconex.collector.core.data.store.impl.mvstore;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.norconex.collector.core.crawler.ICrawlerConfig;
+import com.norconex.collector.core.data.BaseCrawlData;
+import com.norconex.collector.core.data.ICrawlData;
+import com.norconex.collector.core.data.store.CrawlDataStoreException;
+import com.norconex.collector.core.data.store.IBatchCrawlDataStore;
+import com.norconex.collector.core.data.store.ICrawlDataStore;
+import com.norconex.collector.core.data.store.impl.BaseCrawlDataStoreTest;
+
+public class ShardedMVStoreCrawlDataStoreTest extends BaseCrawlDataStoreTest {
+
+    private File store;
+    
+    @Before
+    public void setup() throws Exception {
+        store = getTempfolder().newFolder();
+        super.setup();
+    }
+    @Override
+    protected ICrawlDataStore createCrawlDataStore(
+            ICrawlerConfig config, TemporaryFolder tempFolder, boolean resume) {
+        return new ShardedMVStoreCrawlDataStore(
+                store.getPath(), resume, shardConfig(4));
+    }
+    private MVStoreCrawlDataStoreConfig shardConfig(int shards) {
+        MVStoreCrawlDataStoreConfig cfg = new MVStoreCrawlDataStoreConfig();
+        cfg.setShards(shards);
+        return cfg;
+    }
+
+    @Test
+    public void testShardedQueue() throws Exception {
+        ICrawlDataStore crawlStore = getCrawlDataStore();
+        for (int i = 0; i < 100; i++) {
+            crawlStore.queue(new BaseCrawlData("http://example.com/" + i));
+        }
+        assertEquals(4, store.listFiles().length);
+        assertEquals(100, crawlStore.getQueueSize());
+
+        Set<String> refs = new HashSet<>();
+        List<ICrawlData> batch = 
+                ((IBatchCrawlDataStore) crawlStore).nextQueued(30);
+        assertEquals(30, batch.size());
+        for (ICrawlData data : batch) {
+            refs.add(data.getReference());
+        }
+        ICrawlData data;
+        while ((data = crawlStore.nextQueued()) != null) {
+            refs.add(data.getReference());
+            crawlStore.processed(data);
+        }
+        assertEquals(100, refs.size());
+        assertEquals(30, crawlStore.getActiveCount());
+        assertEquals(70, crawlStore.getProcessedCount());
+        assertTrue(crawlStore.isQueueEmpty());
+    }
+
+    @Test
+    public void testCacheIterator() throws Exception {
+        for (int i = 0; i < 20; i++) {
+            getCrawlDataStore().processed(
+                    new BaseCrawlData("http://example.com/" + i));
+        }
+        moveProcessedToCache();
+        Set<String> refs = new HashSet<>();
+        Iterator<ICrawlData> it = getCrawlDataStore().getCacheIterator();
+        while (it.hasNext()) {
+            refs.add(it.next().getReference());
+        }
+        assertEquals(20, refs.size());
+    }
+
+    @Test(expected = CrawlDataStoreException.class)
+    public void testShardCountChanged() throws Exception {
+        getCrawlDataStore().close();
+        setCrawlDataStore(new ShardedMVStoreCrawlDataStore(
+                store.getPath(), true, shardConfig(2)));
+    }
+}